@@ -0,0 +1,73 @@
+package org.gusdb.wsf.benchmarks;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.gusdb.wsf.client.ClientRequest;
+import org.gusdb.wsf.plugin.mock.MockPlugin;
+
+/**
+ * The data the benchmarks work on. It is generated from a fixed seed, so every
+ * run, and every release, measures the same content.
+ */
+public final class BenchmarkData {
+
+  public static final String PROJECT = "BenchmarkProject";
+
+  private static final long SEED = 20140213L;
+
+  private static final String[] ORGANISMS = { "Plasmodium falciparum 3D7", "Plasmodium vivax P01",
+      "Toxoplasma gondii ME49", "Cryptosporidium parvum Iowa II", "Giardia lamblia ATCC 50803",
+      "Trypanosoma cruzi CL Brener" };
+
+  private BenchmarkData() {}
+
+  /**
+   * @return rows shaped like the results of a plugin: the columns cycle
+   *   through an ID, an organism out of a few, a number and a strand.
+   */
+  public static List<String[]> newRows(int count, int width) {
+    Random random = new Random(SEED);
+    List<String[]> rows = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      String[] row = new String[width];
+      for (int c = 0; c < width; c++) {
+        switch (c % 4) {
+          case 0:
+            row[c] = String.format("PF3D7_%07d", i);
+            break;
+          case 1:
+            row[c] = ORGANISMS[random.nextInt(ORGANISMS.length)];
+            break;
+          case 2:
+            row[c] = Integer.toString(random.nextInt(10000000));
+            break;
+          default:
+            row[c] = random.nextBoolean() ? "+" : "-";
+        }
+      }
+      rows.add(row);
+    }
+    return rows;
+  }
+
+  /**
+   * @return a request of the mock plugin, for the given number of rows
+   */
+  public static ClientRequest newMockRequest(int rowCount) {
+    Map<String, String> params = new HashMap<>();
+    params.put(MockPlugin.PARAM_ROW_SIZE, Integer.toString(rowCount));
+    params.put(MockPlugin.PARAM_ATTACHMENT_SIZE, "0");
+
+    ClientRequest request = new ClientRequest();
+    request.setProjectId(PROJECT);
+    request.setPluginClass(MockPlugin.class.getName());
+    request.setParams(params);
+    request.setOrderedColumns(MockPlugin.COLUMNS);
+    request.setContext(new HashMap<String, String>());
+    return request;
+  }
+}
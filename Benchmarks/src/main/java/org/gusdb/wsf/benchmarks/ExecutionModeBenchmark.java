@@ -0,0 +1,148 @@
+package org.gusdb.wsf.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import org.gusdb.wsf.client.ClientRequest;
+import org.gusdb.wsf.common.StreamFormat;
+import org.gusdb.wsf.plugin.mock.MockPlugin;
+import org.gusdb.wsf.service.ServiceContext;
+import org.gusdb.wsf.service.VirtualThreadWsfService;
+import org.gusdb.wsf.service.WsfService;
+import org.gusdb.wsf.service.WsfServiceConfig;
+
+/**
+ * Compares the two execution models of the service, as switched by
+ * <code>wsf.virtual-threads</code>: the {@link WsfService} runs the requests on
+ * the container threads, and the {@link VirtualThreadWsfService} suspends them
+ * and runs them on the request executor of its {@link ServiceContext}, a
+ * virtual thread per request. The container is a fixed pool of platform
+ * threads calling the resource method. Every request runs the mock plugin,
+ * which waits before its rows like a plugin waiting on a database, and its
+ * response is streamed to a discarding output.
+ *
+ * Usage: ExecutionModeBenchmark [requests] [container-threads] [latency-ms] [rows]
+ */
+public class ExecutionModeBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int requests = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+    int containerThreads = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+    long latency = (args.length > 2) ? Long.parseLong(args[2]) : 100;
+    int rows = (args.length > 3) ? Integer.parseInt(args[3]) : 100;
+
+    ClientRequest request = BenchmarkData.newMockRequest(rows);
+    request.putParam(MockPlugin.PARAM_DELAY_MS, Long.toString(latency));
+    String json = request.toString();
+
+    // warm up the code paths before measuring
+    run("warm-up", false, containerThreads, json, Math.min(requests, 200));
+
+    run("container threads (" + containerThreads + ")", false, containerThreads, json, requests);
+    run("virtual threads", true, containerThreads, json, requests);
+  }
+
+  private static void run(String name, boolean virtualThreads, int containerThreads, String json,
+      int requests) throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty(WsfServiceConfig.VIRTUAL_THREADS, Boolean.toString(virtualThreads));
+    ServiceContext context = new ServiceContext(new WsfServiceConfig(properties));
+    if (virtualThreads && context.getRequestExecutor() == null) {
+      System.out.println("Virtual threads are not supported by this JVM, skipping.");
+      return;
+    }
+    WsfService service = virtualThreads ? new VirtualThreadWsfService(context) : new WsfService(context);
+    String format = StreamFormat.BINARY.getHeaderValue();
+    ExecutorService container = Executors.newFixedThreadPool(containerThreads);
+
+    ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    threadBean.resetPeakThreadCount();
+    long[] latencies = new long[requests];
+    List<CompletableFuture<Void>> results = new ArrayList<>(requests);
+
+    long start = System.nanoTime();
+    for (int i = 0; i < requests; i++) {
+      final int index = i;
+      CompletableFuture<Void> result = new CompletableFuture<>();
+      results.add(result);
+      container.execute(() -> {
+        long requestStart = System.nanoTime();
+        // the response is written by the thread that resumes it, as the
+        // container does
+        Consumer<Object> writer = response -> {
+          try {
+            if (response instanceof Throwable)
+              throw (Throwable) response;
+            ((StreamingOutput) ((Response) response).getEntity()).write(new DiscardingOutputStream());
+            latencies[index] = System.nanoTime() - requestStart;
+            result.complete(null);
+          }
+          catch (Throwable ex) {
+            result.completeExceptionally(ex);
+          }
+        };
+        if (virtualThreads)
+          ((VirtualThreadWsfService) service).invoke(json, format, null, newAsyncResponse(writer));
+        else
+          writer.accept(service.invoke(json, format, null));
+      });
+    }
+    for (CompletableFuture<Void> result : results) {
+      result.get();
+    }
+    long elapsed = System.nanoTime() - start;
+    container.shutdown();
+    container.awaitTermination(1, TimeUnit.MINUTES);
+    context.close();
+
+    Arrays.sort(latencies);
+    System.out.printf("%-26s %8.1f req/s   p50 %6.1f ms   p99 %6.1f ms   peak threads %d%n", name,
+        requests / (elapsed / 1e9), percentile(latencies, 0.50), percentile(latencies, 0.99),
+        threadBean.getPeakThreadCount());
+  }
+
+  /**
+   * @return a suspended response that hands the response, or the failure, it
+   *   is resumed with to the writer.
+   */
+  private static AsyncResponse newAsyncResponse(Consumer<Object> writer) {
+    return (AsyncResponse) Proxy.newProxyInstance(AsyncResponse.class.getClassLoader(),
+        new Class<?>[] { AsyncResponse.class }, (proxy, method, args) -> {
+          if (method.getName().equals("resume")) {
+            writer.accept(args[0]);
+            return true;
+          }
+          return (method.getReturnType() == boolean.class) ? false : null;
+        });
+  }
+
+  private static double percentile(long[] sorted, double fraction) {
+    int index = Math.min(sorted.length - 1, (int) (sorted.length * fraction));
+    return sorted[index] / 1e6;
+  }
+
+  private static class DiscardingOutputStream extends OutputStream {
+
+    @Override
+    public void write(int b) throws IOException {}
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {}
+  }
+}
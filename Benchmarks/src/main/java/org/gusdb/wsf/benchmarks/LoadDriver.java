@@ -0,0 +1,358 @@
+package org.gusdb.wsf.benchmarks;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.jetty.server.Server;
+import org.glassfish.jersey.jetty.JettyHttpContainerFactory;
+import org.glassfish.jersey.server.ResourceConfig;
+import org.gusdb.wsf.client.ClientBusyException;
+import org.gusdb.wsf.client.ClientRequest;
+import org.gusdb.wsf.client.WsfClientConfig;
+import org.gusdb.wsf.client.WsfClientFactoryImpl;
+import org.gusdb.wsf.client.WsfResponseListener;
+import org.gusdb.wsf.common.StreamEncoding;
+import org.gusdb.wsf.common.WsfExecutors;
+import org.gusdb.wsf.plugin.mock.MockPlugin;
+import org.gusdb.wsf.service.WsfServiceApplication;
+
+/**
+ * Drives load through the remote client against a WSF service running in the
+ * same JVM, on an embedded Jetty, with the mock plugin. Each level of
+ * concurrency runs a warm-up and then a measured period, and reports the
+ * throughput, the percentiles of the latency and of the time to the first row,
+ * the failed and rejected calls, and the heap and GC activity. The client and
+ * the service share the JVM, so the heap and GC figures cover both.
+ *
+ * Usage: LoadDriver [--name=value ...]
+ *
+ * <pre>
+ *   --port=9998                    port of the embedded service
+ *   --concurrency=1,4,16,64        numbers of concurrent callers, run in turn
+ *   --warmup=5                     seconds of warm-up at each level
+ *   --duration=30                  seconds measured at each level
+ *   --mix=10:70,1000:25,100000:5   result sizes in rows, with their weights
+ *   --encodings=wsf-lz4,gzip       encodings accepted by the client
+ *   --params=value.cardinality=20;delay.ms=50
+ *                                  workload params of the mock plugin, added
+ *                                  to every request
+ * </pre>
+ *
+ * The service is configured with the wsf.* system properties, as in a
+ * deployment, for example -Dwsf.admission.max-concurrent=32.
+ */
+public class LoadDriver {
+
+  private static final Map<String, String> DEFAULTS = new HashMap<>();
+
+  static {
+    DEFAULTS.put("port", "9998");
+    DEFAULTS.put("concurrency", "1,4,16,64");
+    DEFAULTS.put("warmup", "5");
+    DEFAULTS.put("duration", "30");
+    DEFAULTS.put("mix", "10:70,1000:25,100000:5");
+    DEFAULTS.put("encodings", "wsf-lz4,gzip,deflate");
+    DEFAULTS.put("params", "");
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = parseOptions(args);
+    int port = Integer.parseInt(options.get("port"));
+    long warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("warmup")));
+    long duration = TimeUnit.SECONDS.toNanos(Long.parseLong(options.get("duration")));
+    RequestMix mix = RequestMix.parse(options.get("mix"), options.get("params"));
+    int[] levels = Arrays.stream(options.get("concurrency").split(",")).map(String::trim)
+        .mapToInt(Integer::parseInt).toArray();
+
+    List<StreamEncoding> encodings = new ArrayList<>();
+    for (String name : options.get("encodings").split(",")) {
+      StreamEncoding encoding = StreamEncoding.fromName(name);
+      if (encoding == null)
+        throw new IllegalArgumentException("Unknown encoding: " + name);
+      encodings.add(encoding);
+    }
+    WsfClientConfig clientConfig = new WsfClientConfig();
+    clientConfig.setMaxConnectionsPerRoute(Arrays.stream(levels).max().orElse(1));
+    clientConfig.setAcceptedEncodings(encodings);
+
+    URI uri = URI.create("http://localhost:" + port + "/");
+    Server server = JettyHttpContainerFactory.createServer(uri,
+        ResourceConfig.forApplication(new WsfServiceApplication()));
+    try (WsfClientFactoryImpl factory = new WsfClientFactoryImpl(clientConfig)) {
+      System.out.println("Service at " + uri + ", request mix " + options.get("mix") + ", params " +
+          mix.params);
+      System.out.printf("%7s %9s %11s %9s %9s %9s %9s %9s %9s %7s %7s %9s %6s %8s%n", "callers", "req/s",
+          "rows/s", "p50 ms", "p95 ms", "p99 ms", "ttfr p50", "ttfr p95", "ttfr p99", "errors", "busy",
+          "heap MB", "gcs", "gc ms");
+      for (int callers : levels) {
+        new Level(factory, uri, mix, callers).run(warmup, duration).print();
+      }
+    }
+    finally {
+      server.stop();
+    }
+  }
+
+  private static Map<String, String> parseOptions(String[] args) {
+    Map<String, String> options = new HashMap<>(DEFAULTS);
+    for (String arg : args) {
+      int equals = arg.indexOf('=');
+      String name = (arg.startsWith("--") && equals > 2) ? arg.substring(2, equals) : null;
+      if (name == null || !DEFAULTS.containsKey(name))
+        throw new IllegalArgumentException("Unknown option: " + arg + ", the options are " + DEFAULTS.keySet());
+      options.put(name, arg.substring(equals + 1));
+    }
+    return options;
+  }
+
+  /**
+   * Requests of the mock plugin for several result sizes, picked at random in
+   * proportion to their weights.
+   */
+  static class RequestMix {
+
+    private final int[] rows;
+    private final int[] cumulativeWeights;
+    private final Map<String, String> params;
+
+    private RequestMix(int[] rows, int[] cumulativeWeights, Map<String, String> params) {
+      this.rows = rows;
+      this.cumulativeWeights = cumulativeWeights;
+      this.params = params;
+    }
+
+    /**
+     * @param mix
+     *   a comma separated list of rows:weight entries
+     * @param params
+     *   a semicolon separated list of name=value params of the mock plugin
+     */
+    static RequestMix parse(String mix, String params) {
+      String[] entries = mix.split(",");
+      int[] rows = new int[entries.length];
+      int[] weights = new int[entries.length];
+      int total = 0;
+      for (int i = 0; i < entries.length; i++) {
+        String[] parts = entries[i].trim().split(":");
+        rows[i] = Integer.parseInt(parts[0].trim());
+        total += (parts.length > 1) ? Integer.parseInt(parts[1].trim()) : 1;
+        weights[i] = total;
+      }
+      Map<String, String> paramMap = new LinkedHashMap<>();
+      for (String param : params.split(";")) {
+        int equals = param.indexOf('=');
+        if (equals > 0)
+          paramMap.put(param.substring(0, equals).trim(), param.substring(equals + 1).trim());
+        else if (!param.trim().isEmpty())
+          throw new IllegalArgumentException("Invalid plugin param: " + param);
+      }
+      return new RequestMix(rows, weights, paramMap);
+    }
+
+    ClientRequest next(Random random) {
+      int pick = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+      int i = 0;
+      while (pick >= cumulativeWeights[i]) {
+        i++;
+      }
+      ClientRequest request = BenchmarkData.newMockRequest(rows[i]);
+      for (Map.Entry<String, String> param : params.entrySet()) {
+        request.putParam(param.getKey(), param.getValue());
+      }
+      // the mock plugin takes the column count as a param
+      String columns = params.get(MockPlugin.PARAM_COLUMN_COUNT);
+      if (columns != null)
+        request.setOrderedColumns(MockPlugin.getColumns(Integer.parseInt(columns)));
+      return request;
+    }
+  }
+
+  /**
+   * A growing list of durations, owned by one caller.
+   */
+  private static class Samples {
+
+    private long[] values = new long[1024];
+    private int size;
+
+    void add(long value) {
+      if (size == values.length)
+        values = Arrays.copyOf(values, size * 2);
+      values[size++] = value;
+    }
+
+    static long[] merge(List<Samples> samples) {
+      long[] merged = new long[samples.stream().mapToInt(s -> s.size).sum()];
+      int offset = 0;
+      for (Samples s : samples) {
+        System.arraycopy(s.values, 0, merged, offset, s.size);
+        offset += s.size;
+      }
+      Arrays.sort(merged);
+      return merged;
+    }
+  }
+
+  /**
+   * Counts the rows of a call, and the time to the first one.
+   */
+  private static class RowCounter implements WsfResponseListener {
+
+    private final long start = System.nanoTime();
+    private long firstRow = -1;
+    private long rows;
+
+    @Override
+    public void onRowReceived(String[] row) {
+      if (firstRow < 0)
+        firstRow = System.nanoTime() - start;
+      rows++;
+    }
+
+    @Override
+    public void onRowsReceived(List<String[]> batch) {
+      if (firstRow < 0 && !batch.isEmpty())
+        firstRow = System.nanoTime() - start;
+      rows += batch.size();
+    }
+
+    @Override
+    public void onAttachmentReceived(String key, String content) {}
+
+    @Override
+    public void onMessageReceived(String message) {}
+  }
+
+  /**
+   * One level of concurrency: the callers invoke the service in a loop, and
+   * the calls started in the measured period are recorded.
+   */
+  private static class Level {
+
+    private final WsfClientFactoryImpl factory;
+    private final URI uri;
+    private final RequestMix mix;
+    private final int callers;
+
+    private final List<Samples> latencies = new ArrayList<>();
+    private final List<Samples> firstRows = new ArrayList<>();
+    private final LongAdder rows = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder busy = new LongAdder();
+    private final AtomicLong peakHeap = new AtomicLong();
+
+    private long elapsed;
+    private long gcCount;
+    private long gcTime;
+
+    Level(WsfClientFactoryImpl factory, URI uri, RequestMix mix, int callers) {
+      this.factory = factory;
+      this.uri = uri;
+      this.mix = mix;
+      this.callers = callers;
+    }
+
+    Level run(long warmup, long duration) throws InterruptedException {
+      long measureStart = System.nanoTime() + warmup;
+      long end = measureStart + duration;
+      List<Thread> threads = new ArrayList<>();
+      for (int i = 0; i < callers; i++) {
+        Samples latency = new Samples();
+        Samples firstRow = new Samples();
+        latencies.add(latency);
+        firstRows.add(firstRow);
+        Thread thread = new Thread(() -> call(measureStart, end, latency, firstRow), "load-caller-" + i);
+        thread.setDaemon(true);
+        threads.add(thread);
+        thread.start();
+      }
+
+      TimeUnit.NANOSECONDS.sleep(Math.max(0, measureStart - System.nanoTime()));
+      long[] gcStart = gcStats();
+      MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+      ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(
+          WsfExecutors.newDaemonThreadFactory("load-heap-sampler"));
+      sampler.scheduleAtFixedRate(() -> peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max),
+          0, 100, TimeUnit.MILLISECONDS);
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      elapsed = System.nanoTime() - measureStart;
+      sampler.shutdownNow();
+      long[] gcEnd = gcStats();
+      gcCount = gcEnd[0] - gcStart[0];
+      gcTime = gcEnd[1] - gcStart[1];
+      return this;
+    }
+
+    private void call(long measureStart, long end, Samples latency, Samples firstRow) {
+      Random random = new Random();
+      long start;
+      while ((start = System.nanoTime()) < end) {
+        RowCounter counter = new RowCounter();
+        boolean measured = start >= measureStart;
+        try {
+          factory.newClient(counter, uri).invoke(mix.next(random));
+          if (measured) {
+            latency.add(System.nanoTime() - start);
+            if (counter.firstRow >= 0)
+              firstRow.add(counter.firstRow);
+            rows.add(counter.rows);
+          }
+        }
+        catch (ClientBusyException ex) {
+          if (measured)
+            busy.increment();
+        }
+        catch (Exception ex) {
+          if (measured)
+            errors.increment();
+        }
+      }
+    }
+
+    void print() {
+      long[] latency = Samples.merge(latencies);
+      long[] firstRow = Samples.merge(firstRows);
+      double seconds = elapsed / 1e9;
+      System.out.printf("%7d %9.1f %11.0f %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f %7d %7d %9d %6d %8d%n", callers,
+          latency.length / seconds, rows.sum() / seconds, percentile(latency, 0.50), percentile(latency, 0.95),
+          percentile(latency, 0.99), percentile(firstRow, 0.50), percentile(firstRow, 0.95),
+          percentile(firstRow, 0.99), errors.sum(), busy.sum(), peakHeap.get() / (1024 * 1024), gcCount, gcTime);
+    }
+
+    private static double percentile(long[] sorted, double fraction) {
+      if (sorted.length == 0)
+        return Double.NaN;
+      int index = Math.min(sorted.length - 1, (int) (sorted.length * fraction));
+      return sorted[index] / 1e6;
+    }
+
+    /**
+     * @return the number of collections and their time in ms, over all the
+     *   collectors.
+     */
+    private static long[] gcStats() {
+      long[] stats = new long[2];
+      for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+        stats[0] += Math.max(0, collector.getCollectionCount());
+        stats[1] += Math.max(0, collector.getCollectionTime());
+      }
+      return stats;
+    }
+  }
+}
@@ -0,0 +1,82 @@
+package org.gusdb.wsf.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.gusdb.wsf.client.ClientModelException;
+import org.gusdb.wsf.client.ClientRequest;
+import org.gusdb.wsf.client.ClientUserException;
+import org.gusdb.wsf.client.WsfClient;
+import org.gusdb.wsf.client.WsfClientFactoryImpl;
+import org.gusdb.wsf.client.WsfResponseListener;
+import org.gusdb.wsf.plugin.DelayedResultException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Invokes the mock plugin through the local client, from the request to the
+ * rows received by the listener, as the WDK does when the plugins run in its
+ * own JVM.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LocalClientBenchmark {
+
+  @Param({ "1", "1000" })
+  public int rows;
+
+  private WsfClientFactoryImpl factory;
+  private WsfClient client;
+  private ClientRequest request;
+  private Blackhole blackhole;
+
+  @Setup
+  public void setUp() {
+    factory = new WsfClientFactoryImpl();
+    client = factory.newClient(new WsfResponseListener() {
+
+      @Override
+      public void onRowReceived(String[] row) {
+        blackhole.consume(row);
+      }
+
+      @Override
+      public void onAttachmentReceived(String key, String content) {
+        blackhole.consume(content);
+      }
+
+      @Override
+      public void onMessageReceived(String message) {
+        blackhole.consume(message);
+      }
+    });
+    request = BenchmarkData.newMockRequest(rows);
+  }
+
+  @TearDown
+  public void tearDown() {
+    factory.close();
+  }
+
+  @Benchmark
+  public int invoke(Blackhole blackhole) throws ClientModelException, ClientUserException,
+      DelayedResultException {
+    // the client holds its listener, which hands the rows to the blackhole
+    this.blackhole = blackhole;
+    return client.invoke(request);
+  }
+}
@@ -0,0 +1,69 @@
+package org.gusdb.wsf.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.gusdb.wsf.client.ClientRequest;
+import org.gusdb.wsf.plugin.DelayedResultException;
+import org.gusdb.wsf.plugin.PluginExecutor;
+import org.gusdb.wsf.plugin.PluginModelException;
+import org.gusdb.wsf.plugin.PluginResponse;
+import org.gusdb.wsf.plugin.PluginUserException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Runs the mock plugin through the executor, with the output discarded. With
+ * a single row, it measures the cost of the executor itself: the plugin
+ * lookup, the validation, and the cancellation and deadline hooks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PluginExecutorBenchmark {
+
+  @Param({ "1", "1000" })
+  public int rows;
+
+  private final PluginExecutor executor = new PluginExecutor();
+  private ClientRequest request;
+
+  @Setup
+  public void setUp() {
+    request = BenchmarkData.newMockRequest(rows);
+  }
+
+  @Benchmark
+  public int execute(Blackhole blackhole) throws PluginModelException, PluginUserException,
+      DelayedResultException {
+    return executor.execute(request.getPluginClass(), request, new PluginResponse() {
+
+      @Override
+      public void addRow(String[] row) {
+        blackhole.consume(row);
+      }
+
+      @Override
+      public void addAttachment(String key, String attachment) {
+        blackhole.consume(attachment);
+      }
+
+      @Override
+      public void setMessage(String message) {
+        blackhole.consume(message);
+      }
+    });
+  }
+}
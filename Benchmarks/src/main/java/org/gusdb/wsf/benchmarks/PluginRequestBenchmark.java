@@ -0,0 +1,81 @@
+package org.gusdb.wsf.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.gusdb.wsf.plugin.PluginModelException;
+import org.gusdb.wsf.plugin.PluginRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The JSON form of a request, which is parsed by the service for every call,
+ * and its checksum, which the WDK computes to cache the results.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PluginRequestBenchmark {
+
+  @Param({ "4", "64" })
+  public int params;
+
+  private PluginRequest request;
+  private String json;
+
+  @Setup
+  public void setUp() {
+    Map<String, String> paramMap = new HashMap<>();
+    for (int i = 0; i < params; i++) {
+      paramMap.put("param_" + i, "value " + i + " of the benchmark request");
+    }
+    Map<String, String> context = new HashMap<>();
+    context.put("user-id", "1234567");
+    context.put("question-name", "GeneQuestions.GenesByBenchmark");
+
+    request = new PluginRequest();
+    request.setProjectId(BenchmarkData.PROJECT);
+    request.setOrderedColumns(new String[] { "source_id", "organism", "score", "strand" });
+    request.setParams(paramMap);
+    request.setContext(context);
+    json = request.toString();
+  }
+
+  @Benchmark
+  public PluginRequest parse() throws PluginModelException {
+    return new PluginRequest(json);
+  }
+
+  @Benchmark
+  public String serialize() {
+    return request.toString();
+  }
+
+  /**
+   * The checksum is kept once computed, so it is taken on a copy; see
+   * {@link #copy()} for the cost of the copy alone.
+   */
+  @Benchmark
+  @SuppressWarnings("deprecation")
+  public int checksum() {
+    return new PluginRequest(request).getChecksum();
+  }
+
+  @Benchmark
+  public PluginRequest copy() {
+    return new PluginRequest(request);
+  }
+}
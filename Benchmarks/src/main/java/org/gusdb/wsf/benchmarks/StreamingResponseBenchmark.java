@@ -0,0 +1,92 @@
+package org.gusdb.wsf.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.gusdb.wsf.common.ResponseEncoder;
+import org.gusdb.wsf.common.ResponseStatus;
+import org.gusdb.wsf.common.StreamFormat;
+import org.gusdb.wsf.plugin.PluginModelException;
+import org.gusdb.wsf.service.StreamingPluginResponse;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encodes the rows written by a plugin into the response stream, as the
+ * service does, in every format and for several row widths. The score is in
+ * rows per second; the bytes counter is in bytes per second, and divided by
+ * the score it gives the bytes per row.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StreamingResponseBenchmark {
+
+  static final int ROWS = 10000;
+
+  @Param({ "3", "10", "40" })
+  public int width;
+
+  @Param({ "BINARY", "BINARY_V2", "SERIALIZED" })
+  public StreamFormat format;
+
+  private List<String[]> rows;
+
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class Output extends OutputStream {
+
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      bytes = 0;
+    }
+
+    @Override
+    public void write(int b) {
+      bytes++;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) {
+      bytes += length;
+    }
+  }
+
+  @Setup
+  public void setUp() {
+    rows = BenchmarkData.newRows(ROWS, width);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ROWS)
+  public int encode(Output output) throws IOException, PluginModelException {
+    ResponseEncoder encoder = format.newEncoder(output);
+    StreamingPluginResponse response = new StreamingPluginResponse(encoder);
+    for (String[] row : rows) {
+      response.addRow(row);
+    }
+    response.flush();
+    encoder.writeStatus(new ResponseStatus());
+    encoder.close();
+    return response.getRowCount();
+  }
+}
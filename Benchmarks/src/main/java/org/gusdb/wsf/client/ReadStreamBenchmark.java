@@ -0,0 +1,100 @@
+package org.gusdb.wsf.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.gusdb.wsf.benchmarks.BenchmarkData;
+import org.gusdb.wsf.common.ResponseEncoder;
+import org.gusdb.wsf.common.ResponseStatus;
+import org.gusdb.wsf.common.StreamFormat;
+import org.gusdb.wsf.plugin.DelayedResultException;
+import org.gusdb.wsf.service.StreamingPluginResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Decodes a response stream and hands the rows to a listener, as the remote
+ * client does, without the network. The score is in rows per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadStreamBenchmark {
+
+  static final int ROWS = 10000;
+
+  @Param({ "3", "10", "40" })
+  public int width;
+
+  @Param({ "BINARY", "BINARY_V2", "SERIALIZED" })
+  public StreamFormat format;
+
+  private byte[] stream;
+
+  @Setup
+  public void setUp() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ResponseEncoder encoder = format.newEncoder(bytes);
+    StreamingPluginResponse response = new StreamingPluginResponse(encoder);
+    for (String[] row : BenchmarkData.newRows(ROWS, width)) {
+      response.addRow(row);
+    }
+    response.flush();
+    encoder.writeStatus(new ResponseStatus());
+    encoder.close();
+    stream = bytes.toByteArray();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ROWS)
+  public int read(Blackhole blackhole) throws ClientUserException, ClientModelException, IOException,
+      ClassNotFoundException, DelayedResultException {
+    Map<String, Integer> stats = new HashMap<>();
+    stats.put("rows", 0);
+    stats.put("attachments", 0);
+    WsfResponseListener listener = new WsfResponseListener() {
+
+      @Override
+      public void onRowReceived(String[] row) {
+        blackhole.consume(row);
+      }
+
+      @Override
+      public void onRowsReceived(List<String[]> rows) {
+        for (String[] row : rows) {
+          blackhole.consume(row);
+        }
+      }
+
+      @Override
+      public void onAttachmentReceived(String key, String content) {
+        blackhole.consume(content);
+      }
+
+      @Override
+      public void onMessageReceived(String message) {
+        blackhole.consume(message);
+      }
+    };
+    return WsfRemoteClient.readStream(format.newDecoder(new ByteArrayInputStream(stream)), listener, stats);
+  }
+}
@@ -0,0 +1,29 @@
+package org.gusdb.wsf.client;
+
+/**
+ * Thrown when the service refused a request because it is too busy. The
+ * request was not run, and can be sent again after the suggested delay.
+ */
+public class ClientBusyException extends ClientModelException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final long retryAfterSeconds;
+
+  public ClientBusyException(String message, long retryAfterSeconds) {
+    super(message);
+    this.retryAfterSeconds = retryAfterSeconds;
+  }
+
+  public ClientBusyException(String message, Throwable cause, long retryAfterSeconds) {
+    super(message, cause);
+    this.retryAfterSeconds = retryAfterSeconds;
+  }
+
+  /**
+   * @return how long to wait before sending the request again, in seconds
+   */
+  public long getRetryAfterSeconds() {
+    return retryAfterSeconds;
+  }
+}
@@ -1,5 +1,7 @@
 package org.gusdb.wsf.client;
 
+import java.security.MessageDigest;
+
 import org.gusdb.wsf.plugin.PluginRequest;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -54,6 +56,13 @@ public class ClientRequest extends PluginRequest {
    */
   public void setPluginClass(String pluginClass) {
     this.pluginClass = pluginClass;
+    resetFingerprint();
+  }
+
+  @Override
+  protected void digestContent(MessageDigest digest) {
+    digest(digest, pluginClass);
+    super.digestContent(digest);
   }
 
   @Override
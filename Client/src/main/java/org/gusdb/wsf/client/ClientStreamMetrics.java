@@ -0,0 +1,48 @@
+package org.gusdb.wsf.client;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures where the time of reading the responses goes: waiting for the
+ * service to send data, or handing it to the response listeners. While a
+ * listener is busy, the response is not read, and the service is held back
+ * once the buffers of the connection are full.
+ */
+public class ClientStreamMetrics {
+
+  private final LongAdder responseCount = new LongAdder();
+  private final LongAdder bytesRead = new LongAdder();
+  private final LongAdder totalReadWaitNanos = new LongAdder();
+  private final LongAdder totalListenerNanos = new LongAdder();
+
+  void record(long bytes, long readWaitNanos, long listenerNanos) {
+    responseCount.increment();
+    bytesRead.add(bytes);
+    totalReadWaitNanos.add(readWaitNanos);
+    totalListenerNanos.add(listenerNanos);
+  }
+
+  public long getResponseCount() {
+    return responseCount.sum();
+  }
+
+  public long getBytesRead() {
+    return bytesRead.sum();
+  }
+
+  /**
+   * @return the total time spent waiting for the services to send data
+   */
+  public Duration getTotalReadWaitTime() {
+    return Duration.ofNanos(totalReadWaitNanos.sum());
+  }
+
+  /**
+   * @return the total time spent decoding the responses and running the
+   *   listeners, during which the services were not read
+   */
+  public Duration getTotalListenerTime() {
+    return Duration.ofNanos(totalListenerNanos.sum());
+  }
+}
@@ -0,0 +1,22 @@
+package org.gusdb.wsf.client;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.gusdb.wsf.common.WsfExecutors;
+
+/**
+ * The threads the asynchronous calls of the clients run on: a virtual thread
+ * per call if the JVM supports them, otherwise a cached pool of daemon threads.
+ */
+final class ClientThreads {
+
+  private static final ExecutorService EXECUTOR = WsfExecutors.newVirtualThreadPerTaskExecutor()
+      .orElseGet(() -> Executors.newCachedThreadPool(WsfExecutors.newDaemonThreadFactory("wsf-client")));
+
+  private ClientThreads() {}
+
+  static ExecutorService get() {
+    return EXECUTOR;
+  }
+}
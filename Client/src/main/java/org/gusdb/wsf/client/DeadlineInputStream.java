@@ -0,0 +1,116 @@
+package org.gusdb.wsf.client;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Fails the reads once a deadline has passed. The read timeout of the
+ * connection only bounds the wait for each read, and the service sends
+ * heartbeats while the plugin is quiet, so it doesn't bound the whole response.
+ * A read blocked on a service that sends nothing, such as an older service, is
+ * ended by closing the connection from a timer at the deadline.
+ */
+class DeadlineInputStream extends FilterInputStream {
+
+  private static final Logger LOG = Logger.getLogger(DeadlineInputStream.class);
+
+  private final Instant deadline;
+  private final CompletableFuture<Void> timer;
+  private volatile boolean expired;
+
+  /**
+   * @param closer
+   *   closes the connection of the stream, so a blocked read fails
+   */
+  DeadlineInputStream(InputStream inStream, Instant deadline, Runnable closer) {
+    super(inStream);
+    this.deadline = deadline;
+    long delay = Math.max(0, deadline.toEpochMilli() - System.currentTimeMillis());
+    this.timer = CompletableFuture.runAsync(() -> expire(closer),
+        CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS));
+  }
+
+  @Override
+  public int read() throws IOException {
+    checkDeadline();
+    int value;
+    try {
+      value = super.read();
+    }
+    catch (IOException | RuntimeException ex) {
+      // closed under the read at the deadline
+      if (expired)
+        throw newTimeoutException();
+      throw ex;
+    }
+    // the end of a stream closed at the deadline isn't the end of the response
+    if (value < 0 && expired)
+      throw newTimeoutException();
+    return value;
+  }
+
+  @Override
+  public int read(byte[] bytes, int offset, int length) throws IOException {
+    checkDeadline();
+    int count;
+    try {
+      count = super.read(bytes, offset, length);
+    }
+    catch (IOException | RuntimeException ex) {
+      // closed under the read at the deadline
+      if (expired)
+        throw newTimeoutException();
+      throw ex;
+    }
+    if (count < 0 && expired)
+      throw newTimeoutException();
+    return count;
+  }
+
+  @Override
+  public long skip(long count) throws IOException {
+    checkDeadline();
+    try {
+      return super.skip(count);
+    }
+    catch (IOException | RuntimeException ex) {
+      // closed under the read at the deadline
+      if (expired)
+        throw newTimeoutException();
+      throw ex;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    // a cancelled timer doesn't run
+    timer.cancel(false);
+    super.close();
+  }
+
+  private void expire(Runnable closer) {
+    expired = true;
+    try {
+      closer.run();
+    }
+    catch (RuntimeException ex) {
+      LOG.debug("Unable to close the connection at the deadline " + deadline, ex);
+    }
+  }
+
+  private void checkDeadline() throws IOException {
+    if (expired || Instant.now().isAfter(deadline))
+      throw newTimeoutException();
+  }
+
+  private IOException newTimeoutException() {
+    return new IOException(new TimeoutException("The response was not complete by " + deadline + "."));
+  }
+}
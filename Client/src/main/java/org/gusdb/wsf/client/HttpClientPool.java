@@ -0,0 +1,153 @@
+package org.gusdb.wsf.client;
+
+import java.net.URI;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.ClientBuilder;
+
+import org.apache.log4j.Logger;
+import org.glassfish.jersey.client.ClientProperties;
+
+/**
+ * Keeps one HTTP client per service route (scheme, host and port), so that
+ * the Jersey runtime, the async thread pool and the keep-alive connections are
+ * reused by all the requests to a service. Clients unused for longer than the
+ * idle timeout are closed.
+ */
+public class HttpClientPool implements AutoCloseable {
+
+  private static final Logger LOG = Logger.getLogger(HttpClientPool.class);
+
+  /**
+   * A client shared by the requests to one route. It is only closed when no
+   * request is using it.
+   */
+  static class SharedClient {
+
+    private final Client client;
+    private int activeCount;
+    private long lastUsed = System.currentTimeMillis();
+    private boolean closed;
+
+    SharedClient(Client client) {
+      this.client = client;
+    }
+
+    Client getClient() {
+      return client;
+    }
+
+    synchronized boolean acquire() {
+      if (closed)
+        return false;
+      activeCount++;
+      lastUsed = System.currentTimeMillis();
+      return true;
+    }
+
+    synchronized void release() {
+      activeCount--;
+      lastUsed = System.currentTimeMillis();
+    }
+
+    synchronized int getActiveCount() {
+      return activeCount;
+    }
+
+    synchronized boolean closeIfIdle(long idleMillis) {
+      if (closed || activeCount > 0 || System.currentTimeMillis() - lastUsed < idleMillis)
+        return false;
+      close();
+      return true;
+    }
+
+    synchronized void close() {
+      closed = true;
+      client.close();
+    }
+  }
+
+  private final WsfClientConfig config;
+  private final ConcurrentMap<String, SharedClient> clients = new ConcurrentHashMap<>();
+  private final ClientStreamMetrics streamMetrics = new ClientStreamMetrics();
+
+  public HttpClientPool(WsfClientConfig config) {
+    this.config = config;
+  }
+
+  /**
+   * Get the client of the service, and mark it in use. The caller must call
+   * {@link SharedClient#release()} once the response is consumed.
+   */
+  SharedClient acquire(URI serviceURI) {
+    evictIdleClients();
+    String route = serviceURI.getScheme() + "://" + serviceURI.getAuthority();
+    while (true) {
+      SharedClient client = clients.computeIfAbsent(route, key -> new SharedClient(buildClient()));
+      if (client.acquire())
+        return client;
+      // evicted concurrently, drop it and create a new one
+      clients.remove(route, client);
+    }
+  }
+
+  WsfClientConfig getConfig() {
+    return config;
+  }
+
+  /**
+   * @return the number of open clients
+   */
+  public int getClientCount() {
+    return clients.size();
+  }
+
+  /**
+   * @return the number of calls holding a client, until their response is
+   *   read or they are given up
+   */
+  public int getActiveCount() {
+    int count = 0;
+    for (SharedClient client : clients.values()) {
+      count += client.getActiveCount();
+    }
+    return count;
+  }
+
+  /**
+   * @return the time spent reading the responses of the clients
+   */
+  public ClientStreamMetrics getStreamMetrics() {
+    return streamMetrics;
+  }
+
+  @Override
+  public void close() {
+    for (SharedClient client : clients.values()) {
+      client.close();
+    }
+    clients.clear();
+  }
+
+  private void evictIdleClients() {
+    long idleMillis = config.getIdleTimeout().toMillis();
+    for (Iterator<SharedClient> it = clients.values().iterator(); it.hasNext();) {
+      if (it.next().closeIfIdle(idleMillis)) {
+        LOG.debug("Closed an idle WSF http client.");
+        it.remove();
+      }
+    }
+  }
+
+  private Client buildClient() {
+    return ClientBuilder.newBuilder()
+        .property(ClientProperties.CONNECT_TIMEOUT, (int) config.getConnectTimeout().toMillis())
+        .property(ClientProperties.READ_TIMEOUT, (int) config.getReadTimeout().toMillis())
+        .property(ClientProperties.ASYNC_THREADPOOL_SIZE, config.getMaxConnectionsPerRoute())
+        .property(ClientProperties.FOLLOW_REDIRECTS, Boolean.TRUE)
+        .build();
+  }
+}
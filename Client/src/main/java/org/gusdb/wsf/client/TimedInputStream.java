@@ -0,0 +1,54 @@
+package org.gusdb.wsf.client;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Counts the bytes of a response, and the time spent waiting for them.
+ */
+class TimedInputStream extends FilterInputStream {
+
+  private long bytes;
+  private long waitNanos;
+
+  TimedInputStream(InputStream inStream) {
+    super(inStream);
+  }
+
+  long getBytes() {
+    return bytes;
+  }
+
+  long getWaitNanos() {
+    return waitNanos;
+  }
+
+  @Override
+  public int read() throws IOException {
+    long start = System.nanoTime();
+    try {
+      int b = super.read();
+      if (b >= 0)
+        bytes++;
+      return b;
+    }
+    finally {
+      waitNanos += System.nanoTime() - start;
+    }
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    long start = System.nanoTime();
+    try {
+      int count = super.read(buffer, offset, length);
+      if (count > 0)
+        bytes += count;
+      return count;
+    }
+    finally {
+      waitNanos += System.nanoTime() - start;
+    }
+  }
+}
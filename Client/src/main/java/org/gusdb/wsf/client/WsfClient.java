@@ -1,5 +1,7 @@
 package org.gusdb.wsf.client;
 
+import java.util.concurrent.CompletableFuture;
+
 import org.gusdb.wsf.plugin.DelayedResultException;
 
 public interface WsfClient {
@@ -8,4 +10,36 @@ public interface WsfClient {
 
   int invoke(ClientRequest request) throws ClientModelException, ClientUserException, DelayedResultException;
 
+  /**
+   * Run the request without blocking the calling thread; the response listener
+   * receives the response on another thread. Cancelling the future abandons
+   * the call, and the plugin is cancelled.
+   *
+   * @return the signal of the plugin; the future fails with the exceptions
+   *   thrown by {@link #invoke(ClientRequest)}.
+   */
+  default CompletableFuture<Integer> invokeAsync(ClientRequest request) {
+    return invokeAsync(request, null);
+  }
+
+  /**
+   * Like {@link #invokeAsync(ClientRequest)}, with the given listener instead
+   * of the response listener of the client.
+   *
+   * @param listener
+   *   the listener of this call, or null to use the response listener of the
+   *   client.
+   */
+  CompletableFuture<Integer> invokeAsync(ClientRequest request, WsfResponseListener listener);
+
+  /**
+   * Run the request when the publisher is subscribed, and publish the rows of
+   * the response at the pace of the demand of the subscriber.
+   *
+   * @param listener
+   *   receives the attachments and the message of the response, may be null
+   */
+  default WsfRowPublisher publishRows(ClientRequest request, WsfResponseListener listener) {
+    return new WsfRowPublisher(this, request, listener);
+  }
 }
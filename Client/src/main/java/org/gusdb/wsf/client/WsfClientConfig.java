@@ -0,0 +1,81 @@
+package org.gusdb.wsf.client;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
+import org.gusdb.wsf.common.StreamEncoding;
+
+/**
+ * Settings of the HTTP clients used to call remote WSF services.
+ */
+public class WsfClientConfig {
+
+  private Duration connectTimeout = Duration.ofSeconds(30);
+  private Duration readTimeout = Duration.ZERO;
+  private int maxConnectionsPerRoute = 20;
+  private Duration idleTimeout = Duration.ofMinutes(10);
+  private List<StreamEncoding> acceptedEncodings =
+      Arrays.asList(StreamEncoding.LZ4, StreamEncoding.GZIP, StreamEncoding.DEFLATE);
+
+  /**
+   * @return the maximum time to establish a connection to the service
+   */
+  public Duration getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  public void setConnectTimeout(Duration connectTimeout) {
+    this.connectTimeout = connectTimeout;
+  }
+
+  /**
+   * @return the maximum time to wait for data from the service; zero means no
+   *   limit, since plugins can run for a long time before the first row. The
+   *   remote execute timeout of a request is enforced either way.
+   */
+  public Duration getReadTimeout() {
+    return readTimeout;
+  }
+
+  public void setReadTimeout(Duration readTimeout) {
+    this.readTimeout = readTimeout;
+  }
+
+  /**
+   * @return the maximum number of concurrent requests to one service (scheme,
+   *   host and port); further requests wait for a free connection.
+   */
+  public int getMaxConnectionsPerRoute() {
+    return maxConnectionsPerRoute;
+  }
+
+  public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+    this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+  }
+
+  /**
+   * @return how long the client of a service is kept after its last request
+   *   before it is closed.
+   */
+  public Duration getIdleTimeout() {
+    return idleTimeout;
+  }
+
+  public void setIdleTimeout(Duration idleTimeout) {
+    this.idleTimeout = idleTimeout;
+  }
+
+  /**
+   * @return the compressions of the responses accepted from the services, in
+   *   order of preference; the fast LZ4 codec first by default. An empty list
+   *   asks for uncompressed responses.
+   */
+  public List<StreamEncoding> getAcceptedEncodings() {
+    return acceptedEncodings;
+  }
+
+  public void setAcceptedEncodings(List<StreamEncoding> acceptedEncodings) {
+    this.acceptedEncodings = acceptedEncodings;
+  }
+}
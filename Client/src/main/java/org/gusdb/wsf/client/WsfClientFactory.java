@@ -7,4 +7,9 @@ public interface WsfClientFactory {
   WsfClient newClient(WsfResponseListener listener);
 
   WsfClient newClient(WsfResponseListener listener, URI serviceURI);
+
+  /**
+   * @return a client of the remote service, which can also run jobs.
+   */
+  WsfJobClient newJobClient(WsfResponseListener listener, URI serviceURI);
 }
@@ -2,7 +2,23 @@ package org.gusdb.wsf.client;
 
 import java.net.URI;
 
-public final class WsfClientFactoryImpl implements WsfClientFactory {
+/**
+ * Creates the WSF clients. The remote clients created by a factory share one
+ * HTTP client per service, which keeps connections alive between requests; the
+ * factory should be kept for the life of the application and closed when it is
+ * no longer used.
+ */
+public final class WsfClientFactoryImpl implements WsfClientFactory, AutoCloseable {
+
+  private final HttpClientPool httpClients;
+
+  public WsfClientFactoryImpl() {
+    this(new WsfClientConfig());
+  }
+
+  public WsfClientFactoryImpl(WsfClientConfig config) {
+    this.httpClients = new HttpClientPool(config);
+  }
 
   @Override
   public WsfClient newClient(WsfResponseListener listener) {
@@ -13,8 +29,30 @@ public final class WsfClientFactoryImpl implements WsfClientFactory {
 
   @Override
   public WsfClient newClient(WsfResponseListener listener, URI serviceURI) {
-    WsfClient client = new WsfRemoteClient(serviceURI);
+    return newJobClient(listener, serviceURI);
+  }
+
+  @Override
+  public WsfJobClient newJobClient(WsfResponseListener listener, URI serviceURI) {
+    WsfJobClient client = new WsfRemoteClient(serviceURI, httpClients);
     client.setResponseListener(listener);
     return client;
   }
+
+  /**
+   * @return the time the remote clients of this factory spent waiting for the
+   *   services, and running their listeners
+   */
+  public ClientStreamMetrics getStreamMetrics() {
+    return httpClients.getStreamMetrics();
+  }
+
+  /**
+   * Close the HTTP clients of the remote services. Clients requested after
+   * this call create new connections.
+   */
+  @Override
+  public void close() {
+    httpClients.close();
+  }
 }
@@ -0,0 +1,70 @@
+package org.gusdb.wsf.client;
+
+import java.time.Duration;
+
+import org.gusdb.wsf.plugin.DelayedResultException;
+import org.gusdb.wsf.plugin.JobStatus;
+
+/**
+ * A client that can also run requests as jobs in the background of the
+ * service, for long runs that shouldn't hold a connection open. A job is
+ * submitted, then its status is polled until it's done, and its result is
+ * sent to the response listener like the result of {@link #invoke}.
+ */
+public interface WsfJobClient extends WsfClient {
+
+  // the longest the service holds a status request
+  Duration MAX_STATUS_WAIT = Duration.ofSeconds(60);
+
+  /**
+   * @return the status of the new job, holding its id
+   */
+  JobStatus submitJob(ClientRequest request) throws ClientModelException;
+
+  /**
+   * Get the status of a job; the service holds the call until the job is done,
+   * or the wait time is up (at most a minute).
+   */
+  JobStatus getJobStatus(String jobId, Duration wait) throws ClientModelException;
+
+  /**
+   * Send the result of a job to the response listener.
+   *
+   * @return the signal of the plugin
+   *
+   * @throws DelayedResultException
+   *   if the job is not done yet
+   */
+  int getJobResult(String jobId) throws ClientModelException, ClientUserException, DelayedResultException;
+
+  /**
+   * Cancel a job if it's still running, and delete its result. The job is
+   * reported as cancelled until it expires.
+   *
+   * @return false if the job doesn't exist
+   */
+  boolean cancelJob(String jobId) throws ClientModelException;
+
+  /**
+   * Wait for a job to be done, by long polling its status, and send its result
+   * to the response listener.
+   *
+   * @return the signal of the plugin
+   *
+   * @throws DelayedResultException
+   *   if the job is not done within the timeout
+   */
+  default int awaitJobResult(String jobId, Duration timeout)
+      throws ClientModelException, ClientUserException, DelayedResultException {
+    long deadline = System.currentTimeMillis() + timeout.toMillis();
+    while (true) {
+      long remaining = deadline - System.currentTimeMillis();
+      Duration wait = Duration.ofMillis(Math.max(0, Math.min(remaining, MAX_STATUS_WAIT.toMillis())));
+      JobStatus status = getJobStatus(jobId, wait);
+      if (status.getState().isDone())
+        return getJobResult(jobId);
+      if (remaining <= 0)
+        throw new DelayedResultException();
+    }
+  }
+}
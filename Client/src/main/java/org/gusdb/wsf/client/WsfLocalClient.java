@@ -1,5 +1,9 @@
 package org.gusdb.wsf.client;
 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.gusdb.wsf.plugin.CancellationToken;
 import org.gusdb.wsf.plugin.DelayedResultException;
 import org.gusdb.wsf.plugin.PluginExecutor;
 import org.gusdb.wsf.plugin.PluginModelException;
@@ -11,60 +15,94 @@ import org.gusdb.wsf.plugin.PluginUserException;
  */
 public class WsfLocalClient implements WsfClient, PluginResponse {
 
+  /**
+   * Sends the plugin output to a response listener.
+   */
+  private static class ListenerResponse implements PluginResponse {
+
+    private final WsfResponseListener listener;
+
+    ListenerResponse(WsfResponseListener listener) {
+      this.listener = listener;
+    }
+
+    @Override
+    public void addRow(String[] row) throws PluginModelException, PluginUserException {
+      try {
+        listener.onRowReceived(row);
+      }
+      catch (ClientModelException ex) {
+        throw new PluginModelException(ex);
+      }
+      catch (ClientUserException ex) {
+        throw new PluginUserException(ex);
+      }
+    }
+
+    @Override
+    public void addAttachment(String key, String attachment) throws PluginModelException, PluginUserException {
+      try {
+        listener.onAttachmentReceived(key, attachment);
+      }
+      catch (ClientModelException ex) {
+        throw new PluginModelException(ex);
+      }
+      catch (ClientUserException ex) {
+        throw new PluginUserException(ex);
+      }
+    }
+
+    @Override
+    public void setMessage(String message) throws PluginModelException, PluginUserException {
+      try {
+        listener.onMessageReceived(message);
+      }
+      catch (ClientModelException ex) {
+        throw new PluginModelException(ex);
+      }
+      catch (ClientUserException ex) {
+        throw new PluginUserException(ex);
+      }
+    }
+  }
+
   private WsfResponseListener listener;
+  private PluginResponse response;
 
   protected WsfLocalClient() {}
 
   @Override
   public void addRow(String[] row) throws PluginModelException, PluginUserException {
-    try {
-      listener.onRowReceived(row);
-    }
-    catch (ClientModelException ex) {
-      throw new PluginModelException(ex);
-    }
-    catch (ClientUserException ex) {
-      throw new PluginUserException(ex);
-    }
+    response.addRow(row);
   }
 
   @Override
   public void addAttachment(String key, String attachment) throws PluginModelException, PluginUserException {
-    try {
-      listener.onAttachmentReceived(key, attachment);
-    }
-    catch (ClientModelException ex) {
-      throw new PluginModelException(ex);
-    }
-    catch (ClientUserException ex) {
-      throw new PluginUserException(ex);
-    }
+    response.addAttachment(key, attachment);
   }
 
   @Override
   public void setMessage(String message) throws PluginModelException, PluginUserException {
-    try {
-      listener.onMessageReceived(message);
-    }
-    catch (ClientModelException ex) {
-      throw new PluginModelException(ex);
-    }
-    catch (ClientUserException ex) {
-      throw new PluginUserException(ex);
-    }
+    response.setMessage(message);
   }
 
   @Override
   public void setResponseListener(WsfResponseListener listener) {
     this.listener = listener;
+    this.response = new ListenerResponse(listener);
   }
 
   @Override
   public int invoke(ClientRequest request) throws ClientModelException, ClientUserException, DelayedResultException {
+    return invoke(request, this);
+  }
+
+  private static int invoke(ClientRequest request, PluginResponse response)
+      throws ClientModelException, ClientUserException, DelayedResultException {
     PluginExecutor executor = new PluginExecutor();
     String pluginClassName = request.getPluginClass();
     try {
-      return executor.execute(pluginClassName, request, this);
+      return executor.execute(pluginClassName, request, response);
     }
     catch (PluginModelException ex) {
       throw new ClientModelException(ex);
@@ -73,4 +111,37 @@ public class WsfLocalClient implements WsfClient, PluginResponse {
       throw new ClientUserException(ex);
     }
   }
+
+  /**
+   * The plugin runs on a thread of the client; cancelling the future cancels
+   * the plugin.
+   */
+  @Override
+  public CompletableFuture<Integer> invokeAsync(ClientRequest request, WsfResponseListener listener) {
+    // the call gets its own token, so cancelling it leaves the request usable
+    ClientRequest call = new ClientRequest(request);
+    CancellationToken token = new CancellationToken();
+    call.setCancellationToken(token);
+    PluginResponse callResponse = new ListenerResponse((listener == null) ? this.listener : listener);
+
+    CompletableFuture<Integer> result = new CompletableFuture<>();
+    result.whenComplete((signal, ex) -> {
+      if (result.isCancelled())
+        token.cancel("The call was cancelled by the client.");
+    });
+    try {
+      ClientThreads.get().execute(() -> {
+        try {
+          result.complete(invoke(call, callResponse));
+        }
+        catch (ClientModelException | ClientUserException | DelayedResultException | RuntimeException ex) {
+          result.completeExceptionally(ex);
+        }
+      });
+    }
+    catch (RejectedExecutionException ex) {
+      result.completeExceptionally(new ClientModelException(ex));
+    }
+    return result;
+  }
 }
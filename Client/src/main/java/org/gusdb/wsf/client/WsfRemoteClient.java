@@ -2,44 +2,80 @@ package org.gusdb.wsf.client;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
 import java.net.URI;
 import java.time.Duration;
+import java.time.Instant;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import javax.ws.rs.ProcessingException;
 
-import javax.ws.rs.client.Client;
-import javax.ws.rs.client.ClientBuilder;
 import javax.ws.rs.client.Entity;
+import javax.ws.rs.client.InvocationCallback;
+import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.Form;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
 import org.apache.log4j.Logger;
-import org.glassfish.jersey.client.ClientProperties;
 import org.gusdb.wsf.common.ResponseAttachment;
+import org.gusdb.wsf.common.ResponseDecoder;
 import org.gusdb.wsf.common.ResponseMessage;
 import org.gusdb.wsf.common.ResponseRow;
+import org.gusdb.wsf.common.ResponseRowBatch;
 import org.gusdb.wsf.common.ResponseStatus;
+import org.gusdb.wsf.common.StreamEncoding;
+import org.gusdb.wsf.common.StreamFormat;
 import org.gusdb.wsf.common.WsfRequest;
 import org.gusdb.wsf.plugin.DelayedResultException;
+import org.gusdb.wsf.plugin.JobStatus;
 import org.gusdb.wsf.plugin.PluginUserException;
+import org.gusdb.wsf.plugin.ServiceBusyException;
+import org.json.JSONException;
 
-public class WsfRemoteClient implements WsfClient {
+public class WsfRemoteClient implements WsfJobClient {
 
   private static final Logger LOG = Logger.getLogger(WsfRemoteClient.class);
 
+  private static final String JOBS_PATH = "jobs";
+
+  private static final String RETRY_AFTER_HEADER = "Retry-After";
+
+  // the most bytes read after the status to let the connection be reused
+  private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+  // used by the clients created without a pool, never closed.
+  private static HttpClientPool defaultPool;
+
   private final URI serviceURI;
+  private final HttpClientPool httpClients;
+  private final String acceptedEncodings;
 
   private WsfResponseListener listener;
 
   protected WsfRemoteClient(URI serviceURI) {
+    this(serviceURI, getDefaultPool());
+  }
+
+  protected WsfRemoteClient(URI serviceURI, HttpClientPool httpClients) {
     this.serviceURI = serviceURI;
+    this.httpClients = httpClients;
+    this.acceptedEncodings = StreamEncoding.getAcceptHeader(httpClients.getConfig().getAcceptedEncodings());
+  }
+
+  private static synchronized HttpClientPool getDefaultPool() {
+    if (defaultPool == null)
+      defaultPool = new HttpClientPool(new WsfClientConfig());
+    return defaultPool;
   }
 
   @Override
@@ -49,21 +85,34 @@ public class WsfRemoteClient implements WsfClient {
 
   @Override
   public int invoke(ClientRequest request) throws ClientModelException, ClientUserException, DelayedResultException {
-    Client client = ClientBuilder.newClient();
-    int checksum = request.getChecksum();
-    LOG.debug("WSF Remote: checksum=" + checksum + ", url=" + serviceURI + "\n" + request);
+    HttpClientPool.SharedClient client = httpClients.acquire(serviceURI);
+    try {
+      return invoke(request, client);
+    }
+    finally {
+      client.release();
+    }
+  }
+
+  private int invoke(ClientRequest request, HttpClientPool.SharedClient client)
+      throws ClientModelException, ClientUserException, DelayedResultException {
+    String fingerprint = request.getFingerprint();
+    LOG.debug("WSF Remote: fingerprint=" + fingerprint + ", url=" + serviceURI + "\n" + request);
 
     // prepare the form
     Form form = new Form();
     form.param(WsfRequest.PARAM_REQUEST, request.toString());
 
     // invoke service
+    final Optional<Duration> timeout = request.getRemoteExecuteTimeout();
+    final Optional<Instant> deadline = timeout.map(Instant.now()::plus);
+    Future<Response> responseFuture = null;
     Response response;
     try {
-      final Optional<Duration> timeout = request.getRemoteExecuteTimeout();
-      final Future<Response> responseFuture = client.target(serviceURI)
-          .property(ClientProperties.FOLLOW_REDIRECTS, Boolean.TRUE)
+      responseFuture = client.getClient().target(serviceURI)
           .request(MediaType.APPLICATION_OCTET_STREAM_TYPE)
+          .header(WsfRequest.STREAM_FORMAT_HEADER, StreamFormat.getAcceptHeader())
+          .header(WsfRequest.STREAM_ENCODING_HEADER, acceptedEncodings)
           .async()
           .post(Entity.entity(form, MediaType.APPLICATION_FORM_URLENCODED_TYPE));
       if (timeout.isPresent()) {
@@ -73,51 +122,367 @@ public class WsfRemoteClient implements WsfClient {
       }
     } catch (InterruptedException ex) {
       LOG.warn(String.format("Interrupted while invoking service at %s.", serviceURI.toString()), ex);
+      abandon(responseFuture);
       Thread.currentThread().interrupt();
       throw new ClientModelException(ex);
     } catch (ExecutionException | TimeoutException ex) {
       LOG.warn(String.format("Exception while invoking service at %s.", serviceURI.toString()), ex);
+      abandon(responseFuture);
       throw new ClientModelException(ex);
     }
+    return readResponse(response, listener, fingerprint, deadline);
+  }
+
+  /**
+   * The call is posted with the async invoker of Jersey, and the response is
+   * read on a thread of the client, so the Jersey threads are not held while
+   * the rows arrive.
+   */
+  @Override
+  public CompletableFuture<Integer> invokeAsync(ClientRequest request, WsfResponseListener listener) {
+    String fingerprint = request.getFingerprint();
+    LOG.debug("WSF Remote async: fingerprint=" + fingerprint + ", url=" + serviceURI + "\n" + request);
+
+    Form form = new Form();
+    form.param(WsfRequest.PARAM_REQUEST, request.toString());
+
+    Optional<Duration> timeout = request.getRemoteExecuteTimeout();
+    AsyncCall call = new AsyncCall((listener == null) ? this.listener : listener, fingerprint,
+        timeout.map(Instant.now()::plus));
+    try {
+      call.client = httpClients.acquire(serviceURI);
+      call.responseFuture = call.client.getClient().target(serviceURI)
+          .request(MediaType.APPLICATION_OCTET_STREAM_TYPE)
+          .header(WsfRequest.STREAM_FORMAT_HEADER, StreamFormat.getAcceptHeader())
+          .header(WsfRequest.STREAM_ENCODING_HEADER, acceptedEncodings)
+          .async()
+          .post(Entity.entity(form, MediaType.APPLICATION_FORM_URLENCODED_TYPE), call);
+    }
+    catch (RuntimeException ex) {
+      // releases the client, if it was acquired
+      call.failed(ex);
+      return call.result;
+    }
+    // the caller may have cancelled the call before it was posted
+    if (call.result.isCancelled())
+      call.abandon();
+    if (timeout.isPresent())
+      CompletableFuture.runAsync(call::timeOut,
+          CompletableFuture.delayedExecutor(timeout.get().toMillis(), TimeUnit.MILLISECONDS));
+    return call.result;
+  }
+
+  /**
+   * A call posted by {@link #invokeAsync(ClientRequest, WsfResponseListener)}.
+   * It holds the shared HTTP client until the response is read, or the call is
+   * given up.
+   */
+  private class AsyncCall implements InvocationCallback<Response> {
+
+    final CompletableFuture<Integer> result = new CompletableFuture<>();
+    // acquired when the call is posted, before the result is returned
+    volatile HttpClientPool.SharedClient client;
+    volatile Future<Response> responseFuture;
+
+    private final WsfResponseListener listener;
+    private final String fingerprint;
+    private final Optional<Instant> deadline;
+    private final AtomicBoolean received = new AtomicBoolean();
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    AsyncCall(WsfResponseListener listener, String fingerprint, Optional<Instant> deadline) {
+      this.listener = listener;
+      this.fingerprint = fingerprint;
+      this.deadline = deadline;
+      result.whenComplete((signal, ex) -> {
+        if (result.isCancelled())
+          abandon();
+      });
+    }
+
+    @Override
+    public void completed(Response response) {
+      received.set(true);
+      if (result.isDone()) {
+        // cancelled, or timed out, meanwhile
+        response.close();
+        release();
+        return;
+      }
+      try {
+        ClientThreads.get().execute(() -> read(response));
+      }
+      catch (RejectedExecutionException ex) {
+        response.close();
+        failed(ex);
+      }
+    }
+
+    @Override
+    public void failed(Throwable throwable) {
+      received.set(true);
+      LOG.warn(String.format("Exception while invoking service at %s.", serviceURI.toString()), throwable);
+      result.completeExceptionally(new ClientModelException(throwable));
+      release();
+    }
+
+    private void read(Response response) {
+      try {
+        result.complete(readResponse(response, listener, fingerprint, deadline));
+      }
+      catch (ClientModelException | ClientUserException | DelayedResultException | RuntimeException ex) {
+        result.completeExceptionally(ex);
+      }
+      finally {
+        release();
+      }
+    }
+
+    void timeOut() {
+      if (result.completeExceptionally(new ClientModelException(
+          new TimeoutException("No response from " + serviceURI + " within the timeout.")))) {
+        LOG.warn("WSF Remote timed out: fingerprint=" + fingerprint + ", url=" + serviceURI);
+        abandon();
+      }
+    }
+
+    /**
+     * Close the connection, so the service cancels the plugin. A response being
+     * read is closed under its reader, which then fails.
+     */
+    void abandon() {
+      WsfRemoteClient.abandon(responseFuture);
+      // Jersey may not call back a cancelled call
+      if (!received.get())
+        release();
+    }
+
+    private void release() {
+      if (client != null && released.compareAndSet(false, true))
+        client.release();
+    }
+  }
+
+  /**
+   * Give up a pending call, closing its connection so the service notices and
+   * cancels the plugin.
+   */
+  private static void abandon(Future<Response> responseFuture) {
+    if (responseFuture == null || responseFuture.cancel(true) || !responseFuture.isDone())
+      return;
+    // the response arrived meanwhile
+    try {
+      responseFuture.get().close();
+    }
+    catch (InterruptedException | ExecutionException | RuntimeException ex) {
+      // there is no response to close
+    }
+  }
+
+  /**
+   * Read the response stream of the service, and send its content to the
+   * listener. If the stream isn't complete by the deadline, the connection is
+   * closed and a {@link ClientModelException} caused by a
+   * {@link TimeoutException} is thrown.
+   *
+   * @return the signal of the plugin
+   */
+  private int readResponse(Response response, WsfResponseListener listener, String fingerprint,
+      Optional<Instant> deadline)
+      throws ClientModelException, ClientUserException, DelayedResultException {
     int status = response.getStatus();
-    if (status >= 400)
+    if (status == Response.Status.SERVICE_UNAVAILABLE.getStatusCode()) {
+      long retryAfter = getRetryAfter(response);
+      response.close();
+      throw new ClientBusyException("The service is busy, retry in " + retryAfter + " seconds.", retryAfter);
+    }
+    if (status >= 400) {
+      response.close();
       throw new ClientModelException("Request failed with status code: " + status);
+    }
+
+    // services that predate format negotiation don't send the header back
+    StreamFormat format = StreamFormat.fromHeader(response.getHeaderString(WsfRequest.STREAM_FORMAT_HEADER));
+    StreamEncoding encoding = StreamEncoding.fromHeader(response.getHeaderString(WsfRequest.STREAM_ENCODING_HEADER));
 
     InputStream inStream = null;
+    TimedInputStream timedStream = null;
+    long start = System.nanoTime();
     int signal;
     Map<String, Integer> stats = new HashMap<>();
     stats.put("rows", 0);
     stats.put("attachments", 0);
     try {
-      inStream = response.readEntity(InputStream.class);
-      signal = readStream(inStream, stats);
+      // the stream is read a buffer at a time, as the listener takes the rows,
+      // so a slow listener holds the service back instead of filling the heap
+      timedStream = new TimedInputStream(response.readEntity(InputStream.class));
+      inStream = timedStream;
+      if (deadline.isPresent())
+        inStream = new DeadlineInputStream(inStream, deadline.get(), response::close);
+      inStream = encoding.newInputStream(inStream);
+      signal = readStream(format.newDecoder(inStream), listener, stats);
+      try {
+        drain(inStream);
+      }
+      catch (IOException ex) {
+        // the response is complete, the connection just isn't reused
+        LOG.debug("Unable to drain the response stream of " + serviceURI, ex);
+      }
     }
-    catch (ClassNotFoundException | IOException ex) {
+    catch (ClassNotFoundException | ProcessingException ex) {
+      throw new ClientModelException(ex);
+    }
+    catch (IOException ex) {
+      if (ex.getCause() instanceof TimeoutException) {
+        LOG.warn("WSF Remote timed out: fingerprint=" + fingerprint + ", url=" + serviceURI);
+        throw new ClientModelException(ex.getCause());
+      }
       throw new ClientModelException(ex);
     }
     finally {
+      // a failure to close doesn't hide the result, or the original failure
       if (inStream != null) {
         try {
           inStream.close();
         }
-        catch (IOException ex) {
-          throw new ClientModelException(ex);
-        }
-        finally {
-          response.close();
+        catch (IOException | ProcessingException ex) {
+          LOG.debug("Unable to close the response stream of " + serviceURI, ex);
         }
       }
-      LOG.debug("WSF Remote finished: checksum=" + checksum + ", status " + status + ", #rows=" +
-          stats.get("rows") + ", #attch=" + stats.get("attachments") + ", url=" + serviceURI);
+      try {
+        response.close();
+      }
+      catch (ProcessingException ex) {
+        LOG.debug("Unable to close the response of " + serviceURI, ex);
+      }
+      long readWait = 0;
+      long listenerTime = 0;
+      if (timedStream != null) {
+        readWait = timedStream.getWaitNanos();
+        listenerTime = Math.max(0, System.nanoTime() - start - readWait);
+        httpClients.getStreamMetrics().record(timedStream.getBytes(), readWait, listenerTime);
+      }
+      LOG.debug("WSF Remote finished: fingerprint=" + fingerprint + ", status " + status + ", #rows=" +
+          stats.get("rows") + ", #attch=" + stats.get("attachments") + ", wait=" + (readWait / 1000000) +
+          " ms, listener=" + (listenerTime / 1000000) + " ms, url=" + serviceURI);
     }
     return signal;
   }
 
-  private int readStream(InputStream inStream, Map<String, Integer> stats) throws ClientUserException,
-      ClientModelException, IOException, ClassNotFoundException, DelayedResultException {
-    ObjectInputStream objectStream = new ObjectInputStream(inStream);
+  @Override
+  public JobStatus submitJob(ClientRequest request) throws ClientModelException {
+    LOG.debug("WSF Remote job: fingerprint=" + request.getFingerprint() + ", url=" + serviceURI);
+    Form form = new Form();
+    form.param(WsfRequest.PARAM_REQUEST, request.toString());
+    return callJobs(target -> target
+        .request(MediaType.APPLICATION_JSON_TYPE)
+        .post(Entity.entity(form, MediaType.APPLICATION_FORM_URLENCODED_TYPE)), null);
+  }
+
+  @Override
+  public JobStatus getJobStatus(String jobId, Duration wait) throws ClientModelException {
+    return callJobs(target -> target.path(jobId)
+        .queryParam("wait", wait.getSeconds())
+        .request(MediaType.APPLICATION_JSON_TYPE)
+        .get(), jobId);
+  }
+
+  @Override
+  public int getJobResult(String jobId) throws ClientModelException, ClientUserException, DelayedResultException {
+    HttpClientPool.SharedClient client = httpClients.acquire(serviceURI);
+    try {
+      Response response = client.getClient().target(serviceURI).path(JOBS_PATH).path(jobId).path("result")
+          .request(MediaType.APPLICATION_OCTET_STREAM_TYPE)
+          .header(WsfRequest.STREAM_FORMAT_HEADER, StreamFormat.getAcceptHeader())
+          .header(WsfRequest.STREAM_ENCODING_HEADER, acceptedEncodings)
+          .get();
+      return readResponse(response, listener, jobId, Optional.empty());
+    }
+    catch (ProcessingException ex) {
+      throw new ClientModelException(ex);
+    }
+    finally {
+      client.release();
+    }
+  }
+
+  @Override
+  public boolean cancelJob(String jobId) throws ClientModelException {
+    HttpClientPool.SharedClient client = httpClients.acquire(serviceURI);
+    try (Response response = client.getClient().target(serviceURI).path(JOBS_PATH).path(jobId).request().delete()) {
+      int status = response.getStatus();
+      if (status == Response.Status.NOT_FOUND.getStatusCode())
+        return false;
+      if (status >= 400)
+        throw new ClientModelException("Cancelling job " + jobId + " failed with status code: " + status);
+      return true;
+    }
+    catch (ProcessingException ex) {
+      throw new ClientModelException(ex);
+    }
+    finally {
+      client.release();
+    }
+  }
+
+  private JobStatus callJobs(Function<WebTarget, Response> call, String jobId) throws ClientModelException {
+    HttpClientPool.SharedClient client = httpClients.acquire(serviceURI);
+    try (Response response = call.apply(client.getClient().target(serviceURI).path(JOBS_PATH))) {
+      int status = response.getStatus();
+      if (status == Response.Status.SERVICE_UNAVAILABLE.getStatusCode())
+        throw new ClientBusyException(response.readEntity(String.class), getRetryAfter(response));
+      if (status >= 400)
+        throw new ClientModelException("Job request " + (jobId == null ? "" : "for " + jobId + " ") +
+            "failed with status code: " + status + ", " + response.readEntity(String.class));
+      return new JobStatus(response.readEntity(String.class));
+    }
+    catch (ProcessingException | JSONException ex) {
+      throw new ClientModelException(ex);
+    }
+    finally {
+      client.release();
+    }
+  }
+
+  /**
+   * @return the delay in the Retry-After header of a response, in seconds; the
+   *   header may also hold a date, which is not used by the service.
+   */
+  private static long getRetryAfter(Response response) {
+    String value = response.getHeaderString(RETRY_AFTER_HEADER);
+    try {
+      return (value == null) ? 0 : Math.max(0, Long.parseLong(value.trim()));
+    }
+    catch (NumberFormatException ex) {
+      return 0;
+    }
+  }
+
+  /**
+   * Read the end of the stream after the status, such as the last chunk
+   * marker, so the connection is returned to the keep-alive cache instead of
+   * being closed.
+   */
+  private static void drain(InputStream inStream) throws IOException {
+    byte[] buffer = new byte[1024];
+    int total = 0;
+    int count;
+    while (total < MAX_DRAIN_BYTES && (count = inStream.read(buffer)) >= 0) {
+      total += count;
+    }
+  }
+
+  /**
+   * Pass the content of the response to the listener. It is package-private,
+   * so the decoding can be benchmarked without a connection.
+   *
+   * @return the signal of the plugin
+   */
+  static int readStream(ResponseDecoder decoder, WsfResponseListener listener, Map<String, Integer> stats)
+      throws ClientUserException, ClientModelException, IOException, ClassNotFoundException,
+      DelayedResultException {
     while (true) {
-      Object object = objectStream.readUnshared();
+      Object object = decoder.read();
       if (object instanceof ResponseStatus) {
         // received a status object, which should be the last object to receive
         ResponseStatus status = (ResponseStatus) object;
@@ -131,6 +496,10 @@ public class WsfRemoteClient implements WsfClient {
           else if (exception instanceof DelayedResultException) {
             throw (DelayedResultException) exception;
           }
+          else if (exception instanceof ServiceBusyException) {
+            throw new ClientBusyException(exception.getMessage(), exception,
+                ((ServiceBusyException) exception).getRetryAfterSeconds());
+          }
           else if (exception instanceof RuntimeException) {
             throw (RuntimeException) exception;
           }
@@ -147,10 +516,15 @@ public class WsfRemoteClient implements WsfClient {
         listener.onRowReceived(row.getRow());
         stats.put("rows", stats.get("rows") + 1);
       }
+      else if (object instanceof ResponseRowBatch) { // received a batch of rows
+        ResponseRowBatch batch = (ResponseRowBatch) object;
+        listener.onRowsReceived(batch.getRows());
+        stats.put("rows", stats.get("rows") + batch.getRows().size());
+      }
       else if (object instanceof ResponseAttachment) { // received a new attachment
         ResponseAttachment attachment = (ResponseAttachment) object;
         listener.onAttachmentReceived(attachment.getKey(), attachment.getContent());
-        stats.put("rows", stats.get("attachments") + 1);
+        stats.put("attachments", stats.get("attachments") + 1);
       }
       else if (object instanceof ResponseMessage) { // received message
         ResponseMessage message = (ResponseMessage) object;
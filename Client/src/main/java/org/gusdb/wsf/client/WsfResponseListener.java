@@ -1,10 +1,21 @@
 package org.gusdb.wsf.client;
 
-
+import java.util.List;
 
 public interface WsfResponseListener {
 
   void onRowReceived(String[] row) throws ClientModelException, ClientUserException;
+
+  /**
+   * Receive a batch of rows sent together by the service. Listeners that can
+   * process rows in bulk (for example with batched database inserts) should
+   * override it; by default the rows are delivered one at a time.
+   */
+  default void onRowsReceived(List<String[]> rows) throws ClientModelException, ClientUserException {
+    for (String[] row : rows) {
+      onRowReceived(row);
+    }
+  }
   
   void onAttachmentReceived(String key, String content) throws ClientModelException, ClientUserException;
   
@@ -0,0 +1,228 @@
+package org.gusdb.wsf.client;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Publishes the rows of a response. The request runs when the publisher is
+ * subscribed, and the rows are only read from the response as fast as the
+ * subscriber requests them; while there is no demand, the reading thread
+ * waits, and the service is held back by the connection.
+ *
+ * A response can only be read once, so the publisher accepts one subscriber;
+ * the others get an {@link IllegalStateException}. The signal of the plugin is
+ * available from {@link #getSignal()} once the rows are published.
+ */
+public class WsfRowPublisher implements Flow.Publisher<String[]> {
+
+  private final WsfClient client;
+  private final ClientRequest request;
+  private final WsfResponseListener listener;
+
+  private final AtomicBoolean subscribed = new AtomicBoolean();
+  private final CompletableFuture<Integer> signal = new CompletableFuture<>();
+
+  WsfRowPublisher(WsfClient client, ClientRequest request, WsfResponseListener listener) {
+    this.client = client;
+    this.request = request;
+    this.listener = listener;
+  }
+
+  /**
+   * @return the signal of the plugin, completed after the subscriber is
+   *   completed; it fails like {@link WsfClient#invokeAsync(ClientRequest)},
+   *   or is cancelled if the subscription is.
+   */
+  public CompletableFuture<Integer> getSignal() {
+    return signal;
+  }
+
+  @Override
+  public void subscribe(Flow.Subscriber<? super String[]> subscriber) {
+    if (!subscribed.compareAndSet(false, true)) {
+      subscriber.onSubscribe(new Flow.Subscription() {
+        @Override
+        public void request(long n) {}
+
+        @Override
+        public void cancel() {}
+      });
+      subscriber.onError(new IllegalStateException("The rows can only be subscribed once."));
+      return;
+    }
+    RowSubscription subscription = new RowSubscription(subscriber);
+    subscriber.onSubscribe(subscription);
+    subscription.start();
+  }
+
+  /**
+   * Receives the response, and hands the rows to the subscriber as it requests
+   * them. The rows and the final signal are sent by the thread reading the
+   * response, except for an error caused by an invalid request, which is sent
+   * once the current row is delivered.
+   */
+  private class RowSubscription implements Flow.Subscription, WsfResponseListener {
+
+    private final Flow.Subscriber<? super String[]> subscriber;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition demanded = lock.newCondition();
+
+    // guarded by lock
+    private long demand;
+    private boolean cancelled;
+    private Throwable error;
+
+    // held while a signal is sent, so the signals are never concurrent
+    private final ReentrantLock signalLock = new ReentrantLock();
+    private boolean terminated;
+
+    private volatile CompletableFuture<Integer> call;
+
+    RowSubscription(Flow.Subscriber<? super String[]> subscriber) {
+      this.subscriber = subscriber;
+    }
+
+    void start() {
+      call = client.invokeAsync(request, this);
+      if (isCancelled())
+        call.cancel(true);
+      call.whenComplete(this::finish);
+    }
+
+    @Override
+    public void request(long n) {
+      lock.lock();
+      try {
+        if (n <= 0) {
+          error = new IllegalArgumentException("The subscriber must request a positive number of rows: " + n);
+        }
+        else {
+          demand += n;
+          // at most Long.MAX_VALUE rows are outstanding, which means no limit
+          if (demand < 0)
+            demand = Long.MAX_VALUE;
+          demanded.signalAll();
+          return;
+        }
+      }
+      finally {
+        lock.unlock();
+      }
+      cancel();
+    }
+
+    @Override
+    public void cancel() {
+      lock.lock();
+      try {
+        if (cancelled)
+          return;
+        cancelled = true;
+        demanded.signalAll();
+      }
+      finally {
+        lock.unlock();
+      }
+      // abandon the call, which cancels the plugin
+      CompletableFuture<Integer> call = this.call;
+      if (call != null)
+        call.cancel(true);
+    }
+
+    private boolean isCancelled() {
+      lock.lock();
+      try {
+        return cancelled;
+      }
+      finally {
+        lock.unlock();
+      }
+    }
+
+    @Override
+    public void onRowReceived(String[] row) throws ClientModelException {
+      lock.lock();
+      try {
+        while (demand == 0 && !cancelled) {
+          demanded.await();
+        }
+        if (cancelled)
+          throw new ClientModelException("The subscription to the rows is cancelled.");
+        if (demand != Long.MAX_VALUE)
+          demand--;
+      }
+      catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new ClientModelException(ex);
+      }
+      finally {
+        lock.unlock();
+      }
+      signalLock.lock();
+      try {
+        if (!terminated)
+          subscriber.onNext(row);
+      }
+      finally {
+        signalLock.unlock();
+      }
+    }
+
+    @Override
+    public void onAttachmentReceived(String key, String content) throws ClientModelException, ClientUserException {
+      if (listener != null)
+        listener.onAttachmentReceived(key, content);
+    }
+
+    @Override
+    public void onMessageReceived(String message) throws ClientModelException, ClientUserException {
+      if (listener != null)
+        listener.onMessageReceived(message);
+    }
+
+    private void finish(Integer result, Throwable failure) {
+      Throwable cause = (failure instanceof CompletionException) ? failure.getCause() : failure;
+      Throwable invalidRequest;
+      boolean cancelled;
+      lock.lock();
+      try {
+        invalidRequest = error;
+        cancelled = this.cancelled;
+      }
+      finally {
+        lock.unlock();
+      }
+
+      signalLock.lock();
+      try {
+        if (!terminated) {
+          terminated = true;
+          // a cancelled subscriber gets no more signals
+          if (invalidRequest != null)
+            subscriber.onError(invalidRequest);
+          else if (cause != null && !cancelled)
+            subscriber.onError(cause);
+          else if (cause == null)
+            subscriber.onComplete();
+        }
+      }
+      finally {
+        signalLock.unlock();
+      }
+
+      if (invalidRequest != null)
+        signal.completeExceptionally(invalidRequest);
+      else if (cause == null)
+        signal.complete(result);
+      else if (cancelled)
+        signal.cancel(false);
+      else
+        signal.completeExceptionally(cause);
+    }
+  }
+}
@@ -1,9 +1,22 @@
 package org.gusdb.wsf.client;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.net.URI;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.ws.rs.core.UriBuilder;
 
@@ -54,6 +67,72 @@ public class MockPluginTest {
     Assert.assertEquals(attachmentCount, listener.getAttachmentCount());
   }
 
+  @Test
+  public void testClientLocalAsync() throws Exception {
+    int rowCount = random.nextInt(1000) + 10;
+    int attachmentCount = random.nextInt(1000);
+    ClientRequest request = createRequest(rowCount, attachmentCount);
+
+    MockResponseListener listener = new MockResponseListener();
+    WsfClient client = new WsfClientFactoryImpl().newClient(listener);
+    CompletableFuture<Integer> signal = client.invokeAsync(request);
+
+    Assert.assertEquals(MockPlugin.SIGNAL, signal.get(10, TimeUnit.SECONDS).intValue());
+    Assert.assertEquals(rowCount, listener.getRowCount());
+    Assert.assertEquals(attachmentCount, listener.getAttachmentCount());
+  }
+
+  @Test
+  public void testRowPublisher() throws Exception {
+    int rowCount = random.nextInt(1000) + 10;
+    int attachmentCount = random.nextInt(100);
+    ClientRequest request = createRequest(rowCount, attachmentCount);
+
+    MockResponseListener listener = new MockResponseListener();
+    WsfRowPublisher publisher = new WsfClientFactoryImpl().newClient(null).publishRows(request, listener);
+
+    AtomicInteger received = new AtomicInteger();
+    CountDownLatch firstRows = new CountDownLatch(5);
+    CountDownLatch completed = new CountDownLatch(1);
+    Flow.Subscription[] subscription = new Flow.Subscription[1];
+    publisher.subscribe(new Flow.Subscriber<String[]>() {
+
+      @Override
+      public void onSubscribe(Flow.Subscription value) {
+        subscription[0] = value;
+        value.request(5);
+      }
+
+      @Override
+      public void onNext(String[] row) {
+        received.incrementAndGet();
+        firstRows.countDown();
+      }
+
+      @Override
+      public void onError(Throwable throwable) {
+        completed.countDown();
+      }
+
+      @Override
+      public void onComplete() {
+        completed.countDown();
+      }
+    });
+
+    // no more rows are read than requested
+    Assert.assertTrue(firstRows.await(10, TimeUnit.SECONDS));
+    Thread.sleep(200);
+    Assert.assertEquals(5, received.get());
+    Assert.assertFalse(publisher.getSignal().isDone());
+
+    subscription[0].request(Long.MAX_VALUE);
+    Assert.assertTrue(completed.await(10, TimeUnit.SECONDS));
+    Assert.assertEquals(MockPlugin.SIGNAL, publisher.getSignal().get().intValue());
+    Assert.assertEquals(rowCount, received.get());
+    Assert.assertEquals(attachmentCount, listener.getAttachmentCount());
+  }
+
   @Test
   public void testClientRemote() throws Exception {
     // start up a http server
@@ -75,4 +154,104 @@ public class MockPluginTest {
 
     server.stop();
   }
+
+  @Test
+  public void testClientRemoteAsync() throws Exception {
+    URI url = UriBuilder.fromUri(TEST_SERVER).port(TEST_PORT).build();
+    ResourceConfig config = new ResourceConfig(WsfService.class);
+    Server server = JettyHttpContainerFactory.createServer(url, config);
+    HttpClientPool pool = new HttpClientPool(new WsfClientConfig());
+    try {
+      WsfRemoteClient client = new WsfRemoteClient(url, pool);
+
+      // completed
+      int rowCount = random.nextInt(1000) + 10;
+      MockResponseListener listener = new MockResponseListener();
+      CompletableFuture<Integer> signal = client.invokeAsync(createRequest(rowCount, 0), listener);
+      Assert.assertEquals(MockPlugin.SIGNAL, signal.get(10, TimeUnit.SECONDS).intValue());
+      Assert.assertEquals(rowCount, listener.getRowCount());
+      assertReleased(pool);
+
+      // timed out before the plugin is done
+      ClientRequest request = createRequest(10, 0);
+      request.putParam(MockPlugin.PARAM_DELAY_MS, "5000");
+      request.setContextTimeout(Duration.ofSeconds(1));
+      signal = client.invokeAsync(request, new MockResponseListener());
+      try {
+        signal.get(10, TimeUnit.SECONDS);
+        Assert.fail("The call should time out.");
+      }
+      catch (ExecutionException ex) {
+        Assert.assertTrue(ex.getCause() instanceof ClientModelException);
+      }
+      assertReleased(pool);
+
+      // cancelled while waiting for the response
+      request = createRequest(10, 0);
+      request.putParam(MockPlugin.PARAM_DELAY_MS, "5000");
+      signal = client.invokeAsync(request, new MockResponseListener());
+      Thread.sleep(200);
+      Assert.assertTrue(signal.cancel(true));
+      assertReleased(pool);
+
+      // abandoned while the response is read
+      request = createRequest(1000, 0);
+      request.putParam(MockPlugin.PARAM_ROW_DELAY_MICROS, "10000");
+      CountDownLatch firstRow = new CountDownLatch(1);
+      signal = client.invokeAsync(request, new MockResponseListener() {
+        @Override
+        public void onRowReceived(String[] row) {
+          firstRow.countDown();
+        }
+      });
+      Assert.assertTrue(firstRow.await(10, TimeUnit.SECONDS));
+      Assert.assertTrue(signal.cancel(true));
+      assertReleased(pool);
+    }
+    finally {
+      pool.close();
+      server.stop();
+    }
+  }
+
+  @Test
+  public void testDeadlineStream() throws Exception {
+    // a service that sends a few bytes, then nothing
+    PipedOutputStream service = new PipedOutputStream();
+    InputStream inStream = new DeadlineInputStream(new PipedInputStream(service),
+        Instant.now().plusMillis(500), () -> {
+          try {
+            service.close();
+          }
+          catch (IOException ex) {
+            throw new RuntimeException(ex);
+          }
+        });
+    service.write(new byte[] { 1, 2, 3 });
+    long start = System.currentTimeMillis();
+    try {
+      Assert.assertEquals(3, inStream.read(new byte[10]));
+      // blocked until the connection is closed at the deadline
+      inStream.read(new byte[10]);
+      Assert.fail("The read should time out.");
+    }
+    catch (IOException ex) {
+      Assert.assertTrue(ex.getCause() instanceof TimeoutException);
+    }
+    finally {
+      inStream.close();
+    }
+    Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+  }
+
+  /**
+   * Wait for the calls to give back their clients.
+   */
+  private static void assertReleased(HttpClientPool pool) throws InterruptedException {
+    long end = System.currentTimeMillis() + 10000;
+    while (pool.getActiveCount() > 0 && System.currentTimeMillis() < end) {
+      Thread.sleep(50);
+    }
+    Assert.assertEquals(0, pool.getActiveCount());
+  }
 }
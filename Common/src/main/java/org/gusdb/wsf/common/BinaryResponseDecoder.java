@@ -0,0 +1,217 @@
+package org.gusdb.wsf.common;
+
+import static org.gusdb.wsf.common.BinaryResponseEncoder.FRAME_ATTACHMENT;
+import static org.gusdb.wsf.common.BinaryResponseEncoder.FRAME_HEARTBEAT;
+import static org.gusdb.wsf.common.BinaryResponseEncoder.FRAME_MESSAGE;
+import static org.gusdb.wsf.common.BinaryResponseEncoder.FRAME_ROW;
+import static org.gusdb.wsf.common.BinaryResponseEncoder.FRAME_ROW_BATCH;
+import static org.gusdb.wsf.common.BinaryResponseEncoder.FRAME_STATUS;
+import static org.gusdb.wsf.common.BinaryResponseEncoder.MAGIC;
+import static org.gusdb.wsf.common.BinaryResponseEncoder.VERSION;
+import static org.gusdb.wsf.common.BinaryResponseEncoder.VERSION_1;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a stream written by {@link BinaryResponseEncoder}. Frames of unknown
+ * types are skipped, so newer services can add frame types without breaking
+ * older clients.
+ *
+ * In a version 2 stream, the values found in the dictionary of their column
+ * are returned as the same String instance, so repeated values take memory
+ * only once, however many rows the client keeps.
+ */
+public class BinaryResponseDecoder implements ResponseDecoder {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  // guards against allocating huge buffers when the stream is corrupted
+  private static final int MAX_FRAME_LENGTH = 1 << 30;
+
+  private final InputStream inStream;
+  private final int version;
+
+  // the dictionaries of the columns, in a version 2 stream
+  private final List<List<String>> dictionaries = new ArrayList<>();
+
+  // payload of the frame being decoded, reused for every frame
+  private byte[] frame = new byte[1024];
+  private int position;
+  private int limit;
+
+  public BinaryResponseDecoder(InputStream inStream) throws IOException {
+    this.inStream = new BufferedInputStream(inStream, BUFFER_SIZE);
+    for (byte expected : MAGIC) {
+      if (readByte() != expected)
+        throw new StreamCorruptedException("The stream is not in the WSF binary format.");
+    }
+    version = readByte();
+    if (version < VERSION_1 || version > VERSION)
+      throw new StreamCorruptedException("Unsupported WSF binary format version: " + version);
+  }
+
+  @Override
+  public Object read() throws IOException, ClassNotFoundException {
+    while (true) {
+      int type = readByte();
+      readFrame();
+      switch (type) {
+        case FRAME_ROW:
+          return new ResponseRow(getRow());
+        case FRAME_ROW_BATCH:
+          return new ResponseRowBatch(getRows());
+        case FRAME_ATTACHMENT:
+          String key = getString();
+          return new ResponseAttachment(key, getString());
+        case FRAME_MESSAGE:
+          return new ResponseMessage(getString());
+        case FRAME_STATUS:
+          return getStatus();
+        case FRAME_HEARTBEAT:
+          // only tells the connection is alive
+          break;
+        default:
+          // unknown frame type, skip it.
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    inStream.close();
+  }
+
+  private String[] getRow() throws IOException {
+    int count = getVarInt();
+    // every value takes at least one byte
+    checkRemaining(count);
+    String[] row = new String[count];
+    for (int i = 0; i < row.length; i++) {
+      row[i] = (version == VERSION_1) ? getString() : getValue(i);
+    }
+    return row;
+  }
+
+  private List<String[]> getRows() throws IOException {
+    int count = getVarInt();
+    // every row takes at least one byte, which bounds a corrupted count
+    checkRemaining(count);
+    List<String[]> rows = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      rows.add(getRow());
+    }
+    return rows;
+  }
+
+  private ResponseStatus getStatus() throws IOException, ClassNotFoundException {
+    ResponseStatus status = new ResponseStatus();
+    int signal = getVarInt();
+    status.setSignal((signal >>> 1) ^ -(signal & 1));
+    int length = getVarInt();
+    if (length > 0) {
+      checkRemaining(length);
+      try (ObjectInputStream objectStream = new ObjectInputStream(
+          new ByteArrayInputStream(frame, position, length))) {
+        status.setException((Exception) objectStream.readObject());
+      }
+      position += length;
+    }
+    return status;
+  }
+
+  private void readFrame() throws IOException {
+    int length = 0;
+    for (int shift = 0;; shift += 7) {
+      int b = readByte();
+      length |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0)
+        break;
+      if (shift >= 28)
+        throw new StreamCorruptedException("Malformed frame length.");
+    }
+    if (length < 0 || length > MAX_FRAME_LENGTH)
+      throw new StreamCorruptedException("Invalid frame length: " + length);
+    if (length > frame.length)
+      frame = new byte[Math.max(length, frame.length * 2)];
+
+    int offset = 0;
+    while (offset < length) {
+      int count = inStream.read(frame, offset, length - offset);
+      if (count < 0)
+        throw new EOFException("The stream ended in the middle of a frame.");
+      offset += count;
+    }
+    position = 0;
+    limit = length;
+  }
+
+  private String getString() throws IOException {
+    int length = getVarInt();
+    if (length == 0)
+      return null;
+    length--;
+    checkRemaining(length);
+    String value = new String(frame, position, length, StandardCharsets.UTF_8);
+    position += length;
+    return value;
+  }
+
+  private String getValue(int column) throws IOException {
+    int code = getVarInt();
+    if (code == 0)
+      return null;
+    if ((code & 1) != 0) {
+      int index = code >>> 1;
+      List<String> dictionary = (column < dictionaries.size()) ? dictionaries.get(column) : null;
+      if (dictionary == null || index >= dictionary.size())
+        throw new StreamCorruptedException("Invalid dictionary entry " + index + " of column " + column + ".");
+      return dictionary.get(index);
+    }
+    int length = (code >>> 2) - 1;
+    checkRemaining(length);
+    String value = new String(frame, position, length, StandardCharsets.UTF_8);
+    position += length;
+    if ((code & 2) != 0) {
+      while (dictionaries.size() <= column) {
+        dictionaries.add(null);
+      }
+      if (dictionaries.get(column) == null)
+        dictionaries.set(column, new ArrayList<>());
+      dictionaries.get(column).add(value);
+    }
+    return value;
+  }
+
+  private int getVarInt() throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      checkRemaining(1);
+      int b = frame[position++];
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0)
+        return value;
+    }
+    throw new StreamCorruptedException("Malformed varint.");
+  }
+
+  private void checkRemaining(int length) throws IOException {
+    if (length < 0 || length > limit - position)
+      throw new StreamCorruptedException("Frame is shorter than its content.");
+  }
+
+  private int readByte() throws IOException {
+    int b = inStream.read();
+    if (b < 0)
+      throw new EOFException("The stream ended before the response status was received.");
+    return b;
+  }
+}
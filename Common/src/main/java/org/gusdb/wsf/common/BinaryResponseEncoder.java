@@ -0,0 +1,310 @@
+package org.gusdb.wsf.common;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes a WSF result stream in the compact binary format. The stream starts
+ * with the bytes "WSF" followed by a one byte format version, and is then a
+ * sequence of frames:
+ *
+ * <pre>
+ *   frame   := type:byte length:varint payload[length]
+ *   row     := columnCount:varint string*
+ *   batch   := rowCount:varint row*
+ *   attach  := key:string content:string
+ *   message := message:string
+ *   heartbeat := (empty)
+ *   status  := signal:zigzag-varint exceptionLength:varint exception[exceptionLength]
+ *   string  := (byteLength + 1):varint utf8Bytes   (0 encodes a null string)
+ * </pre>
+ *
+ * Frames are length-prefixed so a reader can skip frame types it does not
+ * know. The exception in the status frame, if any, is still Java serialized
+ * since it is sent at most once per stream.
+ *
+ * Version 2 of the format encodes the column values of the rows against a
+ * dictionary per column, built as the stream is written, so the values that
+ * repeat are sent once:
+ *
+ * <pre>
+ *   row     := columnCount:varint value*
+ *   value   := code:varint utf8Bytes?
+ *     0                                   a null value
+ *     (index &lt;&lt; 1) | 1                    entry of the column's dictionary
+ *     ((byteLength + 1) &lt;&lt; 2) | (add &lt;&lt; 1)  a literal, appended to the
+ *                                         column's dictionary if add is 1
+ * </pre>
+ *
+ * The encoder stops adding to the dictionary of a column that holds too many
+ * values, and gives up on a column whose values rarely repeat, so unique
+ * values, like IDs, cost the same as in version 1. The reader only follows
+ * what the stream says, so the policy can change without a new version.
+ */
+public class BinaryResponseEncoder implements ResponseEncoder {
+
+  static final byte[] MAGIC = { 'W', 'S', 'F' };
+  static final int VERSION_1 = 1;
+  static final int VERSION_DICTIONARY = 2;
+  // the latest version
+  static final int VERSION = VERSION_DICTIONARY;
+
+  static final int FRAME_ROW = 1;
+  static final int FRAME_ATTACHMENT = 2;
+  static final int FRAME_MESSAGE = 3;
+  static final int FRAME_STATUS = 4;
+  static final int FRAME_ROW_BATCH = 5;
+  static final int FRAME_HEARTBEAT = 6;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  // bounds on the memory of the dictionaries, on both sides of the stream
+  static final int MAX_DICTIONARY_COLUMNS = 256;
+  static final int MAX_DICTIONARY_SIZE = 4096;
+  static final int MAX_DICTIONARY_VALUE_LENGTH = 256;
+
+  // a column is given up when less than a quarter of the values of a window
+  // are found in its dictionary
+  static final int DICTIONARY_WINDOW = 1024;
+  private static final int MIN_DICTIONARY_HITS = DICTIONARY_WINDOW / 4;
+
+  private final OutputStream outStream;
+  private final int version;
+
+  // the dictionaries of the columns, in the version 2 format
+  private final List<ColumnDictionary> dictionaries = new ArrayList<>();
+
+  // payload of the frame being encoded, reused for every frame
+  private byte[] frame = new byte[1024];
+  private int frameLength;
+
+  public BinaryResponseEncoder(OutputStream outStream) throws IOException {
+    this(outStream, VERSION_1);
+  }
+
+  /**
+   * @param version
+   *   the version of the format to write, {@link #VERSION_1} or
+   *   {@link #VERSION_DICTIONARY}
+   */
+  public BinaryResponseEncoder(OutputStream outStream, int version) throws IOException {
+    if (version < VERSION_1 || version > VERSION)
+      throw new IllegalArgumentException("Unsupported WSF binary format version: " + version);
+    this.outStream = new BufferedOutputStream(outStream, BUFFER_SIZE);
+    this.version = version;
+    this.outStream.write(MAGIC);
+    this.outStream.write(version);
+  }
+
+  @Override
+  public void writeRow(String[] row) throws IOException {
+    frameLength = 0;
+    putRow(row);
+    writeFrame(FRAME_ROW);
+  }
+
+  @Override
+  public void writeRows(List<String[]> rows) throws IOException {
+    if (rows.isEmpty())
+      return;
+    frameLength = 0;
+    putVarInt(rows.size());
+    for (String[] row : rows) {
+      putRow(row);
+    }
+    writeFrame(FRAME_ROW_BATCH);
+  }
+
+  @Override
+  public void writeAttachment(String key, String content) throws IOException {
+    frameLength = 0;
+    putString(key);
+    putString(content);
+    writeFrame(FRAME_ATTACHMENT);
+  }
+
+  @Override
+  public void writeMessage(String message) throws IOException {
+    frameLength = 0;
+    putString(message);
+    writeFrame(FRAME_MESSAGE);
+  }
+
+  @Override
+  public void writeStatus(ResponseStatus status) throws IOException {
+    frameLength = 0;
+    int signal = status.getSignal();
+    putVarInt((signal << 1) ^ (signal >> 31));
+    Exception exception = status.getException();
+    if (exception == null) {
+      putVarInt(0);
+    }
+    else {
+      byte[] bytes = serialize(exception);
+      putVarInt(bytes.length);
+      putBytes(bytes, 0, bytes.length);
+    }
+    writeFrame(FRAME_STATUS);
+  }
+
+  @Override
+  public void writeHeartbeat() throws IOException {
+    frameLength = 0;
+    writeFrame(FRAME_HEARTBEAT);
+  }
+
+  @Override
+  public void flush() throws IOException {
+    outStream.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    outStream.close();
+  }
+
+  private void writeFrame(int type) throws IOException {
+    outStream.write(type);
+    int value = frameLength;
+    while ((value & ~0x7F) != 0) {
+      outStream.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    outStream.write(value);
+    outStream.write(frame, 0, frameLength);
+  }
+
+  private void putRow(String[] row) {
+    putVarInt(row.length);
+    if (version == VERSION_1) {
+      for (String value : row) {
+        putString(value);
+      }
+    }
+    else {
+      for (int column = 0; column < row.length; column++) {
+        putValue(column, row[column]);
+      }
+    }
+  }
+
+  private void putString(String value) {
+    if (value == null) {
+      putVarInt(0);
+    }
+    else {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      putVarInt(bytes.length + 1);
+      putBytes(bytes, 0, bytes.length);
+    }
+  }
+
+  private void putValue(int column, String value) {
+    if (value == null) {
+      putVarInt(0);
+      return;
+    }
+    ColumnDictionary dictionary = getDictionary(column);
+    boolean add = false;
+    if (dictionary != null) {
+      Integer index = dictionary.entries.get(value);
+      dictionary.count(index != null);
+      if (index != null) {
+        putVarInt((index << 1) | 1);
+        return;
+      }
+      add = dictionary.entries != null && dictionary.entries.size() < MAX_DICTIONARY_SIZE &&
+          value.length() <= MAX_DICTIONARY_VALUE_LENGTH;
+      if (add)
+        dictionary.entries.put(value, dictionary.entries.size());
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    putVarInt(((bytes.length + 1) << 2) | (add ? 2 : 0));
+    putBytes(bytes, 0, bytes.length);
+  }
+
+  /**
+   * @return the dictionary of the column, or null if the column doesn't use
+   *   one.
+   */
+  private ColumnDictionary getDictionary(int column) {
+    if (column >= MAX_DICTIONARY_COLUMNS)
+      return null;
+    while (dictionaries.size() <= column) {
+      dictionaries.add(new ColumnDictionary());
+    }
+    ColumnDictionary dictionary = dictionaries.get(column);
+    return (dictionary.entries == null) ? null : dictionary;
+  }
+
+  private void putVarInt(int value) {
+    ensureCapacity(5);
+    while ((value & ~0x7F) != 0) {
+      frame[frameLength++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    frame[frameLength++] = (byte) value;
+  }
+
+  private void putBytes(byte[] bytes, int offset, int length) {
+    ensureCapacity(length);
+    System.arraycopy(bytes, offset, frame, frameLength, length);
+    frameLength += length;
+  }
+
+  private void ensureCapacity(int extra) {
+    int required = frameLength + extra;
+    if (required > frame.length) {
+      frame = Arrays.copyOf(frame, Math.max(required, frame.length * 2));
+    }
+  }
+
+  /**
+   * The values sent so far in a column, with their index in the dictionary
+   * the reader builds. The hits are counted over windows of values, and the
+   * dictionary is dropped after a window with too few of them.
+   */
+  private static class ColumnDictionary {
+
+    private Map<String, Integer> entries = new HashMap<>();
+    private int windowValues;
+    private int windowHits;
+
+    void count(boolean hit) {
+      if (hit)
+        windowHits++;
+      if (++windowValues < DICTIONARY_WINDOW)
+        return;
+      if (windowHits < MIN_DICTIONARY_HITS)
+        entries = null;
+      windowValues = 0;
+      windowHits = 0;
+    }
+  }
+
+  private static byte[] serialize(Exception exception) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream objectStream = new ObjectOutputStream(bytes)) {
+      objectStream.writeObject(exception);
+    }
+    catch (NotSerializableException ex) {
+      // keep the message of the original exception if part of it cannot be
+      // serialized, so the client still learns why the request failed.
+      bytes.reset();
+      try (ObjectOutputStream objectStream = new ObjectOutputStream(bytes)) {
+        objectStream.writeObject(new Exception(exception.toString()));
+      }
+    }
+    return bytes.toByteArray();
+  }
+}
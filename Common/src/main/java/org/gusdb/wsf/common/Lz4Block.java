@@ -0,0 +1,213 @@
+package org.gusdb.wsf.common;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+
+/**
+ * Compresses blocks in the LZ4 block format: a sequence of literal runs and
+ * back references of at least 4 bytes, found with a hash table of the last
+ * position of each 4 byte sequence. It trades ratio for speed, which suits
+ * repetitive text that is compressed on the fly.
+ */
+final class Lz4Block {
+
+  static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+  private static final int MIN_MATCH = 4;
+  private static final int MAX_OFFSET = 65535;
+  // the last match starts at least 12 bytes before the end of the block, and
+  // the last 5 bytes are always literals
+  private static final int MF_LIMIT = 12;
+  private static final int LAST_LITERALS = 5;
+  private static final int HASH_BITS = 14;
+  // the search step grows after 2^SKIP_TRIGGER misses, to go fast over data
+  // that doesn't compress
+  private static final int SKIP_TRIGGER = 6;
+
+  private Lz4Block() {}
+
+  /**
+   * @return the largest size of a compressed block of the given size
+   */
+  static int maxCompressedLength(int length) {
+    return length + length / 255 + 16;
+  }
+
+  /**
+   * @return a hash table to use with {@link #compress}
+   */
+  static int[] newHashTable() {
+    return new int[1 << HASH_BITS];
+  }
+
+  /**
+   * @return the length of the compressed block written to the destination,
+   *   which holds at least {@link #maxCompressedLength(int)} bytes.
+   */
+  static int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int[] table) {
+    Arrays.fill(table, -1);
+    int end = srcOff + srcLen;
+    int matchLimit = end - LAST_LITERALS;
+    int mfLimit = end - MF_LIMIT;
+    int anchor = srcOff;
+    int ip = srcOff;
+    int op = dstOff;
+    int misses = 0;
+
+    while (ip < mfLimit) {
+      int sequence = readInt(src, ip);
+      int hash = hash(sequence);
+      int ref = table[hash];
+      table[hash] = ip;
+      if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+        ip += 1 + (misses++ >>> SKIP_TRIGGER);
+        continue;
+      }
+      misses = 0;
+
+      // extend the match backwards, over the pending literals
+      while (ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1]) {
+        ip--;
+        ref--;
+      }
+      int matchLength = MIN_MATCH;
+      while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) {
+        matchLength++;
+      }
+
+      op = writeSequence(dst, op, src, anchor, ip - anchor, ip - ref, matchLength);
+      ip += matchLength;
+      anchor = ip;
+    }
+
+    // the last sequence only has literals
+    int literalLength = end - anchor;
+    op = writeLength(dst, op, literalLength, literalLength << 4);
+    System.arraycopy(src, anchor, dst, op, literalLength);
+    return op + literalLength - dstOff;
+  }
+
+  /**
+   * Decompress a block to exactly the given length.
+   */
+  static void decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen)
+      throws IOException {
+    int end = srcOff + srcLen;
+    int outEnd = dstOff + dstLen;
+    int ip = srcOff;
+    int op = dstOff;
+
+    while (true) {
+      if (ip >= end)
+        throw corrupted();
+      int token = src[ip++] & 0xFF;
+
+      // literals
+      long literalLength = token >>> 4;
+      if (literalLength == 15) {
+        int b;
+        do {
+          if (ip >= end)
+            throw corrupted();
+          b = src[ip++] & 0xFF;
+          literalLength += b;
+        } while (b == 255);
+      }
+      if (literalLength > end - ip || literalLength > outEnd - op)
+        throw corrupted();
+      System.arraycopy(src, ip, dst, op, (int) literalLength);
+      ip += literalLength;
+      op += literalLength;
+      if (ip == end)
+        break;
+
+      // match
+      if (end - ip < 2)
+        throw corrupted();
+      int offset = (src[ip] & 0xFF) | ((src[ip + 1] & 0xFF) << 8);
+      ip += 2;
+      if (offset == 0 || offset > op - dstOff)
+        throw corrupted();
+      long matchLength = (token & 0x0F) + MIN_MATCH;
+      if ((token & 0x0F) == 15) {
+        int b;
+        do {
+          if (ip >= end)
+            throw corrupted();
+          b = src[ip++] & 0xFF;
+          matchLength += b;
+        } while (b == 255);
+      }
+      if (matchLength > outEnd - op)
+        throw corrupted();
+      int ref = op - offset;
+      if (offset >= matchLength) {
+        System.arraycopy(dst, ref, dst, op, (int) matchLength);
+        op += matchLength;
+      }
+      else {
+        // the match overlaps the bytes it produces
+        for (int i = 0; i < matchLength; i++) {
+          dst[op++] = dst[ref++];
+        }
+      }
+    }
+    if (op != outEnd)
+      throw corrupted();
+  }
+
+  private static int writeSequence(byte[] dst, int op, byte[] src, int literalOff, int literalLength,
+      int offset, int matchLength) {
+    int extraMatch = matchLength - MIN_MATCH;
+    int tokenPos = op;
+    op = writeLength(dst, op, literalLength, literalLength << 4);
+    System.arraycopy(src, literalOff, dst, op, literalLength);
+    op += literalLength;
+    dst[op++] = (byte) offset;
+    dst[op++] = (byte) (offset >>> 8);
+    if (extraMatch >= 15) {
+      dst[tokenPos] |= 0x0F;
+      op = writeExtraLength(dst, op, extraMatch - 15);
+    }
+    else {
+      dst[tokenPos] |= extraMatch;
+    }
+    return op;
+  }
+
+  /**
+   * Write the token with the literal length, and the extra bytes of the length
+   * if it doesn't fit in the token.
+   */
+  private static int writeLength(byte[] dst, int op, int literalLength, int token) {
+    if (literalLength >= 15) {
+      dst[op++] = (byte) 0xF0;
+      return writeExtraLength(dst, op, literalLength - 15);
+    }
+    dst[op++] = (byte) token;
+    return op;
+  }
+
+  private static int writeExtraLength(byte[] dst, int op, int length) {
+    while (length >= 255) {
+      dst[op++] = (byte) 255;
+      length -= 255;
+    }
+    dst[op++] = (byte) length;
+    return op;
+  }
+
+  private static int readInt(byte[] bytes, int position) {
+    return (bytes[position] & 0xFF) | ((bytes[position + 1] & 0xFF) << 8) |
+        ((bytes[position + 2] & 0xFF) << 16) | ((bytes[position + 3] & 0xFF) << 24);
+  }
+
+  private static int hash(int sequence) {
+    return (sequence * -1640531535) >>> (32 - HASH_BITS);
+  }
+
+  private static IOException corrupted() {
+    return new StreamCorruptedException("Malformed compressed block.");
+  }
+}
@@ -0,0 +1,116 @@
+package org.gusdb.wsf.common;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+
+/**
+ * Reads a stream written by {@link Lz4BlockOutputStream}.
+ */
+public class Lz4BlockInputStream extends FilterInputStream {
+
+  private final byte[] buffer = new byte[Lz4Block.MAX_BLOCK_SIZE];
+  private final byte[] compressed = new byte[Lz4Block.maxCompressedLength(Lz4Block.MAX_BLOCK_SIZE)];
+  private int position;
+  private int limit;
+  private boolean finished;
+
+  public Lz4BlockInputStream(InputStream inStream) throws IOException {
+    super(inStream);
+    byte[] magic = new byte[Lz4BlockOutputStream.MAGIC.length];
+    readFully(magic, magic.length);
+    for (int i = 0; i < magic.length; i++) {
+      if (magic[i] != Lz4BlockOutputStream.MAGIC[i])
+        throw new StreamCorruptedException("The stream is not LZ4 compressed.");
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (position == limit && !readBlock())
+      return -1;
+    return buffer[position++] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] bytes, int offset, int count) throws IOException {
+    if (count == 0)
+      return 0;
+    if (position == limit && !readBlock())
+      return -1;
+    int size = Math.min(count, limit - position);
+    System.arraycopy(buffer, position, bytes, offset, size);
+    position += size;
+    return size;
+  }
+
+  @Override
+  public long skip(long count) throws IOException {
+    long skipped = 0;
+    while (skipped < count && (position < limit || readBlock())) {
+      int size = (int) Math.min(count - skipped, limit - position);
+      position += size;
+      skipped += size;
+    }
+    return skipped;
+  }
+
+  @Override
+  public int available() {
+    return limit - position;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  /**
+   * @return false at the end of the stream
+   */
+  private boolean readBlock() throws IOException {
+    if (finished)
+      return false;
+    int rawLength = readInt();
+    int storedLength = readInt();
+    if (rawLength == 0) {
+      finished = true;
+      return false;
+    }
+    if (rawLength < 0 || rawLength > buffer.length || storedLength <= 0 || storedLength > rawLength)
+      throw new StreamCorruptedException("Invalid block lengths: " + rawLength + ", " + storedLength);
+    if (storedLength == rawLength) {
+      readFully(buffer, rawLength);
+    }
+    else {
+      readFully(compressed, storedLength);
+      Lz4Block.decompress(compressed, 0, storedLength, buffer, 0, rawLength);
+    }
+    position = 0;
+    limit = rawLength;
+    return true;
+  }
+
+  private int readInt() throws IOException {
+    int value = 0;
+    for (int i = 0; i < 4; i++) {
+      int b = in.read();
+      if (b < 0)
+        throw new EOFException("The compressed stream ended in the middle of a block.");
+      value = (value << 8) | b;
+    }
+    return value;
+  }
+
+  private void readFully(byte[] bytes, int length) throws IOException {
+    int offset = 0;
+    while (offset < length) {
+      int count = in.read(bytes, offset, length - offset);
+      if (count < 0)
+        throw new EOFException("The compressed stream ended in the middle of a block.");
+      offset += count;
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package org.gusdb.wsf.common;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compresses a stream in blocks of up to 64 KB with {@link Lz4Block}. The
+ * stream starts with {@link #MAGIC}, and is then a sequence of blocks:
+ *
+ * <pre>
+ *   block := rawLength:int32 storedLength:int32 data[storedLength]
+ * </pre>
+ *
+ * A block is stored uncompressed when compressing doesn't make it smaller, in
+ * which case both lengths are equal; a block with a raw length of 0 ends the
+ * stream. Flushing the stream writes the pending bytes as a block, so they can
+ * be read right away.
+ */
+public class Lz4BlockOutputStream extends FilterOutputStream {
+
+  static final byte[] MAGIC = { 'W', 'Z', '4', 1 };
+
+  private final byte[] buffer = new byte[Lz4Block.MAX_BLOCK_SIZE];
+  private final byte[] compressed = new byte[Lz4Block.maxCompressedLength(Lz4Block.MAX_BLOCK_SIZE)];
+  private final int[] table = Lz4Block.newHashTable();
+  private int length;
+  private boolean finished;
+
+  public Lz4BlockOutputStream(OutputStream outStream) throws IOException {
+    super(outStream);
+    out.write(MAGIC);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (length == buffer.length)
+      writeBlock();
+    buffer[length++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] bytes, int offset, int count) throws IOException {
+    while (count > 0) {
+      if (length == buffer.length)
+        writeBlock();
+      int size = Math.min(count, buffer.length - length);
+      System.arraycopy(bytes, offset, buffer, length, size);
+      length += size;
+      offset += size;
+      count -= size;
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    writeBlock();
+    out.flush();
+  }
+
+  /**
+   * Write the pending bytes, and the end of the stream, without closing the
+   * underlying stream.
+   */
+  public void finish() throws IOException {
+    if (finished)
+      return;
+    writeBlock();
+    writeInt(0);
+    writeInt(0);
+    finished = true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    finish();
+    out.close();
+  }
+
+  private void writeBlock() throws IOException {
+    if (length == 0)
+      return;
+    if (finished)
+      throw new IOException("The stream is finished.");
+    int compressedLength = Lz4Block.compress(buffer, 0, length, compressed, 0, table);
+    writeInt(length);
+    if (compressedLength < length) {
+      writeInt(compressedLength);
+      out.write(compressed, 0, compressedLength);
+    }
+    else {
+      writeInt(length);
+      out.write(buffer, 0, length);
+    }
+    length = 0;
+  }
+
+  private void writeInt(int value) throws IOException {
+    out.write(value >>> 24);
+    out.write(value >>> 16);
+    out.write(value >>> 8);
+    out.write(value);
+  }
+}
@@ -0,0 +1,25 @@
+package org.gusdb.wsf.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Reads the objects of a WSF result stream written by the matching
+ * {@link ResponseEncoder}.
+ */
+public interface ResponseDecoder extends Closeable {
+
+  /**
+   * @return the next object in the stream, which is one of {@link ResponseRow},
+   *   {@link ResponseRowBatch}, {@link ResponseAttachment},
+   *   {@link ResponseMessage} or {@link ResponseStatus}. The status is always
+   *   the last object of a stream.
+   *
+   * @throws IOException
+   *   if the stream cannot be read or is malformed
+   * @throws ClassNotFoundException
+   *   if a serialized object of an unknown class is received
+   */
+  Object read() throws IOException, ClassNotFoundException;
+
+}
@@ -0,0 +1,36 @@
+package org.gusdb.wsf.common;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Writes the objects of a WSF result stream (rows, attachments, messages and
+ * the final status) in one of the supported {@link StreamFormat}s. The status
+ * must be the last object written to the stream.
+ */
+public interface ResponseEncoder extends Flushable, Closeable {
+
+  void writeRow(String[] row) throws IOException;
+
+  /**
+   * Write several rows at once; formats that support it send them as a single
+   * unit, the others fall back to one row at a time.
+   */
+  void writeRows(List<String[]> rows) throws IOException;
+
+  void writeAttachment(String key, String content) throws IOException;
+
+  void writeMessage(String message) throws IOException;
+
+  void writeStatus(ResponseStatus status) throws IOException;
+
+  /**
+   * Write an empty object the decoder skips, so a long pause in the output
+   * still shows whether the client is connected. Formats without such an
+   * object write nothing.
+   */
+  default void writeHeartbeat() throws IOException {}
+
+}
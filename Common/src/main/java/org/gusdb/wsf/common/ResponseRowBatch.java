@@ -0,0 +1,23 @@
+package org.gusdb.wsf.common;
+
+import java.io.Serializable;
+import java.util.List;
+
+public class ResponseRowBatch implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final List<String[]> rows;
+
+  public ResponseRowBatch(List<String[]> rows) {
+    this.rows = rows;
+  }
+
+  /**
+   * @return the rows, in the order the plugin produced them
+   */
+  public List<String[]> getRows() {
+    return rows;
+  }
+
+}
@@ -0,0 +1,28 @@
+package org.gusdb.wsf.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+
+/**
+ * Reads a stream written by {@link SerializedResponseEncoder}.
+ */
+public class SerializedResponseDecoder implements ResponseDecoder {
+
+  private final ObjectInputStream objectStream;
+
+  public SerializedResponseDecoder(InputStream inStream) throws IOException {
+    this.objectStream = new ObjectInputStream(inStream);
+  }
+
+  @Override
+  public Object read() throws IOException, ClassNotFoundException {
+    return objectStream.readUnshared();
+  }
+
+  @Override
+  public void close() throws IOException {
+    objectStream.close();
+  }
+
+}
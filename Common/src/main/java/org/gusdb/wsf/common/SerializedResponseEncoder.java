@@ -0,0 +1,58 @@
+package org.gusdb.wsf.common;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * The original WSF stream format, where each object is written with Java
+ * serialization. It is kept for clients that do not negotiate a stream format.
+ */
+public class SerializedResponseEncoder implements ResponseEncoder {
+
+  private final ObjectOutputStream objectStream;
+
+  public SerializedResponseEncoder(OutputStream outStream) throws IOException {
+    this.objectStream = new ObjectOutputStream(outStream);
+  }
+
+  @Override
+  public void writeRow(String[] row) throws IOException {
+    objectStream.writeUnshared(new ResponseRow(row));
+  }
+
+  @Override
+  public void writeRows(List<String[]> rows) throws IOException {
+    // older clients only understand single rows
+    for (String[] row : rows) {
+      writeRow(row);
+    }
+  }
+
+  @Override
+  public void writeAttachment(String key, String content) throws IOException {
+    objectStream.writeUnshared(new ResponseAttachment(key, content));
+  }
+
+  @Override
+  public void writeMessage(String message) throws IOException {
+    objectStream.writeUnshared(new ResponseMessage(message));
+  }
+
+  @Override
+  public void writeStatus(ResponseStatus status) throws IOException {
+    objectStream.writeUnshared(status);
+  }
+
+  @Override
+  public void flush() throws IOException {
+    objectStream.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    objectStream.close();
+  }
+
+}
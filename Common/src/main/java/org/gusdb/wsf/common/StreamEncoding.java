@@ -0,0 +1,169 @@
+package org.gusdb.wsf.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The compressions a WSF result stream can be sent with. The client lists the
+ * encodings it accepts, in order of preference, in the
+ * {@link WsfRequest#STREAM_ENCODING_HEADER} request header; the service picks
+ * the first one it supports and reports it in the same response header.
+ * Requests without the header, from older clients, get the {@link #IDENTITY}
+ * encoding.
+ *
+ * The service may still send a small response uncompressed; the client tells
+ * from the first bytes of the stream, which can't be mistaken for the start of
+ * a {@link StreamFormat}.
+ */
+public enum StreamEncoding {
+
+  IDENTITY("identity"),
+  GZIP("gzip"),
+  DEFLATE("deflate"),
+  LZ4("wsf-lz4");
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  // gzip magic number, and zlib header with a 32 KB window
+  private static final byte[] GZIP_MAGIC = { 0x1f, (byte) 0x8b };
+  private static final byte[] DEFLATE_MAGIC = { 0x78 };
+
+  private final String headerValue;
+
+  private StreamEncoding(String headerValue) {
+    this.headerValue = headerValue;
+  }
+
+  public String getHeaderValue() {
+    return headerValue;
+  }
+
+  /**
+   * @param level
+   *   the compression level of gzip and deflate, from 1 (fastest) to 9 (best);
+   *   the LZ4 codec has a single level.
+   *
+   * @return a stream compressing to the given stream. Flushing it sends the
+   *   pending bytes, so heartbeats get through. Closing it finishes the
+   *   compressed stream, and closes the given stream.
+   */
+  public OutputStream newOutputStream(OutputStream outStream, int level) throws IOException {
+    switch (this) {
+      case GZIP:
+        return new GZIPOutputStream(outStream, BUFFER_SIZE, true) {
+          {
+            def.setLevel(level);
+          }
+        };
+      case DEFLATE:
+        return new DeflaterOutputStream(outStream, new Deflater(level), BUFFER_SIZE, true) {
+          @Override
+          public void close() throws IOException {
+            // the deflater is ours, release its native memory
+            try {
+              super.close();
+            }
+            finally {
+              def.end();
+            }
+          }
+        };
+      case LZ4:
+        return new Lz4BlockOutputStream(outStream);
+      default:
+        return outStream;
+    }
+  }
+
+  /**
+   * @return a stream decompressing the given stream, or the given stream if it
+   *   was sent uncompressed.
+   */
+  public InputStream newInputStream(InputStream inStream) throws IOException {
+    if (this == IDENTITY)
+      return inStream;
+    PushbackInputStream pushbackStream = new PushbackInputStream(inStream, 4);
+    switch (this) {
+      case GZIP:
+        return startsWith(pushbackStream, GZIP_MAGIC) ? new GZIPInputStream(pushbackStream, BUFFER_SIZE)
+            : pushbackStream;
+      case DEFLATE:
+        return startsWith(pushbackStream, DEFLATE_MAGIC) ? new InflaterInputStream(pushbackStream)
+            : pushbackStream;
+      default:
+        return startsWith(pushbackStream, Lz4BlockOutputStream.MAGIC) ? new Lz4BlockInputStream(pushbackStream)
+            : pushbackStream;
+    }
+  }
+
+  private static boolean startsWith(PushbackInputStream inStream, byte[] magic) throws IOException {
+    byte[] bytes = new byte[magic.length];
+    int length = 0;
+    while (length < bytes.length) {
+      int count = inStream.read(bytes, length, bytes.length - length);
+      if (count < 0)
+        break;
+      length += count;
+    }
+    inStream.unread(bytes, 0, length);
+    return length == magic.length && Arrays.equals(bytes, magic);
+  }
+
+  /**
+   * @return the header value a client sends to accept the given encodings, in
+   *   order of preference.
+   */
+  public static String getAcceptHeader(List<StreamEncoding> encodings) {
+    return encodings.stream().map(StreamEncoding::getHeaderValue).collect(Collectors.joining(", "));
+  }
+
+  /**
+   * @return the encoding with the given name, or null if there is none.
+   */
+  public static StreamEncoding fromName(String name) {
+    for (StreamEncoding encoding : values()) {
+      if (encoding.headerValue.equalsIgnoreCase(name.trim()))
+        return encoding;
+    }
+    return null;
+  }
+
+  /**
+   * @param header
+   *   a comma separated list of encoding names, in order of preference; can
+   *   be null.
+   * @param supported
+   *   the encodings that can be picked, besides {@link #IDENTITY}
+   *
+   * @return the first supported encoding in the list, or {@link #IDENTITY} if
+   *   none is supported.
+   */
+  public static StreamEncoding fromHeader(String header, Collection<StreamEncoding> supported) {
+    if (header != null) {
+      for (String name : header.split(",")) {
+        StreamEncoding encoding = fromName(name);
+        if (encoding != null && (encoding == IDENTITY || supported.contains(encoding)))
+          return encoding;
+      }
+    }
+    return IDENTITY;
+  }
+
+  /**
+   * @return the first known encoding in the header, or {@link #IDENTITY}.
+   */
+  public static StreamEncoding fromHeader(String header) {
+    return fromHeader(header, Arrays.asList(values()));
+  }
+}
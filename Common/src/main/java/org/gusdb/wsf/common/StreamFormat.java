@@ -0,0 +1,75 @@
+package org.gusdb.wsf.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The formats a WSF result stream can be written in. The client lists the
+ * formats it accepts, in order of preference, in the
+ * {@link WsfRequest#STREAM_FORMAT_HEADER} request header; the service picks the
+ * first one it supports and reports it in the same response header. Requests
+ * without the header, from older clients, get the {@link #SERIALIZED} format.
+ *
+ * {@link #BINARY_V2} is the binary format with the dictionary encoding of the
+ * column values; a reader of it also reads {@link #BINARY} streams.
+ */
+public enum StreamFormat {
+
+  SERIALIZED("java-serialization"),
+  BINARY("wsf-binary/1"),
+  BINARY_V2("wsf-binary/2");
+
+  private final String headerValue;
+
+  private StreamFormat(String headerValue) {
+    this.headerValue = headerValue;
+  }
+
+  public String getHeaderValue() {
+    return headerValue;
+  }
+
+  public ResponseEncoder newEncoder(OutputStream outStream) throws IOException {
+    switch (this) {
+      case BINARY:
+        return new BinaryResponseEncoder(outStream, BinaryResponseEncoder.VERSION_1);
+      case BINARY_V2:
+        return new BinaryResponseEncoder(outStream, BinaryResponseEncoder.VERSION_DICTIONARY);
+      default:
+        return new SerializedResponseEncoder(outStream);
+    }
+  }
+
+  public ResponseDecoder newDecoder(InputStream inStream) throws IOException {
+    return (this == SERIALIZED) ? new SerializedResponseDecoder(inStream) : new BinaryResponseDecoder(inStream);
+  }
+
+  /**
+   * @return the header value a client sends to accept all the formats, best
+   *   format first.
+   */
+  public static String getAcceptHeader() {
+    return BINARY_V2.headerValue + ", " + BINARY.headerValue + ", " + SERIALIZED.headerValue;
+  }
+
+  /**
+   * @param header
+   *   a comma separated list of format names, in order of preference; can be
+   *   null.
+   *
+   * @return the first supported format in the list, or {@link #SERIALIZED} if
+   *   none is supported.
+   */
+  public static StreamFormat fromHeader(String header) {
+    if (header != null) {
+      for (String name : header.split(",")) {
+        for (StreamFormat format : values()) {
+          if (format.headerValue.equalsIgnoreCase(name.trim()))
+            return format;
+        }
+      }
+    }
+    return SERIALIZED;
+  }
+}
@@ -0,0 +1,46 @@
+package org.gusdb.wsf.common;
+
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread factories and executors shared by the WSF components.
+ */
+public final class WsfExecutors {
+
+  private WsfExecutors() {}
+
+  /**
+   * @param prefix
+   *   the prefix of the thread names, which are suffixed with a sequence number
+   *
+   * @return a factory of daemon threads, which don't keep the JVM alive.
+   */
+  public static ThreadFactory newDaemonThreadFactory(String prefix) {
+    AtomicInteger sequence = new AtomicInteger();
+    return runnable -> {
+      Thread thread = new Thread(runnable, prefix + "-" + sequence.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    };
+  }
+
+  /**
+   * Virtual threads are looked up by reflection, so the code still runs on JVMs
+   * older than Java 21.
+   *
+   * @return an executor that starts a new virtual thread for each task, or an
+   *   empty optional if the JVM doesn't support virtual threads.
+   */
+  public static Optional<ExecutorService> newVirtualThreadPerTaskExecutor() {
+    try {
+      return Optional.of((ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null));
+    }
+    catch (ReflectiveOperationException | RuntimeException ex) {
+      return Optional.empty();
+    }
+  }
+}
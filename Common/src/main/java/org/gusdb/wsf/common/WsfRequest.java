@@ -7,6 +7,16 @@ public interface WsfRequest {
   String PARAM_REQUEST = "request";
   String REMOTE_EXECUTE_TIMEOUT_ISO_8601_CONTEXT_KEY = "timeout_iso_8601";
 
+  /**
+   * HTTP header used to negotiate the {@link StreamFormat} of the response.
+   */
+  String STREAM_FORMAT_HEADER = "X-WSF-Stream-Format";
+
+  /**
+   * HTTP header used to negotiate the {@link StreamEncoding} of the response.
+   */
+  String STREAM_ENCODING_HEADER = "X-WSF-Stream-Encoding";
+
   /**
    * @return the projectId
    */
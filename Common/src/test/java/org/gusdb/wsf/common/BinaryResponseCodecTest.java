@@ -0,0 +1,180 @@
+package org.gusdb.wsf.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BinaryResponseCodecTest {
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    String[] row = { "plain", "", null, "unicode \u00e9\u4e2d\ud83d\ude00", "x" };
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ResponseEncoder encoder = StreamFormat.BINARY.newEncoder(bytes);
+    encoder.writeRow(row);
+    encoder.writeAttachment("key", "content");
+    encoder.writeMessage("message");
+    ResponseStatus status = new ResponseStatus();
+    status.setSignal(-42);
+    status.setException(new IllegalStateException("failed"));
+    encoder.writeStatus(status);
+    encoder.close();
+
+    ResponseDecoder decoder = StreamFormat.BINARY.newDecoder(new ByteArrayInputStream(bytes.toByteArray()));
+    Assert.assertArrayEquals(row, ((ResponseRow) decoder.read()).getRow());
+    ResponseAttachment attachment = (ResponseAttachment) decoder.read();
+    Assert.assertEquals("key", attachment.getKey());
+    Assert.assertEquals("content", attachment.getContent());
+    Assert.assertEquals("message", ((ResponseMessage) decoder.read()).getMessage());
+    ResponseStatus received = (ResponseStatus) decoder.read();
+    Assert.assertEquals(-42, received.getSignal());
+    Assert.assertTrue(received.getException() instanceof IllegalStateException);
+    Assert.assertEquals("failed", received.getException().getMessage());
+  }
+
+  @Test
+  public void testRowBatch() throws Exception {
+    List<String[]> rows = Arrays.asList(new String[] { "a", "b" }, new String[] { null, "d" }, new String[0]);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ResponseEncoder encoder = new BinaryResponseEncoder(bytes);
+    encoder.writeRows(rows);
+    encoder.writeStatus(new ResponseStatus());
+    encoder.close();
+
+    ResponseDecoder decoder = new BinaryResponseDecoder(new ByteArrayInputStream(bytes.toByteArray()));
+    List<String[]> received = ((ResponseRowBatch) decoder.read()).getRows();
+    Assert.assertEquals(rows.size(), received.size());
+    for (int i = 0; i < rows.size(); i++) {
+      Assert.assertArrayEquals(rows.get(i), received.get(i));
+    }
+    Assert.assertTrue(decoder.read() instanceof ResponseStatus);
+  }
+
+  @Test
+  public void testUnknownFrameSkipped() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    bytes.write(BinaryResponseEncoder.MAGIC);
+    bytes.write(BinaryResponseEncoder.VERSION);
+    // a frame type this decoder doesn't know, with a 3 byte payload
+    bytes.write(new byte[] { 99, 3, 1, 2, 3 });
+
+    // append a status frame, without the stream header
+    ByteArrayOutputStream status = new ByteArrayOutputStream();
+    ResponseEncoder statusEncoder = new BinaryResponseEncoder(status);
+    statusEncoder.writeStatus(new ResponseStatus());
+    statusEncoder.close();
+    byte[] statusBytes = status.toByteArray();
+    bytes.write(statusBytes, 4, statusBytes.length - 4);
+
+    ResponseDecoder decoder = new BinaryResponseDecoder(new ByteArrayInputStream(bytes.toByteArray()));
+    Assert.assertTrue(decoder.read() instanceof ResponseStatus);
+  }
+
+  @Test(expected = EOFException.class)
+  public void testTruncatedStream() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ResponseEncoder encoder = new BinaryResponseEncoder(bytes);
+    encoder.writeRow(new String[] { "a", "b" });
+    encoder.close();
+    byte[] truncated = bytes.toByteArray();
+
+    ResponseDecoder decoder = new BinaryResponseDecoder(new ByteArrayInputStream(truncated, 0, truncated.length - 1));
+    decoder.read();
+  }
+
+  @Test
+  public void testDictionary() throws Exception {
+    String[] organisms = { "Plasmodium falciparum 3D7", "Toxoplasma gondii ME49", null, "\u00e9\u4e2d" };
+    List<String[]> rows = new ArrayList<>();
+    for (int i = 0; i < 5000; i++) {
+      rows.add(new String[] { "GENE_" + i, organisms[i % organisms.length], (i % 2 == 0) ? "+" : "-" });
+    }
+
+    byte[] plain = encode(StreamFormat.BINARY, rows);
+    byte[] encoded = encode(StreamFormat.BINARY_V2, rows);
+    Assert.assertTrue("dictionary stream is not smaller: " + encoded.length + " >= " + plain.length,
+        encoded.length < plain.length * 0.6);
+
+    List<String[]> received = decode(encoded);
+    Assert.assertEquals(rows.size(), received.size());
+    for (int i = 0; i < rows.size(); i++) {
+      Assert.assertArrayEquals(rows.get(i), received.get(i));
+    }
+    // the repeated values are shared
+    Assert.assertSame(received.get(0)[1], received.get(4000)[1]);
+    Assert.assertSame(received.get(1)[2], received.get(4001)[2]);
+  }
+
+  @Test
+  public void testDictionaryCutoff() throws Exception {
+    // a column of unique values costs no more than in version 1
+    List<String[]> rows = new ArrayList<>();
+    for (int i = 0; i < 10 * BinaryResponseEncoder.DICTIONARY_WINDOW; i++) {
+      rows.add(new String[] { "PF3D7_" + i, (i % 3 == 0) ? "protein coding" : "ncRNA" });
+    }
+    byte[] encoded = encode(StreamFormat.BINARY_V2, rows);
+    List<String[]> received = decode(encoded);
+    for (int i = 0; i < rows.size(); i++) {
+      Assert.assertArrayEquals(rows.get(i), received.get(i));
+    }
+
+    List<String[]> idColumn = new ArrayList<>();
+    for (String[] row : rows) {
+      idColumn.add(new String[] { row[0] });
+    }
+    Assert.assertEquals(encode(StreamFormat.BINARY, idColumn).length,
+        encode(StreamFormat.BINARY_V2, idColumn).length);
+  }
+
+  @Test(expected = StreamCorruptedException.class)
+  public void testInvalidDictionaryEntry() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    bytes.write(BinaryResponseEncoder.MAGIC);
+    bytes.write(BinaryResponseEncoder.VERSION_DICTIONARY);
+    // a row with one column, referring to entry 0 of an empty dictionary
+    bytes.write(new byte[] { BinaryResponseEncoder.FRAME_ROW, 2, 1, 1 });
+
+    new BinaryResponseDecoder(new ByteArrayInputStream(bytes.toByteArray())).read();
+  }
+
+  @Test
+  public void testNegotiation() throws IOException {
+    Assert.assertEquals(StreamFormat.SERIALIZED, StreamFormat.fromHeader(null));
+    Assert.assertEquals(StreamFormat.SERIALIZED, StreamFormat.fromHeader("unknown/9"));
+    Assert.assertEquals(StreamFormat.BINARY, StreamFormat.fromHeader("unknown/9, wsf-binary/1"));
+    Assert.assertEquals(StreamFormat.BINARY, StreamFormat.fromHeader("wsf-binary/1, java-serialization"));
+    Assert.assertEquals(StreamFormat.BINARY_V2, StreamFormat.fromHeader(StreamFormat.getAcceptHeader()));
+  }
+
+  private static byte[] encode(StreamFormat format, List<String[]> rows) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ResponseEncoder encoder = format.newEncoder(bytes);
+    for (int i = 0; i < rows.size(); i += 1000) {
+      encoder.writeRows(rows.subList(i, Math.min(rows.size(), i + 1000)));
+    }
+    encoder.writeStatus(new ResponseStatus());
+    encoder.close();
+    return bytes.toByteArray();
+  }
+
+  private static List<String[]> decode(byte[] bytes) throws Exception {
+    ResponseDecoder decoder = new BinaryResponseDecoder(new ByteArrayInputStream(bytes));
+    List<String[]> rows = new ArrayList<>();
+    while (true) {
+      Object object = decoder.read();
+      if (object instanceof ResponseStatus)
+        return rows;
+      rows.addAll(((ResponseRowBatch) object).getRows());
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package org.gusdb.wsf.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StreamEncodingTest {
+
+  private final Random random = new Random();
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    byte[] text = newText(300000);
+    byte[] noise = new byte[100000];
+    random.nextBytes(noise);
+
+    for (StreamEncoding encoding : StreamEncoding.values()) {
+      for (byte[] content : Arrays.asList(text, noise, new byte[0], "x".getBytes(StandardCharsets.UTF_8))) {
+        byte[] encoded = encode(encoding, content);
+        Assert.assertArrayEquals(encoding.name(), content, decode(encoding, encoded));
+      }
+      // repetitive text compresses well
+      if (encoding != StreamEncoding.IDENTITY)
+        Assert.assertTrue(encoding.name(), encode(encoding, text).length < text.length / 3);
+    }
+  }
+
+  @Test
+  public void testFlushedBlocks() throws Exception {
+    // every flush ends a block, which has to be readable right away
+    byte[] text = newText(5000);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (OutputStream outStream = StreamEncoding.LZ4.newOutputStream(bytes, 6)) {
+      for (int i = 0; i < text.length; i += 700) {
+        outStream.write(text, i, Math.min(700, text.length - i));
+        outStream.flush();
+      }
+    }
+    Assert.assertArrayEquals(text, decode(StreamEncoding.LZ4, bytes.toByteArray()));
+  }
+
+  @Test
+  public void testUncompressedStream() throws Exception {
+    // a small response can be sent as is, whatever the negotiated encoding
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ResponseEncoder encoder = StreamFormat.BINARY.newEncoder(bytes);
+    encoder.writeStatus(new ResponseStatus());
+    encoder.close();
+    for (StreamEncoding encoding : StreamEncoding.values()) {
+      Assert.assertArrayEquals(bytes.toByteArray(), decode(encoding, bytes.toByteArray()));
+    }
+  }
+
+  @Test(expected = EOFException.class)
+  public void testTruncatedStream() throws Exception {
+    byte[] encoded = encode(StreamEncoding.LZ4, newText(100000));
+    decode(StreamEncoding.LZ4, Arrays.copyOf(encoded, encoded.length / 2));
+  }
+
+  @Test
+  public void testNegotiation() {
+    Assert.assertEquals(StreamEncoding.IDENTITY, StreamEncoding.fromHeader(null));
+    Assert.assertEquals(StreamEncoding.IDENTITY, StreamEncoding.fromHeader("br"));
+    Assert.assertEquals(StreamEncoding.GZIP, StreamEncoding.fromHeader("br, gzip, deflate"));
+    Assert.assertEquals(StreamEncoding.DEFLATE,
+        StreamEncoding.fromHeader("wsf-lz4, deflate", Collections.singleton(StreamEncoding.DEFLATE)));
+    Assert.assertEquals(StreamEncoding.IDENTITY,
+        StreamEncoding.fromHeader("wsf-lz4", Collections.<StreamEncoding>emptySet()));
+    Assert.assertEquals("wsf-lz4, gzip",
+        StreamEncoding.getAcceptHeader(Arrays.asList(StreamEncoding.LZ4, StreamEncoding.GZIP)));
+  }
+
+  private byte[] newText(int length) {
+    StringBuilder text = new StringBuilder();
+    while (text.length() < length) {
+      text.append("PF3D7_").append(1000000 + random.nextInt(2000)).append("\tprotein coding\t")
+          .append(random.nextInt(100)).append('\n');
+    }
+    return text.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static byte[] encode(StreamEncoding encoding, byte[] content) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (OutputStream outStream = encoding.newOutputStream(bytes, 6)) {
+      outStream.write(content);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static byte[] decode(StreamEncoding encoding, byte[] encoded) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (InputStream inStream = encoding.newInputStream(new ByteArrayInputStream(encoded))) {
+      byte[] buffer = new byte[4096];
+      int count;
+      while ((count = inStream.read(buffer)) >= 0) {
+        bytes.write(buffer, 0, count);
+      }
+    }
+    return bytes.toByteArray();
+  }
+}
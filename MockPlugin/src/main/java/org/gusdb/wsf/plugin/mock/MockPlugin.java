@@ -2,18 +2,69 @@ package org.gusdb.wsf.plugin.mock;
 
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 import org.gusdb.wsf.plugin.AbstractPlugin;
+import org.gusdb.wsf.plugin.DelayedResultException;
 import org.gusdb.wsf.plugin.PluginModelException;
 import org.gusdb.wsf.plugin.PluginRequest;
 import org.gusdb.wsf.plugin.PluginResponse;
 import org.gusdb.wsf.plugin.PluginUserException;
+import org.gusdb.wsf.plugin.ThreadSafe;
 
+/**
+ * A plugin that generates its result, for tests and performance measurements.
+ * Besides the required row and attachment counts, optional params shape the
+ * workload like the one of a real plugin:
+ *
+ * <pre>
+ *   column.count               number of columns, named col1 to colN (3)
+ *   value.length               length of the generated part of the values,
+ *                              after the column name: N, or MIN-MAX
+ *   value.length.distribution  uniform, or exponential for mostly short
+ *                              values with a long tail up to MAX (uniform)
+ *   value.cardinality          number of distinct values of each column;
+ *                              0 for unique values (0)
+ *   delay.ms                   time spent before the first row, waiting (0)
+ *   row.delay.micros           time spent waiting before each row (0)
+ *   row.compute.micros         time spent computing before each row (0)
+ *   attachment.length          length of the attachment contents
+ *   seed                       seed of the generated content, so identical
+ *                              requests get identical results (random)
+ *   fail                       user, model or delayed: the exception thrown
+ *                              when the fail.row row is reached
+ *   fail.row                   index of the row the failure replaces (0)
+ * </pre>
+ *
+ * Without them the plugin writes short random values, as it always did. The
+ * plugin keeps no state between requests, so one instance serves them all.
+ */
+@ThreadSafe
 public class MockPlugin extends AbstractPlugin {
 
   public static final String PARAM_ROW_SIZE = "row.size";
   public static final String PARAM_ATTACHMENT_SIZE = "attachment.size";
 
+  public static final String PARAM_COLUMN_COUNT = "column.count";
+  public static final String PARAM_VALUE_LENGTH = "value.length";
+  public static final String PARAM_VALUE_LENGTH_DISTRIBUTION = "value.length.distribution";
+  public static final String PARAM_VALUE_CARDINALITY = "value.cardinality";
+  public static final String PARAM_DELAY_MS = "delay.ms";
+  public static final String PARAM_ROW_DELAY_MICROS = "row.delay.micros";
+  public static final String PARAM_ROW_COMPUTE_MICROS = "row.compute.micros";
+  public static final String PARAM_ATTACHMENT_LENGTH = "attachment.length";
+  public static final String PARAM_SEED = "seed";
+  public static final String PARAM_FAIL = "fail";
+  public static final String PARAM_FAIL_ROW = "fail.row";
+
+  public static final String DISTRIBUTION_UNIFORM = "uniform";
+  public static final String DISTRIBUTION_EXPONENTIAL = "exponential";
+
+  public static final String FAIL_USER = "user";
+  public static final String FAIL_MODEL = "model";
+  public static final String FAIL_DELAYED = "delayed";
+
   public static final String[] COLUMNS = { "col1", "col2", "col3" };
   public static final String[] REQUIRED_PARAMS = { PARAM_ROW_SIZE, PARAM_ATTACHMENT_SIZE };
 
@@ -22,7 +73,7 @@ public class MockPlugin extends AbstractPlugin {
   public static final String ATTACHMENT_KEY_PREFIX = "mock-att-key-";
   public static final String ATTACHMENT_VALUE_PREFIX = "mock-att-val-";
 
-  private final Random random = new Random();
+  private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789_".toCharArray();
 
   public MockPlugin() {}
 
@@ -30,6 +81,17 @@ public class MockPlugin extends AbstractPlugin {
     super(propertyFile);
   }
 
+  /**
+   * @return the names of the given number of columns
+   */
+  public static String[] getColumns(int count) {
+    String[] columns = new String[count];
+    for (int i = 0; i < count; i++) {
+      columns[i] = "col" + (i + 1);
+    }
+    return columns;
+  }
+
   @Override
   public String[] getRequiredParameterNames() {
     return REQUIRED_PARAMS;
@@ -37,7 +99,14 @@ public class MockPlugin extends AbstractPlugin {
 
   @Override
   public String[] getColumns(PluginRequest request) {
-    return COLUMNS;
+    String count = request.getParams().get(PARAM_COLUMN_COUNT);
+    try {
+      return (count == null) ? COLUMNS : getColumns(Integer.parseInt(count));
+    }
+    catch (RuntimeException ex) {
+      // reported by the validation of the params
+      return COLUMNS;
+    }
   }
 
   @Override
@@ -54,6 +123,19 @@ public class MockPlugin extends AbstractPlugin {
     if (attachmentSize < 0)
       throw new PluginUserException("The " + PARAM_ATTACHMENT_SIZE +
           " param must be a number greater than, or equal to, 0");
+
+    new Workload(params);
+  }
+
+  @Override
+  public int invoke(PluginRequest request, PluginResponse response) throws PluginModelException,
+      PluginUserException, DelayedResultException {
+    try {
+      return super.invoke(request, response);
+    }
+    catch (DelayedFailure failure) {
+      throw new DelayedResultException();
+    }
   }
 
   @Override
@@ -63,22 +145,34 @@ public class MockPlugin extends AbstractPlugin {
     Map<String, String> params = request.getParams();
     long rowSize = Long.valueOf(params.get(PARAM_ROW_SIZE));
     int attachmentSize = Integer.valueOf(params.get(PARAM_ATTACHMENT_SIZE));
+    Workload workload = new Workload(params);
+    Random random = new Random(workload.seed);
 
     // get ordered columns
     String[] columns = request.getOrderedColumns();
+    pause(TimeUnit.MILLISECONDS.toNanos(workload.delayMillis));
+
     // generate rows
-    for (int i = 0; i < rowSize; i++) {
+    for (long i = 0; i < rowSize; i++) {
+      if (i == workload.failRow)
+        workload.fail(i);
+      pause(TimeUnit.MICROSECONDS.toNanos(workload.rowDelayMicros));
+      compute(TimeUnit.MICROSECONDS.toNanos(workload.rowComputeMicros));
       String[] row = new String[columns.length];
       for (int c = 0; c < columns.length; c++) {
-        row[c] = columns[c] + "-" + random.nextInt();
+        row[c] = workload.newValue(random, columns[c], c);
       }
       response.addRow(row);
     }
+    if (workload.failure != null && workload.failRow >= rowSize)
+      workload.fail(rowSize);
 
     // generate attachments
     for (int i = 0; i < attachmentSize; i++) {
       String key = ATTACHMENT_KEY_PREFIX + random.nextInt();
-      String value = ATTACHMENT_VALUE_PREFIX + random.nextInt();
+      String value = ATTACHMENT_VALUE_PREFIX +
+          ((workload.attachmentLength < 0) ? Integer.toString(random.nextInt()) :
+            newString(random, workload.attachmentLength));
       response.addAttachment(key, value);
     }
 
@@ -88,4 +182,166 @@ public class MockPlugin extends AbstractPlugin {
     return SIGNAL;
   }
 
+  private static void pause(long nanos) throws PluginModelException {
+    if (nanos <= 0)
+      return;
+    try {
+      TimeUnit.NANOSECONDS.sleep(nanos);
+    }
+    catch (InterruptedException ex) {
+      throw new PluginModelException(ex);
+    }
+  }
+
+  /**
+   * Keep the thread busy for the given time, like a plugin parsing or
+   * computing its output.
+   */
+  private static void compute(long nanos) throws PluginModelException {
+    if (nanos <= 0)
+      return;
+    long end = System.nanoTime() + nanos;
+    long value = end;
+    while (System.nanoTime() < end) {
+      for (int i = 0; i < 100; i++) {
+        value = value * 6364136223846793005L + 1442695040888963407L;
+      }
+    }
+    if (value == 0 || Thread.currentThread().isInterrupted())
+      throw new PluginModelException("The computation was interrupted.");
+  }
+
+  private static String newString(Random random, int length) {
+    char[] chars = new char[length];
+    for (int i = 0; i < length; i++) {
+      chars[i] = ALPHABET[random.nextInt(ALPHABET.length)];
+    }
+    return new String(chars);
+  }
+
+  /**
+   * Carries an injected {@link DelayedResultException} out of
+   * {@link #execute}, whose subclasses don't expect it.
+   */
+  private static class DelayedFailure extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+  }
+
+  /**
+   * The optional params of a request, checked when they are read.
+   */
+  private static class Workload {
+
+    private final int minLength;
+    private final int maxLength;
+    private final boolean exponential;
+    private final int cardinality;
+    private final long delayMillis;
+    private final long rowDelayMicros;
+    private final long rowComputeMicros;
+    private final int attachmentLength;
+    private final long seed;
+    private final String failure;
+    private final long failRow;
+
+    Workload(Map<String, String> params) throws PluginUserException {
+      String length = params.get(PARAM_VALUE_LENGTH);
+      if (length == null) {
+        minLength = -1;
+        maxLength = -1;
+      }
+      else {
+        int dash = length.indexOf('-');
+        minLength = parseInt(PARAM_VALUE_LENGTH, (dash < 0) ? length : length.substring(0, dash));
+        maxLength = (dash < 0) ? minLength : parseInt(PARAM_VALUE_LENGTH, length.substring(dash + 1));
+        if (maxLength < minLength)
+          throw new PluginUserException("The " + PARAM_VALUE_LENGTH + " param must be N or MIN-MAX: " + length);
+      }
+
+      String distribution = params.getOrDefault(PARAM_VALUE_LENGTH_DISTRIBUTION, DISTRIBUTION_UNIFORM);
+      if (!distribution.equals(DISTRIBUTION_UNIFORM) && !distribution.equals(DISTRIBUTION_EXPONENTIAL))
+        throw new PluginUserException("The " + PARAM_VALUE_LENGTH_DISTRIBUTION + " param must be " +
+            DISTRIBUTION_UNIFORM + " or " + DISTRIBUTION_EXPONENTIAL);
+      exponential = distribution.equals(DISTRIBUTION_EXPONENTIAL);
+
+      if (params.containsKey(PARAM_COLUMN_COUNT) && parseInt(PARAM_COLUMN_COUNT, params.get(PARAM_COLUMN_COUNT)) == 0)
+        throw new PluginUserException("The " + PARAM_COLUMN_COUNT + " param must be greater than 0");
+      cardinality = parseInt(PARAM_VALUE_CARDINALITY, params.getOrDefault(PARAM_VALUE_CARDINALITY, "0"));
+      delayMillis = parseLong(PARAM_DELAY_MS, params.getOrDefault(PARAM_DELAY_MS, "0"));
+      rowDelayMicros = parseLong(PARAM_ROW_DELAY_MICROS, params.getOrDefault(PARAM_ROW_DELAY_MICROS, "0"));
+      rowComputeMicros = parseLong(PARAM_ROW_COMPUTE_MICROS, params.getOrDefault(PARAM_ROW_COMPUTE_MICROS, "0"));
+      String attachment = params.get(PARAM_ATTACHMENT_LENGTH);
+      attachmentLength = (attachment == null) ? -1 : parseInt(PARAM_ATTACHMENT_LENGTH, attachment);
+
+      String seedValue = params.get(PARAM_SEED);
+      try {
+        seed = (seedValue == null) ? ThreadLocalRandom.current().nextLong() : Long.parseLong(seedValue.trim());
+      }
+      catch (NumberFormatException ex) {
+        throw new PluginUserException("The " + PARAM_SEED + " param must be a number: " + seedValue);
+      }
+
+      failure = params.get(PARAM_FAIL);
+      if (failure != null && !failure.equals(FAIL_USER) && !failure.equals(FAIL_MODEL) &&
+          !failure.equals(FAIL_DELAYED))
+        throw new PluginUserException("The " + PARAM_FAIL + " param must be " + FAIL_USER + ", " + FAIL_MODEL +
+            " or " + FAIL_DELAYED);
+      failRow = (failure == null) ? Long.MAX_VALUE :
+          parseLong(PARAM_FAIL_ROW, params.getOrDefault(PARAM_FAIL_ROW, "0"));
+    }
+
+    String newValue(Random random, String column, int columnIndex) {
+      if (cardinality > 0) {
+        // the same value every time the index is picked, from its own seed
+        int index = random.nextInt(cardinality);
+        random = new Random(seed + 1000003L * columnIndex + 31L * index);
+      }
+      else if (minLength < 0) {
+        return column + "-" + random.nextInt();
+      }
+      return column + "-" + newString(random, nextLength(random));
+    }
+
+    private int nextLength(Random random) {
+      if (minLength < 0)
+        return 11;
+      if (!exponential)
+        return minLength + random.nextInt(maxLength - minLength + 1);
+      double mean = (maxLength - minLength) / 4.0;
+      double length = minLength - mean * Math.log(1 - random.nextDouble());
+      return (int) Math.min(maxLength, length);
+    }
+
+    void fail(long row) throws PluginModelException, PluginUserException {
+      String message = "Failure injected at row " + row + ".";
+      switch (failure) {
+        case FAIL_USER:
+          throw new PluginUserException(message);
+        case FAIL_MODEL:
+          throw new PluginModelException(message);
+        default:
+          throw new DelayedFailure();
+      }
+    }
+
+    private static int parseInt(String name, String value) throws PluginUserException {
+      long number = parseLong(name, value);
+      if (number > Integer.MAX_VALUE)
+        throw new PluginUserException("The " + name + " param is too large: " + value);
+      return (int) number;
+    }
+
+    private static long parseLong(String name, String value) throws PluginUserException {
+      try {
+        long number = Long.parseLong(value.trim());
+        if (number >= 0)
+          return number;
+      }
+      catch (NumberFormatException ex) {
+        // reported below
+      }
+      throw new PluginUserException("The " + name + " param must be a number greater than, or equal to, 0: " +
+          value);
+    }
+  }
 }
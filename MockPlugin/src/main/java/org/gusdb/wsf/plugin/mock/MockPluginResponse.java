@@ -42,8 +42,9 @@ public class MockPluginResponse implements PluginResponse {
 
 
   protected void validateRow(String[] row) {
+    String[] columns = MockPlugin.getColumns(row.length);
     for (int i = 0; i < row.length; i++) {
-      String column = MockPlugin.COLUMNS[i];
+      String column = columns[i];
       Assert.assertTrue(row[i].startsWith(column + "-"));
     }
     rowCount++;
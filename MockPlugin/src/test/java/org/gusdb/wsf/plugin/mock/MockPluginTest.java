@@ -1,13 +1,18 @@
 package org.gusdb.wsf.plugin.mock;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 
 import org.gusdb.wsf.plugin.DelayedResultException;
 import org.gusdb.wsf.plugin.Plugin;
 import org.gusdb.wsf.plugin.PluginModelException;
 import org.gusdb.wsf.plugin.PluginRequest;
+import org.gusdb.wsf.plugin.PluginResponse;
 import org.gusdb.wsf.plugin.PluginUserException;
 import org.junit.Assert;
 import org.junit.Test;
@@ -44,4 +49,78 @@ public class MockPluginTest {
     Assert.assertEquals(rowCount, response.getRowCount());
     Assert.assertEquals(attachmentCount, response.getAttachmentCount());
   }
+
+  @Test
+  public void testWorkload() throws Exception {
+    PluginRequest request = createRequest(500, 2);
+    request.putParam(MockPlugin.PARAM_COLUMN_COUNT, "10");
+    request.setOrderedColumns(MockPlugin.getColumns(10));
+    request.putParam(MockPlugin.PARAM_VALUE_LENGTH, "20");
+    request.putParam(MockPlugin.PARAM_VALUE_CARDINALITY, "5");
+    request.putParam(MockPlugin.PARAM_ATTACHMENT_LENGTH, "100000");
+    request.putParam(MockPlugin.PARAM_SEED, "42");
+
+    List<String[]> rows = new ArrayList<>();
+    List<String> attachments = new ArrayList<>();
+    Assert.assertEquals(MockPlugin.SIGNAL, new MockPlugin().invoke(request, collect(rows, attachments)));
+    Assert.assertEquals(500, rows.size());
+    Assert.assertEquals(MockPlugin.ATTACHMENT_VALUE_PREFIX.length() + 100000, attachments.get(0).length());
+    for (int c = 0; c < 10; c++) {
+      Set<String> values = new HashSet<>();
+      for (String[] row : rows) {
+        Assert.assertEquals(("col" + (c + 1) + "-").length() + 20, row[c].length());
+        values.add(row[c]);
+      }
+      Assert.assertTrue(values.size() <= 5);
+    }
+
+    // the seed makes the result reproducible
+    List<String[]> again = new ArrayList<>();
+    new MockPlugin().invoke(request, collect(again, new ArrayList<>()));
+    for (int i = 0; i < rows.size(); i++) {
+      Assert.assertArrayEquals(rows.get(i), again.get(i));
+    }
+  }
+
+  @Test
+  public void testInjectedFailure() throws Exception {
+    PluginRequest request = createRequest(100, 0);
+    request.putParam(MockPlugin.PARAM_FAIL, MockPlugin.FAIL_USER);
+    request.putParam(MockPlugin.PARAM_FAIL_ROW, "25");
+    List<String[]> rows = new ArrayList<>();
+    try {
+      new MockPlugin().invoke(request, collect(rows, new ArrayList<>()));
+      Assert.fail("the failure was not injected");
+    }
+    catch (PluginUserException ex) {
+      Assert.assertEquals(25, rows.size());
+    }
+
+    request.putParam(MockPlugin.PARAM_FAIL, MockPlugin.FAIL_DELAYED);
+    try {
+      new MockPlugin().invoke(request, collect(new ArrayList<>(), new ArrayList<>()));
+      Assert.fail("the failure was not injected");
+    }
+    catch (DelayedResultException ex) {
+      // expected
+    }
+  }
+
+  private static PluginResponse collect(List<String[]> rows, List<String> attachments) {
+    return new PluginResponse() {
+
+      @Override
+      public void addRow(String[] row) {
+        rows.add(row);
+      }
+
+      @Override
+      public void addAttachment(String key, String content) {
+        attachments.add(content);
+      }
+
+      @Override
+      public void setMessage(String message) {}
+    };
+  }
 }
@@ -7,10 +7,25 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URL;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.InvalidPropertiesFormatException;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -20,10 +35,14 @@ import org.apache.log4j.Logger;
 import org.gusdb.fgputil.FormatUtil;
 import org.gusdb.fgputil.db.stream.ResultSets;
 import org.gusdb.fgputil.runtime.GusHome;
+import org.gusdb.wsf.common.WsfExecutors;
 
 /**
- * An abstract super class for all WSF plugins. This class is a SINGLETON.
- * Instance variables apply to all calls of the plugin.
+ * An abstract super class for all WSF plugins. The {@link PluginRegistry}
+ * creates and initializes an instance for every call of the plugin, unless
+ * the plugin class is annotated with {@link ThreadSafe}: then one instance is
+ * used for all the calls, and instance variables apply to all of them. The
+ * property file is checked for changes at every call either way.
  *
  * @author Jerric
  * @since Feb 9, 2006
@@ -39,6 +58,63 @@ public abstract class AbstractPlugin implements Plugin {
    */
   private static final Logger LOG = Logger.getLogger(AbstractPlugin.class);
 
+  /**
+   * How long a command has to terminate on its own after it is asked to, before
+   * it is killed.
+   */
+  private static final long DESTROY_GRACE_PERIOD_SECONDS = 5;
+
+  /**
+   * How long to wait for the output of a command to be consumed after the
+   * command has exited.
+   */
+  private static final long GOBBLER_JOIN_TIMEOUT_MILLIS = 10000;
+
+  /**
+   * The maximum number of characters of error output kept by the streaming
+   * variant of invokeCommand.
+   */
+  protected static final int MAX_STREAMING_ERROR_LENGTH = 1024 * 1024;
+
+  /**
+   * Enforces command timeouts and kills commands that ignore a termination
+   * request.
+   */
+  private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(
+      WsfExecutors.newDaemonThreadFactory("wsf-command-watchdog"));
+
+  /**
+   * Reads the output streams of the running commands. Every stream needs its
+   * own reader while the command runs, so the pool is not bounded; it uses
+   * virtual threads when the JVM supports them, and reuses idle threads
+   * otherwise.
+   */
+  private static final ExecutorService GOBBLERS = WsfExecutors.newVirtualThreadPerTaskExecutor()
+      .orElseGet(() -> Executors.newCachedThreadPool(WsfExecutors.newDaemonThreadFactory("wsf-command-gobbler")));
+
+  /**
+   * The running commands, with their command line and start time.
+   */
+  private static final Map<Process, String> ACTIVE_PROCESSES = new ConcurrentHashMap<>();
+  private static final LongAdder SPAWNED_PROCESS_COUNT = new LongAdder();
+
+  /**
+   * Parsed property files, keyed by path. A file is parsed again only when it
+   * has been modified since it was cached.
+   */
+  private static final Map<String, CachedProperties> CONFIG_CACHE = new ConcurrentHashMap<>();
+
+  private static class CachedProperties {
+
+    private final long lastModified;
+    private final Properties properties;
+
+    CachedProperties(long lastModified, Properties properties) {
+      this.lastModified = lastModified;
+      this.properties = properties;
+    }
+  }
+
   /**
    * It stores the properties defined in the configuration file. If the plugin
    * doesn't use a configuration file, this map is empty.
@@ -47,6 +123,9 @@ public abstract class AbstractPlugin implements Plugin {
 
   private String propertyFile;
 
+  // the parsed property file last copied into the properties
+  private volatile CachedProperties loadedProperties;
+
   /**
    * Initialize a plugin with empty properties
    */
@@ -83,6 +162,16 @@ public abstract class AbstractPlugin implements Plugin {
   @Override
   public int invoke(PluginRequest request, PluginResponse response) throws PluginModelException,
       PluginUserException, DelayedResultException {
+    // a shared instance picks up the edits of the property file
+    if (propertyFile != null) {
+      try {
+        loadConfiguration();
+      }
+      catch (IOException ex) {
+        LOG.error(ex);
+        throw new PluginModelException(ex);
+      }
+    }
     try {
       return execute(request, response);
     }
@@ -121,9 +210,35 @@ public abstract class AbstractPlugin implements Plugin {
     }
     LOG.debug("WSF Plugin prop file: " + filePath);
 
-    InputStream in = new FileInputStream(filePath);
-    properties.loadFromXML(in);
-    in.close();
+    long lastModified = new File(filePath).lastModified();
+    CachedProperties cached = CONFIG_CACHE.get(filePath);
+    if (cached == null || cached.lastModified != lastModified) {
+      Properties loaded = new Properties();
+      try (InputStream in = new FileInputStream(filePath)) {
+        loaded.loadFromXML(in);
+      }
+      cached = new CachedProperties(lastModified, loaded);
+      CONFIG_CACHE.put(filePath, cached);
+    }
+    if (cached != loadedProperties)
+      applyProperties(cached);
+  }
+
+  /**
+   * Copy the parsed property file into the properties, dropping the ones
+   * removed from the file since it was last applied.
+   */
+  private synchronized void applyProperties(CachedProperties cached) {
+    if (cached == loadedProperties)
+      return;
+    if (loadedProperties != null) {
+      for (Object key : loadedProperties.properties.keySet()) {
+        if (!cached.properties.containsKey(key))
+          properties.remove(key);
+      }
+    }
+    properties.putAll(cached.properties);
+    loadedProperties = cached;
   }
 
   protected String getProperty(String propertyName) {
@@ -144,7 +259,8 @@ public abstract class AbstractPlugin implements Plugin {
    *   the command array. If you have param values with spaces in it, put the
    *   value into one cell to avoid the value to be splitted.
    * @param timeout
-   *   the maximum allowed time for the command to run, in seconds
+   *   the maximum allowed time for the command to run, in seconds; it is
+   *   shortened to the time left until the deadline of the request, if any
    * @param result
    *   Contains raw output of the command.
    * @param env
@@ -160,8 +276,150 @@ public abstract class AbstractPlugin implements Plugin {
    */
   protected int invokeCommand(String[] command, StringBuffer result, long timeout, String[] env)
       throws PluginUserException, PluginModelException {
+    timeout = limitToDeadline(timeout);
+    Process process = startProcess(command, env);
+
+    // any error message?
+    StreamGobbler errorGobbler = new StreamGobbler(process.getErrorStream(), "ERROR", Integer.MAX_VALUE);
+    // any output?
+    StreamGobbler outputGobbler = new StreamGobbler(process.getInputStream(), "OUTPUT", Integer.MAX_VALUE);
+    LOG.info("kicking off the stderr and stdout stream gobblers...");
+    errorGobbler.start();
+    outputGobbler.start();
+
+    // wait for the process to exit; a timeout <= 0 means wait until it is
+    // finished. The process is killed if the request is cancelled.
+    CancellationToken token = CancellationToken.current();
+    boolean finished;
+    try (CancellationToken.Registration cancelHook = token.onCancel(() -> destroy(process))) {
+      if (timeout <= 0) {
+        process.waitFor();
+        finished = true;
+      }
+      else {
+        finished = process.waitFor(timeout, TimeUnit.SECONDS);
+      }
+    }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      LOG.warn("Interrupted, the command is cancelled: " + String.join(" ", command));
+      terminate(process, outputGobbler, errorGobbler);
+      token.throwIfCancelled();
+      throw new PluginModelException("Interrupted while waiting for the command to finish.", ex);
+    }
+
+    if (!finished) {
+      LOG.warn("Time out, the command is cancelled: " + String.join(" ", command));
+      terminate(process, outputGobbler, errorGobbler);
+      throw newTimeoutException(timeout);
+    }
+    if (token.isCancelled()) {
+      terminate(process, outputGobbler, errorGobbler);
+      token.throwIfCancelled();
+    }
+
+    // the process is stopped; wait for the gobblers to drain its output.
+    int signal = process.exitValue();
+    String output = outputGobbler.join();
+    String error = errorGobbler.join();
+    result.append((signal == 0) ? output : error);
+    return signal;
+  }
+
+  /**
+   * Run a command and convert its output into rows of the response while the
+   * command is still running, instead of buffering the whole output. The output
+   * is read on the calling thread, so the parser can add rows to the response
+   * directly, and the memory used doesn't depend on the size of the output.
+   *
+   * @param command
+   *   the command array. If you have param values with spaces in it, put the
+   *   value into one cell to avoid the value to be splitted.
+   * @param parser
+   *   converts each line of the standard output into rows of the response
+   * @param response
+   *   the response the parser adds rows to
+   * @param error
+   *   receives the error output of the command, up to
+   *   {@value #MAX_STREAMING_ERROR_LENGTH} characters
+   * @param timeout
+   *   the maximum allowed time for the command to run, in seconds; <= 0 means
+   *   no limit. It is shortened to the time left until the deadline of the
+   *   request, if any.
+   * @param env
+   *   a string including env variables, as expected by exec. Useful to pass in
+   *   a PATH
+   *
+   * @return the exit code of the invoked command
+   *
+   * @throws PluginUserException
+   *   if user input is invalid
+   * @throws PluginModelException
+   *   if something goes wrong during execution; the command is terminated if it
+   *   is still running
+   */
+  protected int invokeCommand(String[] command, CommandOutputParser parser, PluginResponse response,
+      StringBuffer error, long timeout, String[] env) throws PluginUserException, PluginModelException {
+    timeout = limitToDeadline(timeout);
+    Process process = startProcess(command, env);
+
+    StreamGobbler errorGobbler = new StreamGobbler(process.getErrorStream(), "ERROR", MAX_STREAMING_ERROR_LENGTH);
+    errorGobbler.start();
+
+    AtomicBoolean timedOut = new AtomicBoolean(false);
+    ScheduledFuture<?> watchdog = (timeout <= 0) ? null : WATCHDOG.schedule(() -> {
+      LOG.warn("Time out, the command is cancelled: " + String.join(" ", command));
+      timedOut.set(true);
+      destroy(process);
+    }, timeout, TimeUnit.SECONDS);
+
+    // the process is killed if the request is cancelled, which ends its output
+    CancellationToken token = CancellationToken.current();
+    try (CancellationToken.Registration cancelHook = token.onCancel(() -> destroy(process));
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        parser.parseLine(line, response);
+      }
+      process.waitFor();
+      if (timedOut.get())
+        throw newTimeoutException(timeout);
+      token.throwIfCancelled();
+      parser.finish(response);
+    }
+    catch (IOException ex) {
+      terminate(process, errorGobbler);
+      if (timedOut.get())
+        throw newTimeoutException(timeout);
+      token.throwIfCancelled();
+      throw new PluginModelException(ex);
+    }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      LOG.warn("Interrupted, the command is cancelled: " + String.join(" ", command));
+      terminate(process, errorGobbler);
+      token.throwIfCancelled();
+      throw new PluginModelException("Interrupted while waiting for the command to finish.", ex);
+    }
+    catch (PluginModelException | PluginUserException | RuntimeException ex) {
+      // the output cannot be consumed any more, stop the command
+      if (process.isAlive()) {
+        LOG.warn("Failed to process the output, the command is cancelled: " + String.join(" ", command));
+        terminate(process, errorGobbler);
+      }
+      throw ex;
+    }
+    finally {
+      if (watchdog != null)
+        watchdog.cancel(false);
+    }
+
+    error.append(errorGobbler.join());
+    return process.exitValue();
+  }
+
+  private static Process startProcess(String[] command, String[] env) throws PluginModelException {
     LOG.info("WsfPlugin.invokeCommand: " + FormatUtil.printArray(command));
-    // invoke the command
     Process process;
     try {
       process = Runtime.getRuntime().exec(command, env);
@@ -169,107 +427,163 @@ public abstract class AbstractPlugin implements Plugin {
     catch (IOException ex) {
       throw new PluginModelException(ex);
     }
+    SPAWNED_PROCESS_COUNT.increment();
+    ACTIVE_PROCESSES.put(process, Instant.now() + " " + String.join(" ", command));
+    process.onExit().thenRun(() -> ACTIVE_PROCESSES.remove(process));
+    return process;
+  }
 
-    StringBuffer sbErr = new StringBuffer();
-    StringBuffer sbOut = new StringBuffer();
+  /**
+   * @return the number of commands started by invokeCommand that are still
+   *   running, across all plugins.
+   */
+  public static int getActiveProcessCount() {
+    return ACTIVE_PROCESSES.size();
+  }
 
-    // any error message?
-    StreamGobbler errorGobbler = new StreamGobbler(process.getErrorStream(), "ERROR", sbErr);
-    // any output?
-    StreamGobbler outputGobbler = new StreamGobbler(process.getInputStream(), "OUTPUT", sbOut);
-    LOG.info("kicking off the stderr and stdout stream gobbling threads...");
-    errorGobbler.start();
-    outputGobbler.start();
+  /**
+   * @return the commands started by invokeCommand that are still running,
+   *   across all plugins, as "pid: start-time command-line".
+   */
+  public static List<String> getActiveProcesses() {
+    return ACTIVE_PROCESSES.entrySet().stream()
+        .map(entry -> entry.getKey().pid() + ": " + entry.getValue())
+        .sorted()
+        .collect(Collectors.toList());
+  }
 
-    long start = System.currentTimeMillis();
-    long limit = timeout * 1000;
-    // check the exit value of the process; if the process is not
-    // finished yet, an IllegalThreadStateException is thrown out
-    int signal = -1;
-    while (true) {
-      //LOG.debug("waiting for 1 second ...");
-      try {
-        Thread.sleep(1000);
-      }
-      catch (InterruptedException ex) {
-        // do nothing, keep looping
-      }
+  /**
+   * @return the number of commands started by invokeCommand since the service
+   *   started, across all plugins.
+   */
+  public static long getSpawnedProcessCount() {
+    return SPAWNED_PROCESS_COUNT.sum();
+  }
 
-      try {
-        signal = process.exitValue(); // throws IllegalThreadStateException if the process is still running.
+  /**
+   * @return the timeout of a command, in seconds, shortened to the time left
+   *   until the deadline of the current request.
+   */
+  private static long limitToDeadline(long timeout) {
+    Optional<Duration> remaining = CancellationToken.current().getRemainingTime();
+    if (!remaining.isPresent())
+      return timeout;
+    // round up, a timeout of 0 means no limit
+    long seconds = Math.max(1, (remaining.get().toMillis() + 999) / 1000);
+    return (timeout <= 0) ? seconds : Math.min(timeout, seconds);
+  }
 
-        // process is stopped.
-        result.append((signal == 0) ? sbOut : sbErr);
-        break;
-      }
-      catch (IllegalThreadStateException ex) {
-        // if the timeout is set to <= 0, keep waiting till the process
-        // is finished
-        if (timeout <= 0)
-          continue;
-
-        // otherwise, check if time's up
-        long time = System.currentTimeMillis() - start;
-        if (time > limit) {
-          // convert string array to string
-          StringBuilder buffer = new StringBuilder();
-          for (String piece : command) {
-            if (buffer.length() > 0)
-              buffer.append(" ");
-            buffer.append(piece);
-          }
-          LOG.warn("Time out, the command is cancelled: " + buffer);
-          outputGobbler.close();
-          errorGobbler.close();
-          process.destroy();
-          throw new PluginTimeoutException("Time out, " + timeout/60 + " minutes, the command is cancelled. We suggest you review the input parameters and try again.\n");
-        }
-      }
+  private static PluginTimeoutException newTimeoutException(long timeout) {
+    // the timeout may have been cut down to the few seconds left to the request
+    String duration = (timeout >= 60 && timeout % 60 == 0) ? plural(timeout / 60, "minute") : plural(timeout, "second");
+    return new PluginTimeoutException("Time out, " + duration + ", the command is cancelled. We suggest you review the input parameters and try again.\n");
+  }
+
+  private static String plural(long count, String unit) {
+    return count + " " + unit + ((count == 1) ? "" : "s");
+  }
+
+  /**
+   * Stop a process that is still running, and wait for the gobblers to finish;
+   * the output streams are closed once the process and its descendants are
+   * gone.
+   */
+  private static void terminate(Process process, StreamGobbler... gobblers) {
+    destroy(process);
+    for (StreamGobbler gobbler : gobblers) {
+      gobbler.join();
     }
-    return signal;
   }
 
-  class StreamGobbler extends Thread {
+  /**
+   * Ask a process, and the processes it started, to terminate, and kill them
+   * if they are still alive after a grace period. It doesn't wait for the
+   * processes to exit.
+   */
+  private static void destroy(Process process) {
+    // collect the descendants first, they are re-parented once the process dies
+    List<ProcessHandle> descendants = process.descendants().collect(Collectors.toList());
+    descendants.forEach(ProcessHandle::destroy);
+    process.destroy();
+    WATCHDOG.schedule(() -> {
+      if (process.isAlive())
+        LOG.warn("The command didn't terminate in " + DESTROY_GRACE_PERIOD_SECONDS + " seconds, killing it.");
+      descendants.forEach(ProcessHandle::destroyForcibly);
+      process.destroyForcibly();
+    }, DESTROY_GRACE_PERIOD_SECONDS, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Reads an output stream of a command until it is closed, so the command
+   * never blocks on a full pipe. The text is collected by the gobbler task and
+   * handed over when the gobbler is joined.
+   */
+  private static class StreamGobbler implements Callable<String> {
 
-    InputStream is;
-    String type;
-    StringBuffer sb;
+    private final InputStream is;
+    private final String type;
+    private final int maxLength;
+    private Future<String> output;
 
-    StreamGobbler(InputStream is, String type, StringBuffer sb) {
+    StreamGobbler(InputStream is, String type, int maxLength) {
       this.is = is;
       this.type = type;
-      this.sb = sb;
+      this.maxLength = maxLength;
+    }
+
+    void start() {
+      output = GOBBLERS.submit(this);
     }
 
     @Override
-    public void run() {
-      try {
-        BufferedReader br = new BufferedReader(new InputStreamReader(is));
+    public String call() {
+      StringBuilder sb = new StringBuilder();
+      try (BufferedReader br = new BufferedReader(new InputStreamReader(is))) {
         String line;
         while ((line = br.readLine()) != null) {
-          // sb.append(type + ">" + line);
-          sb.append(line + FormatUtil.NL);
+          // keep reading past the limit, so the process doesn't block on a full pipe
+          if (sb.length() < maxLength)
+            sb.append(line).append(FormatUtil.NL);
         }
       }
       catch (IOException ex) {
-        ex.printStackTrace();
+        // the stream is closed when the command is cancelled
+        LOG.debug("Stopped reading the " + type + " stream: " + ex.getMessage());
       }
-      finally {
-        try {
-          is.close();
-        }
-        catch (IOException ex) {
-          ex.printStackTrace();
-        }
+      return sb.toString();
+    }
+
+    /**
+     * Wait for the stream to be read to its end.
+     *
+     * @return the text read from the stream, or an empty string if the stream
+     *   could not be read completely.
+     */
+    String join() {
+      try {
+        return output.get(GOBBLER_JOIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+      }
+      catch (TimeoutException ex) {
+        // a child process may have inherited the stream and keep it open
+        LOG.warn("The " + type + " stream is still open after the command exited, closing it.");
+      }
+      catch (ExecutionException ex) {
+        LOG.warn("Failed to read the " + type + " stream.", ex.getCause());
+      }
+      catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
       }
+      close();
+      output.cancel(true);
+      return "";
     }
 
-    public void close() {
+    private void close() {
       try {
         is.close();
       }
       catch (IOException ex) {
-        ex.printStackTrace();
+        LOG.warn("Failed to close the " + type + " stream.", ex);
       }
     }
   }
@@ -0,0 +1,200 @@
+package org.gusdb.wsf.plugin;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.gusdb.wsf.common.WsfExecutors;
+
+/**
+ * Tells a running plugin that its request was cancelled, for example because
+ * the client disconnected or its job was cancelled. Long running plugins
+ * should check {@link #isCancelled()} between steps, or register a hook with
+ * {@link #onCancel(Runnable)} to stop a blocking operation.
+ *
+ * While a plugin is invoked by the {@link PluginExecutor}, the token of its
+ * request is also available from {@link #current()}, and cancelling it
+ * interrupts the plugin thread. {@link AbstractPlugin#invokeCommand} uses it to
+ * kill the command, and to bound the command by the deadline of the request.
+ */
+public class CancellationToken {
+
+  private static final Logger LOG = Logger.getLogger(CancellationToken.class);
+
+  private static final ThreadLocal<CancellationToken> CURRENT = new ThreadLocal<>();
+
+  private static final ScheduledExecutorService DEADLINES =
+      Executors.newSingleThreadScheduledExecutor(WsfExecutors.newDaemonThreadFactory("wsf-deadline"));
+
+  /**
+   * A registered cancellation hook; closing it removes the hook.
+   */
+  public interface Registration extends AutoCloseable {
+
+    @Override
+    void close();
+  }
+
+  /**
+   * @return the token of the request run by the current thread, or a token
+   *   that is never cancelled if there is none.
+   */
+  public static CancellationToken current() {
+    CancellationToken token = CURRENT.get();
+    return (token == null) ? new CancellationToken() : token;
+  }
+
+  private final List<Runnable> hooks = new ArrayList<>();
+  private volatile String reason;
+  private volatile boolean timedOut;
+  private volatile Instant deadline;
+
+  public boolean isCancelled() {
+    return reason != null;
+  }
+
+  /**
+   * @return true if the request was cancelled because its deadline passed
+   */
+  public boolean isTimedOut() {
+    return timedOut;
+  }
+
+  /**
+   * @return the time the request is cancelled at, if it has a deadline
+   */
+  public Optional<Instant> getDeadline() {
+    return Optional.ofNullable(deadline);
+  }
+
+  /**
+   * @return the time left until the deadline, never negative; or an empty
+   *   optional if the request has no deadline.
+   */
+  public Optional<Duration> getRemainingTime() {
+    return getDeadline().map(time -> {
+      Duration remaining = Duration.between(Instant.now(), time);
+      return remaining.isNegative() ? Duration.ZERO : remaining;
+    });
+  }
+
+  /**
+   * @return why the request was cancelled, or null if it wasn't
+   */
+  public String getReason() {
+    return reason;
+  }
+
+  /**
+   * Cancel the request, and run the registered hooks. Only the first call has
+   * an effect.
+   */
+  public void cancel(String reason) {
+    cancel(reason, false);
+  }
+
+  /**
+   * Cancel the request because it ran out of time.
+   */
+  public void timeOut(String reason) {
+    cancel(reason, true);
+  }
+
+  /**
+   * Time the request out at the given time, unless the returned registration
+   * is closed before.
+   */
+  public Registration expireAt(Instant deadline) {
+    this.deadline = deadline;
+    long delay = Duration.between(Instant.now(), deadline).toMillis();
+    ScheduledFuture<?> timer = DEADLINES.schedule(
+        () -> timeOut("The deadline " + deadline + " has passed."), Math.max(0, delay), TimeUnit.MILLISECONDS);
+    return () -> timer.cancel(false);
+  }
+
+  private void cancel(String reason, boolean timedOut) {
+    List<Runnable> toRun;
+    synchronized (hooks) {
+      if (this.reason != null)
+        return;
+      this.timedOut = timedOut;
+      this.reason = (reason == null) ? "cancelled" : reason;
+      toRun = new ArrayList<>(hooks);
+      hooks.clear();
+    }
+    LOG.info("Request cancelled: " + this.reason);
+    for (Runnable hook : toRun) {
+      runHook(hook);
+    }
+  }
+
+  /**
+   * Register a hook run when the request is cancelled; it runs right away if
+   * the request is already cancelled.
+   */
+  public Registration onCancel(Runnable hook) {
+    synchronized (hooks) {
+      if (reason == null) {
+        hooks.add(hook);
+        return () -> {
+          synchronized (hooks) {
+            hooks.remove(hook);
+          }
+        };
+      }
+    }
+    runHook(hook);
+    return () -> {};
+  }
+
+  /**
+   * @throws PluginTimeoutException
+   *   if the request timed out
+   * @throws PluginCancelledException
+   *   if the request was cancelled for another reason
+   */
+  public void throwIfCancelled() throws PluginModelException {
+    if (isCancelled())
+      throw newException(null);
+  }
+
+  /**
+   * @return the exception telling why the request was cancelled
+   */
+  PluginModelException newException(Throwable cause) {
+    return timedOut
+        ? new PluginTimeoutException("The request timed out: " + reason, cause)
+        : new PluginCancelledException("The request was cancelled: " + reason, cause);
+  }
+
+  /**
+   * Make this the token of the current thread, until the returned registration
+   * is closed.
+   */
+  Registration attach() {
+    CancellationToken previous = CURRENT.get();
+    CURRENT.set(this);
+    return () -> {
+      if (previous == null)
+        CURRENT.remove();
+      else
+        CURRENT.set(previous);
+    };
+  }
+
+  private static void runHook(Runnable hook) {
+    try {
+      hook.run();
+    }
+    catch (RuntimeException ex) {
+      LOG.warn("Cancellation hook failed.", ex);
+    }
+  }
+}
@@ -0,0 +1,21 @@
+package org.gusdb.wsf.plugin;
+
+/**
+ * Converts the output of a command into result rows, as the output is
+ * produced. A parser is called with every line of the standard output, in
+ * order, and can add any number of rows for it; records spanning several
+ * lines can be collected and added once complete.
+ */
+@FunctionalInterface
+public interface CommandOutputParser {
+
+  void parseLine(String line, PluginResponse response) throws PluginModelException, PluginUserException;
+
+  /**
+   * Called once the command has exited without timing out, after the last line,
+   * to add any record still being collected.
+   */
+  default void finish(PluginResponse response) throws PluginModelException, PluginUserException {
+    // nothing left by default
+  }
+}
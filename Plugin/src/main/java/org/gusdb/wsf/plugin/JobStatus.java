@@ -0,0 +1,156 @@
+package org.gusdb.wsf.plugin;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The status of a job, a request run by the service in the background. It is
+ * sent to the clients as JSON, and stored next to the result of the job.
+ */
+public class JobStatus {
+
+  public enum State {
+    QUEUED, RUNNING, COMPLETED, FAILED, CANCELLED;
+
+    /**
+     * @return true if the job won't change anymore.
+     */
+    public boolean isDone() {
+      return this != QUEUED && this != RUNNING;
+    }
+  }
+
+  private static final String ID_KEY = "id";
+  private static final String STATE_KEY = "state";
+  private static final String FINGERPRINT_KEY = "fingerprint";
+  private static final String SUBMITTED_KEY = "submitted";
+  private static final String STARTED_KEY = "started";
+  private static final String FINISHED_KEY = "finished";
+  private static final String MESSAGE_KEY = "message";
+
+  private String id;
+  private State state;
+  private String fingerprint;
+  private long submitted;
+  private long started;
+  private long finished;
+  private String message;
+
+  public JobStatus() {}
+
+  public JobStatus(JobStatus status) {
+    this.id = status.id;
+    this.state = status.state;
+    this.fingerprint = status.fingerprint;
+    this.submitted = status.submitted;
+    this.started = status.started;
+    this.finished = status.finished;
+    this.message = status.message;
+  }
+
+  public JobStatus(String jsonString) throws JSONException {
+    JSONObject jsStatus = new JSONObject(jsonString);
+    this.id = jsStatus.getString(ID_KEY);
+    this.state = State.valueOf(jsStatus.getString(STATE_KEY));
+    this.fingerprint = jsStatus.optString(FINGERPRINT_KEY, null);
+    this.submitted = jsStatus.getLong(SUBMITTED_KEY);
+    this.started = jsStatus.getLong(STARTED_KEY);
+    this.finished = jsStatus.getLong(FINISHED_KEY);
+    this.message = jsStatus.optString(MESSAGE_KEY, null);
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public void setId(String id) {
+    this.id = id;
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  public void setState(State state) {
+    this.state = state;
+  }
+
+  /**
+   * @return the fingerprint of the request of the job
+   */
+  public String getFingerprint() {
+    return fingerprint;
+  }
+
+  public void setFingerprint(String fingerprint) {
+    this.fingerprint = fingerprint;
+  }
+
+  /**
+   * @return the time the job was submitted, in milliseconds since the epoch
+   */
+  public long getSubmitted() {
+    return submitted;
+  }
+
+  public void setSubmitted(long submitted) {
+    this.submitted = submitted;
+  }
+
+  /**
+   * @return the time the job started running, or 0 if it hasn't yet
+   */
+  public long getStarted() {
+    return started;
+  }
+
+  public void setStarted(long started) {
+    this.started = started;
+  }
+
+  /**
+   * @return the time the job was done, or 0 if it isn't yet
+   */
+  public long getFinished() {
+    return finished;
+  }
+
+  public void setFinished(long finished) {
+    this.finished = finished;
+  }
+
+  /**
+   * @return the reason the job failed, if it did
+   */
+  public String getMessage() {
+    return message;
+  }
+
+  public void setMessage(String message) {
+    this.message = message;
+  }
+
+  public JSONObject getJSON() throws JSONException {
+    JSONObject jsStatus = new JSONObject();
+    jsStatus.put(ID_KEY, id);
+    jsStatus.put(STATE_KEY, state.name());
+    if (fingerprint != null)
+      jsStatus.put(FINGERPRINT_KEY, fingerprint);
+    jsStatus.put(SUBMITTED_KEY, submitted);
+    jsStatus.put(STARTED_KEY, started);
+    jsStatus.put(FINISHED_KEY, finished);
+    if (message != null)
+      jsStatus.put(MESSAGE_KEY, message);
+    return jsStatus;
+  }
+
+  @Override
+  public String toString() {
+    try {
+      return getJSON().toString();
+    }
+    catch (JSONException ex) {
+      throw new RuntimeException(ex);
+    }
+  }
+}
@@ -0,0 +1,22 @@
+package org.gusdb.wsf.plugin;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a plugin whose results must not be reused by the service, for example
+ * because they depend on data that changes between identical requests. The
+ * plugin is invoked for every request, even if the result cache is enabled or
+ * identical concurrent requests are coalesced.
+ */
+@Documented
+@Inherited
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface NonCacheable {
+
+}
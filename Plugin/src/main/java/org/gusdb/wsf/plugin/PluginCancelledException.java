@@ -0,0 +1,22 @@
+package org.gusdb.wsf.plugin;
+
+/**
+ * Thrown when a plugin stops because its request was cancelled, for example
+ * because the client disconnected.
+ */
+public class PluginCancelledException extends PluginModelException {
+
+  private static final long serialVersionUID = 1;
+
+  public PluginCancelledException() {
+    super();
+  }
+
+  public PluginCancelledException(String message) {
+    super(message);
+  }
+
+  public PluginCancelledException(String message, Throwable cause) {
+    super(message, cause);
+  }
+}
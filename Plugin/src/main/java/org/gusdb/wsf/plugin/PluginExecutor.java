@@ -1,9 +1,11 @@
 package org.gusdb.wsf.plugin;
 
-import java.lang.reflect.InvocationTargetException;
+import java.time.Instant;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.log4j.Logger;
 
@@ -11,32 +13,46 @@ public class PluginExecutor {
 
   private static final Logger LOG = Logger.getLogger(PluginExecutor.class);
 
+  /**
+   * Follows the phases of an execution, e.g. to time them.
+   */
+  public interface ExecutionListener {
+
+    /**
+     * Called when the plugin is loaded and the request is validated, right
+     * before the plugin is invoked. It isn't called if the request is
+     * rejected.
+     */
+    void pluginStarted();
+  }
+
+  private final PluginRegistry registry;
+  private ExecutionListener listener;
+
+  public PluginExecutor() {
+    this(PluginRegistry.getInstance());
+  }
+
+  public PluginExecutor(PluginRegistry registry) {
+    this.registry = registry;
+  }
+
+  public void setListener(ExecutionListener listener) {
+    this.listener = listener;
+  }
+
   public int execute(String pluginClassName, PluginRequest request, PluginResponse response)
       throws PluginModelException, PluginUserException, DelayedResultException {
     LOG.info("Invoking: " + pluginClassName + ", projectId: " + request.getProjectId());
     LOG.debug("request: " + request.toString());
 
-    // use reflection to load the plugin object
+    // get an initialized plugin object
     LOG.debug("Loading object " + pluginClassName);
+    Plugin plugin = registry.getPlugin(pluginClassName, request);
 
-    LOG.info("Creating plugin " + pluginClassName);
-
-    try {
-      Class<? extends Plugin> pluginClass = Class.forName(pluginClassName).asSubclass(Plugin.class);
-      Plugin plugin = pluginClass.getDeclaredConstructor().newInstance();
-
-      // initialize plugin
-      plugin.initialize(request);
-
-      // invoke the plugin
-      LOG.debug("Invoking Plugin " + pluginClassName);
-      return invokePlugin(plugin, request, response);
-    }
-    catch (ClassNotFoundException | InstantiationException | IllegalAccessException |
-        IllegalArgumentException | InvocationTargetException |
-        NoSuchMethodException | SecurityException ex) {
-      throw new PluginModelException(ex);
-    }
+    // invoke the plugin
+    LOG.debug("Invoking Plugin " + pluginClassName);
+    return invokePlugin(plugin, request, response);
   }
 
   private int invokePlugin(Plugin plugin, PluginRequest request, PluginResponse response)
@@ -55,7 +71,42 @@ public class PluginExecutor {
 
     // execute the main function, and obtain result
     LOG.debug("invoking plugin...");
-    return plugin.invoke(request, response);
+    CancellationToken token = request.getCancellationToken();
+    token.throwIfCancelled();
+
+    // don't start the requests the client has already given up on
+    Optional<Instant> deadline = request.getDeadline();
+    if (deadline.isPresent() && !Instant.now().isBefore(deadline.get()))
+      throw new PluginTimeoutException("The request expired before it was started, its deadline was " +
+          deadline.get() + ".");
+    Thread thread = Thread.currentThread();
+    AtomicBoolean running = new AtomicBoolean(true);
+    Runnable interrupt = () -> {
+      synchronized (running) {
+        if (running.get())
+          thread.interrupt();
+      }
+    };
+    try (CancellationToken.Registration attached = token.attach();
+        CancellationToken.Registration interruptHook = token.onCancel(interrupt);
+        CancellationToken.Registration timer = deadline.isPresent() ? token.expireAt(deadline.get()) : null) {
+      if (listener != null)
+        listener.pluginStarted();
+      return plugin.invoke(request, response);
+    }
+    catch (PluginModelException | PluginUserException ex) {
+      if (token.isCancelled() && !(ex instanceof PluginCancelledException || ex instanceof PluginTimeoutException))
+        throw token.newException(ex);
+      throw ex;
+    }
+    finally {
+      // the interrupt is only meant for the plugin, don't leak it to the caller
+      synchronized (running) {
+        running.set(false);
+      }
+      if (token.isCancelled())
+        Thread.interrupted();
+    }
   }
 
   private void validateRequiredParameters(Plugin plugin, PluginRequest request) throws PluginUserException {
@@ -0,0 +1,135 @@
+package org.gusdb.wsf.plugin;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Resolves plugin classes by name, so a request only pays for a map lookup.
+ * Every request gets a new, initialized instance of its plugin, but the class
+ * and constructor are resolved only once; plugins annotated with
+ * {@link ThreadSafe} are created once, and the instance is reused.
+ */
+public class PluginRegistry {
+
+  private static final Logger LOG = Logger.getLogger(PluginRegistry.class);
+
+  private static final PluginRegistry INSTANCE = new PluginRegistry();
+
+  public static PluginRegistry getInstance() {
+    return INSTANCE;
+  }
+
+  private static class PluginEntry {
+
+    private final Constructor<? extends Plugin> constructor;
+    private final boolean shared;
+    private volatile Plugin instance;
+
+    PluginEntry(Class<? extends Plugin> pluginClass) throws NoSuchMethodException {
+      this.constructor = pluginClass.getDeclaredConstructor();
+      this.shared = pluginClass.isAnnotationPresent(ThreadSafe.class);
+    }
+  }
+
+  private final ConcurrentMap<String, PluginEntry> entries = new ConcurrentHashMap<>();
+
+  private final LongAdder hitCount = new LongAdder();
+  private final LongAdder missCount = new LongAdder();
+
+  /**
+   * Get an initialized plugin to serve the given request.
+   *
+   * @param pluginClassName
+   *   the full class name of the plugin
+   * @param request
+   *   the request to be served; it is also used to initialize the plugin if a
+   *   new instance is created.
+   */
+  public Plugin getPlugin(String pluginClassName, PluginRequest request) throws PluginModelException {
+    PluginEntry entry = getEntry(pluginClassName);
+    if (!entry.shared) {
+      missCount.increment();
+      return createPlugin(pluginClassName, entry, request);
+    }
+
+    Plugin plugin = entry.instance;
+    if (plugin == null) {
+      synchronized (entry) {
+        plugin = entry.instance;
+        if (plugin == null) {
+          missCount.increment();
+          // only cache the instance once it's successfully initialized
+          plugin = createPlugin(pluginClassName, entry, request);
+          entry.instance = plugin;
+          return plugin;
+        }
+      }
+    }
+    hitCount.increment();
+    return plugin;
+  }
+
+  /**
+   * @return the plugin class of the given name, loaded and validated only once
+   */
+  public Class<? extends Plugin> getPluginClass(String pluginClassName) throws PluginModelException {
+    return getEntry(pluginClassName).constructor.getDeclaringClass();
+  }
+
+  /**
+   * @return the number of requests served by an already initialized plugin
+   */
+  public long getHitCount() {
+    return hitCount.sum();
+  }
+
+  /**
+   * @return the number of requests that needed a new plugin instance
+   */
+  public long getMissCount() {
+    return missCount.sum();
+  }
+
+  /**
+   * Drop all cached plugins; they are created again on the next request.
+   */
+  public void clear() {
+    entries.clear();
+  }
+
+  private PluginEntry getEntry(String pluginClassName) throws PluginModelException {
+    PluginEntry entry = entries.get(pluginClassName);
+    if (entry == null) {
+      try {
+        Class<? extends Plugin> pluginClass = Class.forName(pluginClassName).asSubclass(Plugin.class);
+        entry = new PluginEntry(pluginClass);
+      }
+      catch (ClassNotFoundException | ClassCastException | NoSuchMethodException | SecurityException ex) {
+        throw new PluginModelException(ex);
+      }
+      PluginEntry existing = entries.putIfAbsent(pluginClassName, entry);
+      if (existing != null)
+        entry = existing;
+    }
+    return entry;
+  }
+
+  private static Plugin createPlugin(String pluginClassName, PluginEntry entry, PluginRequest request)
+      throws PluginModelException {
+    LOG.info("Creating plugin " + pluginClassName);
+    try {
+      Plugin plugin = entry.constructor.newInstance();
+      plugin.initialize(request);
+      return plugin;
+    }
+    catch (InstantiationException | IllegalAccessException | IllegalArgumentException |
+        InvocationTargetException ex) {
+      throw new PluginModelException(ex);
+    }
+  }
+}
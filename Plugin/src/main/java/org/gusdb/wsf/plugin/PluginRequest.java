@@ -1,6 +1,10 @@
 package org.gusdb.wsf.plugin;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
+import java.time.Instant;
 import java.util.*;
 
 import org.gusdb.fgputil.json.JsonUtil;
@@ -24,6 +28,13 @@ public class PluginRequest implements WsfRequest {
   private List<String> _orderedColumns;
   private Map<String, String> _context = new HashMap<>();
 
+  // memoized, reset by any change of the request
+  private volatile String _fingerprint;
+
+  // not part of the content of the request, shared by its copies
+  private CancellationToken _cancellationToken = new CancellationToken();
+  private Instant _receivedTime = Instant.now();
+
   public PluginRequest() {
     this._params = new HashMap<>();
     this._orderedColumns = new ArrayList<>();
@@ -35,6 +46,8 @@ public class PluginRequest implements WsfRequest {
     this._params = new HashMap<>(request.getParams());
     this._orderedColumns = new ArrayList<>(Arrays.asList(request.getOrderedColumns()));
     this._context = new HashMap<>(request.getContext());
+    this._cancellationToken = request.getCancellationToken();
+    this._receivedTime = request.getReceivedTime();
   }
 
   public PluginRequest(String jsonString) throws PluginModelException {
@@ -46,13 +59,96 @@ public class PluginRequest implements WsfRequest {
     }
   }
 
+  /**
+   * @return a hash of the fingerprint, kept for the callers that still use an
+   *   int checksum.
+   *
+   * @deprecated the checksum collides easily; use {@link #getFingerprint()}.
+   */
+  @Deprecated
   public int getChecksum() {
-    String content = toString();
-    int checksum = 0;
-    for (int i = 0; i < content.length(); i++) {
-      checksum ^= content.charAt(i);
+    return getFingerprint().hashCode();
+  }
+
+  /**
+   * The fingerprint identifies the content of the request: two requests with
+   * the same project, ordered columns, params and context have the same
+   * fingerprint, regardless of the order the params and context were added.
+   * The execution timeout in the context is not part of it, since it doesn't
+   * change the result. The fingerprint is the same on the client and the
+   * service, so it can be used as a cache key, a correlation id in the logs,
+   * and to detect identical requests.
+   *
+   * @return a 128 bit hash (the first half of a SHA-256) of the canonical
+   *   request, as 32 hex digits. It is computed once, and again only after the
+   *   request is changed.
+   */
+  public String getFingerprint() {
+    String fingerprint = _fingerprint;
+    if (fingerprint == null) {
+      MessageDigest digest;
+      try {
+        digest = MessageDigest.getInstance("SHA-256");
+      }
+      catch (NoSuchAlgorithmException ex) {
+        throw new IllegalStateException(ex);
+      }
+      digestContent(digest);
+      byte[] hash = digest.digest();
+      StringBuilder buffer = new StringBuilder(32);
+      for (int i = 0; i < 16; i++) {
+        buffer.append(Character.forDigit((hash[i] >> 4) & 0xF, 16)).append(Character.forDigit(hash[i] & 0xF, 16));
+      }
+      fingerprint = buffer.toString();
+      _fingerprint = fingerprint;
+    }
+    return fingerprint;
+  }
+
+  /**
+   * Add the content of the request to the fingerprint. Subclasses holding more
+   * content have to add it too, and call {@link #resetFingerprint()} when it
+   * changes.
+   */
+  protected void digestContent(MessageDigest digest) {
+    digest(digest, _projectId);
+    digest(digest, Integer.toString(_orderedColumns.size()));
+    for (String column : _orderedColumns) {
+      digest(digest, column);
+    }
+    digest(digest, new TreeMap<>(_params));
+    Map<String, String> context = new TreeMap<>(_context);
+    context.remove(REMOTE_EXECUTE_TIMEOUT_ISO_8601_CONTEXT_KEY);
+    digest(digest, context);
+  }
+
+  protected void resetFingerprint() {
+    _fingerprint = null;
+  }
+
+  private static void digest(MessageDigest digest, Map<String, String> map) {
+    digest(digest, Integer.toString(map.size()));
+    for (Map.Entry<String, String> entry : map.entrySet()) {
+      digest(digest, entry.getKey());
+      digest(digest, entry.getValue());
+    }
+  }
+
+  /**
+   * Add a value to the fingerprint. Each value is prefixed with its length, so
+   * the encoding is unambiguous.
+   */
+  protected static void digest(MessageDigest digest, String value) {
+    if (value == null) {
+      digest.update((byte) 0);
+      return;
+    }
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    digest.update((byte) 1);
+    for (int shift = 24; shift >= 0; shift -= 8) {
+      digest.update((byte) (bytes.length >>> shift));
     }
-    return checksum;
+    digest.update(bytes);
   }
 
   protected JSONObject getJSON() throws JSONException {
@@ -134,6 +230,7 @@ public class PluginRequest implements WsfRequest {
    */
   public void setProjectId(String projectId) {
     this._projectId = projectId;
+    resetFingerprint();
   }
 
   /**
@@ -150,10 +247,12 @@ public class PluginRequest implements WsfRequest {
    */
   public void setParams(Map<String, String> params) {
     this._params = new HashMap<>(params);
+    resetFingerprint();
   }
 
   public void putParam(String name, String value) {
     this._params.put(name, value);
+    resetFingerprint();
   }
 
   /**
@@ -188,6 +287,7 @@ public class PluginRequest implements WsfRequest {
     for (String column : orderedColumns) {
       this._orderedColumns.add(column);
     }
+    resetFingerprint();
   }
 
   /**
@@ -207,11 +307,13 @@ public class PluginRequest implements WsfRequest {
    */
   public void setContext(Map<String, String> context) {
     this._context = new HashMap<>(context);
+    resetFingerprint();
   }
 
   public void appendContext(String key, String value) {
     this._context = new HashMap<>(_context);
     this._context.put(key, value);
+    resetFingerprint();
   }
 
   public void setContextTimeout(Duration value) {
@@ -224,4 +326,50 @@ public class PluginRequest implements WsfRequest {
         .filter(duration -> !duration.isZero());
   }
 
+  /**
+   * @return when the request was created or received, which the execution
+   *   timeout counts from
+   */
+  public Instant getReceivedTime() {
+    return _receivedTime;
+  }
+
+  public void setReceivedTime(Instant receivedTime) {
+    this._receivedTime = receivedTime;
+  }
+
+  /**
+   * @return the time the execution timeout of the request runs out, if it has
+   *   one. The service doesn't start the plugin of a request past its deadline,
+   *   and cancels it with a {@link PluginTimeoutException} when the deadline
+   *   passes.
+   */
+  public Optional<Instant> getDeadline() {
+    return getRemoteExecuteTimeout().map(_receivedTime::plus);
+  }
+
+  /**
+   * @return the time left until the deadline, never negative, which plugins
+   *   can use to budget their steps; or an empty optional if the request has
+   *   no deadline.
+   */
+  public Optional<Duration> getRemainingTime() {
+    return getDeadline().map(deadline -> {
+      Duration remaining = Duration.between(Instant.now(), deadline);
+      return remaining.isNegative() ? Duration.ZERO : remaining;
+    });
+  }
+
+  /**
+   * @return the token telling whether the request was cancelled. Long running
+   *   plugins should check it, see {@link CancellationToken}.
+   */
+  public CancellationToken getCancellationToken() {
+    return _cancellationToken;
+  }
+
+  public void setCancellationToken(CancellationToken cancellationToken) {
+    this._cancellationToken = cancellationToken;
+  }
+
 }
@@ -3,6 +3,11 @@ package org.gusdb.wsf.plugin;
 
 public interface PluginResponse {
 
+  /**
+   * Add a row to the response. The call blocks while the client reads the
+   * response slower than the plugin produces it, so a plugin doesn't need to
+   * throttle itself.
+   */
   void addRow(String[] row) throws PluginModelException, PluginUserException;
 
   void addAttachment(String key, String content) throws PluginModelException, PluginUserException;
@@ -0,0 +1,24 @@
+package org.gusdb.wsf.plugin;
+
+/**
+ * Thrown when the service is too busy to run a request. The request was not
+ * started, and can be sent again after the suggested delay.
+ */
+public class ServiceBusyException extends PluginModelException {
+
+  private static final long serialVersionUID = 1;
+
+  private final long retryAfterSeconds;
+
+  public ServiceBusyException(String message, long retryAfterSeconds) {
+    super(message);
+    this.retryAfterSeconds = retryAfterSeconds;
+  }
+
+  /**
+   * @return how long the client should wait before sending the request again
+   */
+  public long getRetryAfterSeconds() {
+    return retryAfterSeconds;
+  }
+}
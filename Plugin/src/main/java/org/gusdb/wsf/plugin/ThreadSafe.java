@@ -0,0 +1,25 @@
+package org.gusdb.wsf.plugin;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a plugin class whose instances can be shared by concurrent requests.
+ * The {@link PluginRegistry} creates and initializes one instance of such a
+ * plugin, with the first request, and reuses it for all the later requests;
+ * all other plugins get a new instance for every request.
+ *
+ * Only mark a plugin that keeps no per-request state in its fields, and whose
+ * initialize() doesn't depend on the request, such as its project or context.
+ */
+@Documented
+@Inherited
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface ThreadSafe {
+
+}
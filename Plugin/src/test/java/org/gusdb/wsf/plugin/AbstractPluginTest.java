@@ -0,0 +1,174 @@
+package org.gusdb.wsf.plugin;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AbstractPluginTest {
+
+  /**
+   * Exposes the commands of the base class to the tests.
+   */
+  public static class CommandPlugin extends AbstractPlugin {
+
+    @Override
+    public String[] getRequiredParameterNames() {
+      return new String[0];
+    }
+
+    @Override
+    public String[] getColumns(PluginRequest request) {
+      return new String[0];
+    }
+
+    @Override
+    public void validateParameters(PluginRequest request) {}
+
+    @Override
+    protected int execute(PluginRequest request, PluginResponse response) {
+      return 0;
+    }
+  }
+
+  /**
+   * Collects the rows added by a command parser.
+   */
+  private static class RowCollector implements PluginResponse {
+
+    private final List<String[]> rows = new ArrayList<>();
+
+    @Override
+    public void addRow(String[] row) {
+      rows.add(row);
+    }
+
+    @Override
+    public void addAttachment(String key, String content) {}
+
+    @Override
+    public void setMessage(String message) {}
+  }
+
+  private static String[] shell(String script) {
+    return new String[] { "sh", "-c", script };
+  }
+
+  /**
+   * Wait for the commands started by a test to be gone. The commands of an
+   * earlier test may still be exiting, so the count can drop below the one at
+   * the start of the test.
+   */
+  private static void assertProcessesGone(int count) throws InterruptedException {
+    long end = System.currentTimeMillis() + 15000;
+    while (AbstractPlugin.getActiveProcessCount() > count && System.currentTimeMillis() < end) {
+      Thread.sleep(50);
+    }
+    Assert.assertTrue(AbstractPlugin.getActiveProcessCount() <= count);
+  }
+
+  @Test
+  public void testCommand() throws Exception {
+    StringBuffer result = new StringBuffer();
+    int signal = new CommandPlugin().invokeCommand(shell("echo first; echo second"), result, 10);
+    Assert.assertEquals(0, signal);
+    Assert.assertTrue(result.toString().startsWith("first"));
+    Assert.assertTrue(result.toString().contains("second"));
+
+    // the error output is returned when the command fails
+    result = new StringBuffer();
+    signal = new CommandPlugin().invokeCommand(shell("echo output; echo failed >&2; exit 3"), result, 10);
+    Assert.assertEquals(3, signal);
+    Assert.assertEquals("failed", result.toString().trim());
+  }
+
+  @Test
+  public void testCommandTimeout() throws Exception {
+    int processes = AbstractPlugin.getActiveProcessCount();
+    long start = System.currentTimeMillis();
+    try {
+      new CommandPlugin().invokeCommand(shell("sleep 30"), new StringBuffer(), 1);
+      Assert.fail("The command should time out.");
+    }
+    catch (PluginTimeoutException ex) {
+      Assert.assertTrue(ex.getMessage().startsWith("Time out, 1 second,"));
+    }
+    Assert.assertTrue(System.currentTimeMillis() - start < 15000);
+    assertProcessesGone(processes);
+  }
+
+  @Test
+  public void testKillAfterGracePeriod() throws Exception {
+    int processes = AbstractPlugin.getActiveProcessCount();
+    long start = System.currentTimeMillis();
+    try {
+      // ignores the termination request, and has to be killed
+      new CommandPlugin().invokeCommand(shell("trap '' TERM; sleep 30; echo done"), new StringBuffer(), 1);
+      Assert.fail("The command should time out.");
+    }
+    catch (PluginTimeoutException ex) {
+      // expected
+    }
+    // the output is only closed once the command is killed, after the grace
+    // period
+    Assert.assertTrue(System.currentTimeMillis() - start >= 4000);
+    assertProcessesGone(processes);
+  }
+
+  @Test
+  public void testStreamingCommand() throws Exception {
+    RowCollector response = new RowCollector();
+    StringBuffer error = new StringBuffer();
+    List<String> finished = new ArrayList<>();
+    CommandOutputParser parser = new CommandOutputParser() {
+
+      @Override
+      public void parseLine(String line, PluginResponse response) throws PluginModelException,
+          PluginUserException {
+        response.addRow(line.split(","));
+      }
+
+      @Override
+      public void finish(PluginResponse response) {
+        finished.add("finished");
+      }
+    };
+    int signal = new CommandPlugin().invokeCommand(
+        shell("for i in 1 2 3 4 5; do echo \"$i,value $i\"; done; echo warning >&2"), parser, response, error,
+        10, null);
+    Assert.assertEquals(0, signal);
+    Assert.assertEquals(5, response.rows.size());
+    Assert.assertArrayEquals(new String[] { "3", "value 3" }, response.rows.get(2));
+    Assert.assertEquals(1, finished.size());
+    Assert.assertEquals("warning", error.toString().trim());
+  }
+
+  @Test
+  public void testStreamingCommandTimeout() throws Exception {
+    int processes = AbstractPlugin.getActiveProcessCount();
+    RowCollector response = new RowCollector();
+    try {
+      new CommandPlugin().invokeCommand(shell("echo 1; sleep 30; echo 2"), (line, out) -> out.addRow(
+          new String[] { line }), response, new StringBuffer(), 1, null);
+      Assert.fail("The command should time out.");
+    }
+    catch (PluginTimeoutException ex) {
+      // expected
+    }
+    // the rows produced before the timeout were passed on
+    Assert.assertEquals(1, response.rows.size());
+    assertProcessesGone(processes);
+  }
+
+  @Test
+  public void testStreamingErrorLimit() throws Exception {
+    StringBuffer error = new StringBuffer();
+    // 2M characters of error output
+    int signal = new CommandPlugin().invokeCommand(shell("yes error | head -n 400000 >&2"),
+        (line, out) -> out.addRow(new String[] { line }), new RowCollector(), error, 30, null);
+    Assert.assertEquals(0, signal);
+    Assert.assertTrue(error.length() >= AbstractPlugin.MAX_STREAMING_ERROR_LENGTH);
+    Assert.assertTrue(error.length() < AbstractPlugin.MAX_STREAMING_ERROR_LENGTH + 100);
+  }
+}
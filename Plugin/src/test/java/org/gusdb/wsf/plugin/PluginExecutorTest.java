@@ -0,0 +1,103 @@
+package org.gusdb.wsf.plugin;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PluginExecutorTest {
+
+  /**
+   * Sleeps until it is interrupted, and reports the time it had left.
+   */
+  public static class SleepingPlugin extends AbstractPlugin {
+
+    static volatile Duration remaining;
+
+    @Override
+    public String[] getRequiredParameterNames() {
+      return new String[0];
+    }
+
+    @Override
+    public String[] getColumns(PluginRequest request) {
+      return new String[0];
+    }
+
+    @Override
+    public void validateParameters(PluginRequest request) {}
+
+    @Override
+    protected int execute(PluginRequest request, PluginResponse response) throws PluginModelException {
+      remaining = request.getRemainingTime().orElse(null);
+      try {
+        Thread.sleep(60000);
+      }
+      catch (InterruptedException ex) {
+        throw new PluginModelException(ex);
+      }
+      return 0;
+    }
+  }
+
+  private static PluginRequest createRequest(Duration timeout) {
+    PluginRequest request = new PluginRequest();
+    request.setContextTimeout(timeout);
+    return request;
+  }
+
+  @Test(expected = PluginTimeoutException.class)
+  public void testExpiredRequest() throws Exception {
+    PluginRequest request = createRequest(Duration.ofSeconds(1));
+    request.setReceivedTime(Instant.now().minusSeconds(2));
+    new PluginExecutor(new PluginRegistry()).execute(SleepingPlugin.class.getName(), request, null);
+  }
+
+  @Test
+  public void testDeadline() throws Exception {
+    PluginRequest request = createRequest(Duration.ofMillis(500));
+    long start = System.currentTimeMillis();
+    try {
+      new PluginExecutor(new PluginRegistry()).execute(SleepingPlugin.class.getName(), request, null);
+      Assert.fail("The plugin should time out.");
+    }
+    catch (PluginTimeoutException ex) {
+      // expected
+    }
+    Assert.assertTrue(System.currentTimeMillis() - start < 10000);
+    Assert.assertTrue(SleepingPlugin.remaining.compareTo(Duration.ofMillis(500)) <= 0);
+    Assert.assertTrue(request.getCancellationToken().isTimedOut());
+    // the interrupt is not left to the caller
+    Assert.assertFalse(Thread.interrupted());
+  }
+
+  @Test
+  public void testListener() throws Exception {
+    AtomicInteger started = new AtomicInteger();
+    PluginExecutor executor = new PluginExecutor(new PluginRegistry());
+    executor.setListener(() -> started.incrementAndGet());
+
+    // not called for a request rejected before the plugin runs
+    PluginRequest expired = createRequest(Duration.ofSeconds(1));
+    expired.setReceivedTime(Instant.now().minusSeconds(2));
+    try {
+      executor.execute(SleepingPlugin.class.getName(), expired, null);
+      Assert.fail("The request should be expired.");
+    }
+    catch (PluginTimeoutException ex) {
+      // expected
+    }
+    Assert.assertEquals(0, started.get());
+
+    try {
+      executor.execute(SleepingPlugin.class.getName(), createRequest(Duration.ofMillis(100)), null);
+      Assert.fail("The plugin should time out.");
+    }
+    catch (PluginTimeoutException ex) {
+      // expected
+    }
+    Assert.assertEquals(1, started.get());
+  }
+}
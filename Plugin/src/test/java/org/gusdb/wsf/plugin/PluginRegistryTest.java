@@ -0,0 +1,58 @@
+package org.gusdb.wsf.plugin;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PluginRegistryTest {
+
+  public static class UnsharedPlugin extends AbstractPlugin {
+
+    @Override
+    public String[] getRequiredParameterNames() {
+      return new String[0];
+    }
+
+    @Override
+    public String[] getColumns(PluginRequest request) {
+      return new String[0];
+    }
+
+    @Override
+    public void validateParameters(PluginRequest request) {}
+
+    @Override
+    protected int execute(PluginRequest request, PluginResponse response) {
+      return 0;
+    }
+  }
+
+  @ThreadSafe
+  public static class SharedPlugin extends UnsharedPlugin {}
+
+  @Test
+  public void testSharedPlugin() throws PluginModelException {
+    PluginRegistry registry = new PluginRegistry();
+    PluginRequest request = new PluginRequest();
+    Plugin first = registry.getPlugin(SharedPlugin.class.getName(), request);
+    Plugin second = registry.getPlugin(SharedPlugin.class.getName(), request);
+    Assert.assertSame(first, second);
+    Assert.assertEquals(1, registry.getMissCount());
+    Assert.assertEquals(1, registry.getHitCount());
+  }
+
+  @Test
+  public void testUnsharedPlugin() throws PluginModelException {
+    PluginRegistry registry = new PluginRegistry();
+    PluginRequest request = new PluginRequest();
+    Plugin first = registry.getPlugin(UnsharedPlugin.class.getName(), request);
+    Plugin second = registry.getPlugin(UnsharedPlugin.class.getName(), request);
+    Assert.assertNotSame(first, second);
+    Assert.assertEquals(2, registry.getMissCount());
+    Assert.assertEquals(0, registry.getHitCount());
+  }
+
+  @Test(expected = PluginModelException.class)
+  public void testUnknownPlugin() throws PluginModelException {
+    new PluginRegistry().getPlugin("org.gusdb.wsf.plugin.NoSuchPlugin", new PluginRequest());
+  }
+}
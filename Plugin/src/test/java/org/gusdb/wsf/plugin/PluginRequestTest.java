@@ -0,0 +1,51 @@
+package org.gusdb.wsf.plugin;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PluginRequestTest {
+
+  private static PluginRequest createRequest(String... params) {
+    Map<String, String> map = new LinkedHashMap<>();
+    for (int i = 0; i < params.length; i += 2) {
+      map.put(params[i], params[i + 1]);
+    }
+    PluginRequest request = new PluginRequest();
+    request.setProjectId("MockProject");
+    request.setOrderedColumns(new String[] { "col1", "col2" });
+    request.setParams(map);
+    return request;
+  }
+
+  @Test
+  public void testFingerprint() throws PluginModelException {
+    PluginRequest request = createRequest("a", "1", "b", "2");
+    String fingerprint = request.getFingerprint();
+    Assert.assertEquals(32, fingerprint.length());
+    Assert.assertSame(fingerprint, request.getFingerprint());
+
+    // the order of the params doesn't matter, nor does the timeout
+    PluginRequest other = createRequest("b", "2", "a", "1");
+    other.setContextTimeout(Duration.ofMinutes(5));
+    Assert.assertEquals(fingerprint, other.getFingerprint());
+    Assert.assertEquals(fingerprint, new PluginRequest(request.toString()).getFingerprint());
+
+    // values are length prefixed, so moving characters between them matters
+    Assert.assertNotEquals(fingerprint, createRequest("a", "12", "b", "").getFingerprint());
+    Assert.assertNotEquals(fingerprint, createRequest("a", "1", "b", "2", "c", "").getFingerprint());
+
+    // any change resets the fingerprint
+    other.putParam("a", "3");
+    Assert.assertNotEquals(fingerprint, other.getFingerprint());
+    other.putParam("a", "1");
+    Assert.assertEquals(fingerprint, other.getFingerprint());
+    other.appendContext("user", "1");
+    Assert.assertNotEquals(fingerprint, other.getFingerprint());
+    request.setOrderedColumns(new String[] { "col2", "col1" });
+    Assert.assertNotEquals(fingerprint, request.getFingerprint());
+  }
+}
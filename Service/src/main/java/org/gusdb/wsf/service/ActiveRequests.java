@@ -0,0 +1,143 @@
+package org.gusdb.wsf.service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.gusdb.wsf.plugin.CancellationToken;
+
+/**
+ * The executions of the plugins in progress, including the background jobs,
+ * so an operator can see them and cancel one.
+ */
+public class ActiveRequests {
+
+  private static final Logger LOG = Logger.getLogger(ActiveRequests.class);
+
+  /**
+   * An execution in progress; it is removed with {@link #close()} when it is
+   * done.
+   */
+  public class ActiveRequest implements AutoCloseable {
+
+    private final long id;
+    private final ServiceRequest request;
+    private final boolean background;
+    private final Instant startTime = Instant.now();
+    private final long startNanos = System.nanoTime();
+
+    private ActiveRequest(long id, ServiceRequest request, boolean background) {
+      this.id = id;
+      this.request = request;
+      this.background = background;
+    }
+
+    /**
+     * @return the id of the execution, unique in the service
+     */
+    public long getId() {
+      return id;
+    }
+
+    public String getFingerprint() {
+      return request.getFingerprint();
+    }
+
+    public String getProjectId() {
+      return request.getProjectId();
+    }
+
+    public String getPluginClass() {
+      return request.getPluginClass();
+    }
+
+    /**
+     * @return whether it is a background job, rather than a call a client is
+     *   waiting on
+     */
+    public boolean isBackground() {
+      return background;
+    }
+
+    public Instant getStartTime() {
+      return startTime;
+    }
+
+    public Duration getElapsedTime() {
+      return Duration.ofNanos(System.nanoTime() - startNanos);
+    }
+
+    public boolean isCancelled() {
+      return request.getCancellationToken().isCancelled();
+    }
+
+    CancellationToken getCancellationToken() {
+      return request.getCancellationToken();
+    }
+
+    @Override
+    public void close() {
+      requests.remove(id);
+    }
+  }
+
+  private final AtomicLong lastId = new AtomicLong();
+  private final Map<Long, ActiveRequest> requests = new ConcurrentHashMap<>();
+
+  /**
+   * Add an execution of the request; it has to be closed when it is done.
+   */
+  ActiveRequest add(ServiceRequest request, boolean background) {
+    ActiveRequest active = new ActiveRequest(lastId.incrementAndGet(), request, background);
+    requests.put(active.getId(), active);
+    return active;
+  }
+
+  /**
+   * @return the executions in progress, the oldest first
+   */
+  public List<ActiveRequest> getRequests() {
+    List<ActiveRequest> list = new ArrayList<>(requests.values());
+    list.sort(Comparator.comparingLong(ActiveRequest::getId));
+    return list;
+  }
+
+  public int getCount() {
+    return requests.size();
+  }
+
+  /**
+   * Cancel an execution. The plugin is interrupted, and the client gets a
+   * {@link org.gusdb.wsf.plugin.PluginCancelledException}.
+   *
+   * @return false if there is no such execution in progress
+   */
+  public boolean cancel(long id, String reason) {
+    ActiveRequest active = requests.get(id);
+    if (active == null)
+      return false;
+    LOG.warn("Cancelling the request " + id + ", fingerprint=" + active.getFingerprint() + ": " + reason);
+    active.getCancellationToken().cancel(reason);
+    return true;
+  }
+
+  /**
+   * Cancel all the executions of the requests with the fingerprint.
+   *
+   * @return the number of executions cancelled
+   */
+  public int cancel(String fingerprint, String reason) {
+    int count = 0;
+    for (ActiveRequest active : getRequests()) {
+      if (active.getFingerprint().equals(fingerprint) && cancel(active.getId(), reason))
+        count++;
+    }
+    return count;
+  }
+}
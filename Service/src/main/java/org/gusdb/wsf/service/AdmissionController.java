@@ -0,0 +1,250 @@
+package org.gusdb.wsf.service;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+import org.gusdb.wsf.plugin.ServiceBusyException;
+
+/**
+ * Limits the number of plugins run at the same time, in total, per plugin
+ * class and per project. A request that finds no free slot waits in a bounded
+ * queue; it is rejected with a {@link ServiceBusyException} if the queue is
+ * full or no slot frees up in time, so an overloaded service answers quickly
+ * instead of piling up work.
+ *
+ * The total slots are shared between the projects by a
+ * {@link FairShareLimiter}, so a flood of requests from one project mostly
+ * delays that project.
+ *
+ * Background jobs wait for a slot without limit, and out of the queue of the
+ * interactive requests, so queued jobs never get an interactive request
+ * rejected.
+ */
+public class AdmissionController {
+
+  private static final Logger LOG = Logger.getLogger(AdmissionController.class);
+
+  /**
+   * A slot to run a plugin in; it must be closed when the plugin is done.
+   */
+  public interface Permit extends AutoCloseable {
+
+    @Override
+    void close();
+  }
+
+  private final WsfServiceConfig config;
+  private final FairShareLimiter slots;
+  private final int maxConcurrent;
+  private final int maxQueued;
+  private final Duration maxWait;
+  private final long retryAfterSeconds;
+
+  // empty for the plugins without their own limit
+  private final ConcurrentMap<String, Optional<Semaphore>> pluginLimits = new ConcurrentHashMap<>();
+
+  private final AtomicInteger queuedCount = new AtomicInteger();
+  private final AtomicInteger backgroundQueuedCount = new AtomicInteger();
+  private final AtomicInteger runningCount = new AtomicInteger();
+  private final LongAdder admittedCount = new LongAdder();
+  private final LongAdder rejectedCount = new LongAdder();
+  private final LongAdder totalWaitNanos = new LongAdder();
+  private final AtomicLong maxWaitNanos = new AtomicLong();
+
+  public AdmissionController(WsfServiceConfig config) {
+    this.config = config;
+    this.maxConcurrent = config.getAdmissionMaxConcurrent(null);
+    this.slots = new FairShareLimiter(maxConcurrent, config::getAdmissionProjectMaxConcurrent);
+    this.maxQueued = config.getAdmissionMaxQueued();
+    this.maxWait = config.getAdmissionMaxWait();
+    this.retryAfterSeconds = config.getAdmissionRetryAfter().getSeconds();
+  }
+
+  /**
+   * Wait for a slot to run a plugin of the given class.
+   *
+   * @param pluginClass
+   *   the class of the plugin, or null if the request couldn't be parsed
+   * @param projectId
+   *   the project of the request
+   * @param wait
+   *   the longest time to wait, shortened to the configured limit; or null to
+   *   wait until a slot is free, without being rejected, as background jobs do.
+   *
+   * @throws ServiceBusyException
+   *   if the queue is full, or the wait time is up
+   */
+  public Permit acquire(String pluginClass, String projectId, Duration wait)
+      throws ServiceBusyException, InterruptedException {
+    Semaphore pluginLimit = (pluginClass == null) ? null : pluginLimits.computeIfAbsent(pluginClass, name -> {
+      int limit = config.getAdmissionMaxConcurrent(name);
+      return (limit > 0) ? Optional.of(new Semaphore(limit, true)) : Optional.empty();
+    }).orElse(null);
+
+    // skip the queue if there is a free slot
+    if (tryAcquire(pluginLimit)) {
+      if (slots.acquire(projectId, 0))
+        return admit(pluginLimit, projectId, 0);
+      release(pluginLimit);
+    }
+
+    if (wait != null && queuedCount.get() >= maxQueued)
+      throw reject("Too many requests are waiting to run.");
+    long start = System.nanoTime();
+    long timeout = (wait == null) ? -1 : Math.min(wait.toNanos(), maxWait.toNanos());
+    AtomicInteger queue = (wait == null) ? backgroundQueuedCount : queuedCount;
+    queue.incrementAndGet();
+    try {
+      // the plugin slot is taken first, so a request doesn't hold a shared slot
+      // while waiting for its plugin.
+      if (!acquire(pluginLimit, start, timeout))
+        throw reject("No slot was free for " + pluginClass + " in time.");
+      long remaining = (timeout < 0) ? -1 : Math.max(0, timeout - (System.nanoTime() - start));
+      boolean acquired = false;
+      try {
+        acquired = slots.acquire(projectId, remaining);
+      }
+      finally {
+        if (!acquired)
+          release(pluginLimit);
+      }
+      if (!acquired)
+        throw reject("No slot was free for project " + projectId + " in time.");
+    }
+    finally {
+      queue.decrementAndGet();
+    }
+    return admit(pluginLimit, projectId, System.nanoTime() - start);
+  }
+
+  /**
+   * Reject a request before it is parsed if all the slots are taken, and the
+   * wait queue is full. The limits of a plugin class or a project are only
+   * checked by {@link #acquire(String, String, Duration)}.
+   *
+   * @return true, counting the rejection, if new requests are rejected
+   */
+  public boolean rejectIfSaturated() {
+    if (queuedCount.get() < maxQueued || maxConcurrent == 0 || runningCount.get() < maxConcurrent)
+      return false;
+    rejectedCount.increment();
+    return true;
+  }
+
+  public long getRetryAfterSeconds() {
+    return retryAfterSeconds;
+  }
+
+  /**
+   * @return the number of interactive requests waiting for a slot
+   */
+  public int getQueuedCount() {
+    return queuedCount.get();
+  }
+
+  /**
+   * @return the number of background jobs waiting for a slot
+   */
+  public int getBackgroundQueuedCount() {
+    return backgroundQueuedCount.get();
+  }
+
+  /**
+   * @return the number of plugins running with a slot
+   */
+  public int getRunningCount() {
+    return runningCount.get();
+  }
+
+  public long getAdmittedCount() {
+    return admittedCount.sum();
+  }
+
+  public long getRejectedCount() {
+    return rejectedCount.sum();
+  }
+
+  /**
+   * @return the total time the admitted requests waited for a slot
+   */
+  public Duration getTotalWaitTime() {
+    return Duration.ofNanos(totalWaitNanos.sum());
+  }
+
+  /**
+   * @return the longest time a request waited for a slot
+   */
+  public Duration getMaxWaitTime() {
+    return Duration.ofNanos(maxWaitNanos.get());
+  }
+
+  /**
+   * @return the number of running requests of each project
+   */
+  public Map<String, Integer> getProjectRunningCounts() {
+    return slots.getRunningCounts();
+  }
+
+  /**
+   * @return the number of requests of each project waiting for a shared slot
+   */
+  public Map<String, Integer> getProjectQueuedCounts() {
+    return slots.getQueuedCounts();
+  }
+
+  private Permit admit(Semaphore pluginLimit, String projectId, long waitNanos) {
+    admittedCount.increment();
+    totalWaitNanos.add(waitNanos);
+    maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+    runningCount.incrementAndGet();
+    AtomicInteger closed = new AtomicInteger();
+    return () -> {
+      if (closed.getAndIncrement() == 0) {
+        runningCount.decrementAndGet();
+        slots.release(projectId);
+        release(pluginLimit);
+      }
+    };
+  }
+
+  private ServiceBusyException reject(String message) {
+    rejectedCount.increment();
+    LOG.warn("Request rejected: " + message + " queued=" + queuedCount.get() + ", running=" + runningCount.get());
+    return new ServiceBusyException(message, retryAfterSeconds);
+  }
+
+  private static boolean tryAcquire(Semaphore semaphore) throws InterruptedException {
+    // unlike tryAcquire(), a zero timeout doesn't jump ahead of the waiting requests
+    return semaphore == null || semaphore.tryAcquire(0, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * @param timeout
+   *   the time allowed since the start, in nanoseconds; negative to wait
+   *   without limit
+   */
+  private static boolean acquire(Semaphore semaphore, long start, long timeout) throws InterruptedException {
+    if (semaphore == null)
+      return true;
+    if (timeout < 0) {
+      semaphore.acquire();
+      return true;
+    }
+    long remaining = timeout - (System.nanoTime() - start);
+    return semaphore.tryAcquire(Math.max(0, remaining), TimeUnit.NANOSECONDS);
+  }
+
+  private static void release(Semaphore semaphore) {
+    if (semaphore != null)
+      semaphore.release();
+  }
+}
@@ -0,0 +1,57 @@
+package org.gusdb.wsf.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A result in the {@link ResultCache}: the response stream of a request in the
+ * binary format, including the status, held either in memory or in a file.
+ */
+public class CachedResult {
+
+  private final String key;
+  private final byte[] data;
+  private final File file;
+  private final long size;
+  private final long expiresAt;
+
+  CachedResult(String key, byte[] data, File file, long size, long expiresAt) {
+    this.key = key;
+    this.data = data;
+    this.file = file;
+    this.size = size;
+    this.expiresAt = expiresAt;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public boolean isInMemory() {
+    return data != null;
+  }
+
+  boolean isExpired(long now) {
+    return now >= expiresAt;
+  }
+
+  /**
+   * @return the stored stream. It fails if the file was removed after the
+   *   result was evicted, in which case the request has to be run again.
+   */
+  public InputStream openStream() throws IOException {
+    return isInMemory() ? new ByteArrayInputStream(data) : new FileInputStream(file);
+  }
+
+  void delete() {
+    if (file != null)
+      file.delete();
+  }
+}
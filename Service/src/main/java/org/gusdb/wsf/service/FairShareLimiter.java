@@ -0,0 +1,202 @@
+package org.gusdb.wsf.service;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
+
+/**
+ * Shares a number of execution slots between projects. Each project can have
+ * its own limit, so a flood of requests from one project only fills its own
+ * slots (a bulkhead); and when a slot frees up, it goes to the waiting project
+ * that has the fewest running requests, in arrival order within a project, so
+ * a busy project can't starve the others.
+ */
+public class FairShareLimiter {
+
+  private static class Waiter {
+
+    private final long sequence;
+    private boolean granted;
+
+    Waiter(long sequence) {
+      this.sequence = sequence;
+    }
+  }
+
+  private static class Project {
+
+    private final int limit;
+    private final Deque<Waiter> waiters = new ArrayDeque<>();
+    private int running;
+
+    Project(int limit) {
+      this.limit = limit;
+    }
+
+    boolean isFull() {
+      return limit > 0 && running >= limit;
+    }
+  }
+
+  // a lock rather than a monitor, so waiting virtual threads don't pin their
+  // carrier threads
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+
+  // guarded by lock
+  private final Map<String, Project> projects = new HashMap<>();
+  private final int limit;
+  private final ToIntFunction<String> projectLimits;
+  private int running;
+  private long sequence;
+
+  /**
+   * @param limit
+   *   the number of slots of all the projects; zero means no limit
+   * @param projectLimits
+   *   the number of slots of a project; zero means no limit
+   */
+  public FairShareLimiter(int limit, ToIntFunction<String> projectLimits) {
+    this.limit = limit;
+    this.projectLimits = projectLimits;
+  }
+
+  /**
+   * Wait for a slot of the project.
+   *
+   * @param timeoutNanos
+   *   the longest time to wait; negative to wait without limit
+   *
+   * @return false if no slot was free in time
+   */
+  public boolean acquire(String projectId, long timeoutNanos) throws InterruptedException {
+    lock.lock();
+    try {
+      Project project = getProject(projectId);
+      Waiter waiter = new Waiter(sequence++);
+      project.waiters.addLast(waiter);
+      dispatch();
+
+      long remaining = timeoutNanos;
+      try {
+        while (!waiter.granted) {
+          if (timeoutNanos < 0) {
+            changed.await();
+          }
+          else {
+            if (remaining <= 0)
+              break;
+            remaining = changed.awaitNanos(remaining);
+          }
+        }
+      }
+      catch (InterruptedException ex) {
+        // the slot may have been granted meanwhile
+        if (waiter.granted)
+          release(projectId);
+        throw ex;
+      }
+      finally {
+        if (!waiter.granted) {
+          project.waiters.remove(waiter);
+          removeIfIdle(projectId, project);
+        }
+      }
+      return waiter.granted;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  public void release(String projectId) {
+    lock.lock();
+    try {
+      Project project = projects.get(key(projectId));
+      if (project == null || project.running == 0)
+        throw new IllegalStateException("No slot of project " + projectId + " is taken.");
+      project.running--;
+      running--;
+      removeIfIdle(projectId, project);
+      dispatch();
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of running requests of each project
+   */
+  public Map<String, Integer> getRunningCounts() {
+    lock.lock();
+    try {
+      Map<String, Integer> counts = new HashMap<>();
+      projects.forEach((id, project) -> counts.put(id, project.running));
+      return counts;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of waiting requests of each project
+   */
+  public Map<String, Integer> getQueuedCounts() {
+    lock.lock();
+    try {
+      Map<String, Integer> counts = new HashMap<>();
+      projects.forEach((id, project) -> counts.put(id, project.waiters.size()));
+      return counts;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Give the free slots to the waiting requests, starting with the projects
+   * that run the fewest requests.
+   */
+  private void dispatch() {
+    boolean granted = false;
+    while (limit <= 0 || running < limit) {
+      Project next = null;
+      for (Project project : projects.values()) {
+        if (project.waiters.isEmpty() || project.isFull())
+          continue;
+        if (next == null || project.running < next.running || (project.running == next.running &&
+            project.waiters.peekFirst().sequence < next.waiters.peekFirst().sequence))
+          next = project;
+      }
+      if (next == null)
+        break;
+      next.waiters.removeFirst().granted = true;
+      next.running++;
+      running++;
+      granted = true;
+    }
+    if (granted)
+      changed.signalAll();
+  }
+
+  private Project getProject(String projectId) {
+    return projects.computeIfAbsent(key(projectId), id -> new Project(projectLimits.applyAsInt(id)));
+  }
+
+  private void removeIfIdle(String projectId, Project project) {
+    // forget the projects without activity, so the map doesn't grow with every
+    // project id ever seen
+    if (project.running == 0 && project.waiters.isEmpty())
+      projects.remove(key(projectId), project);
+  }
+
+  private static String key(String projectId) {
+    return (projectId == null) ? "" : projectId;
+  }
+}
@@ -0,0 +1,324 @@
+package org.gusdb.wsf.service;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import org.gusdb.wsf.common.ResponseStatus;
+import org.gusdb.wsf.common.WsfExecutors;
+import org.gusdb.wsf.plugin.CancellationToken;
+import org.gusdb.wsf.plugin.JobStatus;
+import org.gusdb.wsf.plugin.JobStatus.State;
+import org.json.JSONException;
+
+/**
+ * Runs requests as jobs in the background, so long runs don't hold a
+ * connection and a container thread. Jobs run on a bounded pool with a bounded
+ * queue; the response stream of a job is stored in a file, in the binary
+ * format, with its status next to it as JSON. The stored jobs are reloaded
+ * when the service starts, and removed after the retention period.
+ */
+public class JobManager {
+
+  private static final Logger LOG = Logger.getLogger(JobManager.class);
+
+  private static final String RESULT_SUFFIX = ".bin";
+  private static final String STATUS_SUFFIX = ".json";
+
+  /**
+   * Writes the response stream of a job.
+   */
+  @FunctionalInterface
+  public interface JobTask {
+
+    /**
+     * @return the status written at the end of the stream
+     */
+    ResponseStatus run(OutputStream outStream) throws IOException;
+  }
+
+  private static class Job {
+
+    private final JobStatus status;
+    private final CancellationToken cancellationToken;
+    private Future<?> future;
+
+    Job(JobStatus status, CancellationToken cancellationToken) {
+      this.status = status;
+      this.cancellationToken = cancellationToken;
+    }
+  }
+
+  private final File dir;
+  private final long retentionMillis;
+  private final ThreadPoolExecutor executor;
+  private final ConcurrentMap<String, Job> jobs = new ConcurrentHashMap<>();
+
+  public JobManager(WsfServiceConfig config) {
+    this.dir = config.getJobDir();
+    this.retentionMillis = config.getJobRetention().toMillis();
+    int threads = config.getJobThreads();
+    this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<>(config.getJobMaxQueued()), WsfExecutors.newDaemonThreadFactory("wsf-job"));
+    this.executor.allowCoreThreadTimeOut(true);
+    loadJobs();
+  }
+
+  /**
+   * Queue a job.
+   *
+   * @return the status of the new job
+   *
+   * @throws RejectedExecutionException
+   *   if the queue is full
+   */
+  public JobStatus submit(ServiceRequest request, JobTask task) {
+    removeExpiredJobs();
+
+    JobStatus status = new JobStatus();
+    status.setId(UUID.randomUUID().toString());
+    status.setState(State.QUEUED);
+    status.setFingerprint(request.getFingerprint());
+    status.setSubmitted(System.currentTimeMillis());
+    Job job = new Job(status, request.getCancellationToken());
+
+    synchronized (job) {
+      jobs.put(status.getId(), job);
+      try {
+        job.future = executor.submit(() -> run(job, task));
+      }
+      catch (RejectedExecutionException ex) {
+        jobs.remove(status.getId());
+        throw ex;
+      }
+      LOG.info("Submitted WSF job " + status.getId() + ", fingerprint=" + status.getFingerprint());
+      return new JobStatus(status);
+    }
+  }
+
+  /**
+   * @return the status of the job, or null if there is no such job
+   */
+  public JobStatus getStatus(String jobId) {
+    Job job = jobs.get(jobId);
+    if (job == null)
+      return null;
+    synchronized (job) {
+      return new JobStatus(job.status);
+    }
+  }
+
+  /**
+   * Wait for the job to be done, up to the given time.
+   *
+   * @return the status of the job, or null if there is no such job
+   */
+  public JobStatus awaitStatus(String jobId, Duration wait) throws InterruptedException {
+    Job job = jobs.get(jobId);
+    if (job == null)
+      return null;
+    long deadline = System.currentTimeMillis() + wait.toMillis();
+    synchronized (job) {
+      long remaining;
+      while (!job.status.getState().isDone() && (remaining = deadline - System.currentTimeMillis()) > 0) {
+        job.wait(remaining);
+      }
+      return new JobStatus(job.status);
+    }
+  }
+
+  /**
+   * @return the stored response stream of a completed or failed job; it has to
+   *   be closed by the caller.
+   */
+  public InputStream openResult(String jobId) throws IOException {
+    // only known ids are turned into file names
+    if (!jobs.containsKey(jobId))
+      throw new FileNotFoundException("Unknown WSF job: " + jobId);
+    return new FileInputStream(getResultFile(jobId));
+  }
+
+  /**
+   * @return the size of the stored response stream of a job, in bytes
+   */
+  public long getResultSize(String jobId) {
+    return getResultFile(jobId).length();
+  }
+
+  /**
+   * Cancel the job if it is not done, and delete its result. The job is kept,
+   * as cancelled, until the end of the retention period.
+   *
+   * @return false if there is no such job
+   */
+  public boolean cancel(String jobId) {
+    Job job = jobs.get(jobId);
+    if (job == null)
+      return false;
+    synchronized (job) {
+      if (!job.status.getState().isDone()) {
+        job.status.setFinished(System.currentTimeMillis());
+        // stops the plugin and its child processes, even if it isn't waiting
+        job.cancellationToken.cancel("The job was cancelled.");
+        if (job.future != null)
+          job.future.cancel(true);
+        LOG.info("Cancelled WSF job " + jobId);
+      }
+      job.status.setState(State.CANCELLED);
+      saveStatus(job);
+      getResultFile(jobId).delete();
+      job.notifyAll();
+    }
+    return true;
+  }
+
+  /**
+   * Stop the threads running the jobs, interrupting the running ones.
+   */
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  public int getJobCount() {
+    return jobs.size();
+  }
+
+  public int getQueuedCount() {
+    return executor.getQueue().size();
+  }
+
+  public int getRunningCount() {
+    return executor.getActiveCount();
+  }
+
+  private void run(Job job, JobTask task) {
+    String jobId = job.status.getId();
+    synchronized (job) {
+      if (job.status.getState() != State.QUEUED)
+        return;
+      job.status.setState(State.RUNNING);
+      job.status.setStarted(System.currentTimeMillis());
+    }
+    saveStatus(job);
+
+    // write to a temporary file, so an incomplete result is never served
+    File tempFile = new File(dir, jobId + RESULT_SUFFIX + ".tmp");
+    State state;
+    String message = null;
+    try {
+      ResponseStatus responseStatus;
+      try (OutputStream outStream = new BufferedOutputStream(new FileOutputStream(tempFile), 64 * 1024)) {
+        responseStatus = task.run(outStream);
+      }
+      Files.move(tempFile.toPath(), getResultFile(jobId).toPath(), StandardCopyOption.REPLACE_EXISTING);
+      Exception exception = responseStatus.getException();
+      state = (exception == null) ? State.COMPLETED : State.FAILED;
+      if (exception != null)
+        message = exception.toString();
+    }
+    catch (IOException | RuntimeException ex) {
+      LOG.error("WSF job " + jobId + " failed.", ex);
+      tempFile.delete();
+      state = State.FAILED;
+      message = ex.toString();
+    }
+
+    synchronized (job) {
+      if (job.status.getState() == State.CANCELLED) {
+        // the result may have been stored after the job was cancelled
+        getResultFile(jobId).delete();
+        return;
+      }
+      job.status.setState(state);
+      job.status.setMessage(message);
+      job.status.setFinished(System.currentTimeMillis());
+      // saved before the waiting clients are told, so they never see a done
+      // job that isn't stored yet
+      saveStatus(job);
+      job.notifyAll();
+    }
+    LOG.info("WSF job " + jobId + " is " + state);
+  }
+
+  private void saveStatus(Job job) {
+    // written under the lock, so an older state never replaces a newer one
+    synchronized (job) {
+      try {
+        Files.write(new File(dir, job.status.getId() + STATUS_SUFFIX).toPath(),
+            job.status.toString().getBytes(StandardCharsets.UTF_8));
+      }
+      catch (IOException ex) {
+        LOG.warn("Unable to save the status of WSF job " + job.status.getId(), ex);
+      }
+    }
+  }
+
+  private void loadJobs() {
+    if (!dir.isDirectory() && !dir.mkdirs())
+      LOG.warn("Unable to create the WSF job dir " + dir);
+    File[] files = dir.listFiles((parent, name) -> name.endsWith(STATUS_SUFFIX));
+    if (files == null)
+      return;
+    for (File file : files) {
+      try {
+        JobStatus status = new JobStatus(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+        Job job = new Job(status, new CancellationToken());
+        if (!status.getState().isDone()) {
+          // interrupted by the shutdown of the service
+          status.setState(State.FAILED);
+          status.setMessage("The service was restarted while the job was running.");
+          status.setFinished(System.currentTimeMillis());
+          saveStatus(job);
+        }
+        jobs.put(status.getId(), job);
+      }
+      catch (IOException | JSONException | IllegalArgumentException ex) {
+        LOG.warn("Ignoring the invalid WSF job status " + file, ex);
+      }
+    }
+    removeExpiredJobs();
+  }
+
+  private void removeExpiredJobs() {
+    long expired = System.currentTimeMillis() - retentionMillis;
+    for (Iterator<Job> it = jobs.values().iterator(); it.hasNext();) {
+      Job job = it.next();
+      boolean remove;
+      synchronized (job) {
+        remove = job.status.getState().isDone() && job.status.getFinished() < expired;
+      }
+      if (remove) {
+        it.remove();
+        delete(job.status.getId());
+      }
+    }
+  }
+
+  private File getResultFile(String jobId) {
+    return new File(dir, jobId + RESULT_SUFFIX);
+  }
+
+  private void delete(String jobId) {
+    new File(dir, jobId + STATUS_SUFFIX).delete();
+    getResultFile(jobId).delete();
+  }
+}
@@ -0,0 +1,77 @@
+package org.gusdb.wsf.service;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Counts the bytes written to a client, and the time spent waiting for the
+ * client to take them, in the {@link StreamMetrics} of the service.
+ */
+class MeteredOutputStream extends FilterOutputStream {
+
+  private final StreamMetrics metrics;
+  private long blockedNanos;
+  private long bytesWritten;
+
+  MeteredOutputStream(OutputStream outStream, StreamMetrics metrics) {
+    super(outStream);
+    this.metrics = metrics;
+  }
+
+  /**
+   * @return the time spent in the writes to the client so far, in nanoseconds
+   */
+  long getBlockedNanos() {
+    return blockedNanos;
+  }
+
+  long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    long start = begin();
+    try {
+      out.write(b);
+    }
+    finally {
+      end(start, 1);
+    }
+  }
+
+  @Override
+  public void write(byte[] bytes, int offset, int length) throws IOException {
+    long start = begin();
+    try {
+      out.write(bytes, offset, length);
+    }
+    finally {
+      end(start, length);
+    }
+  }
+
+  @Override
+  public void flush() throws IOException {
+    long start = begin();
+    try {
+      out.flush();
+    }
+    finally {
+      end(start, 0);
+    }
+  }
+
+  private long begin() {
+    metrics.writeStarted();
+    return System.nanoTime();
+  }
+
+  private void end(long start, long bytes) {
+    long nanos = System.nanoTime() - start;
+    blockedNanos += nanos;
+    bytesWritten += bytes;
+    metrics.writeFinished(bytes, nanos);
+  }
+}
@@ -0,0 +1,309 @@
+package org.gusdb.wsf.service;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.gusdb.wsf.plugin.DelayedResultException;
+import org.gusdb.wsf.plugin.PluginCancelledException;
+import org.gusdb.wsf.plugin.PluginExecutor;
+import org.gusdb.wsf.plugin.PluginModelException;
+import org.gusdb.wsf.plugin.PluginTimeoutException;
+import org.gusdb.wsf.plugin.PluginUserException;
+import org.gusdb.wsf.plugin.ServiceBusyException;
+
+/**
+ * Counts the requests and executions of each plugin class, and times the
+ * phases of the executions. The counters are lock free, so the requests don't
+ * contend on them.
+ *
+ * The requests are counted as their responses are written, whether they come
+ * from the cache, a shared execution or a new one; the executions are the runs
+ * of the plugin, including those of the background jobs.
+ */
+public class PluginMetrics {
+
+  /**
+   * The phases of an execution.
+   */
+  public enum Phase {
+    /** waiting for a slot of the {@link AdmissionController} */
+    ADMISSION,
+    /** loading the plugin, and validating the request */
+    VALIDATION,
+    /** running the plugin, including the writes of its output */
+    RUN,
+    /** writing the remaining output and the status once the plugin is done */
+    STREAM;
+
+    public String getLabel() {
+      return name().toLowerCase();
+    }
+  }
+
+  /**
+   * The kinds of failed executions.
+   */
+  public enum ErrorType {
+    USER, MODEL, TIMEOUT, CANCELLED, BUSY, DELAYED, INTERNAL;
+
+    public String getLabel() {
+      return name().toLowerCase();
+    }
+
+    public static ErrorType of(Exception ex) {
+      if (ex instanceof ServiceBusyException)
+        return BUSY;
+      if (ex instanceof PluginTimeoutException)
+        return TIMEOUT;
+      if (ex instanceof PluginCancelledException || ex instanceof InterruptedException)
+        return CANCELLED;
+      if (ex instanceof DelayedResultException)
+        return DELAYED;
+      if (ex instanceof PluginUserException)
+        return USER;
+      if (ex instanceof PluginModelException)
+        return MODEL;
+      return INTERNAL;
+    }
+  }
+
+  /**
+   * The upper bounds of the histogram buckets, in seconds.
+   */
+  public static final double[] BUCKETS = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1,
+      2.5, 5, 10, 30, 60, 120, 300 };
+
+  // the plugin classes come from the requests; past this many, the others
+  // share one entry
+  static final int MAX_PLUGINS = 256;
+
+  static final String UNKNOWN_PLUGIN = "unknown";
+  static final String OTHER_PLUGINS = "other";
+
+  /**
+   * A histogram of durations, with the fixed {@link PluginMetrics#BUCKETS}.
+   */
+  public static class Histogram {
+
+    private static final long[] BOUNDS = new long[BUCKETS.length];
+
+    static {
+      for (int i = 0; i < BUCKETS.length; i++) {
+        BOUNDS[i] = (long) (BUCKETS[i] * TimeUnit.SECONDS.toNanos(1));
+      }
+    }
+
+    // the last one holds the durations over the largest bound
+    private final LongAdder[] counts = new LongAdder[BUCKETS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    Histogram() {
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] = new LongAdder();
+      }
+    }
+
+    void record(long nanos) {
+      int bucket = 0;
+      while (bucket < BOUNDS.length && nanos > BOUNDS[bucket]) {
+        bucket++;
+      }
+      counts[bucket].increment();
+      sumNanos.add(nanos);
+    }
+
+    /**
+     * @return the number of durations up to each bound of
+     *   {@link PluginMetrics#BUCKETS}, followed by the number of all the
+     *   durations.
+     */
+    public long[] getCumulativeCounts() {
+      long[] cumulative = new long[counts.length];
+      long total = 0;
+      for (int i = 0; i < counts.length; i++) {
+        total += counts[i].sum();
+        cumulative[i] = total;
+      }
+      return cumulative;
+    }
+
+    public long getCount() {
+      long total = 0;
+      for (LongAdder count : counts) {
+        total += count.sum();
+      }
+      return total;
+    }
+
+    public double getSumSeconds() {
+      return sumNanos.sum() / 1e9;
+    }
+  }
+
+  /**
+   * The metrics of a plugin class.
+   */
+  public static class Stats {
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder inFlight = new LongAdder();
+    private final LongAdder executions = new LongAdder();
+    private final Map<ErrorType, LongAdder> errors = new EnumMap<>(ErrorType.class);
+    private final LongAdder rows = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final Map<Phase, Histogram> phases = new EnumMap<>(Phase.class);
+    private final Histogram firstRow = new Histogram();
+
+    Stats() {
+      for (ErrorType type : ErrorType.values()) {
+        errors.put(type, new LongAdder());
+      }
+      for (Phase phase : Phase.values()) {
+        phases.put(phase, new Histogram());
+      }
+    }
+
+    void requestStarted() {
+      requests.increment();
+      inFlight.increment();
+    }
+
+    void requestFinished(long bytesWritten) {
+      inFlight.decrement();
+      bytes.add(bytesWritten);
+    }
+
+    public long getRequestCount() {
+      return requests.sum();
+    }
+
+    /**
+     * @return the number of requests whose response is being written
+     */
+    public long getInFlightCount() {
+      return inFlight.sum();
+    }
+
+    public long getExecutionCount() {
+      return executions.sum();
+    }
+
+    public long getErrorCount(ErrorType type) {
+      return errors.get(type).sum();
+    }
+
+    /**
+     * @return the number of rows returned by the executions of the plugin
+     */
+    public long getRowCount() {
+      return rows.sum();
+    }
+
+    /**
+     * @return the number of bytes sent to the clients, as compressed
+     */
+    public long getBytesWritten() {
+      return bytes.sum();
+    }
+
+    public Histogram getPhase(Phase phase) {
+      return phases.get(phase);
+    }
+
+    /**
+     * @return the time from the start of the executions to their first row
+     */
+    public Histogram getFirstRow() {
+      return firstRow;
+    }
+  }
+
+  /**
+   * Times an execution of a plugin, and records it in the metrics when it is
+   * finished. Only used by the thread running the execution, apart from the
+   * listener, called on the same thread.
+   */
+  class Execution implements PluginExecutor.ExecutionListener {
+
+    private final long start = System.nanoTime();
+    private long admitted;
+    private long pluginStarted;
+    private long pluginFinished;
+
+    void admitted() {
+      admitted = System.nanoTime();
+    }
+
+    @Override
+    public void pluginStarted() {
+      pluginStarted = System.nanoTime();
+    }
+
+    void pluginFinished() {
+      pluginFinished = System.nanoTime();
+    }
+
+    /**
+     * @param exception
+     *   the exception the execution failed with, or null
+     * @param rowCount
+     *   the number of rows returned by the plugin
+     * @param firstRowNanos
+     *   the {@link System#nanoTime()} of the first row, only used if there are
+     *   rows
+     */
+    void finish(String pluginClass, Exception exception, int rowCount, long firstRowNanos) {
+      long end = System.nanoTime();
+      Stats stats = get(pluginClass);
+      stats.executions.increment();
+      if (exception != null)
+        stats.errors.get(ErrorType.of(exception)).increment();
+      stats.rows.add(rowCount);
+      if (rowCount > 0)
+        stats.firstRow.record(firstRowNanos - start);
+
+      if (admitted == 0)
+        return;
+      stats.phases.get(Phase.ADMISSION).record(admitted - start);
+      long validated = (pluginStarted != 0) ? pluginStarted : (pluginFinished != 0) ? pluginFinished : end;
+      stats.phases.get(Phase.VALIDATION).record(validated - admitted);
+      if (pluginStarted == 0)
+        return;
+      long finished = (pluginFinished != 0) ? pluginFinished : end;
+      stats.phases.get(Phase.RUN).record(finished - pluginStarted);
+      stats.phases.get(Phase.STREAM).record(end - finished);
+    }
+  }
+
+  private final Map<String, Stats> plugins = new ConcurrentHashMap<>();
+
+  /**
+   * @return the metrics of the plugin class, created at the first call
+   */
+  public Stats get(String pluginClass) {
+    String name = (pluginClass == null || pluginClass.isEmpty()) ? UNKNOWN_PLUGIN : pluginClass;
+    Stats stats = plugins.get(name);
+    if (stats != null)
+      return stats;
+    if (plugins.size() >= MAX_PLUGINS)
+      name = OTHER_PLUGINS;
+    return plugins.computeIfAbsent(name, key -> new Stats());
+  }
+
+  /**
+   * @return the metrics of the plugin classes called so far, by class name
+   */
+  public SortedMap<String, Stats> getPlugins() {
+    return Collections.unmodifiableSortedMap(new TreeMap<>(plugins));
+  }
+
+  Execution newExecution() {
+    return new Execution();
+  }
+}
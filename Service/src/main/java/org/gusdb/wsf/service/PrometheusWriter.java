@@ -0,0 +1,174 @@
+package org.gusdb.wsf.service;
+
+import java.util.Map;
+import java.util.function.ToDoubleFunction;
+
+import org.gusdb.wsf.service.PluginMetrics.ErrorType;
+import org.gusdb.wsf.service.PluginMetrics.Histogram;
+import org.gusdb.wsf.service.PluginMetrics.Phase;
+import org.gusdb.wsf.service.PluginMetrics.Stats;
+
+/**
+ * Writes the metrics of the service in the Prometheus text format, version
+ * 0.0.4.
+ */
+class PrometheusWriter {
+
+  static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private final StringBuilder text = new StringBuilder();
+
+  /**
+   * @return the metrics of the plugins and the shared components of the
+   *   context
+   */
+  static String write(ServiceContext context) {
+    PrometheusWriter writer = new PrometheusWriter();
+    writer.writePlugins(context.getPluginMetrics());
+    writer.writeAdmission(context.getAdmissionController());
+    writer.writeStreams(context.getStreamMetrics());
+    if (context.getResultCache() != null)
+      writer.writeCache(context.getResultCache());
+    if (context.getSharedExecutions() != null)
+      writer.writeSharedExecutions(context.getSharedExecutions());
+    if (context.getJobManager() != null)
+      writer.writeJobs(context.getJobManager());
+    return writer.text.toString();
+  }
+
+  private void writePlugins(PluginMetrics metrics) {
+    Map<String, Stats> plugins = metrics.getPlugins();
+    writePluginFamily(plugins, "wsf_plugin_requests_total", "counter",
+        "Requests answered, from the cache, a shared execution or a new one.", Stats::getRequestCount);
+    writePluginFamily(plugins, "wsf_plugin_requests_in_flight", "gauge",
+        "Requests whose response is being written.", Stats::getInFlightCount);
+    writePluginFamily(plugins, "wsf_plugin_executions_total", "counter",
+        "Executions of the plugin, including the background jobs.", Stats::getExecutionCount);
+    writePluginFamily(plugins, "wsf_plugin_rows_total", "counter",
+        "Rows returned by the executions.", Stats::getRowCount);
+    writePluginFamily(plugins, "wsf_plugin_response_bytes_total", "counter",
+        "Bytes sent to the clients, as compressed.", Stats::getBytesWritten);
+
+    writeHeader("wsf_plugin_errors_total", "counter", "Failed executions, by type of error.");
+    for (Map.Entry<String, Stats> entry : plugins.entrySet()) {
+      for (ErrorType type : ErrorType.values()) {
+        writeSample("wsf_plugin_errors_total", labels(entry.getKey(), "type", type.getLabel()),
+            entry.getValue().getErrorCount(type));
+      }
+    }
+
+    writeHeader("wsf_plugin_phase_seconds", "histogram",
+        "Time spent in each phase of the executions: admission, validation, run and stream.");
+    for (Map.Entry<String, Stats> entry : plugins.entrySet()) {
+      for (Phase phase : Phase.values()) {
+        writeHistogram("wsf_plugin_phase_seconds", labels(entry.getKey(), "phase", phase.getLabel()),
+            entry.getValue().getPhase(phase));
+      }
+    }
+
+    writeHeader("wsf_plugin_first_row_seconds", "histogram",
+        "Time from the start of the executions to their first row.");
+    for (Map.Entry<String, Stats> entry : plugins.entrySet()) {
+      writeHistogram("wsf_plugin_first_row_seconds", labels(entry.getKey(), null, null),
+          entry.getValue().getFirstRow());
+    }
+  }
+
+  private void writeAdmission(AdmissionController admission) {
+    writeMetric("wsf_admission_running", "gauge", "Plugins running.", admission.getRunningCount());
+    writeMetric("wsf_admission_queued", "gauge", "Requests waiting for a slot.", admission.getQueuedCount());
+    writeMetric("wsf_admission_background_queued", "gauge", "Background jobs waiting for a slot.",
+        admission.getBackgroundQueuedCount());
+    writeMetric("wsf_admission_admitted_total", "counter", "Requests given a slot.",
+        admission.getAdmittedCount());
+    writeMetric("wsf_admission_rejected_total", "counter", "Requests rejected as the service was busy.",
+        admission.getRejectedCount());
+    writeMetric("wsf_admission_wait_seconds_total", "counter", "Time the requests waited for a slot.",
+        admission.getTotalWaitTime().toNanos() / 1e9);
+  }
+
+  private void writeStreams(StreamMetrics streams) {
+    writeMetric("wsf_stream_blocked", "gauge", "Responses waiting on a write to their client.",
+        streams.getBlockedCount());
+    writeMetric("wsf_streams_total", "counter", "Responses written.", streams.getStreamCount());
+    writeMetric("wsf_stream_bytes_total", "counter", "Bytes written to the clients.",
+        streams.getBytesWritten());
+    writeMetric("wsf_stream_blocked_seconds_total", "counter", "Time the responses spent writing to their clients.",
+        streams.getTotalBlockedTime().toNanos() / 1e9);
+  }
+
+  private void writeCache(ResultCache cache) {
+    writeMetric("wsf_cache_hits_total", "counter", "Requests answered from the result cache.",
+        cache.getHitCount());
+    writeMetric("wsf_cache_misses_total", "counter", "Requests not found in the result cache.",
+        cache.getMissCount());
+    writeMetric("wsf_cache_entries", "gauge", "Results in the cache.", cache.getSize());
+    writeMetric("wsf_cache_memory_bytes", "gauge", "Size of the results held in memory.",
+        cache.getMemoryBytes());
+    writeMetric("wsf_cache_disk_bytes", "gauge", "Size of the results spilled to disk.", cache.getDiskBytes());
+  }
+
+  private void writeSharedExecutions(SharedExecutions shared) {
+    writeMetric("wsf_shared_executions_started_total", "counter", "Executions shared by identical requests.",
+        shared.getStartedCount());
+    writeMetric("wsf_shared_executions_joined_total", "counter", "Requests that joined a running execution.",
+        shared.getJoinedCount());
+    writeMetric("wsf_shared_executions_running", "gauge", "Shared executions running.",
+        shared.getRunningCount());
+  }
+
+  private void writeJobs(JobManager jobs) {
+    writeMetric("wsf_jobs", "gauge", "Jobs held, with their results.", jobs.getJobCount());
+    writeMetric("wsf_jobs_queued", "gauge", "Jobs waiting to run.", jobs.getQueuedCount());
+    writeMetric("wsf_jobs_running", "gauge", "Jobs running.", jobs.getRunningCount());
+  }
+
+  private void writePluginFamily(Map<String, Stats> plugins, String name, String type, String help,
+      ToDoubleFunction<Stats> value) {
+    writeHeader(name, type, help);
+    for (Map.Entry<String, Stats> entry : plugins.entrySet()) {
+      writeSample(name, labels(entry.getKey(), null, null), value.applyAsDouble(entry.getValue()));
+    }
+  }
+
+  private void writeMetric(String name, String type, String help, double value) {
+    writeHeader(name, type, help);
+    writeSample(name, "", value);
+  }
+
+  private void writeHistogram(String name, String labels, Histogram histogram) {
+    long[] counts = histogram.getCumulativeCounts();
+    String prefix = labels.substring(0, labels.length() - 1) + ",le=\"";
+    for (int i = 0; i < PluginMetrics.BUCKETS.length; i++) {
+      writeSample(name + "_bucket", prefix + PluginMetrics.BUCKETS[i] + "\"}", counts[i]);
+    }
+    writeSample(name + "_bucket", prefix + "+Inf\"}", counts[counts.length - 1]);
+    writeSample(name + "_sum", labels, histogram.getSumSeconds());
+    writeSample(name + "_count", labels, counts[counts.length - 1]);
+  }
+
+  private void writeHeader(String name, String type, String help) {
+    text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+  }
+
+  private void writeSample(String name, String labels, double value) {
+    text.append(name).append(labels).append(' ');
+    if (value == Math.rint(value) && !Double.isInfinite(value))
+      text.append((long) value);
+    else
+      text.append(value);
+    text.append('\n');
+  }
+
+  private static String labels(String plugin, String name, String value) {
+    StringBuilder labels = new StringBuilder("{plugin=\"").append(escape(plugin)).append('"');
+    if (name != null)
+      labels.append(',').append(name).append("=\"").append(escape(value)).append('"');
+    return labels.append('}').toString();
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+}
@@ -0,0 +1,53 @@
+package org.gusdb.wsf.service;
+
+import java.util.Map;
+import java.util.Set;
+
+import org.gusdb.wsf.common.WsfRequest;
+import org.gusdb.wsf.plugin.NonCacheable;
+import org.gusdb.wsf.plugin.PluginModelException;
+import org.gusdb.wsf.plugin.PluginRegistry;
+
+/**
+ * Computes the key identifying the result of a request, used to cache results
+ * and to share the execution of identical requests. The key is the
+ * {@link ServiceRequest#getFingerprint() fingerprint} of the request, without
+ * the context keys that don't affect the result.
+ */
+public class RequestKey {
+
+  private RequestKey() {}
+
+  /**
+   * @return the key of the request, or null if the results of its plugin must
+   *   not be reused.
+   */
+  public static String of(ServiceRequest request, Set<String> ignoredContextKeys) {
+    if (!isShareable(request.getPluginClass()))
+      return null;
+
+    // the timeout is never part of the fingerprint
+    Map<String, String> context = request.getContext();
+    boolean ignored = false;
+    for (String key : ignoredContextKeys) {
+      if (!key.equals(WsfRequest.REMOTE_EXECUTE_TIMEOUT_ISO_8601_CONTEXT_KEY) && context.remove(key) != null)
+        ignored = true;
+    }
+    if (!ignored)
+      return request.getFingerprint();
+
+    ServiceRequest canonical = new ServiceRequest(request);
+    canonical.setContext(context);
+    return canonical.getFingerprint();
+  }
+
+  private static boolean isShareable(String pluginClass) {
+    try {
+      return !PluginRegistry.getInstance().getPluginClass(pluginClass).isAnnotationPresent(NonCacheable.class);
+    }
+    catch (PluginModelException ex) {
+      // the plugin cannot be loaded, the executor will report the error.
+      return false;
+    }
+  }
+}
@@ -0,0 +1,155 @@
+package org.gusdb.wsf.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Caches the response streams of successful requests, keyed by the
+ * {@link RequestKey} of the request. Small results are kept in memory and large
+ * ones in files; each tier is bounded in size, and the least recently used
+ * results are evicted first. Results expire after the TTL of their plugin.
+ */
+public class ResultCache {
+
+  private static final Logger LOG = Logger.getLogger(ResultCache.class);
+
+  private static final String FILE_PREFIX = "wsf-result-";
+
+  private final WsfServiceConfig config;
+  private final long maxMemoryBytes;
+  private final long maxDiskBytes;
+  private final int spillThreshold;
+  private final File cacheDir;
+
+  // in access order, the eldest entry is the least recently used.
+  private final LinkedHashMap<String, CachedResult> results = new LinkedHashMap<>(16, 0.75f, true);
+  private long memoryBytes;
+  private long diskBytes;
+
+  private final LongAdder hitCount = new LongAdder();
+  private final LongAdder missCount = new LongAdder();
+
+  public ResultCache(WsfServiceConfig config) {
+    this.config = config;
+    this.maxMemoryBytes = config.getCacheMaxMemoryBytes();
+    this.maxDiskBytes = config.getCacheMaxDiskBytes();
+    this.spillThreshold = (int) Math.min(config.getCacheSpillThresholdBytes(), maxMemoryBytes);
+    this.cacheDir = config.getCacheDir();
+    cacheDir.mkdirs();
+
+    // remove the results left by a previous run, they are no longer indexed.
+    File[] files = cacheDir.listFiles((dir, name) -> name.startsWith(FILE_PREFIX));
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    LOG.info("WSF result cache enabled in " + cacheDir);
+  }
+
+  /**
+   * @return the cached result of the key, or null if there is none, or it has
+   *   expired.
+   */
+  public CachedResult get(String key) {
+    synchronized (this) {
+      CachedResult result = results.get(key);
+      if (result != null && !result.isExpired(System.currentTimeMillis())) {
+        hitCount.increment();
+        return result;
+      }
+      if (result != null)
+        remove(key);
+    }
+    missCount.increment();
+    return null;
+  }
+
+  /**
+   * Start recording the result of a request. The caller has to either commit
+   * or discard the capture.
+   *
+   * @return the capture, or null if the results of the plugin are not cached.
+   */
+  public ResultCapture newCapture(String key, String pluginClass) {
+    Duration ttl = config.getCacheTtl(pluginClass);
+    if (ttl.isZero())
+      return null;
+    return new ResultCapture(this, key, ttl.toMillis(), spillThreshold, maxDiskBytes);
+  }
+
+  public long getHitCount() {
+    return hitCount.sum();
+  }
+
+  public long getMissCount() {
+    return missCount.sum();
+  }
+
+  public synchronized int getSize() {
+    return results.size();
+  }
+
+  public synchronized long getMemoryBytes() {
+    return memoryBytes;
+  }
+
+  public synchronized long getDiskBytes() {
+    return diskBytes;
+  }
+
+  public synchronized void clear() {
+    for (CachedResult result : results.values()) {
+      result.delete();
+    }
+    results.clear();
+    memoryBytes = 0;
+    diskBytes = 0;
+  }
+
+  synchronized void put(CachedResult result) {
+    remove(result.getKey());
+    results.put(result.getKey(), result);
+    if (result.isInMemory())
+      memoryBytes += result.getSize();
+    else
+      diskBytes += result.getSize();
+
+    // evict the least recently used results until both tiers fit.
+    long now = System.currentTimeMillis();
+    for (Iterator<CachedResult> it = results.values().iterator(); it.hasNext();) {
+      if (memoryBytes <= maxMemoryBytes && diskBytes <= maxDiskBytes)
+        break;
+      CachedResult eldest = it.next();
+      boolean overLimit = eldest.isInMemory() ? memoryBytes > maxMemoryBytes : diskBytes > maxDiskBytes;
+      if (overLimit || eldest.isExpired(now)) {
+        it.remove();
+        release(eldest);
+      }
+    }
+  }
+
+  File newFile() throws IOException {
+    return File.createTempFile(FILE_PREFIX, ".bin", cacheDir);
+  }
+
+  private void remove(String key) {
+    CachedResult result = results.remove(key);
+    if (result != null)
+      release(result);
+  }
+
+  private void release(CachedResult result) {
+    if (result.isInMemory())
+      memoryBytes -= result.getSize();
+    else
+      diskBytes -= result.getSize();
+    result.delete();
+  }
+}
@@ -0,0 +1,129 @@
+package org.gusdb.wsf.service;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Records a response stream while it is sent to the client, so it can be added
+ * to the {@link ResultCache} once the request succeeds. The stream is kept in
+ * memory up to the spill threshold, and then written to a file. Recording
+ * stops silently if the stream grows beyond the size of the cache or the file
+ * cannot be written; it never fails the response itself.
+ */
+public class ResultCapture extends OutputStream {
+
+  private static final Logger LOG = Logger.getLogger(ResultCapture.class);
+
+  private final ResultCache cache;
+  private final String key;
+  private final long ttlMillis;
+  private final int spillThreshold;
+  private final long maxSize;
+
+  private byte[] buffer = new byte[8192];
+  private int count;
+  private File file;
+  private OutputStream fileStream;
+  private long size;
+  private boolean discarded;
+
+  ResultCapture(ResultCache cache, String key, long ttlMillis, int spillThreshold, long maxSize) {
+    this.cache = cache;
+    this.key = key;
+    this.ttlMillis = ttlMillis;
+    this.spillThreshold = spillThreshold;
+    this.maxSize = maxSize;
+  }
+
+  @Override
+  public void write(int b) {
+    write(new byte[] { (byte) b }, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] bytes, int offset, int length) {
+    if (discarded)
+      return;
+    size += length;
+    if (size > maxSize) {
+      discard();
+      return;
+    }
+    try {
+      if (fileStream == null && count + length <= spillThreshold) {
+        if (count + length > buffer.length)
+          buffer = Arrays.copyOf(buffer, Math.min(spillThreshold, Math.max(count + length, buffer.length * 2)));
+        System.arraycopy(bytes, offset, buffer, count, length);
+        count += length;
+        return;
+      }
+      if (fileStream == null)
+        spill();
+      fileStream.write(bytes, offset, length);
+    }
+    catch (IOException ex) {
+      LOG.warn("Unable to store the result of " + key + " in the cache.", ex);
+      discard();
+    }
+  }
+
+  /**
+   * Add the recorded stream to the cache. It has to be called after the
+   * complete stream, including the status, is written.
+   */
+  public void commit() {
+    if (discarded)
+      return;
+    try {
+      long expiresAt = System.currentTimeMillis() + ttlMillis;
+      if (fileStream == null) {
+        cache.put(new CachedResult(key, Arrays.copyOf(buffer, count), null, size, expiresAt));
+      }
+      else {
+        fileStream.close();
+        cache.put(new CachedResult(key, null, file, size, expiresAt));
+      }
+      buffer = null;
+      fileStream = null;
+      discarded = true;
+    }
+    catch (IOException ex) {
+      LOG.warn("Unable to store the result of " + key + " in the cache.", ex);
+      discard();
+    }
+  }
+
+  /**
+   * Drop the recorded stream, for example because the request failed.
+   */
+  public void discard() {
+    if (discarded)
+      return;
+    discarded = true;
+    buffer = null;
+    if (fileStream != null) {
+      try {
+        fileStream.close();
+      }
+      catch (IOException ex) {
+        LOG.debug("Failed to close " + file, ex);
+      }
+      fileStream = null;
+    }
+    if (file != null)
+      file.delete();
+  }
+
+  private void spill() throws IOException {
+    file = cache.newFile();
+    fileStream = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+    fileStream.write(buffer, 0, count);
+    buffer = null;
+  }
+}
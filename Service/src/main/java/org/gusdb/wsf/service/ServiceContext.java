@@ -0,0 +1,139 @@
+package org.gusdb.wsf.service;
+
+import java.util.concurrent.ExecutorService;
+
+import org.apache.log4j.Logger;
+import org.gusdb.wsf.common.WsfExecutors;
+
+/**
+ * Holds the components shared by all the requests to the service. A new
+ * {@link WsfService} is created for every request, and uses the shared context
+ * by default.
+ */
+public class ServiceContext {
+
+  private static final Logger LOG = Logger.getLogger(ServiceContext.class);
+
+  private static ServiceContext instance;
+
+  /**
+   * @return the context of the service, created from the configuration at the
+   *   first call.
+   */
+  public static synchronized ServiceContext getInstance() {
+    if (instance == null)
+      instance = new ServiceContext(WsfServiceConfig.load());
+    return instance;
+  }
+
+  private final WsfServiceConfig config;
+  private final ExecutorService requestExecutor;
+  private final ResultCache resultCache;
+  private final SharedExecutions sharedExecutions;
+  private final JobManager jobManager;
+  private final AdmissionController admissionController;
+  private final StreamMetrics streamMetrics;
+  private final PluginMetrics pluginMetrics;
+  private final ActiveRequests activeRequests;
+
+  public ServiceContext(WsfServiceConfig config) {
+    this.config = config;
+    this.requestExecutor = config.isVirtualThreads() ? newVirtualThreadExecutor() : null;
+    this.resultCache = config.isCacheEnabled() ? new ResultCache(config) : null;
+    this.sharedExecutions = config.isCoalesceEnabled() ? new SharedExecutions(config, requestExecutor) : null;
+    this.jobManager = config.isJobsEnabled() ? new JobManager(config) : null;
+    this.admissionController = new AdmissionController(config);
+    this.streamMetrics = new StreamMetrics();
+    this.pluginMetrics = new PluginMetrics();
+    this.activeRequests = new ActiveRequests();
+  }
+
+  private static ExecutorService newVirtualThreadExecutor() {
+    ExecutorService executor = WsfExecutors.newVirtualThreadPerTaskExecutor().orElse(null);
+    if (executor == null)
+      LOG.warn("Virtual threads are not supported by this JVM, the requests run on the container threads.");
+    return executor;
+  }
+
+  public WsfServiceConfig getConfig() {
+    return config;
+  }
+
+  /**
+   * @return the executor the requests run on, or null if they run on the
+   *   threads of the container.
+   */
+  public ExecutorService getRequestExecutor() {
+    return requestExecutor;
+  }
+
+  /**
+   * @return the result cache, or null if it is disabled.
+   */
+  public ResultCache getResultCache() {
+    return resultCache;
+  }
+
+  /**
+   * @return the executions shared by identical requests, or null if requests
+   *   are not coalesced.
+   */
+  public SharedExecutions getSharedExecutions() {
+    return sharedExecutions;
+  }
+
+  /**
+   * @return the manager of the background jobs, or null if jobs are disabled.
+   */
+  public JobManager getJobManager() {
+    return jobManager;
+  }
+
+  /**
+   * @return the limits of the plugins run at the same time
+   */
+  public AdmissionController getAdmissionController() {
+    return admissionController;
+  }
+
+  /**
+   * @return the time the responses spent waiting on their clients
+   */
+  public StreamMetrics getStreamMetrics() {
+    return streamMetrics;
+  }
+
+  /**
+   * @return the requests and executions of each plugin
+   */
+  public PluginMetrics getPluginMetrics() {
+    return pluginMetrics;
+  }
+
+  /**
+   * @return the executions of the plugins in progress
+   */
+  public ActiveRequests getActiveRequests() {
+    return activeRequests;
+  }
+
+  /**
+   * Stop the threads of the context when the service is shut down, so they
+   * don't hold on to the classes of an undeployed service. The running jobs
+   * and shared executions are interrupted; the jobs are reported as failed by
+   * the next service.
+   */
+  public void close() {
+    if (jobManager != null)
+      jobManager.close();
+    if (sharedExecutions != null)
+      sharedExecutions.close();
+    if (requestExecutor != null)
+      requestExecutor.shutdown();
+    synchronized (ServiceContext.class) {
+      if (instance == this)
+        instance = null;
+    }
+    LOG.debug("Service context closed.");
+  }
+}
@@ -1,5 +1,7 @@
 package org.gusdb.wsf.service;
 
+import java.security.MessageDigest;
+
 import org.gusdb.wsf.plugin.PluginRequest;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -49,6 +51,13 @@ public class ServiceRequest extends PluginRequest {
    */
   public void setPluginClass(String pluginClass) {
     this.pluginClass = pluginClass;
+    resetFingerprint();
+  }
+
+  @Override
+  protected void digestContent(MessageDigest digest) {
+    digest(digest, pluginClass);
+    super.digestContent(digest);
   }
 
   @Override
@@ -0,0 +1,187 @@
+package org.gusdb.wsf.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.ws.rs.core.StreamingOutput;
+
+import org.apache.log4j.Logger;
+import org.gusdb.wsf.common.WsfExecutors;
+import org.gusdb.wsf.plugin.CancellationToken;
+
+/**
+ * Runs identical concurrent requests only once. The first request of a key
+ * starts the execution in the background, writing its response stream into a
+ * {@link SharedResultStream}; the identical requests arriving while it runs
+ * read the same stream instead of starting their own execution.
+ *
+ * The execution is not tied to the request that started it, so it completes
+ * for the other readers even if the first client disconnects; it is cancelled
+ * once all of its readers are gone.
+ */
+public class SharedExecutions {
+
+  private static final Logger LOG = Logger.getLogger(SharedExecutions.class);
+
+  private final ConcurrentMap<String, SharedResultStream> executions = new ConcurrentHashMap<>();
+  private final ExecutorService executor;
+  private final boolean ownExecutor;
+
+  private final File dir;
+  private final long memoryLimit;
+  private final long maxLag;
+
+  private final LongAdder startedCount = new LongAdder();
+  private final LongAdder joinedCount = new LongAdder();
+
+  public SharedExecutions(WsfServiceConfig config) {
+    this(config, null);
+  }
+
+  /**
+   * @param executor
+   *   runs the executions; a pool of daemon threads is created if it is null
+   */
+  public SharedExecutions(WsfServiceConfig config, ExecutorService executor) {
+    this.ownExecutor = (executor == null);
+    this.executor = (executor != null) ? executor
+        : Executors.newCachedThreadPool(WsfExecutors.newDaemonThreadFactory("wsf-shared-execution"));
+    this.dir = config.getCacheDir();
+    this.memoryLimit = config.getCoalesceMaxMemoryBytes();
+    this.maxLag = config.getCoalesceMaxLagBytes();
+  }
+
+  /**
+   * Get the response stream of the request, joining the execution of an
+   * identical request if one is running.
+   *
+   * @param key
+   *   the key of the request
+   * @param deadline
+   *   the time the reads of the stream fail with a
+   *   {@link SharedResultStream.DeadlineExceededException}, or null; it doesn't
+   *   affect the execution, which other readers may wait for
+   * @param cancellationToken
+   *   the token of the new execution, cancelled if all of its readers are
+   *   closed before it is done
+   * @param producer
+   *   writes the response stream, in the binary format, if a new execution has
+   *   to be started
+   *
+   * @return the stream of the response, which the caller has to close.
+   */
+  public InputStream open(String key, Instant deadline, CancellationToken cancellationToken,
+      StreamingOutput producer) throws IOException {
+    return open(key, deadline, Duration.ZERO, null, cancellationToken, producer);
+  }
+
+  /**
+   * Get the response stream of the request, as above, calling the listener
+   * while the stream waits for the execution.
+   *
+   * @param idleInterval
+   *   how long a read of the stream waits before it calls the listener; zero
+   *   to never call it
+   * @param idleListener
+   *   called by a read waiting for the execution, so the caller can keep its
+   *   client busy; can be null
+   */
+  public InputStream open(String key, Instant deadline, Duration idleInterval,
+      SharedResultStream.IdleListener idleListener, CancellationToken cancellationToken,
+      StreamingOutput producer) throws IOException {
+    while (true) {
+      SharedResultStream stream = executions.get(key);
+      boolean started = false;
+      if (stream == null) {
+        SharedResultStream created = new SharedResultStream(dir, memoryLimit, maxLag);
+        stream = executions.putIfAbsent(key, created);
+        if (stream == null) {
+          stream = created;
+          started = true;
+        }
+      }
+
+      // read before starting, so the content is kept until this reader is done
+      InputStream reader = stream.newReader(deadline, idleInterval, idleListener);
+      if (reader == null) {
+        // completed and released meanwhile, or too far along to be joined;
+        // identical requests start a new execution
+        executions.remove(key, stream);
+        continue;
+      }
+      if (started) {
+        startedCount.increment();
+        SharedResultStream execution = stream;
+        execution.onAbandoned(() -> {
+          // identical requests start a new execution from now on
+          executions.remove(key, execution);
+          LOG.debug("All clients of " + key + " are gone, cancelling the execution.");
+          cancellationToken.cancel("All clients disconnected.");
+        });
+        start(key, stream, producer);
+      }
+      else {
+        joinedCount.increment();
+        LOG.debug("Joined the running execution of " + key);
+      }
+      return reader;
+    }
+  }
+
+  /**
+   * Stop the threads of the executions, interrupting the running ones, unless
+   * they belong to the executor given to the constructor.
+   */
+  public void close() {
+    if (ownExecutor)
+      executor.shutdownNow();
+  }
+
+  /**
+   * @return the number of executions started
+   */
+  public long getStartedCount() {
+    return startedCount.sum();
+  }
+
+  /**
+   * @return the number of requests served by an execution started by another
+   *   request
+   */
+  public long getJoinedCount() {
+    return joinedCount.sum();
+  }
+
+  /**
+   * @return the number of executions running
+   */
+  public int getRunningCount() {
+    return executions.size();
+  }
+
+  private void start(String key, SharedResultStream stream, StreamingOutput producer) {
+    executor.execute(() -> {
+      Throwable failure = null;
+      try {
+        producer.write(stream.getOutputStream());
+      }
+      catch (IOException | RuntimeException | Error ex) {
+        LOG.error("Shared execution of " + key + " failed.", ex);
+        failure = ex;
+      }
+      finally {
+        // later requests start a new execution, or find the cached result.
+        executions.remove(key, stream);
+        stream.complete(failure);
+      }
+    });
+  }
+}
@@ -0,0 +1,500 @@
+package org.gusdb.wsf.service;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * An append-only stream written by one producer and read by any number of
+ * readers, each at its own pace. The content is kept in memory up to a limit,
+ * and then appended to a temporary file; a reader only holds its position, so
+ * a slow reader never blocks the producer or the other readers. A reader that
+ * falls further behind the producer than the lag limit is detached: its reads
+ * fail, and it no longer holds the content.
+ *
+ * The content is released once the producer is done and the last reader is
+ * closed. Readers can no longer be added after that. If the last reader is
+ * closed before the producer is done, the stream is abandoned: the content is
+ * released right away, further writes fail, and the abandon handler is run so
+ * the producer can be stopped.
+ *
+ * The file is written and read with streams rather than channels: an
+ * interrupted thread would close a channel for all of its users, and the
+ * producer is interrupted when its plugin is cancelled.
+ */
+public class SharedResultStream {
+
+  /**
+   * Thrown by a reader once its deadline has passed.
+   */
+  public static class DeadlineExceededException extends IOException {
+
+    private static final long serialVersionUID = 1;
+
+    public DeadlineExceededException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Thrown by a reader detached for falling too far behind the producer.
+   */
+  public static class LagExceededException extends IOException {
+
+    private static final long serialVersionUID = 1;
+
+    public LagExceededException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Called by a reader that has been waiting for the producer for a while.
+   */
+  public interface IdleListener {
+
+    void idle() throws IOException;
+  }
+
+  private static final Logger LOG = Logger.getLogger(SharedResultStream.class);
+
+  private static final int CHUNK_SIZE = 64 * 1024;
+
+  private final File dir;
+  private final long memoryLimit;
+  private final long maxLag;
+
+  // a lock rather than a monitor, so readers waiting on virtual threads don't
+  // pin their carrier threads
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition appended = lock.newCondition();
+
+  // guarded by lock
+  private final List<byte[]> chunks = new ArrayList<>();
+  private long memoryLength;
+  private File file;
+  private OutputStream fileStream;
+  private long flushedLength;
+  private long length;
+  private boolean complete;
+  private Throwable failure;
+  private final List<Reader> readers = new ArrayList<>();
+  private boolean released;
+  private boolean abandoned;
+  private Runnable abandonHandler;
+
+  public SharedResultStream(File dir, long memoryLimit) {
+    this(dir, memoryLimit, 0);
+  }
+
+  /**
+   * @param maxLag
+   *   how far, in bytes, a reader can fall behind the producer before it is
+   *   detached; 0 for no limit
+   */
+  public SharedResultStream(File dir, long memoryLimit, long maxLag) {
+    this.dir = dir;
+    this.memoryLimit = memoryLimit;
+    this.maxLag = maxLag;
+  }
+
+  /**
+   * @return the stream to write the content to; it must be followed by a call
+   *   to {@link #complete(Throwable)}.
+   */
+  public OutputStream getOutputStream() {
+    return new OutputStream() {
+
+      @Override
+      public void write(int b) throws IOException {
+        append(new byte[] { (byte) b }, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] bytes, int offset, int count) throws IOException {
+        append(bytes, offset, count);
+      }
+    };
+  }
+
+  /**
+   * @return a reader of the content from its beginning, or null if the content
+   *   is already released, or the stream is abandoned.
+   */
+  public InputStream newReader() {
+    return newReader(null);
+  }
+
+  /**
+   * @param deadline
+   *   the time after which the reads fail with a
+   *   {@link DeadlineExceededException}, or null
+   *
+   * @return a reader of the content from its beginning, or null if the content
+   *   is already released, the stream is abandoned, or the producer is already
+   *   further along than the lag limit.
+   */
+  public InputStream newReader(Instant deadline) {
+    return newReader(deadline, Duration.ZERO, null);
+  }
+
+  /**
+   * @param deadline
+   *   the time after which the reads fail with a
+   *   {@link DeadlineExceededException}, or null
+   * @param idleInterval
+   *   how long a read waits for the producer before it calls the listener, and
+   *   then between two calls; zero to never call it
+   * @param idleListener
+   *   called, outside of the lock of the stream, by a read waiting for the
+   *   producer; a failure of the listener fails the read. Can be null.
+   *
+   * @return a reader of the content from its beginning, or null if the content
+   *   is already released, the stream is abandoned, or the producer is already
+   *   further along than the lag limit.
+   */
+  public InputStream newReader(Instant deadline, Duration idleInterval, IdleListener idleListener) {
+    lock.lock();
+    try {
+      if (released || abandoned || (!complete && maxLag > 0 && length > maxLag))
+        return null;
+      Reader reader = new Reader(deadline, (idleListener == null) ? 0 : idleInterval.toNanos(), idleListener);
+      readers.add(reader);
+      return reader;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Mark the end of the content.
+   *
+   * @param failure
+   *   the reason the producer failed, or null if the content is complete; the
+   *   readers get an IOException after they read the partial content.
+   */
+  public void complete(Throwable failure) {
+    lock.lock();
+    try {
+      this.complete = true;
+      this.failure = failure;
+      appended.signalAll();
+      releaseIfDone();
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @param handler
+   *   run, outside of the lock of the stream, when the last reader is closed
+   *   before the content is complete.
+   */
+  public void onAbandoned(Runnable handler) {
+    lock.lock();
+    try {
+      this.abandonHandler = handler;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  public boolean isAbandoned() {
+    lock.lock();
+    try {
+      return abandoned;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  public long getLength() {
+    lock.lock();
+    try {
+      return length;
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  public int getReaderCount() {
+    lock.lock();
+    try {
+      return readers.size();
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  private void append(byte[] bytes, int offset, int count) throws IOException {
+    Runnable handler = null;
+    lock.lock();
+    try {
+      if (complete)
+        throw new IOException("The stream is already complete.");
+      if (abandoned)
+        throw new IOException("All the readers of the shared stream are closed.");
+      int remaining = count;
+      // fill the memory chunks first
+      while (remaining > 0 && memoryLength < memoryLimit && fileStream == null) {
+        int chunkOffset = (int) (memoryLength % CHUNK_SIZE);
+        if (chunkOffset == 0)
+          chunks.add(new byte[CHUNK_SIZE]);
+        int size = (int) Math.min(Math.min(remaining, CHUNK_SIZE - chunkOffset), memoryLimit - memoryLength);
+        System.arraycopy(bytes, offset, chunks.get(chunks.size() - 1), chunkOffset, size);
+        offset += size;
+        remaining -= size;
+        memoryLength += size;
+      }
+      if (remaining > 0) {
+        if (fileStream == null) {
+          dir.mkdirs();
+          file = File.createTempFile("wsf-shared-", ".bin", dir);
+          fileStream = new BufferedOutputStream(new FileOutputStream(file), CHUNK_SIZE);
+        }
+        // flushed by a reader once it gets to the buffered bytes
+        fileStream.write(bytes, offset, remaining);
+      }
+      length += count;
+      if (maxLag > 0)
+        handler = detachLaggingReaders();
+      appended.signalAll();
+    }
+    finally {
+      lock.unlock();
+    }
+    if (handler != null)
+      handler.run();
+  }
+
+  /**
+   * Detach the readers further behind than the lag limit; called under the
+   * lock.
+   *
+   * @return the abandon handler to run if no reader is left
+   */
+  private Runnable detachLaggingReaders() {
+    Runnable handler = null;
+    for (Reader reader : new ArrayList<>(readers)) {
+      if (length - reader.position > maxLag) {
+        LOG.warn("A reader of a shared result is more than " + maxLag + " bytes behind, detaching it.");
+        reader.detached = true;
+        Runnable readerHandler = removeReader(reader);
+        if (readerHandler != null)
+          handler = readerHandler;
+      }
+    }
+    return handler;
+  }
+
+  private void closeReader(Reader reader) {
+    Runnable handler;
+    lock.lock();
+    try {
+      handler = removeReader(reader);
+    }
+    finally {
+      lock.unlock();
+    }
+    if (handler != null)
+      handler.run();
+  }
+
+  /**
+   * Remove a reader, called under the lock.
+   *
+   * @return the abandon handler to run if it was the last reader before the
+   *   content is complete
+   */
+  private Runnable removeReader(Reader reader) {
+    Runnable handler = null;
+    readers.remove(reader);
+    if (readers.isEmpty() && !complete && !abandoned) {
+      abandoned = true;
+      handler = abandonHandler;
+    }
+    releaseIfDone();
+    return handler;
+  }
+
+  private void releaseIfDone() {
+    if ((!complete && !abandoned) || !readers.isEmpty() || released)
+      return;
+    released = true;
+    chunks.clear();
+    if (fileStream != null) {
+      try {
+        fileStream.close();
+      }
+      catch (IOException ex) {
+        LOG.debug("Failed to close " + file, ex);
+      }
+      file.delete();
+    }
+  }
+
+  private class Reader extends InputStream {
+
+    private final Instant deadline;
+    private final long idleNanos;
+    private final IdleListener idleListener;
+    // only written by the thread of the reader; read by the producer to check
+    // the lag
+    private volatile long position;
+    private boolean closed;
+    // guarded by lock
+    private boolean detached;
+
+    // opened at the first read past the memory, closed with the reader; the
+    // file is only deleted once all the readers are closed
+    private RandomAccessFile fileReader;
+
+    Reader(Instant deadline, long idleNanos, IdleListener idleListener) {
+      this.deadline = deadline;
+      this.idleNanos = idleNanos;
+      this.idleListener = idleListener;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int count) throws IOException {
+      if (count == 0)
+        return 0;
+      long filePosition;
+      lock.lock();
+      try {
+        if (closed)
+          throw new IOException("The reader is closed.");
+        checkDetached();
+        checkDeadline();
+        long idleStart = System.nanoTime();
+        while (position >= length && !complete) {
+          long waitNanos = Long.MAX_VALUE;
+          if (deadline != null)
+            waitNanos = Math.max(1, TimeUnit.MILLISECONDS.toNanos(
+                deadline.toEpochMilli() - System.currentTimeMillis()));
+          if (idleNanos > 0)
+            waitNanos = Math.min(waitNanos, Math.max(1, idleNanos - (System.nanoTime() - idleStart)));
+          try {
+            if (waitNanos == Long.MAX_VALUE)
+              appended.await();
+            else
+              appended.awaitNanos(waitNanos);
+          }
+          catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the shared result.");
+          }
+          checkDetached();
+          checkDeadline();
+          if (idleNanos > 0 && position >= length && !complete && System.nanoTime() - idleStart >= idleNanos) {
+            // the producer can append meanwhile
+            lock.unlock();
+            try {
+              idleListener.idle();
+            }
+            finally {
+              lock.lock();
+            }
+            if (closed)
+              throw new IOException("The reader is closed.");
+            idleStart = System.nanoTime();
+          }
+        }
+        if (position >= length) {
+          if (failure != null)
+            throw new IOException("The shared execution failed.", failure);
+          return -1;
+        }
+        if (position < memoryLength) {
+          int chunkOffset = (int) (position % CHUNK_SIZE);
+          int size = (int) Math.min(Math.min(count, CHUNK_SIZE - chunkOffset), memoryLength - position);
+          System.arraycopy(chunks.get((int) (position / CHUNK_SIZE)), chunkOffset, bytes, offset, size);
+          position += size;
+          return size;
+        }
+        count = (int) Math.min(count, length - position);
+        filePosition = position - memoryLength;
+        if (filePosition + count > flushedLength) {
+          fileStream.flush();
+          flushedLength = length - memoryLength;
+        }
+        if (fileReader == null)
+          fileReader = new RandomAccessFile(file, "r");
+      }
+      finally {
+        lock.unlock();
+      }
+      // the file stays while this reader is open, and the reads of its own
+      // file handle don't need the lock.
+      fileReader.seek(filePosition);
+      int size = fileReader.read(bytes, offset, count);
+      if (size < 0)
+        throw new IOException("The shared result file is shorter than expected.");
+      position += size;
+      return size;
+    }
+
+    @Override
+    public void close() {
+      boolean wasDetached;
+      lock.lock();
+      try {
+        if (closed)
+          return;
+        closed = true;
+        wasDetached = detached;
+      }
+      finally {
+        lock.unlock();
+      }
+      if (fileReader != null) {
+        try {
+          fileReader.close();
+        }
+        catch (IOException ex) {
+          LOG.debug("Failed to close the reader of " + file, ex);
+        }
+      }
+      // a detached reader no longer counts
+      if (!wasDetached)
+        closeReader(this);
+    }
+
+    private void checkDetached() throws LagExceededException {
+      if (detached)
+        throw new LagExceededException("The client read the shared result too slowly, it fell more than " +
+            maxLag + " bytes behind.");
+    }
+
+    private void checkDeadline() throws DeadlineExceededException {
+      if (deadline != null && !Instant.now().isBefore(deadline))
+        throw new DeadlineExceededException("The response was not complete by " + deadline + ".");
+    }
+  }
+}
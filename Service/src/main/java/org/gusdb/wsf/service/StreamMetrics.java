@@ -0,0 +1,75 @@
+package org.gusdb.wsf.service;
+
+import java.io.OutputStream;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how much the responses are held back by their clients. The writes
+ * to a client block once its socket buffer is full, and the plugin behind it
+ * waits; the time spent in these writes is the time the service was slowed
+ * down by a slow client, or a slow response listener behind it.
+ */
+public class StreamMetrics {
+
+  private final AtomicInteger blockedCount = new AtomicInteger();
+  private final LongAdder streamCount = new LongAdder();
+  private final LongAdder bytesWritten = new LongAdder();
+  private final LongAdder totalBlockedNanos = new LongAdder();
+  private final AtomicLong maxBlockedNanos = new AtomicLong();
+
+  /**
+   * @return a stream writing to the client stream, and counting the time
+   *   spent waiting on it in these metrics.
+   */
+  MeteredOutputStream newStream(OutputStream outStream) {
+    streamCount.increment();
+    return new MeteredOutputStream(outStream, this);
+  }
+
+  void writeStarted() {
+    blockedCount.incrementAndGet();
+  }
+
+  void writeFinished(long bytes, long nanos) {
+    blockedCount.decrementAndGet();
+    bytesWritten.add(bytes);
+    totalBlockedNanos.add(nanos);
+  }
+
+  void streamFinished(MeteredOutputStream stream) {
+    maxBlockedNanos.accumulateAndGet(stream.getBlockedNanos(), Math::max);
+  }
+
+  /**
+   * @return the number of responses currently waiting on a write to their
+   *   client
+   */
+  public int getBlockedCount() {
+    return blockedCount.get();
+  }
+
+  public long getStreamCount() {
+    return streamCount.sum();
+  }
+
+  public long getBytesWritten() {
+    return bytesWritten.sum();
+  }
+
+  /**
+   * @return the total time the responses spent writing to their clients
+   */
+  public Duration getTotalBlockedTime() {
+    return Duration.ofNanos(totalBlockedNanos.sum());
+  }
+
+  /**
+   * @return the longest time a single response spent writing to its client
+   */
+  public Duration getMaxBlockedTime() {
+    return Duration.ofNanos(maxBlockedNanos.get());
+  }
+}
@@ -1,23 +1,79 @@
 package org.gusdb.wsf.service;
 
 import java.io.IOException;
-import java.io.ObjectOutputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
-import org.gusdb.wsf.common.ResponseAttachment;
-import org.gusdb.wsf.common.ResponseMessage;
-import org.gusdb.wsf.common.ResponseRow;
+import org.apache.log4j.Logger;
+import org.gusdb.wsf.common.ResponseEncoder;
+import org.gusdb.wsf.common.WsfExecutors;
+import org.gusdb.wsf.plugin.CancellationToken;
 import org.gusdb.wsf.plugin.PluginModelException;
 import org.gusdb.wsf.plugin.PluginResponse;
 
+/**
+ * Writes the plugin output to the response stream. Rows are collected into
+ * batches bounded by row count and (approximate) byte size, and each batch is
+ * written as a unit; pending rows are written before any attachment, message
+ * or the final status, so the order of the plugin output is preserved.
+ *
+ * A failed write means the client is gone, and cancels the request. While the
+ * plugin is quiet, heartbeats are written so a disconnect is noticed without
+ * waiting for the next output. The timer of the heartbeats is shared by all the
+ * responses, so it never waits on one: it skips the beat of a response being
+ * written, and leaves the writes of the heartbeats, which block on a stalled
+ * client, to threads of their own.
+ */
 public class StreamingPluginResponse implements PluginResponse {
 
-  private final ObjectOutputStream outStream;
+  private static final Logger LOG = Logger.getLogger(StreamingPluginResponse.class);
+
+  private static final ScheduledExecutorService HEARTBEATS =
+      Executors.newSingleThreadScheduledExecutor(WsfExecutors.newDaemonThreadFactory("wsf-heartbeat"));
+
+  private static final ExecutorService HEARTBEAT_WRITERS = WsfExecutors.newVirtualThreadPerTaskExecutor()
+      .orElseGet(() -> Executors.newCachedThreadPool(WsfExecutors.newDaemonThreadFactory("wsf-heartbeat-writer")));
+
+  public static final int DEFAULT_MAX_BATCH_ROWS = 1000;
+  public static final int DEFAULT_MAX_BATCH_BYTES = 256 * 1024;
+
+  private final ResponseEncoder encoder;
+  private final int maxBatchRows;
+  private final int maxBatchBytes;
+
+  private final List<String[]> batch;
+  private int batchBytes;
 
   private int rowCount;
   private int attachmentCount;
+  private long firstRowNanos;
+
+  // not a monitor, so a virtual thread blocked on a write doesn't pin its
+  // carrier thread
+  private final ReentrantLock lock = new ReentrantLock();
 
-  public StreamingPluginResponse(ObjectOutputStream outStream) {
-    this.outStream = outStream;
+  private CancellationToken cancellationToken = new CancellationToken();
+  private ScheduledFuture<?> heartbeat;
+  // a heartbeat is being written; at most one writer waits on a stalled client
+  private boolean heartbeatPending;
+  private long lastWrite = System.nanoTime();
+
+  public StreamingPluginResponse(ResponseEncoder encoder) {
+    this(encoder, DEFAULT_MAX_BATCH_ROWS, DEFAULT_MAX_BATCH_BYTES);
+  }
+
+  public StreamingPluginResponse(ResponseEncoder encoder, int maxBatchRows, int maxBatchBytes) {
+    this.encoder = encoder;
+    this.maxBatchRows = Math.max(1, maxBatchRows);
+    this.maxBatchBytes = maxBatchBytes;
+    this.batch = new ArrayList<>(this.maxBatchRows);
   }
 
   public int getRowCount() {
@@ -28,40 +84,168 @@ public class StreamingPluginResponse implements PluginResponse {
     return attachmentCount;
   }
 
+  /**
+   * @return the {@link System#nanoTime()} when the first row was added, if
+   *   there is any.
+   */
+  public long getFirstRowNanos() {
+    return firstRowNanos;
+  }
+
+  /**
+   * @param cancellationToken
+   *   cancelled when the response can't be written to the client
+   */
+  public void setCancellationToken(CancellationToken cancellationToken) {
+    this.cancellationToken = cancellationToken;
+  }
+
+  /**
+   * Write a heartbeat whenever nothing was written for the given interval,
+   * until {@link #stopHeartbeat()} is called.
+   */
+  public void startHeartbeat(Duration interval) {
+    long nanos = interval.toNanos();
+    lock.lock();
+    try {
+      if (nanos <= 0 || heartbeat != null)
+        return;
+      heartbeat = HEARTBEATS.scheduleWithFixedDelay(() -> beat(nanos), nanos, nanos, TimeUnit.NANOSECONDS);
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  public void stopHeartbeat() {
+    lock.lock();
+    try {
+      if (heartbeat != null) {
+        heartbeat.cancel(false);
+        heartbeat = null;
+      }
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
   @Override
   public void addRow(String[] row) throws PluginModelException {
-    ResponseRow responseRow = new ResponseRow(row);
+    lock.lock();
     try {
-      outStream.writeUnshared(responseRow);
-      rowCount++;
+      // copy the row, plugins may reuse the array for the next row
+      batch.add(row.clone());
+      if (rowCount++ == 0)
+        firstRowNanos = System.nanoTime();
+      for (String value : row) {
+        batchBytes += (value == null) ? 1 : value.length() + 1;
+      }
+      if (batch.size() >= maxBatchRows || batchBytes >= maxBatchBytes)
+        flush();
     }
-    catch (IOException ex) {
-      throw new PluginModelException(ex);
+    finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void addAttachment(String key, String content)
   throws PluginModelException {
-    ResponseAttachment attachment = new ResponseAttachment(key, content);
+    lock.lock();
     try {
-      outStream.writeUnshared(attachment);
+      flush();
+      encoder.writeAttachment(key, content);
       attachmentCount++;
+      lastWrite = System.nanoTime();
     }
     catch (IOException ex) {
-      throw new PluginModelException(ex);
+      throw writeFailed(ex);
+    }
+    finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void setMessage(String message) throws PluginModelException {
-    ResponseMessage responseMessage = new ResponseMessage(message);
+    lock.lock();
+    try {
+      flush();
+      encoder.writeMessage(message);
+      lastWrite = System.nanoTime();
+    }
+    catch (IOException ex) {
+      throw writeFailed(ex);
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Write out the rows collected in the current batch, if any. It has to be
+   * called before the status is written to the stream.
+   */
+  public void flush() throws PluginModelException {
+    lock.lock();
     try {
-      outStream.writeUnshared(responseMessage);
+      if (!batch.isEmpty()) {
+        encoder.writeRows(batch);
+        lastWrite = System.nanoTime();
+      }
     }
     catch (IOException ex) {
-      throw new PluginModelException(ex);
+      throw writeFailed(ex);
+    }
+    finally {
+      batch.clear();
+      batchBytes = 0;
+      lock.unlock();
     }
   }
 
+  /**
+   * Called by the shared timer, which must not block: the beat is skipped if
+   * the response is being written, as it isn't idle.
+   */
+  private void beat(long intervalNanos) {
+    if (!lock.tryLock())
+      return;
+    try {
+      if (heartbeat == null || heartbeatPending || System.nanoTime() - lastWrite < intervalNanos)
+        return;
+      heartbeatPending = true;
+    }
+    finally {
+      lock.unlock();
+    }
+    HEARTBEAT_WRITERS.execute(() -> writeHeartbeat(intervalNanos));
+  }
+
+  private void writeHeartbeat(long intervalNanos) {
+    lock.lock();
+    try {
+      if (heartbeat == null || System.nanoTime() - lastWrite < intervalNanos)
+        return;
+      encoder.writeHeartbeat();
+      encoder.flush();
+      lastWrite = System.nanoTime();
+    }
+    catch (IOException ex) {
+      stopHeartbeat();
+      writeFailed(ex);
+    }
+    finally {
+      heartbeatPending = false;
+      lock.unlock();
+    }
+  }
+
+  private PluginModelException writeFailed(IOException ex) {
+    LOG.debug("Unable to write the response, the client is gone.", ex);
+    cancellationToken.cancel("The client disconnected.");
+    return new PluginModelException(ex);
+  }
+
 }
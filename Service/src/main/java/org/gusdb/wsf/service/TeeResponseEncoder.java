@@ -0,0 +1,76 @@
+package org.gusdb.wsf.service;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.gusdb.wsf.common.ResponseEncoder;
+import org.gusdb.wsf.common.ResponseStatus;
+
+/**
+ * Writes the response to two encoders, such as the client stream and a copy
+ * in a different format.
+ */
+public class TeeResponseEncoder implements ResponseEncoder {
+
+  private final ResponseEncoder first;
+  private final ResponseEncoder second;
+
+  public TeeResponseEncoder(ResponseEncoder first, ResponseEncoder second) {
+    this.first = first;
+    this.second = second;
+  }
+
+  @Override
+  public void writeRow(String[] row) throws IOException {
+    first.writeRow(row);
+    second.writeRow(row);
+  }
+
+  @Override
+  public void writeRows(List<String[]> rows) throws IOException {
+    first.writeRows(rows);
+    second.writeRows(rows);
+  }
+
+  @Override
+  public void writeAttachment(String key, String content) throws IOException {
+    first.writeAttachment(key, content);
+    second.writeAttachment(key, content);
+  }
+
+  @Override
+  public void writeMessage(String message) throws IOException {
+    first.writeMessage(message);
+    second.writeMessage(message);
+  }
+
+  @Override
+  public void writeStatus(ResponseStatus status) throws IOException {
+    first.writeStatus(status);
+    second.writeStatus(status);
+  }
+
+  /**
+   * Heartbeats only go to the first encoder, the copy doesn't need them.
+   */
+  @Override
+  public void writeHeartbeat() throws IOException {
+    first.writeHeartbeat();
+  }
+
+  @Override
+  public void flush() throws IOException {
+    first.flush();
+    second.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      first.close();
+    }
+    finally {
+      second.close();
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package org.gusdb.wsf.service;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.FormParam;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.gusdb.wsf.common.WsfRequest;
+
+/**
+ * The service, running each request, and writing its response, on the request
+ * executor of the context, such as a virtual thread per request; the container
+ * thread is released while the request runs. It is deployed in place of
+ * {@link WsfService} when <code>wsf.virtual-threads</code> is set.
+ *
+ * The requests are suspended, so the servlet of the service, and every filter
+ * in front of it, must be declared with
+ * <code>&lt;async-supported&gt;true&lt;/async-supported&gt;</code> in the
+ * web.xml.
+ */
+@Path("/")
+public class VirtualThreadWsfService extends WsfService {
+
+  private final ServiceContext context;
+
+  public VirtualThreadWsfService() {
+    this(ServiceContext.getInstance());
+  }
+
+  public VirtualThreadWsfService(ServiceContext context) {
+    super(context);
+    this.context = context;
+  }
+
+  /**
+   * Run the request on the request executor of the context; or on the
+   * container thread if there is none, as on a JVM without virtual threads.
+   */
+  @POST
+  @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+  @Produces(MediaType.APPLICATION_OCTET_STREAM)
+  public void invoke(@FormParam(WsfRequest.PARAM_REQUEST) final String jsonRequest,
+      @HeaderParam(WsfRequest.STREAM_FORMAT_HEADER) final String acceptedFormats,
+      @HeaderParam(WsfRequest.STREAM_ENCODING_HEADER) final String acceptedEncodings,
+      @Suspended final AsyncResponse asyncResponse) {
+    ExecutorService executor = context.getRequestExecutor();
+    if (executor == null) {
+      asyncResponse.resume(invoke(jsonRequest, acceptedFormats, acceptedEncodings));
+      return;
+    }
+    try {
+      // the response stream is written by the thread that resumes it
+      executor.execute(() -> asyncResponse.resume(invoke(jsonRequest, acceptedFormats, acceptedEncodings)));
+    }
+    catch (RejectedExecutionException ex) {
+      asyncResponse.resume(ex);
+    }
+  }
+
+  /**
+   * Not a resource method here: an overriding method with any JAX-RS
+   * annotation doesn't inherit those of the overridden one (JAX-RS 2.0, section
+   * 3.6), so the synchronous invoke of the base class doesn't compete with the
+   * suspended one.
+   */
+  @Override
+  @Produces(MediaType.APPLICATION_OCTET_STREAM)
+  public Response invoke(String jsonRequest, String acceptedFormats, String acceptedEncodings) {
+    return super.invoke(jsonRequest, acceptedFormats, acceptedEncodings);
+  }
+}
@@ -1,23 +1,47 @@
 package org.gusdb.wsf.service;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.FormParam;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.StreamingOutput;
 
 import org.apache.log4j.Logger;
+import org.gusdb.wsf.common.ResponseAttachment;
+import org.gusdb.wsf.common.ResponseDecoder;
+import org.gusdb.wsf.common.ResponseEncoder;
+import org.gusdb.wsf.common.ResponseMessage;
+import org.gusdb.wsf.common.ResponseRow;
+import org.gusdb.wsf.common.ResponseRowBatch;
 import org.gusdb.wsf.common.ResponseStatus;
+import org.gusdb.wsf.common.StreamEncoding;
+import org.gusdb.wsf.common.StreamFormat;
 import org.gusdb.wsf.common.WsfRequest;
+import org.gusdb.wsf.plugin.CancellationToken;
+import org.gusdb.wsf.plugin.DelayedResultException;
+import org.gusdb.wsf.plugin.JobStatus;
 import org.gusdb.wsf.plugin.PluginExecutor;
+import org.gusdb.wsf.plugin.PluginModelException;
+import org.gusdb.wsf.plugin.PluginTimeoutException;
+import org.gusdb.wsf.plugin.ServiceBusyException;
 
 /**
  * The WSF Web service entry point.
@@ -32,7 +56,33 @@ public class WsfService {
 
   private static final Logger LOG = Logger.getLogger(WsfService.class);
 
+  // the longest a status request waits for a job to be done
+  private static final long MAX_JOB_WAIT_SECONDS = 60;
+
+  private static final String RETRY_AFTER_HEADER = "Retry-After";
+
+  // the format of the cached, shared and job results; its reader also reads
+  // the results stored in the older binary format
+  private static final StreamFormat STORED_FORMAT = StreamFormat.BINARY_V2;
+
+  private final ServiceContext context;
+  private final ResultCache resultCache;
+  private final SharedExecutions sharedExecutions;
+  private final AdmissionController admission;
+  private final StreamMetrics streamMetrics;
+  private final PluginMetrics pluginMetrics;
+
   public WsfService() {
+    this(ServiceContext.getInstance());
+  }
+
+  public WsfService(ServiceContext context) {
+    this.context = context;
+    this.resultCache = context.getResultCache();
+    this.sharedExecutions = context.getSharedExecutions();
+    this.admission = context.getAdmissionController();
+    this.streamMetrics = context.getStreamMetrics();
+    this.pluginMetrics = context.getPluginMetrics();
     // set up the config dir
     // String gusHome = System.getProperty("GUS_HOME");
     // if (gusHome != null) {
@@ -42,55 +92,539 @@ public class WsfService {
     LOG.debug("WsfService initialized");
   }
 
+  /**
+   * @return the uncompressed response of the request, the plugin runs when its
+   *   stream is written.
+   */
+  public Response invoke(String jsonRequest, String acceptedFormats) {
+    return invoke(jsonRequest, acceptedFormats, null);
+  }
+
+  /**
+   * Run the request on the container thread, which writes the response. See
+   * {@link VirtualThreadWsfService} to run it on a virtual thread instead.
+   *
+   * @return the response of the request, the plugin runs when its stream is
+   *   written.
+   */
   @POST
   @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
   @Produces(MediaType.APPLICATION_OCTET_STREAM)
-  public Response invoke(@FormParam(WsfRequest.PARAM_REQUEST) final String jsonRequest) {
-    long start = System.currentTimeMillis();
+  public Response invoke(@FormParam(WsfRequest.PARAM_REQUEST) String jsonRequest,
+      @HeaderParam(WsfRequest.STREAM_FORMAT_HEADER) String acceptedFormats,
+      @HeaderParam(WsfRequest.STREAM_ENCODING_HEADER) String acceptedEncodings) {
+    final StreamFormat format = StreamFormat.fromHeader(acceptedFormats);
+    final StreamEncoding encoding = negotiateEncoding(acceptedEncodings);
+
+    // refuse right away when no slot is free and too many requests are waiting
+    if (admission.rejectIfSaturated()) {
+      LOG.warn("WsfService is busy, the request is rejected.");
+      return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+          .header(RETRY_AFTER_HEADER, admission.getRetryAfterSeconds())
+          .entity("The service is busy, try again later.")
+          .build();
+    }
 
     // open a StreamingOutput
     StreamingOutput output = new StreamingOutput() {
 
       @Override
       public void write(OutputStream outStream) throws IOException {
-        // prepare to run the plugin
-        PluginExecutor executor = new PluginExecutor();
-        ResponseStatus status = new ResponseStatus();
-
-        // prepare response
-        ObjectOutputStream objectStream = new ObjectOutputStream(outStream);
-        StreamingPluginResponse pluginResponse = new StreamingPluginResponse(objectStream);
-        int checksum = 0;
+        // the writes block while the client is slow, which holds the plugin back
+        long start = System.nanoTime();
+        MeteredOutputStream meteredStream = streamMetrics.newStream(outStream);
         try {
-          ServiceRequest request = new ServiceRequest(jsonRequest);
-          checksum = request.getChecksum();
-          LOG.debug("Invoking WSF: checksum=" + checksum + "\n" + jsonRequest);
+          writeResponse(jsonRequest, format, encoding, meteredStream);
+        }
+        finally {
+          streamMetrics.streamFinished(meteredStream);
+          LOG.info("WsfService call finished in " + ((System.nanoTime() - start) / 1e9) +
+              " seconds, blocked on the client for " + (meteredStream.getBlockedNanos() / 1000000) + " ms");
+        }
+      }
+    };
+
+    // the plugin runs when the container writes the response
+    return Response.ok(output)
+        .header(WsfRequest.STREAM_FORMAT_HEADER, format.getHeaderValue())
+        .header(WsfRequest.STREAM_ENCODING_HEADER, encoding.getHeaderValue())
+        .build();
+  }
+
+  /**
+   * Write the response of the request, from the cache, a shared execution, or
+   * a new execution of the plugin.
+   */
+  private void writeResponse(String jsonRequest, StreamFormat format, StreamEncoding encoding,
+      MeteredOutputStream outStream) throws IOException {
+    ServiceRequest request = null;
+    String key = null;
+    try {
+      request = new ServiceRequest(jsonRequest);
+      if (resultCache != null || sharedExecutions != null)
+        key = RequestKey.of(request, context.getConfig().getCacheIgnoredContextKeys());
+    }
+    catch (ServiceModelException ex) {
+      // reported by the execution below
+    }
 
-          // invoke plugin
-          int signal = executor.execute(request.getPluginClass(), request, pluginResponse);
-          status.setSignal(signal);
+    PluginMetrics.Stats stats = pluginMetrics.get((request == null) ? null : request.getPluginClass());
+    stats.requestStarted();
+    try {
+      writeResponse(jsonRequest, request, key, format, encoding, outStream);
+    }
+    finally {
+      stats.requestFinished(outStream.getBytesWritten());
+    }
+  }
+
+  private void writeResponse(String jsonRequest, ServiceRequest request, String key, StreamFormat format,
+      StreamEncoding encoding, OutputStream outStream) throws IOException {
+    if (key != null && resultCache != null && writeCachedResult(key, format, encoding, outStream))
+      return;
+
+    if (key != null && sharedExecutions != null) {
+      // run identical concurrent requests once, in the stored format. The
+      // execution belongs to none of its readers: it has no deadline, and is
+      // only cancelled once all the readers are gone; each reader gives up at
+      // its own deadline instead.
+      final ServiceRequest sharedRequest = new ServiceRequest(request);
+      Map<String, String> sharedContext = sharedRequest.getContext();
+      sharedContext.remove(WsfRequest.REMOTE_EXECUTE_TIMEOUT_ISO_8601_CONTEXT_KEY);
+      sharedRequest.setContext(sharedContext);
+      sharedRequest.setCancellationToken(new CancellationToken());
+      final String sharedKey = key;
+      Instant deadline = request.getDeadline().orElse(null);
+      StreamingOutput producer = out -> execute(sharedRequest.toString(), sharedRequest, sharedKey,
+          STORED_FORMAT, true, out);
+      if (deadline == null && format == STORED_FORMAT) {
+        // passed on as is, with the heartbeats of the execution
+        InputStream inStream = sharedExecutions.open(key, null, sharedRequest.getCancellationToken(), producer);
+        try {
+          writeStream(inStream, format, compress(encoding, -1, outStream));
+        }
+        finally {
+          inStream.close();
         }
-        catch (Exception ex) {
-          status.setSignal(-1);
-          status.setException(ex);
+        return;
+      }
+
+      // decoded, which drops the heartbeats of the execution; the reader sends
+      // its own while it waits, so a client that is gone is noticed
+      ResponseEncoder encoder = format.newEncoder(compress(encoding, -1, outStream));
+      InputStream inStream = sharedExecutions.open(key, deadline, context.getConfig().getHeartbeatInterval(),
+          () -> {
+            encoder.writeHeartbeat();
+            encoder.flush();
+          }, sharedRequest.getCancellationToken(), producer);
+      try {
+        writeSharedStream(inStream, deadline, encoder);
+      }
+      finally {
+        inStream.close();
+      }
+      return;
+    }
+
+    execute(jsonRequest, request, key, format, true, compress(encoding, -1, outStream));
+  }
+
+  /**
+   * @return the first encoding accepted by the client that the service is
+   *   configured to use
+   */
+  private StreamEncoding negotiateEncoding(String acceptedEncodings) {
+    return StreamEncoding.fromHeader(acceptedEncodings, context.getConfig().getCompressionEncodings());
+  }
+
+  /**
+   * @param size
+   *   the size of the response, or -1 if it isn't known
+   *
+   * @return a stream compressing the response with the negotiated encoding; a
+   *   response known to be smaller than the threshold is written as is, the
+   *   client detects it.
+   */
+  private OutputStream compress(StreamEncoding encoding, long size, OutputStream outStream) throws IOException {
+    if (size >= 0 && size < context.getConfig().getCompressionMinSize())
+      return outStream;
+    return encoding.newOutputStream(outStream, context.getConfig().getCompressionLevel());
+  }
+
+  /**
+   * Run the plugin of the request, and write its output to the stream. The
+   * plugin is cancelled if the stream can't be written. The plugin waits for a
+   * slot of the {@link AdmissionController} first.
+   *
+   * @param interactive
+   *   whether a client is waiting on the stream, as opposed to a background
+   *   job. Heartbeats are sent while the plugin is quiet, so a client that
+   *   disconnects is noticed; and the request is rejected with a
+   *   {@link ServiceBusyException} if it can't get a slot in time, instead of
+   *   waiting for one.
+   *
+   * @return the status sent at the end of the stream
+   */
+  private ResponseStatus execute(String jsonRequest, ServiceRequest request, String cacheKey,
+      StreamFormat format, boolean interactive, OutputStream outStream) throws IOException {
+    // prepare to run the plugin, timing its phases
+    PluginMetrics.Execution execution = pluginMetrics.newExecution();
+    PluginExecutor executor = new PluginExecutor();
+    executor.setListener(execution);
+    ResponseStatus status = new ResponseStatus();
+
+    // prepare response, recording the stream in the cache format if the result
+    // can be cached. The copy has its own encoder, even in the same format, so
+    // it holds no heartbeats and doesn't depend on the format of the client.
+    ResultCapture capture = (resultCache == null || cacheKey == null) ? null :
+        resultCache.newCapture(cacheKey, request.getPluginClass());
+    ResponseEncoder encoder = format.newEncoder(outStream);
+    if (capture != null)
+      encoder = new TeeResponseEncoder(encoder, STORED_FORMAT.newEncoder(capture));
+    // the batches bound the rows held for a client that doesn't keep up
+    StreamingPluginResponse pluginResponse = new StreamingPluginResponse(encoder,
+        context.getConfig().getStreamBatchRows(), context.getConfig().getStreamBatchBytes());
+    String fingerprint = null;
+    ActiveRequests.ActiveRequest active = null;
+    try {
+      if (request == null)
+        request = new ServiceRequest(jsonRequest);
+      fingerprint = request.getFingerprint();
+      active = context.getActiveRequests().add(request, !interactive);
+      LOG.debug("Invoking WSF: fingerprint=" + fingerprint + "\n" + jsonRequest);
+      pluginResponse.setCancellationToken(request.getCancellationToken());
+      if (interactive)
+        pluginResponse.startHeartbeat(context.getConfig().getHeartbeatInterval());
+
+      // invoke plugin
+      Duration wait = !interactive ? null :
+          request.getRemainingTime().orElse(context.getConfig().getAdmissionMaxWait());
+      try (AdmissionController.Permit permit = admission.acquire(request.getPluginClass(), request.getProjectId(), wait)) {
+        execution.admitted();
+        int signal;
+        try {
+          signal = executor.execute(request.getPluginClass(), request, pluginResponse);
         }
         finally {
-          // send signal back
-          objectStream.writeUnshared(status);
-          objectStream.flush();
-          objectStream.close();
+          execution.pluginFinished();
+        }
+        pluginResponse.flush();
+        status.setSignal(signal);
+      }
+    }
+    catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      status.setSignal(-1);
+      status.setException(ex);
+    }
+    catch (Exception ex) {
+      status.setSignal(-1);
+      status.setException(ex);
+    }
+    finally {
+      if (active != null)
+        active.close();
+      pluginResponse.stopHeartbeat();
+
+      // send signal back
+      boolean sent = false;
+      try {
+        encoder.writeStatus(status);
+        encoder.flush();
+        encoder.close();
+        sent = true;
+      }
+      finally {
+        // only keep the successful results that were completely sent
+        if (capture != null) {
+          if (sent && status.getException() == null)
+            capture.commit();
+          else
+            capture.discard();
+        }
+        execution.finish((request == null) ? null : request.getPluginClass(), status.getException(),
+            pluginResponse.getRowCount(), pluginResponse.getFirstRowNanos());
+      }
+
+      LOG.debug("WSF Service finished: fingerprint=" + fingerprint + ", status=" + status + ", #rows=" +
+          pluginResponse.getRowCount() + ", #attch=" + pluginResponse.getAttachmentCount());
+    }
+    return status;
+  }
+
+  /**
+   * Send the cached result of the request to the client, without invoking the
+   * plugin.
+   *
+   * @return false if there is no cached result
+   */
+  private boolean writeCachedResult(String cacheKey, StreamFormat format, StreamEncoding encoding,
+      OutputStream outStream) throws IOException {
+    CachedResult result = resultCache.get(cacheKey);
+    if (result == null)
+      return false;
 
-          LOG.debug("WSF Service finished: checksum=" + checksum + ", status=" + status + ", #rows=" +
-              pluginResponse.getRowCount() + ", #attch=" + pluginResponse.getAttachmentCount());
+    InputStream inStream;
+    try {
+      inStream = result.openStream();
+    }
+    catch (IOException ex) {
+      // evicted after the lookup
+      LOG.debug("Cached result " + cacheKey + " is gone, invoking the plugin.", ex);
+      return false;
+    }
+
+    LOG.debug("Sending cached WSF result: key=" + cacheKey + ", size=" + result.getSize());
+    try {
+      writeStream(inStream, format, compress(encoding, result.getSize(), outStream));
+    }
+    finally {
+      inStream.close();
+    }
+    return true;
+  }
+
+  /**
+   * Send a stored response stream, in the binary format, to the client. It is
+   * converted for the clients that use another format; the clients of the
+   * latest binary format also read the streams stored in an older one. The
+   * output stream is closed, which ends its compression.
+   */
+  private static void writeStream(InputStream inStream, StreamFormat format, OutputStream outStream)
+      throws IOException {
+    if (format == STORED_FORMAT) {
+      byte[] buffer = new byte[64 * 1024];
+      int count;
+      while ((count = inStream.read(buffer)) >= 0) {
+        outStream.write(buffer, 0, count);
+        // pass heartbeats of a running execution on right away
+        outStream.flush();
+      }
+      outStream.close();
+    }
+    else {
+      transcode(STORED_FORMAT.newDecoder(inStream), format.newEncoder(outStream));
+    }
+  }
+
+  /**
+   * Send the stream of a shared execution to a client in another format, or
+   * with a deadline. The stream is decoded, so the response can be ended with a
+   * {@link PluginTimeoutException} between two of its parts if the deadline
+   * passes first, or with a {@link PluginModelException} if the client falls
+   * too far behind the execution.
+   */
+  private static void writeSharedStream(InputStream inStream, Instant deadline, ResponseEncoder encoder)
+      throws IOException {
+    try {
+      transcode(STORED_FORMAT.newDecoder(inStream), encoder);
+    }
+    catch (SharedResultStream.DeadlineExceededException ex) {
+      LOG.debug("The deadline of a reader of a shared execution passed.", ex);
+      ResponseStatus status = new ResponseStatus();
+      status.setSignal(-1);
+      status.setException(new PluginTimeoutException(
+          "The request was not completed by its deadline, " + deadline + "."));
+      encoder.writeStatus(status);
+      encoder.flush();
+      encoder.close();
+    }
+    catch (SharedResultStream.LagExceededException ex) {
+      LOG.warn("A reader of a shared execution was detached.", ex);
+      ResponseStatus status = new ResponseStatus();
+      status.setSignal(-1);
+      status.setException(new PluginModelException(ex.getMessage()));
+      encoder.writeStatus(status);
+      encoder.flush();
+      encoder.close();
+    }
+  }
+
+  /**
+   * Send a response stream holding only the failure.
+   */
+  private static void writeFailure(Exception exception, StreamFormat format, OutputStream outStream)
+      throws IOException {
+    ResponseStatus status = new ResponseStatus();
+    status.setSignal(-1);
+    status.setException(exception);
+    ResponseEncoder encoder = format.newEncoder(outStream);
+    encoder.writeStatus(status);
+    encoder.close();
+  }
+
+  private static void transcode(ResponseDecoder decoder, ResponseEncoder encoder) throws IOException {
+    try {
+      while (true) {
+        Object object = decoder.read();
+        if (object instanceof ResponseRowBatch) {
+          encoder.writeRows(((ResponseRowBatch) object).getRows());
+        }
+        else if (object instanceof ResponseRow) {
+          encoder.writeRow(((ResponseRow) object).getRow());
+        }
+        else if (object instanceof ResponseAttachment) {
+          ResponseAttachment attachment = (ResponseAttachment) object;
+          encoder.writeAttachment(attachment.getKey(), attachment.getContent());
+        }
+        else if (object instanceof ResponseMessage) {
+          encoder.writeMessage(((ResponseMessage) object).getMessage());
+        }
+        else if (object instanceof ResponseStatus) {
+          encoder.writeStatus((ResponseStatus) object);
+          break;
+        }
+      }
+    }
+    catch (ClassNotFoundException ex) {
+      throw new IOException(ex);
+    }
+    encoder.flush();
+    encoder.close();
+  }
+
+  /**
+   * Submit the request as a job run in the background.
+   *
+   * @return the status of the new job, with 202 (Accepted); or 503 (Service
+   *   Unavailable) if too many jobs are waiting.
+   */
+  @POST
+  @Path("jobs")
+  @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response submitJob(@FormParam(WsfRequest.PARAM_REQUEST) final String jsonRequest) {
+    JobManager jobManager = context.getJobManager();
+    if (jobManager == null)
+      return Response.status(Response.Status.NOT_FOUND).entity("Jobs are disabled.").build();
+
+    final ServiceRequest request;
+    try {
+      request = new ServiceRequest(jsonRequest);
+    }
+    catch (ServiceModelException ex) {
+      return Response.status(Response.Status.BAD_REQUEST).entity(ex.getMessage()).build();
+    }
+    try {
+      final String key = (resultCache == null) ? null :
+          RequestKey.of(request, context.getConfig().getCacheIgnoredContextKeys());
+      JobStatus status = jobManager.submit(request,
+          out -> execute(jsonRequest, request, key, STORED_FORMAT, false, out));
+      return Response.status(Response.Status.ACCEPTED).entity(status.toString()).build();
+    }
+    catch (RejectedExecutionException ex) {
+      return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+          .header(RETRY_AFTER_HEADER, admission.getRetryAfterSeconds())
+          .entity("Too many jobs are queued.")
+          .build();
+    }
+  }
+
+  /**
+   * Get the status of a job. If a wait time is given, the call returns when the
+   * job is done, or the time is up.
+   */
+  @GET
+  @Path("jobs/{id}")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Response getJob(@PathParam("id") String jobId,
+      @QueryParam("wait") @DefaultValue("0") long waitSeconds) {
+    JobManager jobManager = context.getJobManager();
+    JobStatus status = null;
+    if (jobManager != null) {
+      try {
+        long wait = Math.min(Math.max(0, waitSeconds), MAX_JOB_WAIT_SECONDS);
+        status = jobManager.awaitStatus(jobId, Duration.ofSeconds(wait));
+      }
+      catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        status = jobManager.getStatus(jobId);
+      }
+    }
+    if (status == null)
+      return Response.status(Response.Status.NOT_FOUND).entity("Unknown job: " + jobId).build();
+    return Response.ok(status.toString()).build();
+  }
+
+  /**
+   * Get the result of a job, as the response stream of a direct call. If the
+   * job is not done yet, the stream only holds a {@link DelayedResultException};
+   * if it failed without a result, or was removed meanwhile, it only holds the
+   * failure.
+   */
+  @GET
+  @Path("jobs/{id}/result")
+  @Produces(MediaType.APPLICATION_OCTET_STREAM)
+  public Response getJobResult(@PathParam("id") final String jobId,
+      @HeaderParam(WsfRequest.STREAM_FORMAT_HEADER) String acceptedFormats,
+      @HeaderParam(WsfRequest.STREAM_ENCODING_HEADER) String acceptedEncodings) {
+    final JobManager jobManager = context.getJobManager();
+    JobStatus status = (jobManager == null) ? null : jobManager.getStatus(jobId);
+    if (status == null)
+      return Response.status(Response.Status.NOT_FOUND).entity("Unknown job: " + jobId).build();
+    if (status.getState() == JobStatus.State.CANCELLED)
+      return Response.status(Response.Status.GONE).entity("The job was cancelled: " + jobId).build();
+
+    final StreamFormat format = StreamFormat.fromHeader(acceptedFormats);
+    final StreamEncoding encoding = negotiateEncoding(acceptedEncodings);
+    final boolean done = status.getState().isDone();
+    StreamingOutput output = new StreamingOutput() {
+
+      @Override
+      public void write(OutputStream outStream) throws IOException {
+        if (!done) {
+          writeFailure(new DelayedResultException(), format, outStream);
+          return;
+        }
+        InputStream inStream;
+        try {
+          inStream = jobManager.openResult(jobId);
+        }
+        catch (FileNotFoundException ex) {
+          JobStatus failed = jobManager.getStatus(jobId);
+          String message = (failed == null) ? "The job was removed: " + jobId :
+              "The job has no result: " + jobId +
+              ((failed.getMessage() == null) ? "" : ", " + failed.getMessage());
+          LOG.debug(message, ex);
+          writeFailure(new PluginModelException(message), format, outStream);
+          return;
+        }
+        try {
+          writeStream(inStream, format, compress(encoding, jobManager.getResultSize(jobId), outStream));
+        }
+        finally {
+          inStream.close();
         }
       }
     };
+    return Response.ok(output)
+        .header(WsfRequest.STREAM_FORMAT_HEADER, format.getHeaderValue())
+        .header(WsfRequest.STREAM_ENCODING_HEADER, encoding.getHeaderValue())
+        .build();
+  }
 
-    // get the response
-    Response response = Response.ok(output).build();
-    long end = System.currentTimeMillis();
-    LOG.info("WsfService call finished in " + ((end - start) / 1000D) + " seconds");
-    return response;
+  /**
+   * Cancel a job if it's still running, and delete its result. Until the job
+   * expires, its status says it was cancelled, and its result is 410 (Gone).
+   */
+  @DELETE
+  @Path("jobs/{id}")
+  public Response cancelJob(@PathParam("id") String jobId) {
+    JobManager jobManager = context.getJobManager();
+    if (jobManager == null || !jobManager.cancel(jobId))
+      return Response.status(Response.Status.NOT_FOUND).entity("Unknown job: " + jobId).build();
+    return Response.status(Response.Status.NO_CONTENT).build();
+  }
+
+  /**
+   * Get the metrics of the plugins and the service, in the Prometheus text
+   * format.
+   */
+  @GET
+  @Path("metrics")
+  @Produces(PrometheusWriter.CONTENT_TYPE)
+  public String getMetrics() {
+    return PrometheusWriter.write(context);
   }
 
   @GET
@@ -3,15 +3,52 @@ package org.gusdb.wsf.service;
 import java.util.HashSet;
 import java.util.Set;
 
+import javax.management.ObjectName;
 import javax.ws.rs.core.Application;
 
+import org.glassfish.jersey.server.spi.Container;
+import org.glassfish.jersey.server.spi.ContainerLifecycleListener;
+
 public class WsfServiceApplication extends Application {
 
+  private final ServiceContext context;
+  private final ObjectName monitorName;
+
+  public WsfServiceApplication() {
+    context = ServiceContext.getInstance();
+    monitorName = context.getConfig().isJmxEnabled() ? WsfServiceMonitor.register(context) : null;
+  }
+
   @Override
   public Set<Class<?>> getClasses() {
     Set<Class<?>> classes = new HashSet<>();
-    classes.add(WsfService.class);
+    // the suspended requests need an async servlet, so they are only used when
+    // asked for
+    classes.add(context.getConfig().isVirtualThreads() ? VirtualThreadWsfService.class : WsfService.class);
     return classes;
   }
 
+  @Override
+  public Set<Object> getSingletons() {
+    Set<Object> singletons = new HashSet<>();
+    // release the bean and the threads of the context when the service is
+    // undeployed, or they hold on to its classes
+    singletons.add(new ContainerLifecycleListener() {
+
+      @Override
+      public void onStartup(Container container) {}
+
+      @Override
+      public void onReload(Container container) {}
+
+      @Override
+      public void onShutdown(Container container) {
+        if (monitorName != null)
+          WsfServiceMonitor.unregister(monitorName);
+        context.close();
+      }
+    });
+    return singletons;
+  }
+
 }
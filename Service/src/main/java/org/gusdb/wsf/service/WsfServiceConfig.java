@@ -0,0 +1,377 @@
+package org.gusdb.wsf.service;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.gusdb.fgputil.runtime.GusHome;
+import org.gusdb.wsf.common.StreamEncoding;
+import org.gusdb.wsf.common.WsfRequest;
+
+/**
+ * The settings of the WSF service. They are read from
+ * <code>$GUS_HOME/config/wsf-service-config.xml</code>, a file in the XML
+ * properties format, if it exists; a system property of the same name
+ * overrides the value in the file.
+ */
+public class WsfServiceConfig {
+
+  private static final Logger LOG = Logger.getLogger(WsfServiceConfig.class);
+
+  public static final String CONFIG_FILE = "wsf-service-config.xml";
+
+  public static final String CACHE_ENABLED = "wsf.cache.enabled";
+  public static final String CACHE_TTL_SECONDS = "wsf.cache.ttl-seconds";
+  public static final String CACHE_MAX_MEMORY_BYTES = "wsf.cache.max-memory-bytes";
+  public static final String CACHE_MAX_DISK_BYTES = "wsf.cache.max-disk-bytes";
+  public static final String CACHE_SPILL_THRESHOLD_BYTES = "wsf.cache.spill-threshold-bytes";
+  public static final String CACHE_DIR = "wsf.cache.dir";
+  public static final String CACHE_IGNORED_CONTEXT_KEYS = "wsf.cache.ignored-context-keys";
+  public static final String COALESCE_ENABLED = "wsf.coalesce.enabled";
+  public static final String COALESCE_MAX_MEMORY_BYTES = "wsf.coalesce.max-memory-bytes";
+  public static final String COALESCE_MAX_LAG_BYTES = "wsf.coalesce.max-lag-bytes";
+  public static final String JOBS_ENABLED = "wsf.jobs.enabled";
+  public static final String JOBS_THREADS = "wsf.jobs.threads";
+  public static final String JOBS_MAX_QUEUED = "wsf.jobs.max-queued";
+  public static final String JOBS_DIR = "wsf.jobs.dir";
+  public static final String JOBS_RETENTION_SECONDS = "wsf.jobs.retention-seconds";
+  public static final String HEARTBEAT_SECONDS = "wsf.heartbeat-seconds";
+  public static final String VIRTUAL_THREADS = "wsf.virtual-threads";
+  public static final String JMX_ENABLED = "wsf.jmx.enabled";
+  public static final String JMX_CONTEXT = "wsf.jmx.context";
+  public static final String STREAM_BATCH_ROWS = "wsf.stream.batch-rows";
+  public static final String STREAM_BATCH_BYTES = "wsf.stream.batch-bytes";
+  public static final String COMPRESSION_ENCODINGS = "wsf.compression.encodings";
+  public static final String COMPRESSION_LEVEL = "wsf.compression.level";
+  public static final String COMPRESSION_MIN_SIZE_BYTES = "wsf.compression.min-size-bytes";
+  public static final String ADMISSION_MAX_CONCURRENT = "wsf.admission.max-concurrent";
+  public static final String ADMISSION_PROJECT_MAX_CONCURRENT = "wsf.admission.project-max-concurrent";
+  public static final String ADMISSION_MAX_QUEUED = "wsf.admission.max-queued";
+  public static final String ADMISSION_MAX_WAIT_SECONDS = "wsf.admission.max-wait-seconds";
+  public static final String ADMISSION_RETRY_AFTER_SECONDS = "wsf.admission.retry-after-seconds";
+
+  private final Properties properties;
+
+  /**
+   * @return the configuration read from the config file and the system
+   *   properties.
+   */
+  public static WsfServiceConfig load() {
+    Properties properties = new Properties();
+    String gusHome = GusHome.getGusHome();
+    if (gusHome != null) {
+      File file = new File(gusHome + "/config/" + CONFIG_FILE);
+      if (file.exists()) {
+        try (InputStream in = new FileInputStream(file)) {
+          properties.loadFromXML(in);
+        }
+        catch (IOException ex) {
+          LOG.warn("Unable to read " + file + ", the default settings are used.", ex);
+        }
+      }
+    }
+    for (String name : System.getProperties().stringPropertyNames()) {
+      if (name.startsWith("wsf."))
+        properties.setProperty(name, System.getProperty(name));
+    }
+    return new WsfServiceConfig(properties);
+  }
+
+  public WsfServiceConfig(Properties properties) {
+    this.properties = properties;
+  }
+
+  public String getProperty(String name, String defaultValue) {
+    String value = properties.getProperty(name);
+    return (value == null) ? defaultValue : value.trim();
+  }
+
+  public long getLongProperty(String name, long defaultValue) {
+    String value = properties.getProperty(name);
+    if (value == null)
+      return defaultValue;
+    try {
+      return Long.parseLong(value.trim());
+    }
+    catch (NumberFormatException ex) {
+      LOG.warn("Invalid value of " + name + ": " + value + ", using " + defaultValue);
+      return defaultValue;
+    }
+  }
+
+  public boolean isCacheEnabled() {
+    return Boolean.parseBoolean(getProperty(CACHE_ENABLED, "false"));
+  }
+
+  /**
+   * @param pluginClass
+   *   the full class name of a plugin
+   *
+   * @return how long the results of the plugin are kept in the cache. It can be
+   *   set per plugin with <code>wsf.cache.ttl-seconds.&lt;pluginClass&gt;</code>;
+   *   zero disables caching of the plugin.
+   */
+  public Duration getCacheTtl(String pluginClass) {
+    long defaultTtl = getLongProperty(CACHE_TTL_SECONDS, 3600);
+    return Duration.ofSeconds(Math.max(0, getLongProperty(CACHE_TTL_SECONDS + "." + pluginClass, defaultTtl)));
+  }
+
+  public long getCacheMaxMemoryBytes() {
+    return getLongProperty(CACHE_MAX_MEMORY_BYTES, 64L * 1024 * 1024);
+  }
+
+  public long getCacheMaxDiskBytes() {
+    return getLongProperty(CACHE_MAX_DISK_BYTES, 1024L * 1024 * 1024);
+  }
+
+  /**
+   * @return the size above which a result is stored on disk instead of memory.
+   */
+  public int getCacheSpillThresholdBytes() {
+    return (int) Math.min(Integer.MAX_VALUE, getLongProperty(CACHE_SPILL_THRESHOLD_BYTES, 1024 * 1024));
+  }
+
+  /**
+   * @return the dir of the results cached on disk, and of the shared streams
+   *   spilled to disk; the files left in it are removed on start, so it belongs
+   *   to one service.
+   */
+  public File getCacheDir() {
+    String gusHome = GusHome.getGusHome();
+    String defaultDir = (gusHome != null) ? gusHome + "/data/wsf-cache" :
+        System.getProperty("java.io.tmpdir") + "/wsf-cache";
+    return new File(getProperty(CACHE_DIR, defaultDir));
+  }
+
+  /**
+   * @return the context keys that don't affect the result of a request, and so
+   *   are not part of the key used to cache and share results. The execution
+   *   timeout is ignored by default.
+   */
+  public Set<String> getCacheIgnoredContextKeys() {
+    String value = getProperty(CACHE_IGNORED_CONTEXT_KEYS, WsfRequest.REMOTE_EXECUTE_TIMEOUT_ISO_8601_CONTEXT_KEY);
+    Set<String> keys = new LinkedHashSet<>();
+    for (String key : Arrays.asList(value.split(","))) {
+      if (!key.trim().isEmpty())
+        keys.add(key.trim());
+    }
+    return Collections.unmodifiableSet(keys);
+  }
+
+  /**
+   * @return whether identical concurrent requests share one execution.
+   */
+  public boolean isCoalesceEnabled() {
+    return Boolean.parseBoolean(getProperty(COALESCE_ENABLED, "false"));
+  }
+
+  /**
+   * @return the size of a shared response kept in memory; the rest of it is
+   *   written to a file in the cache dir.
+   */
+  public long getCoalesceMaxMemoryBytes() {
+    return getLongProperty(COALESCE_MAX_MEMORY_BYTES, 4L * 1024 * 1024);
+  }
+
+  /**
+   * @return how far a client can fall behind a shared execution before its
+   *   response fails, so a stalled client doesn't hold a large result; 0 for
+   *   no limit.
+   */
+  public long getCoalesceMaxLagBytes() {
+    return Math.max(0, getLongProperty(COALESCE_MAX_LAG_BYTES, 64L * 1024 * 1024));
+  }
+
+  /**
+   * @return whether requests can be submitted as background jobs; off by
+   *   default.
+   */
+  public boolean isJobsEnabled() {
+    return Boolean.parseBoolean(getProperty(JOBS_ENABLED, "false"));
+  }
+
+  /**
+   * @return the number of jobs run at the same time
+   */
+  public int getJobThreads() {
+    return (int) Math.max(1, getLongProperty(JOBS_THREADS, 4));
+  }
+
+  /**
+   * @return the number of jobs waiting to run, above which new jobs are
+   *   rejected.
+   */
+  public int getJobMaxQueued() {
+    return (int) Math.max(1, getLongProperty(JOBS_MAX_QUEUED, 100));
+  }
+
+  /**
+   * @return the dir where the results of the jobs are stored; by default, a
+   *   dir of the GUS_HOME of the instance, as a service loads all the jobs
+   *   found in it.
+   */
+  public File getJobDir() {
+    String gusHome = GusHome.getGusHome();
+    String defaultDir = (gusHome != null) ? gusHome + "/data/wsf-jobs" :
+        System.getProperty("java.io.tmpdir") + "/wsf-jobs";
+    return new File(getProperty(JOBS_DIR, defaultDir));
+  }
+
+  /**
+   * @return how long the result of a job is kept after it is done
+   */
+  public Duration getJobRetention() {
+    return Duration.ofSeconds(Math.max(0, getLongProperty(JOBS_RETENTION_SECONDS, 24 * 3600)));
+  }
+
+  /**
+   * @return how long the response stream can be idle before a heartbeat is
+   *   sent to detect a disconnected client; zero disables heartbeats.
+   */
+  public Duration getHeartbeatInterval() {
+    return Duration.ofSeconds(Math.max(0, getLongProperty(HEARTBEAT_SECONDS, 5)));
+  }
+
+  /**
+   * @return the most rows buffered by a response before they are written to
+   *   the client. Once the client stops reading, the writes block and so does
+   *   the plugin, which bounds the memory used by a slow client.
+   */
+  public int getStreamBatchRows() {
+    return (int) Math.max(1, getLongProperty(STREAM_BATCH_ROWS, StreamingPluginResponse.DEFAULT_MAX_BATCH_ROWS));
+  }
+
+  /**
+   * @return the approximate most bytes of rows buffered by a response before
+   *   they are written to the client.
+   */
+  public int getStreamBatchBytes() {
+    return (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+        getLongProperty(STREAM_BATCH_BYTES, StreamingPluginResponse.DEFAULT_MAX_BATCH_BYTES)));
+  }
+
+  /**
+   * @return the compressions the service can send the responses with, if the
+   *   client accepts them; all of them by default. An empty list turns
+   *   compression off.
+   */
+  public List<StreamEncoding> getCompressionEncodings() {
+    String value = getProperty(COMPRESSION_ENCODINGS, StreamEncoding.getAcceptHeader(
+        Arrays.asList(StreamEncoding.LZ4, StreamEncoding.GZIP, StreamEncoding.DEFLATE)));
+    List<StreamEncoding> encodings = new ArrayList<>();
+    for (String name : value.split(",")) {
+      if (name.trim().isEmpty())
+        continue;
+      StreamEncoding encoding = StreamEncoding.fromName(name);
+      if (encoding == null)
+        LOG.warn("Unknown stream encoding in " + COMPRESSION_ENCODINGS + ": " + name.trim());
+      else
+        encodings.add(encoding);
+    }
+    return Collections.unmodifiableList(encodings);
+  }
+
+  /**
+   * @return the level of the gzip and deflate compressions, from 1 (fastest)
+   *   to 9 (smallest)
+   */
+  public int getCompressionLevel() {
+    return (int) Math.min(9, Math.max(1, getLongProperty(COMPRESSION_LEVEL, 6)));
+  }
+
+  /**
+   * @return the size under which a stored response, such as a cached result,
+   *   is sent uncompressed. The size of a running response isn't known up
+   *   front, so it is always compressed when the client accepts it.
+   */
+  public long getCompressionMinSize() {
+    return Math.max(0, getLongProperty(COMPRESSION_MIN_SIZE_BYTES, 1024));
+  }
+
+  /**
+   * @param pluginClass
+   *   the full class name of a plugin, or null for the limit of all the plugins
+   *
+   * @return the number of plugins run at the same time, in total or of the
+   *   given class, set with <code>wsf.admission.max-concurrent</code> and
+   *   <code>wsf.admission.max-concurrent.&lt;pluginClass&gt;</code>; zero
+   *   means no limit.
+   */
+  public int getAdmissionMaxConcurrent(String pluginClass) {
+    String name = (pluginClass == null) ? ADMISSION_MAX_CONCURRENT : ADMISSION_MAX_CONCURRENT + "." + pluginClass;
+    return (int) Math.max(0, getLongProperty(name, 0));
+  }
+
+  /**
+   * @param projectId
+   *   the project of a request
+   *
+   * @return the number of plugins run at the same time for the project, set
+   *   with <code>wsf.admission.project-max-concurrent</code> and
+   *   <code>wsf.admission.project-max-concurrent.&lt;projectId&gt;</code>; zero
+   *   means no limit other than the total one.
+   */
+  public int getAdmissionProjectMaxConcurrent(String projectId) {
+    long defaultLimit = getLongProperty(ADMISSION_PROJECT_MAX_CONCURRENT, 0);
+    return (int) Math.max(0, getLongProperty(ADMISSION_PROJECT_MAX_CONCURRENT + "." + projectId, defaultLimit));
+  }
+
+  /**
+   * @return the number of requests waiting for a slot, above which new
+   *   requests are rejected
+   */
+  public int getAdmissionMaxQueued() {
+    return (int) Math.max(0, getLongProperty(ADMISSION_MAX_QUEUED, 100));
+  }
+
+  /**
+   * @return the longest time a request waits for a slot before it is rejected
+   */
+  public Duration getAdmissionMaxWait() {
+    return Duration.ofSeconds(Math.max(0, getLongProperty(ADMISSION_MAX_WAIT_SECONDS, 30)));
+  }
+
+  /**
+   * @return the delay suggested to the clients of rejected requests
+   */
+  public Duration getAdmissionRetryAfter() {
+    return Duration.ofSeconds(Math.max(1, getLongProperty(ADMISSION_RETRY_AFTER_SECONDS, 5)));
+  }
+
+  /**
+   * @return whether the requests, and the shared executions, run on virtual
+   *   threads instead of the threads of the container. It needs Java 21 or
+   *   later.
+   */
+  public boolean isVirtualThreads() {
+    return Boolean.parseBoolean(getProperty(VIRTUAL_THREADS, "false"));
+  }
+
+  /**
+   * @return whether the statistics of the service are registered as an MBean
+   *   when the service starts; see {@link WsfServiceMXBean}.
+   */
+  public boolean isJmxEnabled() {
+    return Boolean.parseBoolean(getProperty(JMX_ENABLED, "true"));
+  }
+
+  /**
+   * @return the name telling apart the MBeans of the services in one JVM, as
+   *   the context key of their object name; the GUS_HOME of the service by
+   *   default.
+   */
+  public String getJmxContext() {
+    String gusHome = GusHome.getGusHome();
+    return getProperty(JMX_CONTEXT, (gusHome != null) ? gusHome : "default");
+  }
+}
@@ -0,0 +1,232 @@
+package org.gusdb.wsf.service;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The management interface of a WSF service, registered as
+ * <code>org.gusdb.wsf:type=WsfService,context="&lt;wsf.jmx.context&gt;"</code>,
+ * to inspect a running node with jconsole or jcmd. The times are in
+ * milliseconds.
+ */
+public interface WsfServiceMXBean {
+
+  /**
+   * The statistics of a plugin class since the service started.
+   */
+  public static class PluginInfo {
+
+    private final String pluginClass;
+    private final long requestCount;
+    private final long inFlightCount;
+    private final long executionCount;
+    private final Map<String, Long> errorCounts;
+    private final long rowCount;
+    private final long bytesWritten;
+    private final double meanRunMillis;
+    private final double meanFirstRowMillis;
+
+    public PluginInfo(String pluginClass, long requestCount, long inFlightCount, long executionCount,
+        Map<String, Long> errorCounts, long rowCount, long bytesWritten, double meanRunMillis,
+        double meanFirstRowMillis) {
+      this.pluginClass = pluginClass;
+      this.requestCount = requestCount;
+      this.inFlightCount = inFlightCount;
+      this.executionCount = executionCount;
+      this.errorCounts = errorCounts;
+      this.rowCount = rowCount;
+      this.bytesWritten = bytesWritten;
+      this.meanRunMillis = meanRunMillis;
+      this.meanFirstRowMillis = meanFirstRowMillis;
+    }
+
+    public String getPluginClass() {
+      return pluginClass;
+    }
+
+    public long getRequestCount() {
+      return requestCount;
+    }
+
+    public long getInFlightCount() {
+      return inFlightCount;
+    }
+
+    public long getExecutionCount() {
+      return executionCount;
+    }
+
+    /**
+     * @return the failed executions, by type of error
+     */
+    public Map<String, Long> getErrorCounts() {
+      return errorCounts;
+    }
+
+    public long getRowCount() {
+      return rowCount;
+    }
+
+    public long getBytesWritten() {
+      return bytesWritten;
+    }
+
+    public double getMeanRunMillis() {
+      return meanRunMillis;
+    }
+
+    public double getMeanFirstRowMillis() {
+      return meanFirstRowMillis;
+    }
+  }
+
+  /**
+   * An execution of a plugin in progress.
+   */
+  public static class RequestInfo {
+
+    private final long id;
+    private final String fingerprint;
+    private final String projectId;
+    private final String pluginClass;
+    private final boolean background;
+    private final String startTime;
+    private final long elapsedMillis;
+    private final boolean cancelled;
+
+    public RequestInfo(long id, String fingerprint, String projectId, String pluginClass, boolean background,
+        String startTime, long elapsedMillis, boolean cancelled) {
+      this.id = id;
+      this.fingerprint = fingerprint;
+      this.projectId = projectId;
+      this.pluginClass = pluginClass;
+      this.background = background;
+      this.startTime = startTime;
+      this.elapsedMillis = elapsedMillis;
+      this.cancelled = cancelled;
+    }
+
+    /**
+     * @return the id to cancel the execution with
+     */
+    public long getId() {
+      return id;
+    }
+
+    public String getFingerprint() {
+      return fingerprint;
+    }
+
+    public String getProjectId() {
+      return projectId;
+    }
+
+    public String getPluginClass() {
+      return pluginClass;
+    }
+
+    public boolean isBackground() {
+      return background;
+    }
+
+    public String getStartTime() {
+      return startTime;
+    }
+
+    public long getElapsedMillis() {
+      return elapsedMillis;
+    }
+
+    public boolean isCancelled() {
+      return cancelled;
+    }
+  }
+
+  String getVersion();
+
+  List<PluginInfo> getPlugins();
+
+  int getActiveRequestCount();
+
+  /**
+   * @return the executions of the plugins in progress, the oldest first
+   */
+  List<RequestInfo> getActiveRequests();
+
+  int getRunningCount();
+
+  /**
+   * @return the number of requests waiting for a slot to run their plugin
+   */
+  int getQueuedCount();
+
+  /**
+   * @return the number of background jobs waiting for a slot to run their
+   *   plugin
+   */
+  int getBackgroundQueuedCount();
+
+  long getAdmittedCount();
+
+  long getRejectedCount();
+
+  long getTotalWaitMillis();
+
+  long getMaxWaitMillis();
+
+  int getBlockedStreamCount();
+
+  long getBytesWritten();
+
+  boolean isCacheEnabled();
+
+  int getCacheSize();
+
+  long getCacheMemoryBytes();
+
+  long getCacheDiskBytes();
+
+  long getCacheHitCount();
+
+  long getCacheMissCount();
+
+  int getSharedExecutionCount();
+
+  int getJobCount();
+
+  int getQueuedJobCount();
+
+  int getRunningJobCount();
+
+  /**
+   * @return the number of commands started by the plugins that are still
+   *   running
+   */
+  int getActiveProcessCount();
+
+  long getSpawnedProcessCount();
+
+  /**
+   * @return the commands started by the plugins that are still running, as
+   *   "pid: start-time command-line"
+   */
+  List<String> getActiveProcesses();
+
+  /**
+   * Cancel an execution in progress; the plugin is interrupted, and its
+   * client gets an error.
+   *
+   * @param id
+   *   the id of the execution, from {@link #getActiveRequests()}
+   *
+   * @return false if there is no such execution
+   */
+  boolean cancelRequest(long id);
+
+  /**
+   * Cancel all the executions of the requests with the fingerprint.
+   *
+   * @return the number of executions cancelled
+   */
+  int cancelRequests(String fingerprint);
+}
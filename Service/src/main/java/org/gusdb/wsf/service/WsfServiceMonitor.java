@@ -0,0 +1,262 @@
+package org.gusdb.wsf.service;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+import org.gusdb.wsf.plugin.AbstractPlugin;
+import org.gusdb.wsf.service.PluginMetrics.ErrorType;
+import org.gusdb.wsf.service.PluginMetrics.Histogram;
+import org.gusdb.wsf.service.PluginMetrics.Phase;
+import org.gusdb.wsf.service.PluginMetrics.Stats;
+
+/**
+ * Exposes the statistics of the service, and the executions in progress, as
+ * the {@link WsfServiceMXBean}.
+ */
+public class WsfServiceMonitor implements WsfServiceMXBean {
+
+  private static final Logger LOG = Logger.getLogger(WsfServiceMonitor.class);
+
+  public static final String DOMAIN = "org.gusdb.wsf";
+
+  private static final String CANCEL_REASON = "The request was cancelled by an operator.";
+
+  /**
+   * @return the name of the bean of the context, told apart from those of the
+   *   other services of the JVM by the <code>wsf.jmx.context</code>
+   */
+  public static ObjectName getObjectName(ServiceContext context) throws MalformedObjectNameException {
+    return new ObjectName(DOMAIN + ":type=WsfService,context=" +
+        ObjectName.quote(context.getConfig().getJmxContext()));
+  }
+
+  /**
+   * Register the bean of the context in the platform MBean server. The bean of
+   * another service with the same name is left alone.
+   *
+   * @return the name of the bean, to unregister it with; or null if it wasn't
+   *   registered
+   */
+  public static ObjectName register(ServiceContext context) {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = null;
+    try {
+      name = getObjectName(context);
+      server.registerMBean(new WsfServiceMonitor(context), name);
+      LOG.debug("Registered " + name);
+      return name;
+    }
+    catch (InstanceAlreadyExistsException ex) {
+      LOG.warn("Another service of the JVM registered " + name + ", set " + WsfServiceConfig.JMX_CONTEXT +
+          " to tell them apart; this one can't be monitored over JMX.");
+    }
+    catch (JMException ex) {
+      LOG.warn("Unable to register " + name + ", the service can't be monitored over JMX.", ex);
+    }
+    return null;
+  }
+
+  /**
+   * Unregister a bean, when its service is shut down.
+   */
+  public static void unregister(ObjectName name) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+      LOG.debug("Unregistered " + name);
+    }
+    catch (InstanceNotFoundException ex) {
+      // already gone
+    }
+    catch (JMException ex) {
+      LOG.warn("Unable to unregister " + name, ex);
+    }
+  }
+
+  private final ServiceContext context;
+
+  public WsfServiceMonitor(ServiceContext context) {
+    this.context = context;
+  }
+
+  @Override
+  public String getVersion() {
+    return WsfService.VERSION;
+  }
+
+  @Override
+  public List<PluginInfo> getPlugins() {
+    List<PluginInfo> plugins = new ArrayList<>();
+    for (Map.Entry<String, Stats> entry : context.getPluginMetrics().getPlugins().entrySet()) {
+      Stats stats = entry.getValue();
+      Map<String, Long> errors = new LinkedHashMap<>();
+      for (ErrorType type : ErrorType.values()) {
+        errors.put(type.getLabel(), stats.getErrorCount(type));
+      }
+      plugins.add(new PluginInfo(entry.getKey(), stats.getRequestCount(), stats.getInFlightCount(),
+          stats.getExecutionCount(), errors, stats.getRowCount(), stats.getBytesWritten(),
+          getMeanMillis(stats.getPhase(Phase.RUN)), getMeanMillis(stats.getFirstRow())));
+    }
+    return plugins;
+  }
+
+  private static double getMeanMillis(Histogram histogram) {
+    long count = histogram.getCount();
+    return (count == 0) ? 0 : histogram.getSumSeconds() * 1000 / count;
+  }
+
+  @Override
+  public int getActiveRequestCount() {
+    return context.getActiveRequests().getCount();
+  }
+
+  @Override
+  public List<RequestInfo> getActiveRequests() {
+    List<RequestInfo> requests = new ArrayList<>();
+    for (ActiveRequests.ActiveRequest active : context.getActiveRequests().getRequests()) {
+      requests.add(new RequestInfo(active.getId(), active.getFingerprint(), active.getProjectId(),
+          active.getPluginClass(), active.isBackground(), active.getStartTime().toString(),
+          active.getElapsedTime().toMillis(), active.isCancelled()));
+    }
+    return requests;
+  }
+
+  @Override
+  public int getRunningCount() {
+    return context.getAdmissionController().getRunningCount();
+  }
+
+  @Override
+  public int getQueuedCount() {
+    return context.getAdmissionController().getQueuedCount();
+  }
+
+  @Override
+  public int getBackgroundQueuedCount() {
+    return context.getAdmissionController().getBackgroundQueuedCount();
+  }
+
+  @Override
+  public long getAdmittedCount() {
+    return context.getAdmissionController().getAdmittedCount();
+  }
+
+  @Override
+  public long getRejectedCount() {
+    return context.getAdmissionController().getRejectedCount();
+  }
+
+  @Override
+  public long getTotalWaitMillis() {
+    return context.getAdmissionController().getTotalWaitTime().toMillis();
+  }
+
+  @Override
+  public long getMaxWaitMillis() {
+    return context.getAdmissionController().getMaxWaitTime().toMillis();
+  }
+
+  @Override
+  public int getBlockedStreamCount() {
+    return context.getStreamMetrics().getBlockedCount();
+  }
+
+  @Override
+  public long getBytesWritten() {
+    return context.getStreamMetrics().getBytesWritten();
+  }
+
+  @Override
+  public boolean isCacheEnabled() {
+    return context.getResultCache() != null;
+  }
+
+  @Override
+  public int getCacheSize() {
+    ResultCache cache = context.getResultCache();
+    return (cache == null) ? 0 : cache.getSize();
+  }
+
+  @Override
+  public long getCacheMemoryBytes() {
+    ResultCache cache = context.getResultCache();
+    return (cache == null) ? 0 : cache.getMemoryBytes();
+  }
+
+  @Override
+  public long getCacheDiskBytes() {
+    ResultCache cache = context.getResultCache();
+    return (cache == null) ? 0 : cache.getDiskBytes();
+  }
+
+  @Override
+  public long getCacheHitCount() {
+    ResultCache cache = context.getResultCache();
+    return (cache == null) ? 0 : cache.getHitCount();
+  }
+
+  @Override
+  public long getCacheMissCount() {
+    ResultCache cache = context.getResultCache();
+    return (cache == null) ? 0 : cache.getMissCount();
+  }
+
+  @Override
+  public int getSharedExecutionCount() {
+    SharedExecutions shared = context.getSharedExecutions();
+    return (shared == null) ? 0 : shared.getRunningCount();
+  }
+
+  @Override
+  public int getJobCount() {
+    JobManager jobs = context.getJobManager();
+    return (jobs == null) ? 0 : jobs.getJobCount();
+  }
+
+  @Override
+  public int getQueuedJobCount() {
+    JobManager jobs = context.getJobManager();
+    return (jobs == null) ? 0 : jobs.getQueuedCount();
+  }
+
+  @Override
+  public int getRunningJobCount() {
+    JobManager jobs = context.getJobManager();
+    return (jobs == null) ? 0 : jobs.getRunningCount();
+  }
+
+  @Override
+  public int getActiveProcessCount() {
+    return AbstractPlugin.getActiveProcessCount();
+  }
+
+  @Override
+  public long getSpawnedProcessCount() {
+    return AbstractPlugin.getSpawnedProcessCount();
+  }
+
+  @Override
+  public List<String> getActiveProcesses() {
+    return AbstractPlugin.getActiveProcesses();
+  }
+
+  @Override
+  public boolean cancelRequest(long id) {
+    return context.getActiveRequests().cancel(id, CANCEL_REASON);
+  }
+
+  @Override
+  public int cancelRequests(String fingerprint) {
+    return context.getActiveRequests().cancel(fingerprint, CANCEL_REASON);
+  }
+}
@@ -1,16 +1,63 @@
 package org.gusdb.wsf.service;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.ws.rs.container.AsyncResponse;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 
+import org.gusdb.wsf.common.ResponseAttachment;
+import org.gusdb.wsf.common.ResponseDecoder;
+import org.gusdb.wsf.common.ResponseEncoder;
+import org.gusdb.wsf.common.ResponseMessage;
+import org.gusdb.wsf.common.ResponseRow;
+import org.gusdb.wsf.common.ResponseRowBatch;
+import org.gusdb.wsf.common.ResponseStatus;
+import org.gusdb.wsf.common.StreamEncoding;
+import org.gusdb.wsf.common.StreamFormat;
 import org.gusdb.wsf.common.WsfRequest;
+import org.gusdb.wsf.plugin.CancellationToken;
 import org.gusdb.wsf.plugin.DelayedResultException;
+import org.gusdb.wsf.plugin.JobStatus;
 import org.gusdb.wsf.plugin.Plugin;
+import org.gusdb.wsf.plugin.PluginCancelledException;
+import org.gusdb.wsf.plugin.PluginExecutor;
 import org.gusdb.wsf.plugin.PluginModelException;
+import org.gusdb.wsf.plugin.PluginRequest;
+import org.gusdb.wsf.plugin.PluginResponse;
+import org.gusdb.wsf.plugin.PluginTimeoutException;
 import org.gusdb.wsf.plugin.PluginUserException;
+import org.gusdb.wsf.plugin.ServiceBusyException;
 import org.gusdb.wsf.plugin.mock.MockPlugin;
 import org.gusdb.wsf.plugin.mock.MockPluginResponse;
 import org.junit.Assert;
@@ -50,13 +97,958 @@ public class MockServiceTest {
     Assert.assertEquals(attachmentCount, response.getAttachmentCount());
   }
 
+  @Test
+  public void testStreamingResponse() throws Exception {
+    for (StreamFormat format : StreamFormat.values()) {
+      int rowCount = random.nextInt(5000) + 10;
+      int attachmentCount = random.nextInt(100);
+      ServiceRequest request = createRequest(rowCount, attachmentCount);
+
+      // run the plugin into an encoded stream, using small batches
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ResponseEncoder encoder = format.newEncoder(bytes);
+      StreamingPluginResponse pluginResponse = new StreamingPluginResponse(encoder, 100, 4096);
+      ResponseStatus status = new ResponseStatus();
+      status.setSignal(new PluginExecutor().execute(request.getPluginClass(), request, pluginResponse));
+      pluginResponse.flush();
+      encoder.writeStatus(status);
+      encoder.close();
+      Assert.assertEquals(rowCount, pluginResponse.getRowCount());
+
+      // decode the stream, and validate the content with the mock response
+      MockPluginResponse mockResponse = new MockPluginResponse();
+      ResponseDecoder decoder = format.newDecoder(new ByteArrayInputStream(bytes.toByteArray()));
+      while (true) {
+        Object object = decoder.read();
+        if (object instanceof ResponseStatus) {
+          Assert.assertEquals(MockPlugin.SIGNAL, ((ResponseStatus) object).getSignal());
+          break;
+        }
+        else if (object instanceof ResponseRow) {
+          mockResponse.addRow(((ResponseRow) object).getRow());
+        }
+        else if (object instanceof ResponseRowBatch) {
+          for (String[] row : ((ResponseRowBatch) object).getRows()) {
+            mockResponse.addRow(row);
+          }
+        }
+        else if (object instanceof ResponseAttachment) {
+          // all rows have to arrive before the attachments
+          Assert.assertEquals(rowCount, mockResponse.getRowCount());
+          ResponseAttachment attachment = (ResponseAttachment) object;
+          mockResponse.addAttachment(attachment.getKey(), attachment.getContent());
+        }
+        else if (object instanceof ResponseMessage) {
+          mockResponse.setMessage(((ResponseMessage) object).getMessage());
+        }
+      }
+      Assert.assertEquals(rowCount, mockResponse.getRowCount());
+      Assert.assertEquals(attachmentCount, mockResponse.getAttachmentCount());
+    }
+  }
+
+  @Test
+  public void testResultCache() throws Exception {
+    // cache one result in memory, and spill the larger one to disk
+    Properties properties = new Properties();
+    properties.setProperty(WsfServiceConfig.CACHE_ENABLED, "true");
+    properties.setProperty(WsfServiceConfig.CACHE_SPILL_THRESHOLD_BYTES, "65536");
+    properties.setProperty(WsfServiceConfig.CACHE_DIR,
+        System.getProperty("java.io.tmpdir") + "/wsf-cache-test-" + random.nextInt(1000000));
+    WsfServiceConfig config = new WsfServiceConfig(properties);
+    ServiceContext context = new ServiceContext(config);
+    ResultCache cache = context.getResultCache();
+    WsfService service = new WsfService(context);
+
+    for (StreamFormat format : StreamFormat.values()) {
+      cache.clear();
+      for (int rowCount : new int[] { 10, 20000 }) {
+        ServiceRequest request = createRequest(rowCount, 5);
+        // the mock plugin generates random values, so identical streams can
+        // only come from the cache. The timeout is not part of the cache key.
+        byte[] first = readResponse(service.invoke(request.toString(), format.getHeaderValue()));
+        request.setContextTimeout(Duration.ofMinutes(1 + random.nextInt(10)));
+        byte[] second = readResponse(service.invoke(request.toString(), format.getHeaderValue()));
+        Assert.assertArrayEquals(first, second);
+      }
+      Assert.assertEquals(2, cache.getSize());
+      Assert.assertTrue(cache.getMemoryBytes() > 0);
+      Assert.assertTrue(cache.getDiskBytes() > 65536);
+    }
+    Assert.assertEquals(2 * StreamFormat.values().length, cache.getMissCount());
+    Assert.assertEquals(2 * StreamFormat.values().length, cache.getHitCount());
+    cache.clear();
+    Assert.assertEquals(0, cache.getSize());
+    config.getCacheDir().delete();
+  }
+
+  @Test
+  public void testCachedHeartbeats() throws Exception {
+    // a plugin quiet for longer than the heartbeat interval, with a fixed output
+    ServiceRequest request = createRequest(100, 0);
+    Map<String, String> params = request.getParams();
+    params.put(MockPlugin.PARAM_DELAY_MS, "1500");
+    params.put(MockPlugin.PARAM_SEED, "42");
+    request.setParams(params);
+
+    // the cached stream is the same whatever the format of the first client
+    List<byte[]> cached = new ArrayList<>();
+    for (StreamFormat format : new StreamFormat[] { StreamFormat.BINARY_V2, StreamFormat.BINARY }) {
+      Properties properties = new Properties();
+      properties.setProperty(WsfServiceConfig.CACHE_ENABLED, "true");
+      properties.setProperty(WsfServiceConfig.HEARTBEAT_SECONDS, "1");
+      WsfServiceConfig config = new WsfServiceConfig(properties);
+      ServiceContext context = new ServiceContext(config);
+      readResponse(new WsfService(context).invoke(request.toString(), format.getHeaderValue()));
+
+      CachedResult result = context.getResultCache().get(RequestKey.of(request,
+          config.getCacheIgnoredContextKeys()));
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (InputStream inStream = result.openStream()) {
+        inStream.transferTo(bytes);
+      }
+      cached.add(bytes.toByteArray());
+    }
+    Assert.assertArrayEquals(cached.get(0), cached.get(1));
+  }
+
+  @Test
+  public void testCoalescedRequests() throws Exception {
+    // keep little of the shared stream in memory, so the rest goes to a file
+    Properties properties = new Properties();
+    properties.setProperty(WsfServiceConfig.COALESCE_ENABLED, "true");
+    properties.setProperty(WsfServiceConfig.COALESCE_MAX_MEMORY_BYTES, "4096");
+    properties.setProperty(WsfServiceConfig.CACHE_DIR,
+        System.getProperty("java.io.tmpdir") + "/wsf-shared-test-" + random.nextInt(1000000));
+    WsfServiceConfig config = new WsfServiceConfig(properties);
+    ServiceContext context = new ServiceContext(config);
+    SharedExecutions executions = context.getSharedExecutions();
+    WsfService service = new WsfService(context);
+
+    ServiceRequest request = createRequest(5000, 5);
+    request.setPluginClass(BlockingPlugin.class.getName());
+    String header = StreamFormat.BINARY.getHeaderValue();
+    ExecutorService threads = Executors.newFixedThreadPool(4);
+    try {
+      // the first request starts the execution, the others join it
+      List<Future<byte[]>> results = new ArrayList<>();
+      results.add(threads.submit(() -> readResponse(service.invoke(request.toString(), header))));
+      BlockingPlugin.STARTED.await();
+      for (int i = 0; i < 3; i++) {
+        results.add(threads.submit(() -> readResponse(service.invoke(request.toString(), header))));
+      }
+      while (executions.getJoinedCount() < 3) {
+        Thread.sleep(10);
+      }
+      BlockingPlugin.RELEASE.countDown();
+
+      byte[] first = results.get(0).get();
+      for (Future<byte[]> result : results) {
+        Assert.assertArrayEquals(first, result.get());
+      }
+      Assert.assertEquals(1, BlockingPlugin.INVOCATIONS.get());
+      Assert.assertEquals(1, executions.getStartedCount());
+      Assert.assertEquals(0, executions.getRunningCount());
+    }
+    finally {
+      threads.shutdownNow();
+      config.getCacheDir().delete();
+    }
+  }
+
+  @Test
+  public void testSharedExecutionDeadlines() throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty(WsfServiceConfig.COALESCE_ENABLED, "true");
+    ServiceContext context = new ServiceContext(new WsfServiceConfig(properties));
+    SharedExecutions executions = context.getSharedExecutions();
+    WsfService service = new WsfService(context);
+
+    // the first request gives up after a second, the second waits
+    ServiceRequest impatient = createRequest(100, 0);
+    impatient.setPluginClass(GatedPlugin.class.getName());
+    impatient.setContextTimeout(Duration.ofSeconds(1));
+    ServiceRequest patient = createRequest(100, 0);
+    patient.setPluginClass(GatedPlugin.class.getName());
+    String header = StreamFormat.BINARY.getHeaderValue();
+    ExecutorService threads = Executors.newFixedThreadPool(2);
+    try {
+      Future<byte[]> first = threads.submit(() -> readResponse(service.invoke(impatient.toString(), header)));
+      GatedPlugin.STARTED.await();
+      Future<byte[]> second = threads.submit(() -> readResponse(service.invoke(patient.toString(), header)));
+      while (executions.getJoinedCount() < 1) {
+        Thread.sleep(10);
+      }
+
+      // the first reader times out, without stopping the execution
+      ResponseStatus status = readStatus(first.get(10, TimeUnit.SECONDS), new MockPluginResponse());
+      Assert.assertTrue(status.getException() instanceof PluginTimeoutException);
+      Assert.assertEquals(1, executions.getRunningCount());
+
+      GatedPlugin.RELEASE.countDown();
+      MockPluginResponse mockResponse = new MockPluginResponse();
+      status = readStatus(second.get(10, TimeUnit.SECONDS), mockResponse);
+      Assert.assertNull(status.getException());
+      Assert.assertEquals(MockPlugin.SIGNAL, status.getSignal());
+      Assert.assertEquals(100, mockResponse.getRowCount());
+      Assert.assertEquals(1, executions.getStartedCount());
+    }
+    finally {
+      threads.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testSharedExecutionHeartbeats() throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty(WsfServiceConfig.COALESCE_ENABLED, "true");
+    properties.setProperty(WsfServiceConfig.HEARTBEAT_SECONDS, "1");
+    WsfService service = new WsfService(new ServiceContext(new WsfServiceConfig(properties)));
+
+    // a plugin quiet for longer than the heartbeat interval
+    ServiceRequest request = createRequest(10, 0);
+    Map<String, String> params = request.getParams();
+    params.put(MockPlugin.PARAM_DELAY_MS, "2500");
+    request.setParams(params);
+
+    // the shared stream is converted for a client of the first binary format,
+    // and the reader sends its own heartbeats right after the header
+    byte[] bytes = readResponse(service.invoke(request.toString(), StreamFormat.BINARY.getHeaderValue()));
+    Assert.assertEquals(6, bytes[4]);
+    Assert.assertEquals(0, bytes[5]);
+    MockPluginResponse mockResponse = new MockPluginResponse();
+    ResponseStatus status = readStatus(bytes, mockResponse);
+    Assert.assertEquals(MockPlugin.SIGNAL, status.getSignal());
+    Assert.assertEquals(10, mockResponse.getRowCount());
+  }
+
+  @Test
+  public void testSharedStreamLag() throws Exception {
+    File dir = new File(System.getProperty("java.io.tmpdir"), "wsf-lag-test-" + random.nextInt(1000000));
+    SharedResultStream stream = new SharedResultStream(dir, 1024, 4096);
+    AtomicInteger abandoned = new AtomicInteger();
+    stream.onAbandoned(abandoned::incrementAndGet);
+    InputStream fast = stream.newReader();
+    InputStream slow = stream.newReader();
+    OutputStream outStream = stream.getOutputStream();
+    byte[] content = new byte[10000];
+    random.nextBytes(content);
+    byte[] read = new byte[content.length];
+    try {
+      outStream.write(content, 0, 3000);
+      Assert.assertEquals(3000, fast.readNBytes(read, 0, 3000));
+      Assert.assertEquals(10, slow.read(new byte[10]));
+
+      // the slow reader falls more than 4096 bytes behind, and is detached
+      outStream.write(content, 3000, 2000);
+      Assert.assertEquals(1, stream.getReaderCount());
+      try {
+        slow.read();
+        Assert.fail("The slow reader should be detached.");
+      }
+      catch (SharedResultStream.LagExceededException ex) {
+        // expected
+      }
+      // a new reader would start too far behind
+      Assert.assertNull(stream.newReader());
+
+      // the fast reader gets the rest, from the buffered file
+      Assert.assertEquals(2000, fast.readNBytes(read, 3000, 2000));
+      outStream.write(content, 5000, 3000);
+      Assert.assertEquals(3000, fast.readNBytes(read, 5000, 3000));
+      outStream.write(content, 8000, 2000);
+      stream.complete(null);
+      Assert.assertEquals(2000, fast.readNBytes(read, 8000, 2000));
+      Assert.assertEquals(-1, fast.read());
+      Assert.assertArrayEquals(content, read);
+      Assert.assertEquals(0, abandoned.get());
+    }
+    finally {
+      slow.close();
+      fast.close();
+    }
+    Assert.assertEquals(0, stream.getReaderCount());
+    Assert.assertEquals(0, dir.list().length);
+    dir.delete();
+  }
+
+  @Test
+  public void testVirtualThreadService() throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty(WsfServiceConfig.VIRTUAL_THREADS, "true");
+    VirtualThreadWsfService service = new VirtualThreadWsfService(
+        new ServiceContext(new WsfServiceConfig(properties)));
+
+    // resumed on a virtual thread, or on this thread on an older JVM
+    CompletableFuture<Object> resumed = new CompletableFuture<>();
+    AsyncResponse asyncResponse = (AsyncResponse) Proxy.newProxyInstance(AsyncResponse.class.getClassLoader(),
+        new Class<?>[] { AsyncResponse.class }, (proxy, method, args) -> {
+          if (method.getName().equals("resume"))
+            return resumed.complete(args[0]);
+          return (method.getReturnType() == boolean.class) ? false : null;
+        });
+    service.invoke(createRequest(100, 0).toString(), StreamFormat.BINARY.getHeaderValue(), null, asyncResponse);
+    Response response = (Response) resumed.get(10, TimeUnit.SECONDS);
+    MockPluginResponse mockResponse = new MockPluginResponse();
+    ResponseStatus status = readStatus(readResponse(response), mockResponse);
+    Assert.assertEquals(MockPlugin.SIGNAL, status.getSignal());
+    Assert.assertEquals(100, mockResponse.getRowCount());
+  }
+
+  @Test
+  public void testJobs() throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty(WsfServiceConfig.JOBS_ENABLED, "true");
+    properties.setProperty(WsfServiceConfig.JOBS_DIR,
+        System.getProperty("java.io.tmpdir") + "/wsf-jobs-test-" + random.nextInt(1000000));
+    WsfServiceConfig config = new WsfServiceConfig(properties);
+    WsfService service = new WsfService(new ServiceContext(config));
+
+    int rowCount = random.nextInt(1000) + 10;
+    ServiceRequest request = createRequest(rowCount, 3);
+    Response response = service.submitJob(request.toString());
+    Assert.assertEquals(Response.Status.ACCEPTED.getStatusCode(), response.getStatus());
+    JobStatus status = new JobStatus((String) response.getEntity());
+    Assert.assertEquals(request.getFingerprint(), status.getFingerprint());
+
+    // wait for the job, and read its result
+    response = service.getJob(status.getId(), 10);
+    status = new JobStatus((String) response.getEntity());
+    Assert.assertEquals(JobStatus.State.COMPLETED, status.getState());
+    byte[] result = readResponse(service.getJobResult(status.getId(), StreamFormat.BINARY.getHeaderValue(), null));
+    MockPluginResponse mockResponse = new MockPluginResponse();
+    ResponseDecoder decoder = StreamFormat.BINARY.newDecoder(new ByteArrayInputStream(result));
+    Object object;
+    while (!((object = decoder.read()) instanceof ResponseStatus)) {
+      if (object instanceof ResponseRowBatch) {
+        for (String[] row : ((ResponseRowBatch) object).getRows()) {
+          mockResponse.addRow(row);
+        }
+      }
+    }
+    Assert.assertEquals(MockPlugin.SIGNAL, ((ResponseStatus) object).getSignal());
+    Assert.assertEquals(rowCount, mockResponse.getRowCount());
+
+    // the stored job is found by a new manager
+    JobManager jobManager = new JobManager(config);
+    Assert.assertEquals(JobStatus.State.COMPLETED, jobManager.getStatus(status.getId()).getState());
+    Assert.assertEquals(404, service.getJobResult("../" + status.getId(), null, null).getStatus());
+
+    // its result is deleted, and it's reported as cancelled until it expires
+    Assert.assertEquals(204, service.cancelJob(status.getId()).getStatus());
+    status = new JobStatus((String) service.getJob(status.getId(), 0).getEntity());
+    Assert.assertEquals(JobStatus.State.CANCELLED, status.getState());
+    Assert.assertEquals(410, service.getJobResult(status.getId(), null, null).getStatus());
+    Assert.assertEquals(JobStatus.State.CANCELLED, new JobManager(config).getStatus(status.getId()).getState());
+    deleteDir(config.getJobDir());
+  }
+
+  @Test
+  public void testCancelledJob() throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty(WsfServiceConfig.JOBS_ENABLED, "true");
+    properties.setProperty(WsfServiceConfig.JOBS_DIR,
+        System.getProperty("java.io.tmpdir") + "/wsf-jobs-test-" + random.nextInt(1000000));
+    WsfServiceConfig config = new WsfServiceConfig(properties);
+    ServiceContext context = new ServiceContext(config);
+    WsfService service = new WsfService(context);
+
+    ServiceRequest request = createRequest(10, 0);
+    Map<String, String> params = request.getParams();
+    params.put(MockPlugin.PARAM_DELAY_MS, "10000");
+    request.setParams(params);
+    String jobId = new JobStatus((String) service.submitJob(request.toString()).getEntity()).getId();
+    long end = System.currentTimeMillis() + 10000;
+    while (context.getJobManager().getStatus(jobId).getState() != JobStatus.State.RUNNING &&
+        System.currentTimeMillis() < end) {
+      Thread.sleep(10);
+    }
+
+    // cancelled while running, the status and result still answer
+    Assert.assertEquals(204, service.cancelJob(jobId).getStatus());
+    JobStatus status = new JobStatus((String) service.getJob(jobId, 0).getEntity());
+    Assert.assertEquals(JobStatus.State.CANCELLED, status.getState());
+    Assert.assertTrue(status.getFinished() > 0);
+    Assert.assertEquals(410, service.getJobResult(jobId, null, null).getStatus());
+    Assert.assertEquals(204, service.cancelJob(jobId).getStatus());
+    Assert.assertEquals(404, service.cancelJob(UUID.randomUUID().toString()).getStatus());
+
+    // the cancelled status is stored
+    context.close();
+    Assert.assertEquals(JobStatus.State.CANCELLED, new JobManager(config).getStatus(jobId).getState());
+    deleteDir(config.getJobDir());
+  }
+
+  @Test
+  public void testJobWithoutResult() throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty(WsfServiceConfig.JOBS_ENABLED, "true");
+    properties.setProperty(WsfServiceConfig.JOBS_DIR,
+        System.getProperty("java.io.tmpdir") + "/wsf-jobs-test-" + random.nextInt(1000000));
+    WsfServiceConfig config = new WsfServiceConfig(properties);
+    // jobs are off by default
+    Assert.assertNull(new ServiceContext(new WsfServiceConfig(new Properties())).getJobManager());
+
+    // a job the service was running when it stopped
+    JobStatus running = new JobStatus();
+    running.setId(UUID.randomUUID().toString());
+    running.setState(JobStatus.State.RUNNING);
+    running.setFingerprint(createRequest(10, 0).getFingerprint());
+    running.setSubmitted(System.currentTimeMillis());
+    config.getJobDir().mkdirs();
+    Files.write(new File(config.getJobDir(), running.getId() + ".json").toPath(),
+        running.toString().getBytes(StandardCharsets.UTF_8));
+
+    // it failed without a result, which the client is told
+    WsfService service = new WsfService(new ServiceContext(config));
+    JobStatus status = new JobStatus((String) service.getJob(running.getId(), 0).getEntity());
+    Assert.assertEquals(JobStatus.State.FAILED, status.getState());
+    byte[] result = readResponse(service.getJobResult(running.getId(), StreamFormat.BINARY.getHeaderValue(), null));
+    ResponseStatus responseStatus = readStatus(result, new MockPluginResponse());
+    Assert.assertTrue(responseStatus.getException() instanceof PluginModelException);
+    Assert.assertTrue(responseStatus.getException().getMessage().contains(status.getMessage()));
+
+    Assert.assertEquals(204, service.cancelJob(running.getId()).getStatus());
+    deleteDir(config.getJobDir());
+  }
+
+  @Test
+  public void testClientDisconnect() throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty(WsfServiceConfig.HEARTBEAT_SECONDS, "1");
+    WsfService service = new WsfService(new ServiceContext(new WsfServiceConfig(properties)));
+
+    ServiceRequest request = createRequest(10, 0);
+    request.setPluginClass(WaitingPlugin.class.getName());
+    Response response = service.invoke(request.toString(), StreamFormat.BINARY.getHeaderValue());
+
+    // the client goes away once the plugin is running
+    AtomicBoolean disconnected = new AtomicBoolean();
+    OutputStream outStream = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        if (disconnected.get())
+          throw new IOException("Connection reset");
+      }
+    };
+    ExecutorService threads = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> result = threads.submit(() -> {
+        ((StreamingOutput) response.getEntity()).write(outStream);
+        return null;
+      });
+      WaitingPlugin.STARTED.await();
+      disconnected.set(true);
+
+      // the heartbeat fails, which cancels the plugin
+      Assert.assertTrue(WaitingPlugin.CANCELLED.await(10, TimeUnit.SECONDS));
+      try {
+        result.get(10, TimeUnit.SECONDS);
+        Assert.fail("The status can't be written to a disconnected client.");
+      }
+      catch (ExecutionException ex) {
+        Assert.assertTrue(ex.getCause() instanceof IOException);
+      }
+    }
+    finally {
+      threads.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testStalledClientHeartbeats() throws Exception {
+    // a client that stops reading after the start of the response
+    AtomicBoolean stall = new AtomicBoolean();
+    CountDownLatch stalled = new CountDownLatch(1);
+    CountDownLatch resume = new CountDownLatch(1);
+    OutputStream stalledStream = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        block();
+      }
+
+      @Override
+      public void write(byte[] bytes, int offset, int length) throws IOException {
+        block();
+      }
+
+      private void block() throws IOException {
+        if (!stall.get())
+          return;
+        stalled.countDown();
+        try {
+          resume.await();
+        }
+        catch (InterruptedException ex) {
+          throw new InterruptedIOException();
+        }
+      }
+    };
+    StreamingPluginResponse stalledResponse = new StreamingPluginResponse(
+        StreamFormat.BINARY.newEncoder(stalledStream));
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    StreamingPluginResponse idleResponse = new StreamingPluginResponse(StreamFormat.BINARY.newEncoder(bytes));
+    stall.set(true);
+    try {
+      stalledResponse.startHeartbeat(Duration.ofMillis(100));
+      Assert.assertTrue(stalled.await(10, TimeUnit.SECONDS));
+
+      // the other response still gets its heartbeats
+      idleResponse.startHeartbeat(Duration.ofMillis(100));
+      long end = System.currentTimeMillis() + 10000;
+      for (int beats = 0; beats < 3; beats++) {
+        int size = bytes.size();
+        while (bytes.size() == size && System.currentTimeMillis() < end) {
+          Thread.sleep(10);
+        }
+        Assert.assertTrue("No heartbeat while another client is stalled.", bytes.size() > size);
+      }
+    }
+    finally {
+      resume.countDown();
+      stalledResponse.stopHeartbeat();
+      idleResponse.stopHeartbeat();
+    }
+  }
+
+  @Test
+  public void testAdmission() throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty(WsfServiceConfig.ADMISSION_MAX_CONCURRENT, "1");
+    properties.setProperty(WsfServiceConfig.ADMISSION_MAX_QUEUED, "1");
+    properties.setProperty(WsfServiceConfig.ADMISSION_RETRY_AFTER_SECONDS, "7");
+    ServiceContext context = new ServiceContext(new WsfServiceConfig(properties));
+    AdmissionController admission = context.getAdmissionController();
+    String pluginClass = MockPlugin.class.getName();
+
+    ExecutorService threads = Executors.newSingleThreadExecutor();
+    try {
+      // the second request waits for the slot of the first
+      AdmissionController.Permit first = admission.acquire(pluginClass, MOCK_PROJECT, Duration.ZERO);
+      Future<AdmissionController.Permit> second =
+          threads.submit(() -> admission.acquire(pluginClass, MOCK_PROJECT, Duration.ofSeconds(10)));
+      while (admission.getQueuedCount() == 0) {
+        Thread.sleep(10);
+      }
+
+      // the queue is full, the others are rejected
+      try {
+        admission.acquire(pluginClass, MOCK_PROJECT, Duration.ofSeconds(10));
+        Assert.fail("The queue is full.");
+      }
+      catch (ServiceBusyException ex) {
+        Assert.assertEquals(7, ex.getRetryAfterSeconds());
+      }
+      Response response = new WsfService(context).invoke(createRequest(10, 0).toString(), null);
+      Assert.assertEquals(503, response.getStatus());
+      Assert.assertEquals("7", response.getHeaderString("Retry-After"));
+
+      first.close();
+      second.get(10, TimeUnit.SECONDS).close();
+      Assert.assertEquals(2, admission.getAdmittedCount());
+      Assert.assertEquals(2, admission.getRejectedCount());
+      Assert.assertEquals(0, admission.getRunningCount());
+      Assert.assertEquals(0, admission.getQueuedCount());
+    }
+    finally {
+      threads.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testAdmissionQueueLimit() throws Exception {
+    // no request may wait, but a free slot is taken
+    Properties properties = new Properties();
+    properties.setProperty(WsfServiceConfig.ADMISSION_MAX_CONCURRENT, "1");
+    properties.setProperty(WsfServiceConfig.ADMISSION_MAX_QUEUED, "0");
+    ServiceContext context = new ServiceContext(new WsfServiceConfig(properties));
+    Response response = new WsfService(context).invoke(createRequest(10, 0).toString(), null);
+    Assert.assertEquals(200, response.getStatus());
+    readResponse(response);
+    Assert.assertEquals(0, context.getAdmissionController().getRejectedCount());
+
+    // a job waiting for the slot doesn't fill the queue of the interactive
+    // requests
+    properties.setProperty(WsfServiceConfig.ADMISSION_MAX_QUEUED, "1");
+    AdmissionController admission = new ServiceContext(new WsfServiceConfig(properties)).getAdmissionController();
+    String pluginClass = MockPlugin.class.getName();
+    ExecutorService threads = Executors.newSingleThreadExecutor();
+    try {
+      AdmissionController.Permit first = admission.acquire(pluginClass, MOCK_PROJECT, Duration.ZERO);
+      Future<AdmissionController.Permit> job = threads.submit(() -> admission.acquire(pluginClass, MOCK_PROJECT, null));
+      while (admission.getBackgroundQueuedCount() == 0) {
+        Thread.sleep(10);
+      }
+      Assert.assertEquals(0, admission.getQueuedCount());
+      Assert.assertFalse(admission.rejectIfSaturated());
+
+      first.close();
+      job.get(10, TimeUnit.SECONDS).close();
+      Assert.assertEquals(0, admission.getRejectedCount());
+    }
+    finally {
+      threads.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testSlowClient() throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty(WsfServiceConfig.STREAM_BATCH_ROWS, "10");
+    ServiceContext context = new ServiceContext(new WsfServiceConfig(properties));
+    StreamMetrics metrics = context.getStreamMetrics();
+    Response response = new WsfService(context).invoke(createRequest(5000, 0).toString(),
+        StreamFormat.BINARY.getHeaderValue());
+
+    // a client that stops reading holds the writes, and the plugin, back
+    CountDownLatch resume = new CountDownLatch(1);
+    OutputStream slowClient = new OutputStream() {
+
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] bytes, int offset, int length) throws IOException {
+        try {
+          resume.await();
+        }
+        catch (InterruptedException ex) {
+          throw new IOException(ex);
+        }
+      }
+    };
+    ExecutorService threads = Executors.newSingleThreadExecutor();
+    try {
+      Future<?> writer = threads.submit(() -> {
+        ((StreamingOutput) response.getEntity()).write(slowClient);
+        return null;
+      });
+      while (metrics.getBlockedCount() == 0) {
+        Thread.sleep(10);
+      }
+      Thread.sleep(100);
+      Assert.assertFalse(writer.isDone());
+
+      resume.countDown();
+      writer.get(10, TimeUnit.SECONDS);
+      Assert.assertEquals(0, metrics.getBlockedCount());
+      Assert.assertEquals(1, metrics.getStreamCount());
+      Assert.assertTrue(metrics.getBytesWritten() > 0);
+      Assert.assertTrue(metrics.getMaxBlockedTime().toMillis() >= 100);
+      Assert.assertTrue(metrics.getTotalBlockedTime().compareTo(metrics.getMaxBlockedTime()) >= 0);
+    }
+    finally {
+      threads.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testCompression() throws Exception {
+    Properties properties = new Properties();
+    properties.setProperty(WsfServiceConfig.COMPRESSION_ENCODINGS, "gzip, wsf-lz4");
+    WsfService service = new WsfService(new ServiceContext(new WsfServiceConfig(properties)));
+    int rowCount = random.nextInt(5000) + 1000;
+    String request = createRequest(rowCount, 0).toString();
+    String format = StreamFormat.BINARY.getHeaderValue();
+
+    byte[] plain = readResponse(service.invoke(request, format));
+    for (StreamEncoding encoding : new StreamEncoding[] { StreamEncoding.GZIP, StreamEncoding.LZ4 }) {
+      Response response = service.invoke(request, format, "br, " + encoding.getHeaderValue());
+      Assert.assertEquals(encoding.getHeaderValue(), response.getHeaderString(WsfRequest.STREAM_ENCODING_HEADER));
+      byte[] compressed = readResponse(response);
+      Assert.assertTrue(compressed.length < plain.length);
+
+      ResponseDecoder decoder = StreamFormat.BINARY.newDecoder(
+          encoding.newInputStream(new ByteArrayInputStream(compressed)));
+      int rows = 0;
+      Object object;
+      while (!((object = decoder.read()) instanceof ResponseStatus)) {
+        if (object instanceof ResponseRowBatch)
+          rows += ((ResponseRowBatch) object).getRows().size();
+      }
+      Assert.assertEquals(rowCount, rows);
+      Assert.assertEquals(MockPlugin.SIGNAL, ((ResponseStatus) object).getSignal());
+    }
+
+    // deflate is not enabled in the service
+    Response response = service.invoke(request, format, StreamEncoding.DEFLATE.getHeaderValue());
+    Assert.assertEquals(StreamEncoding.IDENTITY.getHeaderValue(),
+        response.getHeaderString(WsfRequest.STREAM_ENCODING_HEADER));
+  }
+
+  @Test
+  public void testPluginMetrics() throws Exception {
+    ServiceContext context = new ServiceContext(new WsfServiceConfig(new Properties()));
+    WsfService service = new WsfService(context);
+    String format = StreamFormat.BINARY.getHeaderValue();
+    readResponse(service.invoke(createRequest(100, 0).toString(), format));
+    readResponse(service.invoke(createRequest(50, 0).toString(), format));
+    ServiceRequest failing = createRequest(10, 0);
+    Map<String, String> params = failing.getParams();
+    params.put(MockPlugin.PARAM_FAIL, MockPlugin.FAIL_USER);
+    failing.setParams(params);
+    readResponse(service.invoke(failing.toString(), format));
+
+    PluginMetrics.Stats stats = context.getPluginMetrics().get(MockPlugin.class.getName());
+    Assert.assertEquals(3, stats.getRequestCount());
+    Assert.assertEquals(0, stats.getInFlightCount());
+    Assert.assertEquals(3, stats.getExecutionCount());
+    Assert.assertEquals(1, stats.getErrorCount(PluginMetrics.ErrorType.USER));
+    Assert.assertEquals(0, stats.getErrorCount(PluginMetrics.ErrorType.MODEL));
+    Assert.assertEquals(150, stats.getRowCount());
+    Assert.assertEquals(context.getStreamMetrics().getBytesWritten(), stats.getBytesWritten());
+    Assert.assertEquals(2, stats.getFirstRow().getCount());
+    for (PluginMetrics.Phase phase : PluginMetrics.Phase.values()) {
+      Assert.assertEquals(3, stats.getPhase(phase).getCount());
+    }
+
+    String metrics = service.getMetrics();
+    String plugin = "plugin=\"" + MockPlugin.class.getName() + "\"";
+    Assert.assertTrue(metrics.contains("wsf_plugin_requests_total{" + plugin + "} 3\n"));
+    Assert.assertTrue(metrics.contains("wsf_plugin_errors_total{" + plugin + ",type=\"user\"} 1\n"));
+    Assert.assertTrue(metrics.contains("wsf_plugin_phase_seconds_count{" + plugin + ",phase=\"run\"} 3\n"));
+    Assert.assertTrue(metrics.contains("wsf_plugin_first_row_seconds_bucket{" + plugin + ",le=\"+Inf\"} 2\n"));
+    Assert.assertTrue(metrics.contains("# TYPE wsf_admission_running gauge\n"));
+  }
+
+  @Test
+  public void testMonitor() throws Exception {
+    ServiceContext context = new ServiceContext(new WsfServiceConfig(new Properties()));
+    WsfService service = new WsfService(context);
+    readResponse(service.invoke(createRequest(10, 0).toString(), null));
+    ObjectName name = WsfServiceMonitor.register(context);
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    Assert.assertEquals(WsfServiceMonitor.getObjectName(context), name);
+
+    // another service of the JVM doesn't replace the bean, unless it has its
+    // own context
+    Assert.assertNull(WsfServiceMonitor.register(new ServiceContext(new WsfServiceConfig(new Properties()))));
+    Properties otherProperties = new Properties();
+    otherProperties.setProperty(WsfServiceConfig.JMX_CONTEXT, "other");
+    ObjectName otherName = WsfServiceMonitor.register(new ServiceContext(new WsfServiceConfig(otherProperties)));
+    Assert.assertNotEquals(name, otherName);
+    Assert.assertTrue(server.isRegistered(otherName));
+    WsfServiceMonitor.unregister(otherName);
+    Assert.assertFalse(server.isRegistered(otherName));
+
+    CompositeData[] plugins = (CompositeData[]) server.getAttribute(name, "Plugins");
+    Assert.assertEquals(1, plugins.length);
+    Assert.assertEquals(MockPlugin.class.getName(), plugins[0].get("pluginClass"));
+    Assert.assertEquals(10L, plugins[0].get("rowCount"));
+
+    ServiceRequest request = createRequest(10, 0);
+    request.setPluginClass(StoppablePlugin.class.getName());
+    Response response = service.invoke(request.toString(), StreamFormat.BINARY.getHeaderValue());
+    ExecutorService threads = Executors.newSingleThreadExecutor();
+    try {
+      Future<byte[]> result = threads.submit(() -> readResponse(response));
+      StoppablePlugin.STARTED.await();
+
+      CompositeData[] active = (CompositeData[]) server.getAttribute(name, "ActiveRequests");
+      Assert.assertEquals(1, active.length);
+      Assert.assertEquals(request.getFingerprint(), active[0].get("fingerprint"));
+      Assert.assertEquals(MOCK_PROJECT, active[0].get("projectId"));
+      Assert.assertEquals(Boolean.FALSE, active[0].get("background"));
+
+      // the operator cancels the request
+      Object cancelled = server.invoke(name, "cancelRequest", new Object[] { active[0].get("id") },
+          new String[] { long.class.getName() });
+      Assert.assertEquals(Boolean.TRUE, cancelled);
+      ResponseDecoder decoder = StreamFormat.BINARY.newDecoder(
+          new ByteArrayInputStream(result.get(10, TimeUnit.SECONDS)));
+      Object object;
+      while (!((object = decoder.read()) instanceof ResponseStatus)) {
+        // skip the output before the status
+      }
+      Assert.assertTrue(((ResponseStatus) object).getException() instanceof PluginCancelledException);
+      Assert.assertEquals(0, server.getAttribute(name, "ActiveRequestCount"));
+      Assert.assertEquals(Boolean.FALSE, server.invoke(name, "cancelRequest", new Object[] { 0L },
+          new String[] { long.class.getName() }));
+    }
+    finally {
+      threads.shutdownNow();
+      WsfServiceMonitor.unregister(name);
+      context.close();
+    }
+    Assert.assertFalse(server.isRegistered(name));
+  }
+
+  @Test
+  public void testFairShare() throws Exception {
+    FairShareLimiter limiter = new FairShareLimiter(3, project -> project.equals("Busy") ? 2 : 0);
+    ExecutorService threads = Executors.newFixedThreadPool(2);
+    try {
+      // a project can't go over its own limit, even with free slots
+      Assert.assertTrue(limiter.acquire("Busy", 0));
+      Assert.assertTrue(limiter.acquire("Busy", 0));
+      Assert.assertFalse(limiter.acquire("Busy", TimeUnit.MILLISECONDS.toNanos(50)));
+      Assert.assertTrue(limiter.acquire("Quiet", 0));
+
+      // all the slots are taken, the busy project queues first
+      Future<Boolean> busy = threads.submit(() -> limiter.acquire("Busy", TimeUnit.SECONDS.toNanos(10)));
+      while (limiter.getQueuedCounts().getOrDefault("Busy", 0) == 0) {
+        Thread.sleep(10);
+      }
+      Future<Boolean> other = threads.submit(() -> limiter.acquire("Other", TimeUnit.SECONDS.toNanos(10)));
+      while (limiter.getQueuedCounts().getOrDefault("Other", 0) == 0) {
+        Thread.sleep(10);
+      }
+
+      // the freed slot goes to the project that runs nothing, though it came later
+      limiter.release("Busy");
+      Assert.assertTrue(other.get(10, TimeUnit.SECONDS));
+      Assert.assertFalse(busy.isDone());
+      Assert.assertEquals(Integer.valueOf(1), limiter.getRunningCounts().get("Other"));
+
+      limiter.release("Quiet");
+      Assert.assertTrue(busy.get(10, TimeUnit.SECONDS));
+      Assert.assertEquals(Integer.valueOf(2), limiter.getRunningCounts().get("Busy"));
+    }
+    finally {
+      threads.shutdownNow();
+    }
+  }
+
+  /**
+   * A mock plugin that runs until its request is cancelled.
+   */
+  public static class WaitingPlugin extends MockPlugin {
+
+    static final CountDownLatch STARTED = new CountDownLatch(1);
+    static final CountDownLatch CANCELLED = new CountDownLatch(1);
+
+    @Override
+    protected int execute(PluginRequest request, PluginResponse response) throws PluginModelException,
+        PluginUserException {
+      CancellationToken token = request.getCancellationToken();
+      STARTED.countDown();
+      try {
+        while (true) {
+          Thread.sleep(60000);
+        }
+      }
+      catch (InterruptedException ex) {
+        if (token.isCancelled())
+          CANCELLED.countDown();
+        throw new PluginModelException(ex);
+      }
+    }
+  }
+
+  /**
+   * A mock plugin that runs until it is interrupted.
+   */
+  public static class StoppablePlugin extends MockPlugin {
+
+    static final CountDownLatch STARTED = new CountDownLatch(1);
+
+    @Override
+    protected int execute(PluginRequest request, PluginResponse response) throws PluginModelException,
+        PluginUserException {
+      STARTED.countDown();
+      try {
+        Thread.sleep(60000);
+      }
+      catch (InterruptedException ex) {
+        throw new PluginModelException(ex);
+      }
+      return super.execute(request, response);
+    }
+  }
+
+  /**
+   * A mock plugin that waits to be released, so concurrent requests overlap.
+   */
+  public static class BlockingPlugin extends MockPlugin {
+
+    static final CountDownLatch STARTED = new CountDownLatch(1);
+    static final CountDownLatch RELEASE = new CountDownLatch(1);
+    static final AtomicInteger INVOCATIONS = new AtomicInteger();
+
+    @Override
+    protected int execute(PluginRequest request, PluginResponse response) throws PluginModelException,
+        PluginUserException {
+      INVOCATIONS.incrementAndGet();
+      STARTED.countDown();
+      try {
+        RELEASE.await();
+      }
+      catch (InterruptedException ex) {
+        throw new PluginModelException(ex);
+      }
+      return super.execute(request, response);
+    }
+  }
+
+  /**
+   * A mock plugin that waits to be released; its request has no timeout of its
+   * own.
+   */
+  public static class GatedPlugin extends MockPlugin {
+
+    static final CountDownLatch STARTED = new CountDownLatch(1);
+    static final CountDownLatch RELEASE = new CountDownLatch(1);
+
+    @Override
+    protected int execute(PluginRequest request, PluginResponse response) throws PluginModelException,
+        PluginUserException {
+      Assert.assertFalse(request.getDeadline().isPresent());
+      STARTED.countDown();
+      try {
+        RELEASE.await();
+      }
+      catch (InterruptedException ex) {
+        throw new PluginModelException(ex);
+      }
+      return super.execute(request, response);
+    }
+  }
+
+  private static void deleteDir(File dir) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  /**
+   * Decode a response in the binary format, passing its rows to the mock
+   * response.
+   */
+  private static ResponseStatus readStatus(byte[] bytes, MockPluginResponse mockResponse) throws Exception {
+    ResponseDecoder decoder = StreamFormat.BINARY.newDecoder(new ByteArrayInputStream(bytes));
+    while (true) {
+      Object object = decoder.read();
+      if (object instanceof ResponseStatus)
+        return (ResponseStatus) object;
+      else if (object instanceof ResponseRowBatch) {
+        for (String[] row : ((ResponseRowBatch) object).getRows()) {
+          mockResponse.addRow(row);
+        }
+      }
+      else if (object instanceof ResponseRow)
+        mockResponse.addRow(((ResponseRow) object).getRow());
+    }
+  }
+
+  private static byte[] readResponse(Response response) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ((StreamingOutput) response.getEntity()).write(bytes);
+    return bytes.toByteArray();
+  }
+
   @Test
   public void testService() {
     int rowCount = random.nextInt(1000) + 10;
     int attachmentCount = random.nextInt(1000);
     WsfRequest request = createRequest(rowCount, attachmentCount);
     WsfService service = new WsfService();
-    Response response = service.invoke(request.toString());
+    Response response = service.invoke(request.toString(), null);
     Assert.assertNotNull(response);
 
     // read from stream